@@ -0,0 +1,323 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Running totals of the approved transactions of every user, kept per partition so the state of a partition can
+ * move with it in a rebalance. Every account remembers the offset after the last record applied to it, so records
+ * that are delivered again after a hand-over (because the commit lagged behind) aren't applied twice.
+ * The ledger works in one of two modes:
+ * - with a state directory, a revoked partition is checkpointed to a file and restored from it when assigned again
+ * - with a changelog topic, every change is also written to the changelog (partition for partition with the
+ *   source topic) and a {@link StandbyReplica} keeps the partitions this instance doesn't own hot in memory.
+ *   A revoked partition is handed to the replica and an assigned one is taken over from it, caught up to the end of
+ *   the changelog, so a failover doesn't have to rebuild the state. A failed changelog write makes every later
+ *   flush throw, so the offsets of records whose change never reached the changelog are not committed.
+ * Records are only applied to partitions the ledger holds, i.e. that were restored and not checkpointed or dropped
+ * since, so a lane still working on a revoked partition can neither change its handed over state nor bring it back.
+ */
+public class AccountLedger implements PartitionStateStore {
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path directory;
+    private final Producer<String, byte[]> changelogProducer;
+    private final String changelogTopic;
+    private final StandbyReplica standby;
+    private final ConcurrentMap<TopicPartition, HeldPartition> partitions = new ConcurrentHashMap<>();
+    // First changelog write that failed, the changelog has a gap from there on
+    private final AtomicReference<Exception> changelogFailure = new AtomicReference<>();
+
+    /**
+     * Takes in one parameter directory, where the checkpoints of the partitions are written
+     * @param directory
+     */
+    public AccountLedger(Path directory) {
+        this(directory, null, null, null);
+    }
+
+    /**
+     * Takes in three parameters changelogProducer, changelogTopic and standby, the replica of the changelog
+     * partitions this instance doesn't own
+     * @param changelogProducer
+     * @param changelogTopic
+     * @param standby
+     */
+    public AccountLedger(Producer<String, byte[]> changelogProducer, String changelogTopic, StandbyReplica standby) {
+        this(null, changelogProducer, changelogTopic, standby);
+    }
+
+    private AccountLedger(Path directory, Producer<String, byte[]> changelogProducer, String changelogTopic,
+                          StandbyReplica standby) {
+        this.directory = directory;
+        this.changelogProducer = changelogProducer;
+        this.changelogTopic = changelogTopic;
+        this.standby = standby;
+    }
+
+    /**
+     * Takes in one parameter record and adds its transaction to the user's totals. Returns false when the record was
+     * already applied to the user's account, or its partition isn't held by this ledger (anymore), and is skipped.
+     * @param record
+     * @return
+     */
+    public boolean apply(ConsumerRecord<String, Transaction> record) {
+        HeldPartition held = partitions.get(new TopicPartition(record.topic(), record.partition()));
+        if (held == null) {
+            return false;
+        }
+        // Checkpoint and drop wait for the records being applied and keep any later one out
+        held.lock.readLock().lock();
+        try {
+            return !held.released && apply(held.ledger, record);
+        } finally {
+            held.lock.readLock().unlock();
+        }
+    }
+
+    private boolean apply(PartitionLedger ledger, ConsumerRecord<String, Transaction> record) {
+        Transaction transaction = record.value();
+        Account account = ledger.accounts.computeIfAbsent(transaction.getUser(), user -> new Account());
+        // Records of a user are applied by one thread at a time and in order, so the changelog keeps their order
+        synchronized (account) {
+            if (record.offset() < account.nextOffset) {
+                return false;
+            }
+            account.add(transaction.getAmount(), record.offset() + 1);
+            if (changelogProducer != null) {
+                changelogProducer.send(new ProducerRecord<>(changelogTopic, record.partition(),
+                        transaction.getUser(), encode(account)), (metadata, exception) -> {
+                    if (exception != null && changelogFailure.compareAndSet(null, exception)) {
+                        exception.printStackTrace();
+                        System.out.println("ERROR-EXCEPTION - [Failed to write the account of " + transaction.getUser()
+                                + " to " + changelogTopic + "-" + record.partition() + "]");
+                    }
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes in one parameter user and returns the user's account, null when no partition held here has seen the user
+     * @param user
+     * @return
+     */
+    public Account account(String user) {
+        for (HeldPartition held : partitions.values()) {
+            Account account = held.ledger.accounts.get(user);
+            if (account != null) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of partitions held in memory
+     * @return
+     */
+    public int size() {
+        return partitions.size();
+    }
+
+    /**
+     * Waits for the changes written so far to reach the changelog, so the offsets of their records can be committed.
+     * Throws a KafkaException once any changelog write failed, the records since the last commit must be processed
+     * again by a consumer that rebuilds the partition from the changelog.
+     */
+    @Override
+    public void flush() {
+        if (changelogProducer != null) {
+            changelogProducer.flush();
+            Exception failure = changelogFailure.get();
+            if (failure != null) {
+                throw new KafkaException("A change of the account ledger didn't reach " + changelogTopic, failure);
+            }
+        }
+    }
+
+    @Override
+    public void checkpoint(TopicPartition partition) {
+        PartitionLedger ledger = release(partition);
+        if (ledger == null) {
+            return;
+        }
+        if (standby != null) {
+            // Every change is in the changelog once flushed, keep the partition hot as a standby
+            flush();
+            standby.adopt(partition, ledger);
+            return;
+        }
+        Path file = file(partition);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(ledger.accounts.size());
+                for (ConcurrentMap.Entry<String, Account> entry : ledger.accounts.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.write(encode(entry.getValue()));
+                }
+            }
+            // Replace the previous checkpoint in one step so a crash never leaves half a file behind
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to checkpoint the account ledger of " + partition + "]");
+        }
+    }
+
+    @Override
+    public void restore(TopicPartition partition) {
+        if (standby != null) {
+            partitions.put(partition, new HeldPartition(standby.takeOver(partition)));
+            return;
+        }
+        // Without a checkpoint the partition starts empty
+        PartitionLedger ledger = new PartitionLedger();
+        Path file = directory != null ? file(partition) : null;
+        if (file != null && Files.exists(file)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (input.readInt() != FORMAT_VERSION) {
+                    throw new IOException("unknown ledger format");
+                }
+                int accounts = input.readInt();
+                byte[] account = new byte[ENCODED_SIZE];
+                for (int i = 0; i < accounts; i++) {
+                    String user = input.readUTF();
+                    input.readFully(account);
+                    ledger.put(user, account);
+                }
+            } catch (IOException e) {
+                // Start the partition empty rather than refusing the assignment
+                ledger = new PartitionLedger();
+                e.printStackTrace();
+                System.out.println("ERROR-EXCEPTION - [Failed to restore the account ledger of " + partition + "]");
+            }
+        }
+        partitions.put(partition, new HeldPartition(ledger));
+    }
+
+    @Override
+    public void drop(TopicPartition partition) {
+        release(partition);
+        if (standby != null) {
+            // Changes may have been lost with the partition, replicate it again from the changelog
+            standby.adopt(partition, null);
+        }
+    }
+
+    /**
+     * Takes in one parameter partition, stops applying records to it once the ones being applied are done and
+     * returns its ledger, null when the partition isn't held
+     * @param partition
+     * @return
+     */
+    private PartitionLedger release(TopicPartition partition) {
+        HeldPartition held = partitions.remove(partition);
+        if (held == null) {
+            return null;
+        }
+        held.lock.writeLock().lock();
+        held.released = true;
+        held.lock.writeLock().unlock();
+        return held.ledger;
+    }
+
+    private Path file(TopicPartition partition) {
+        return directory.resolve(partition.topic() + "-" + partition.partition() + ".ledger");
+    }
+
+    // Size of an encoded account: next offset, transaction count and total amount
+    static final int ENCODED_SIZE = 24;
+
+    private static byte[] encode(Account account) {
+        return ByteBuffer.allocate(ENCODED_SIZE).putLong(account.nextOffset).putLong(account.transactionCount)
+                .putDouble(account.totalAmount).array();
+    }
+
+    /**
+     * A partition held by the active ledger, released once when it is checkpointed or dropped
+     */
+    private static class HeldPartition {
+        private final PartitionLedger ledger;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean released;
+
+        private HeldPartition(PartitionLedger ledger) {
+            this.ledger = ledger;
+        }
+    }
+
+    /**
+     * Accounts of one partition, held by the active ledger or by a standby replica
+     */
+    static class PartitionLedger {
+        private final ConcurrentMap<String, Account> accounts = new ConcurrentHashMap<>();
+
+        /**
+         * Takes in two parameters user and account, an encoded account as written to the changelog, and replaces
+         * the user's account with it. A null account (a changelog tombstone) removes the user.
+         * @param user
+         * @param account
+         */
+        void put(String user, byte[] account) {
+            if (account == null) {
+                accounts.remove(user);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(account);
+            accounts.put(user, new Account(buffer.getLong(), buffer.getLong(), buffer.getDouble()));
+        }
+
+        int size() {
+            return accounts.size();
+        }
+    }
+
+    /**
+     * Totals of a user's approved transactions
+     */
+    public static class Account {
+        private long nextOffset;
+        private long transactionCount;
+        private double totalAmount;
+
+        private Account() {
+        }
+
+        private Account(long nextOffset, long transactionCount, double totalAmount) {
+            this.nextOffset = nextOffset;
+            this.transactionCount = transactionCount;
+            this.totalAmount = totalAmount;
+        }
+
+        private synchronized void add(double amount, long nextOffset) {
+            this.nextOffset = nextOffset;
+            transactionCount++;
+            totalAmount += amount;
+        }
+
+        public synchronized long getTransactionCount() {
+            return transactionCount;
+        }
+
+        public synchronized double getTotalAmount() {
+            return totalAmount;
+        }
+    }
+}
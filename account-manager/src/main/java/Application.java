@@ -1,22 +1,60 @@
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.Config;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.TopicDescription;
 import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.config.ConfigResource;
+import org.apache.kafka.common.config.TopicConfig;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 
-import java.time.Duration;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 
 public class Application {
     // Final Strings of the Topic and Servers available
     private static final String TOPIC = "valid-transactions";
     private static final String BOOTSTRAP_SERVERS = "localhost:9092.localhost:9093,localhost:9094";
+    // How long a stopped static member keeps its partitions before the group rebalances without it
+    private static final int SESSION_TIMEOUT_MS = Integer.getInteger("consumer.session.timeout.ms", 45_000);
+    // Ledger updates must be applied in order per user, so failed records go straight to the dead-letter topic
+    private static final String DEFAULT_RETRY_DELAYS = "";
+    // Instance slot locks, held for the life of the process
+    private static final List<FileLock> INSTANCE_SLOTS = new CopyOnWriteArrayList<>();
+    // Compacted topic with the same partition count as TOPIC, the ledger falls back to local checkpoints when empty
+    private static final String CHANGELOG_TOPIC = System.getProperty("account.changelog.topic",
+            "account-ledger-changelog");
 
     /**
      * Main method call for Application class. Creates new instance of Application. Creates a consumerGroup
      * prints to console the consumerGroup and then creates a new accountConsumer with the BOOTSTRAP_SERVERS and
-     * consumerGroup. Calls the consumeMessage function passing the TOPIC and accountConsumer as parameters.
+     * consumerGroup. Calls the consumeMessage function passing the TOPIC, accountConsumer and the service
+     * metrics as parameters. Started with --key-ordered it uses consumeMessagesKeyOrdered instead,
+     * and with --cds-training it runs the StartupTraining and exits.
      * @param args
+     * @throws InterruptedException
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // Create a instance of class Application
         Application kafkaAccountManagerNotificationConsumerApp = new Application();
         // String stores the service I.D. of this consumer group
@@ -24,46 +62,166 @@ public class Application {
         // Print out message of which Consumer Group we belong to
         System.out.println("Consumer is part of consumer group " + consumerGroup + "\n");
 
+        // Run generated records through the hot path and exit, used to build the class data sharing archive
+        if (Arrays.asList(args).contains("--cds-training")) {
+            StartupTraining.run(Collections.singletonList(TOPIC), record -> approveTransaction(record.value()), new ServiceMetrics(consumerGroup));
+            return;
+        }
+
         // Call createKafkaConsumer method and pass the Servers and Consumer Group
         Consumer<String, Transaction> accountConsumer = kafkaAccountManagerNotificationConsumerApp.createKafkaConsumer(BOOTSTRAP_SERVERS, consumerGroup);
-        // Call consumerMessages method and pass the TOPIC and Consumer we created above
-        kafkaAccountManagerNotificationConsumerApp.consumeMessages(TOPIC, accountConsumer);
+        // Create the metrics registry the consumer loop reports its lag and worker count to
+        ServiceMetrics metrics = new ServiceMetrics(consumerGroup);
+        // Per user totals of the approved transactions, handed over with their partitions in a rebalance
+        AccountLedger ledger = createLedger(BOOTSTRAP_SERVERS, metrics);
+        // Records the handler fails on are moved aside instead of blocking their partition
+        RetryTopics<String, Transaction> retries = createRetryTopics(BOOTSTRAP_SERVERS, consumerGroup, metrics);
+        // Fan records out per user key when asked to, otherwise use the lag scaled consumer loop
+        if (Arrays.asList(args).contains("--key-ordered")) {
+            kafkaAccountManagerNotificationConsumerApp.consumeMessagesKeyOrdered(TOPIC, accountConsumer, metrics,
+                    ledger, retries);
+        } else {
+            // Call consumerMessages method and pass the TOPIC, Consumer, metrics, ledger and retries created above
+            kafkaAccountManagerNotificationConsumerApp.consumeMessages(TOPIC, accountConsumer, metrics, ledger,
+                    retries);
+        }
+    }
+
+    /**
+     * Takes in five parameters topic, kafkaConsumer, metrics, ledger and retries and subscribes the topic and the
+     * retry topics to the kafkaConsumer. Continues to listen indefinitely through a ConsumerLoop, which scales its worker threads with
+     * the consumer lag and calls the function ledgerTransaction for each record. The ledger of each partition is
+     * handed over when the partition is revoked and taken over when it is assigned.
+     * @param topic
+     * @param kafkaConsumer
+     * @param metrics
+     * @param ledger
+     * @param retries
+     * @throws InterruptedException
+     */
+    public static void consumeMessages(String topic, Consumer<String, Transaction> kafkaConsumer,
+                                       ServiceMetrics metrics, AccountLedger ledger,
+                                       RetryTopics<String, Transaction> retries) throws InterruptedException {
+        metrics.gauge("ledger-partitions", "Partitions whose account ledger is held in memory", ledger::size);
+        ConsumerLoop<String, Transaction> consumerLoop = new ConsumerLoop<>(kafkaConsumer, metrics);
+        // Subscribe the consumer to the topic passed in list format, handing the ledger over on rebalances
+        consumerLoop.subscribe(Collections.singletonList(topic), ledger, retries);
+
+        // Call function ledgerTransaction passing the ledger and record as parameters
+        consumerLoop.run(record -> ledgerTransaction(ledger, record));
     }
 
     /**
-     * Takes in two parameters topic and kafkaConsumer and subscribes the topic to the kafkaConsumer.
-     * Continues to listen indefinitely and polls the kafkaConsumer into a ConsumerRecords<String, Transaction>.
-     * While consumerRecords is not empty loop through each record in consumerRecords and call the function
-     * approveTransaction passing the record value (Transaction). Commit asynchronous
+     * Takes in five parameters topic, kafkaConsumer, metrics, ledger and retries and continues to listen
+     * indefinitely through a KeyOrderedConsumerLoop. Records of a partition are spread over many key lanes, keeping the order per user,
+     * and the function ledgerTransaction is called for each record.
      * @param topic
      * @param kafkaConsumer
+     * @param metrics
+     * @param ledger
+     * @param retries
+     * @throws InterruptedException
+     */
+    public static void consumeMessagesKeyOrdered(String topic, Consumer<String, Transaction> kafkaConsumer,
+                                                 ServiceMetrics metrics, AccountLedger ledger,
+                                                 RetryTopics<String, Transaction> retries)
+            throws InterruptedException {
+        metrics.gauge("ledger-partitions", "Partitions whose account ledger is held in memory", ledger::size);
+        // Subscribes to the topic itself so it can drain revoked partitions before their ledger moves
+        new KeyOrderedConsumerLoop<>(kafkaConsumer, metrics).run(Collections.singletonList(topic), ledger, retries,
+                record -> ledgerTransaction(ledger, record));
+    }
+
+    /**
+     * Takes in two parameters bootstrapServers and metrics and returns the account ledger. With a changelog topic
+     * (account.changelog.topic, set it empty to disable) every change is written to the changelog and a
+     * StandbyReplica thread keeps the partitions owned by the other instances hot, so a failover takes them over
+     * without rebuilding them. The changelog topic is created, or checked, by ensureChangelogTopic first.
+     * Otherwise revoked partitions are checkpointed to account.ledger.dir.
+     * @param bootstrapServers
+     * @param metrics
+     * @return
+     */
+    private static AccountLedger createLedger(String bootstrapServers, ServiceMetrics metrics) {
+        if (CHANGELOG_TOPIC.isEmpty()) {
+            return new AccountLedger(Paths.get(System.getProperty("account.ledger.dir", "state/account-manager")));
+        }
+        ensureChangelogTopic(bootstrapServers);
+        // The standby consumer isn't part of the group, it assigns itself the changelog partitions it replicates
+        Properties consumerProp = new Properties();
+        consumerProp.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        consumerProp.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        consumerProp.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        consumerProp.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        StandbyReplica standby = new StandbyReplica(new KafkaConsumer<String, byte[]>(consumerProp), CHANGELOG_TOPIC,
+                metrics);
+        Thread replication = new Thread(standby, "standby-replica");
+        replication.setDaemon(true);
+        replication.start();
+
+        // Changes are flushed before offsets are committed, so they must not be lost once acknowledged
+        Properties producerProp = new Properties();
+        producerProp.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        producerProp.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        producerProp.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        producerProp.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        producerProp.put(ProducerConfig.ACKS_CONFIG, "all");
+        producerProp.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+        Producer<String, byte[]> changelogProducer = new KafkaProducer<String, byte[]>(producerProp);
+        return new AccountLedger(changelogProducer, CHANGELOG_TOPIC, standby);
+    }
+
+    /**
+     * Takes in one parameter bootstrapServers and makes sure CHANGELOG_TOPIC is a compacted topic with the partition
+     * count of TOPIC, creating it when it doesn't exist. Changes are written to the changelog partition of their
+     * source partition, so a topic auto-created by the broker (one partition, not compacted) would lose them, and
+     * an IllegalStateException stops the service instead.
+     * @param bootstrapServers
      */
-    public static void consumeMessages(String topic, Consumer<String, Transaction> kafkaConsumer) {
-        // Subscribe the consumer to the topic passed in list format
-        kafkaConsumer.subscribe(Collections.singletonList(topic));
-
-        // Create an indefinite loop while continuously checking for new messages
-        while (true) {
-            // consumerRecords stores a list of ConsumerRecords and polls every 1 second
-            ConsumerRecords<String, Transaction> consumerRecords = kafkaConsumer.poll(Duration.ofSeconds(1));
-            // If consumerRecords is not empty i.e. has a record then do
-            if (!consumerRecords.isEmpty()) {
-                // For each ConsumerRecord in the list ConsumerRecords consume message
-                for (ConsumerRecord<String, Transaction> record : consumerRecords) {
-                    // Call function approveTransaction passing the record value as parameter (Transaction)
-                    approveTransaction(record.value());
+    private static void ensureChangelogTopic(String bootstrapServers) {
+        Properties prop = new Properties();
+        prop.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        try (Admin admin = Admin.create(prop)) {
+            TopicDescription source = admin.describeTopics(Collections.singleton(TOPIC)).all().get().get(TOPIC);
+            int partitions = source.partitions().size();
+            if (!admin.listTopics().names().get().contains(CHANGELOG_TOPIC)) {
+                NewTopic changelog = new NewTopic(CHANGELOG_TOPIC, partitions,
+                        (short) source.partitions().get(0).replicas().size())
+                        .configs(Collections.singletonMap(TopicConfig.CLEANUP_POLICY_CONFIG,
+                                TopicConfig.CLEANUP_POLICY_COMPACT));
+                try {
+                    admin.createTopics(Collections.singleton(changelog)).all().get();
+                    System.out.println("Created " + CHANGELOG_TOPIC + " with " + partitions + " partitions\n");
+                } catch (ExecutionException e) {
+                    // Another instance created it meanwhile, check it like an existing one
+                    if (!(e.getCause() instanceof TopicExistsException)) {
+                        throw e;
+                    }
                 }
-            } else {
-                // DO NOTHING FOR NOW
             }
-            // Tell kafka its done processing messages with a commit as a final confirmation
-            kafkaConsumer.commitAsync();
+            int changelogPartitions = admin.describeTopics(Collections.singleton(CHANGELOG_TOPIC)).all().get()
+                    .get(CHANGELOG_TOPIC).partitions().size();
+            ConfigResource resource = new ConfigResource(ConfigResource.Type.TOPIC, CHANGELOG_TOPIC);
+            Config config = admin.describeConfigs(Collections.singleton(resource)).all().get().get(resource);
+            String cleanupPolicy = config.get(TopicConfig.CLEANUP_POLICY_CONFIG).value();
+            if (changelogPartitions != partitions || !cleanupPolicy.contains(TopicConfig.CLEANUP_POLICY_COMPACT)) {
+                throw new IllegalStateException(String.format("%s has %d partitions and cleanup.policy=%s, it needs"
+                        + " %d partitions (like %s) and cleanup.policy=compact", CHANGELOG_TOPIC,
+                        changelogPartitions, cleanupPolicy, partitions, TOPIC));
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to check " + CHANGELOG_TOPIC, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking " + CHANGELOG_TOPIC, e);
         }
     }
 
     /**
      * Takes in two parameters bootstrapServers and consumerGroup. Creates a new Properties, prop, and adds the
      * servers (ports), deserializes the <Key, Value> pair, adds the consumerGroup I.D. and sets auto commits to false.
+     * Partitions are assigned with the cooperative sticky assignor and the consumer is a static member of the group,
+     * so a rebalance only stops the partitions that move and a restart within the session timeout doesn't rebalance.
      * Returns a new KafkaConsumer of type <String, Transaction> with the new Properties, prop.
      * @param bootstrapServers
      * @param consumerGroup
@@ -82,10 +240,109 @@ public class Application {
         prop.put(ConsumerConfig.GROUP_ID_CONFIG, consumerGroup);
         // Disable auto commit configuration
         prop.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Only revoke the partitions that move to another consumer instead of stopping every partition
+        prop.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, CooperativeStickyAssignor.class.getName());
+        // Rejoin under the same identity after a restart so the partitions stay where they were
+        prop.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupInstanceId(consumerGroup));
+        prop.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, SESSION_TIMEOUT_MS);
+        // Let a poll return up to the largest batch the poll controller may choose, within the same poll interval
+        prop.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, ConsumerLoop.MAX_BATCH);
+        prop.put(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, ConsumerLoop.MAX_POLL_INTERVAL_MILLIS);
         // Returns a new KafkaConsumer made with the properties we set in prop
         return new KafkaConsumer<String, Transaction>(prop);
     }
 
+    /**
+     * Takes in three parameters bootstrapServers, consumerGroup and metrics and returns the RetryTopics records the
+     * handler fails on are moved to, with the retry tiers of the consumer.retry.delays system property (default
+     * DEFAULT_RETRY_DELAYS). The producer waits for every replica, the consumer commits the failed records once
+     * they are moved aside.
+     * @param bootstrapServers
+     * @param consumerGroup
+     * @param metrics
+     * @return
+     */
+    private static RetryTopics<String, Transaction> createRetryTopics(String bootstrapServers, String consumerGroup,
+                                                                     ServiceMetrics metrics) {
+        Properties prop = new Properties();
+        prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        prop.put(ProducerConfig.ACKS_CONFIG, "all");
+        Producer<byte[], byte[]> producer = new KafkaProducer<byte[], byte[]>(prop);
+        return new RetryTopics<>(consumerGroup, RetryTopics.parseDelays(System.getProperty("consumer.retry.delays",
+                DEFAULT_RETRY_DELAYS)), producer, new StringSerializer(), new Transaction.TransactionSerializer(),
+                metrics);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the static member I.D. of this instance, set with the
+     * consumer.instance.id system property or the CONSUMER_INSTANCE_ID environment variable, otherwise derived from
+     * the host name and the instance slot this process holds on the host. Every instance in the group needs its own.
+     * @param consumerGroup
+     * @return
+     */
+    private static String groupInstanceId(String consumerGroup) {
+        String instanceId = System.getProperty("consumer.instance.id", System.getenv("CONSUMER_INSTANCE_ID"));
+        if (instanceId != null) {
+            return instanceId;
+        }
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Unknown host name, set consumer.instance.id]");
+            hostName = "localhost";
+        }
+        return consumerGroup + "-" + hostName + "-" + instanceSlot(consumerGroup);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the lowest instance slot of the group that no other consumer
+     * on this host holds, locking it for the life of the process. Instances started side by side get different
+     * slots, while a restarted instance takes its slot, and so its static membership, back. Falls back to the
+     * process I.D. when the lock files in java.io.tmpdir can't be written.
+     * @param consumerGroup
+     * @return
+     */
+    private static String instanceSlot(String consumerGroup) {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        try {
+            for (int slot = 0; ; slot++) {
+                FileChannel channel = FileChannel.open(directory.resolve(consumerGroup + "-instance-" + slot + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    FileLock lock = channel.tryLock();
+                    if (lock != null) {
+                        INSTANCE_SLOTS.add(lock);
+                        return Integer.toString(slot);
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // Held by another consumer of this process
+                }
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to lock an instance slot, set consumer.instance.id]");
+            return "pid" + ProcessHandle.current().pid();
+        }
+    }
+
+    /**
+     * Takes in two parameters ledger and record, adds the record's transaction to the user's ledger and approves
+     * it. Records already applied to the user's account before a hand over are skipped.
+     * @param ledger
+     * @param record
+     */
+    private static void ledgerTransaction(AccountLedger ledger, ConsumerRecord<String, Transaction> record) {
+        if (ledger.apply(record)) {
+            approveTransaction(record.value());
+        }
+    }
+
     /**
      * Takes in one parameter transaction and prints out a formatted string to the console
      * with all the needed details of the passed Transaction.
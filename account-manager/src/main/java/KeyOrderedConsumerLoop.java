@@ -0,0 +1,210 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Poll loop that fans the records of each partition out to many key lanes. Every lane is a single thread, and all
+ * records with the same key go to the same lane, so records are processed in order per key but concurrently across
+ * keys, well beyond one thread per partition. Completions are tracked with an {@link OffsetTracker} and only the
+ * highest contiguous completed offset of each partition is committed. Records a lane fails on are moved aside
+ * through {@link RetryTopics}. The lane count can be changed with the consumer.key-lanes system property and the
+ * in-flight limit with consumer.max-in-flight.
+ */
+public class KeyOrderedConsumerLoop<K, V> {
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+    private static final Duration BUSY_POLL_TIMEOUT = Duration.ofMillis(10);
+    private static final int KEY_LANES = Integer.getInteger("consumer.key-lanes", 64);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("consumer.max-in-flight", 10_000);
+    private static final long REVOKE_DRAIN_MILLIS = 10_000;
+
+    private final Consumer<K, V> consumer;
+    private final ExecutorService[] lanes;
+    private final long revokeDrainMillis;
+    private final OffsetTracker offsetTracker = new OffsetTracker();
+    private final StartupTimer startupTimer = new StartupTimer(Long.getLong("startup.window.ms", 1_000));
+    private final LatencyWatchdog latencyWatchdog;
+    private final ServiceMetrics metrics;
+    private PartitionStateStore stateStore = PartitionStateStore.NONE;
+    private RetryTopics<K, V> retries;
+
+    /**
+     * Takes in two parameters consumer and metrics
+     * @param consumer
+     * @param metrics
+     */
+    public KeyOrderedConsumerLoop(Consumer<K, V> consumer, ServiceMetrics metrics) {
+        this(consumer, metrics, KEY_LANES, REVOKE_DRAIN_MILLIS);
+    }
+
+    /**
+     * Takes in four parameters consumer, metrics, keyLanes, the number of lanes, and revokeDrainMillis, how long a
+     * revoke waits for the in-flight records of the revoked partitions
+     * @param consumer
+     * @param metrics
+     * @param keyLanes
+     * @param revokeDrainMillis
+     */
+    KeyOrderedConsumerLoop(Consumer<K, V> consumer, ServiceMetrics metrics, int keyLanes, long revokeDrainMillis) {
+        this.consumer = consumer;
+        this.revokeDrainMillis = revokeDrainMillis;
+        this.lanes = new ExecutorService[keyLanes];
+        for (int i = 0; i < keyLanes; i++) {
+            String name = "key-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        metrics.gauge("key-lanes", "Number of single threaded key lanes", () -> lanes.length);
+        metrics.gauge("in-flight-records", "Records dispatched to a key lane but not yet completed",
+                offsetTracker::inFlight);
+        startupTimer.register(metrics);
+        this.latencyWatchdog = new LatencyWatchdog(metrics.getGroup(), metrics);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Takes in four parameters topics, store, retries and handler, subscribes to the topics and the retry topics and
+     * polls indefinitely, dispatching every record to the lane of its key. The state of partitions that move in a
+     * rebalance is handed over through the store once their in-flight records are drained.
+     * @param topics
+     * @param store
+     * @param retries
+     * @param handler
+     * @throws InterruptedException
+     */
+    public void run(Collection<String> topics, PartitionStateStore store, RetryTopics<K, V> retries,
+                    ConsumerLoop.RecordHandler<K, V> handler) throws InterruptedException {
+        subscribe(topics, store, retries);
+        // Create an indefinite loop while continuously checking for new messages
+        while (true) {
+            pollOnce(handler);
+        }
+    }
+
+    /**
+     * Takes in three parameters topics, store and retries and subscribes the consumer to the topics and the retry
+     * topics, handing the state of moving partitions over through the store
+     * @param topics
+     * @param store
+     * @param retries
+     */
+    void subscribe(Collection<String> topics, PartitionStateStore store, RetryTopics<K, V> retries) {
+        this.stateStore = store;
+        this.retries = retries;
+        List<String> subscribed = new ArrayList<>(topics);
+        subscribed.addAll(retries.getTopics());
+        consumer.subscribe(subscribed, new StatefulRebalanceListener(store, new DrainOnRevoke(), metrics));
+    }
+
+    /**
+     * Takes in one parameter handler and runs a single iteration: poll, dispatch, commit the contiguous offsets
+     * and pause fetching while too many records are in flight.
+     * @param handler
+     */
+    void pollOnce(ConsumerLoop.RecordHandler<K, V> handler) {
+        ConsumerLoop.RecordHandler<K, V> profiled = ConsumerLoop.profiled(retries.wrap(handler), latencyWatchdog);
+        Duration timeout = offsetTracker.inFlight() > 0 ? BUSY_POLL_TIMEOUT : POLL_TIMEOUT;
+        ConsumerRecords<K, V> records = consumer.poll(timeout);
+        for (TopicPartition partition : records.partitions()) {
+            for (ConsumerRecord<K, V> record : records.records(partition)) {
+                // The rest of a held back retry partition is fetched again once it is due
+                if (retries.holdBack(consumer, record)) {
+                    break;
+                }
+                dispatch(record, profiled);
+            }
+        }
+
+        // Commit only up to the first record of each partition that hasn't completed yet
+        Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.commitableOffsets();
+        if (!offsets.isEmpty()) {
+            // The state of the completed records must be durable before their offsets are
+            stateStore.flush();
+            retries.flush();
+            consumer.commitAsync(offsets, null);
+        }
+
+        if (offsetTracker.inFlight() >= MAX_IN_FLIGHT) {
+            consumer.pause(consumer.assignment());
+        } else if (!consumer.paused().isEmpty()) {
+            // Retry partitions held back until their next record is due stay paused
+            consumer.resume(retries.resumable(consumer.paused()));
+        }
+    }
+
+    private void dispatch(ConsumerRecord<K, V> record, ConsumerLoop.RecordHandler<K, V> handler) {
+        TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        offsetTracker.dispatched(partition, record.offset());
+        Object key = record.key() != null ? record.key() : record.partition();
+        lanes[Math.floorMod(key.hashCode(), lanes.length)].execute(() -> {
+            // Records of a partition revoked or lost while they were queued are left to its next owner
+            if (!offsetTracker.isInFlight(partition, record.offset())) {
+                return;
+            }
+            try {
+                handler.handle(record);
+            } catch (Exception e) {
+                // Print the failure and move on so the lane isn't blocked
+                e.printStackTrace();
+                System.out.println(String.format("ERROR-EXCEPTION - [Failed to handle record %s-%d@%d]",
+                        record.topic(), record.partition(), record.offset()));
+            } finally {
+                offsetTracker.completed(partition, record.offset());
+                startupTimer.recordProcessed(1);
+            }
+        });
+    }
+
+    /**
+     * Waits for the in-flight records of revoked partitions to complete and commits them synchronously, so the
+     * next owner of the partition starts exactly after the last completed record. Partitions that don't drain
+     * within revokeDrainMillis are fenced all the same: their records still queued in a lane are skipped, only the
+     * contiguous completed offsets are committed and the rest is left to the next owner. The state store waits for
+     * the records it is applying and rejects later ones when the partitions are checkpointed.
+     */
+    private class DrainOnRevoke implements StatefulRebalanceListener.PartitionHandOff {
+        @Override
+        public void revoked(Collection<TopicPartition> partitions) {
+            long deadline = System.currentTimeMillis() + revokeDrainMillis;
+            while (offsetTracker.inFlight(partitions) > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            int undrained = offsetTracker.inFlight(partitions);
+            Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.commitableOffsets(partitions);
+            // Fence the partitions before anything is committed or checkpointed
+            offsetTracker.remove(partitions);
+            if (undrained > 0) {
+                System.out.println(String.format("ERROR-EXCEPTION - [%d records of %s still in flight after %d ms, "
+                        + "leaving them to the next owner]", undrained, partitions, revokeDrainMillis));
+            }
+            if (!offsets.isEmpty()) {
+                stateStore.flush();
+                retries.flush();
+                consumer.commitSync(offsets);
+            }
+            retries.forget(partitions);
+        }
+
+        @Override
+        public void lost(Collection<TopicPartition> partitions) {
+            // In-flight records still complete, their offsets are simply never committed by this consumer
+            offsetTracker.remove(partitions);
+            retries.forget(partitions);
+        }
+    }
+}
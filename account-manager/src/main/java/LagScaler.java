@@ -0,0 +1,182 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Watches the consumer's own lag (committed offsets versus end offsets of the assigned partitions) and the rate at
+ * which records are being processed, and resizes the {@link ElasticWorkerPool} and the prefetch depth so that the
+ * current backlog drains within the target drain time. Decisions are taken at most once per evaluation interval.
+ * The lag source and the clock are the consumer and the wall clock unless others are passed in.
+ */
+public class LagScaler {
+    // Weight given to the newest per worker rate sample
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final LongSupplier lagSource;
+    private final LongSupplier clock;
+    private final ElasticWorkerPool workerPool;
+    private final int minPrefetch;
+    private final int maxPrefetch;
+    private final int prefetchPerWorker;
+    private final long targetDrainMillis;
+    private final long intervalMillis;
+    private final Sensor scaleUps;
+    private final Sensor scaleDowns;
+
+    private long lastEvaluationMillis;
+    private long processedSinceEvaluation;
+    private double perWorkerRate;
+    private volatile long lag;
+    private volatile double processingRate;
+    private volatile int prefetchDepth;
+
+    /**
+     * Takes in the consumer to watch, the workerPool to resize, the prefetch bounds, how many records to prefetch per
+     * worker, the time the backlog should drain within, the evaluation interval and the metrics to report to.
+     */
+    public LagScaler(Consumer<?, ?> consumer, ElasticWorkerPool workerPool, int minPrefetch, int maxPrefetch,
+                     int prefetchPerWorker, long targetDrainMillis, long intervalMillis, ServiceMetrics metrics) {
+        this(() -> consumerLag(consumer), workerPool, minPrefetch, maxPrefetch, prefetchPerWorker, targetDrainMillis,
+                intervalMillis, metrics, System::currentTimeMillis);
+    }
+
+    /**
+     * Same as the public constructor, with lagSource measuring the lag (a KafkaException keeps the last known lag)
+     * and clock giving the time in milliseconds
+     */
+    LagScaler(LongSupplier lagSource, ElasticWorkerPool workerPool, int minPrefetch, int maxPrefetch,
+              int prefetchPerWorker, long targetDrainMillis, long intervalMillis, ServiceMetrics metrics,
+              LongSupplier clock) {
+        this.lagSource = lagSource;
+        this.clock = clock;
+        this.workerPool = workerPool;
+        this.minPrefetch = minPrefetch;
+        this.maxPrefetch = maxPrefetch;
+        this.prefetchPerWorker = prefetchPerWorker;
+        this.targetDrainMillis = targetDrainMillis;
+        this.intervalMillis = intervalMillis;
+        this.prefetchDepth = clamp(workerPool.getWorkers() * prefetchPerWorker, minPrefetch, maxPrefetch);
+        this.lastEvaluationMillis = clock.getAsLong();
+
+        metrics.gauge("consumer-lag", "Records between the committed offsets and the end of the assigned partitions",
+                () -> lag);
+        metrics.gauge("worker-count", "Number of worker threads processing records", workerPool::getWorkers);
+        metrics.gauge("prefetch-depth", "Maximum number of records buffered ahead of the workers",
+                () -> prefetchDepth);
+        metrics.gauge("processing-rate", "Records processed per second", () -> processingRate);
+        this.scaleUps = metrics.counter("scale-up", "Decisions that added workers");
+        this.scaleDowns = metrics.counter("scale-down", "Decisions that removed workers");
+    }
+
+    /**
+     * Takes in one parameter count, the number of records that just finished processing
+     * @param count
+     */
+    public void recordProcessed(int count) {
+        processedSinceEvaluation += count;
+    }
+
+    /**
+     * If the evaluation interval has passed, measures the lag and processing rate and resizes the worker pool and
+     * prefetch depth. Workers are at most doubled per interval and removed one at a time so short pauses in the
+     * traffic don't make the pool flap.
+     */
+    public void maybeRescale() {
+        long now = clock.getAsLong();
+        long elapsed = now - lastEvaluationMillis;
+        if (elapsed < intervalMillis) {
+            return;
+        }
+        int workers = workerPool.getWorkers();
+        processingRate = processedSinceEvaluation * 1000.0 / elapsed;
+        if (processedSinceEvaluation > 0) {
+            double sample = processingRate / workers;
+            perWorkerRate = perWorkerRate == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * perWorkerRate;
+        }
+        lastEvaluationMillis = now;
+        processedSinceEvaluation = 0;
+        lag = measureLag();
+
+        int target = targetWorkers(workers);
+        if (target != workers) {
+            int resized = workerPool.resize(target);
+            if (resized > workers) {
+                scaleUps.record();
+            } else if (resized < workers) {
+                scaleDowns.record();
+            }
+            if (resized != workers) {
+                System.out.println(String.format("Scaling workers [%d -> %d] for [Lag: %d, Rate: %.1f records/s]\n",
+                        workers, resized, lag, processingRate));
+            }
+        }
+        prefetchDepth = clamp(workerPool.getWorkers() * prefetchPerWorker, minPrefetch, maxPrefetch);
+    }
+
+    public long getLag() {
+        return lag;
+    }
+
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    private int targetWorkers(int workers) {
+        // Caught up, give back one worker per interval
+        if (lag == 0) {
+            return workers - 1;
+        }
+        // Backlog but no rate measured yet, try one more worker
+        if (perWorkerRate == 0) {
+            return workers + 1;
+        }
+        double requiredRate = lag * 1000.0 / targetDrainMillis;
+        int needed = (int) Math.ceil(requiredRate / perWorkerRate);
+        if (needed > workers) {
+            return Math.min(needed, workers * 2);
+        }
+        return needed < workers ? workers - 1 : workers;
+    }
+
+    /**
+     * Takes in one parameter consumer and returns its lag, the end offsets minus the committed offsets (or the
+     * position where nothing is committed yet) summed over the assigned partitions
+     * @param consumer
+     * @return
+     */
+    static long consumerLag(Consumer<?, ?> consumer) {
+        Set<TopicPartition> assignment = consumer.assignment();
+        if (assignment.isEmpty()) {
+            return 0;
+        }
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(assignment);
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(assignment);
+        long total = 0;
+        for (TopicPartition partition : assignment) {
+            OffsetAndMetadata offset = committed.get(partition);
+            long consumed = offset != null ? offset.offset() : consumer.position(partition);
+            total += Math.max(0, endOffsets.getOrDefault(partition, consumed) - consumed);
+        }
+        return total;
+    }
+
+    private long measureLag() {
+        try {
+            return lagSource.getAsLong();
+        } catch (KafkaException e) {
+            // Keep the last known lag if the brokers can't be reached right now
+            System.out.println("WARNING - [Failed to measure consumer lag: " + e.getMessage() + "]");
+            return lag;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
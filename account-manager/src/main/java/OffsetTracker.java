@@ -0,0 +1,148 @@
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which records of each partition are still being processed when records complete out of order. Records
+ * are dispatched in offset order, so every offset below the lowest in-flight offset is complete and the highest
+ * contiguous completed position of a partition is that lowest in-flight offset (or one past the last dispatched
+ * offset when nothing is in flight).
+ */
+public class OffsetTracker {
+    private final Map<TopicPartition, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Takes in two parameters partition and offset and marks the record as in flight.
+     * Must be called in offset order for each partition.
+     * @param partition
+     * @param offset
+     */
+    public void dispatched(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.computeIfAbsent(partition, p -> new PartitionOffsets());
+        offsets.inFlight.add(offset);
+        offsets.lastDispatched = offset;
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Takes in two parameters partition and offset and marks the record as completed
+     * @param partition
+     * @param offset
+     */
+    public void completed(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.get(partition);
+        if (offsets != null && offsets.inFlight.remove(offset)) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Takes in two parameters partition and offset and returns whether the record is dispatched and not completed,
+     * false once its partition was removed
+     * @param partition
+     * @param offset
+     * @return
+     */
+    public boolean isInFlight(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.get(partition);
+        return offsets != null && offsets.inFlight.contains(offset);
+    }
+
+    /**
+     * Returns the offsets to commit for every partition whose highest contiguous completed position moved since
+     * the last call, and remembers them as committed.
+     * @return
+     */
+    public Map<TopicPartition, OffsetAndMetadata> commitableOffsets() {
+        return commitableOffsets(partitions.keySet());
+    }
+
+    /**
+     * Same as {@link #commitableOffsets()} but only for the given partitions
+     * @param partitionsToCommit
+     * @return
+     */
+    public Map<TopicPartition, OffsetAndMetadata> commitableOffsets(Collection<TopicPartition> partitionsToCommit) {
+        Map<TopicPartition, OffsetAndMetadata> commitable = new HashMap<>();
+        for (TopicPartition partition : partitionsToCommit) {
+            PartitionOffsets offsets = partitions.get(partition);
+            if (offsets == null) {
+                continue;
+            }
+            long position = offsets.contiguousPosition();
+            if (position > offsets.committed) {
+                offsets.committed = position;
+                commitable.put(partition, new OffsetAndMetadata(position));
+            }
+        }
+        return commitable;
+    }
+
+    /**
+     * Returns the number of records of the partitions that are still in flight
+     * @param partitionsToCheck
+     * @return
+     */
+    public int inFlight(Collection<TopicPartition> partitionsToCheck) {
+        int count = 0;
+        for (TopicPartition partition : partitionsToCheck) {
+            PartitionOffsets offsets = partitions.get(partition);
+            if (offsets != null) {
+                count += offsets.inFlight.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of records of all partitions that are still in flight
+     * @return
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Takes in one parameter partitionsToRemove and stops tracking them, e.g. after they were revoked. Records of
+     * them completing later are ignored.
+     * @param partitionsToRemove
+     */
+    public void remove(Collection<TopicPartition> partitionsToRemove) {
+        for (TopicPartition partition : partitionsToRemove) {
+            PartitionOffsets offsets = partitions.remove(partition);
+            if (offsets == null) {
+                continue;
+            }
+            // A lane may still complete an offset of the removed partition, whichever removes it from the set
+            // decrements the count so it is never decremented twice
+            for (Long offset : offsets.inFlight) {
+                if (offsets.inFlight.remove(offset)) {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * In flight offsets and commit position of a single partition
+     */
+    private static class PartitionOffsets {
+        private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+        private volatile long lastDispatched = -1;
+        private long committed = -1;
+
+        private long contiguousPosition() {
+            // Read the last dispatched offset first so a record dispatched in between can't be skipped
+            long last = lastDispatched;
+            Long lowestInFlight = inFlight.ceiling(Long.MIN_VALUE);
+            return lowestInFlight != null ? lowestInFlight : last + 1;
+        }
+    }
+}
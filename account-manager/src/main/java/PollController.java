@@ -0,0 +1,159 @@
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Sizes the poll loop from what it measures instead of fixed settings. Every processed batch updates an estimate of
+ * the wall time per record, and the batch size is chosen so a batch takes about the target batch time: cheap
+ * handlers get large batches (fewer hand-offs to the workers and fewer commits), expensive handlers small ones (fresh
+ * commits and a responsive loop). Batches never exceed the share of max.poll.interval.ms the loop may spend between
+ * two polls, so a slow handler can't get the consumer kicked out of the group. The poll timeout is zero while records
+ * are buffered, short right after records arrived and doubles on every empty poll while the topic is idle.
+ * Batches are timed with the controller's own clock, System.nanoTime unless another one is passed in.
+ */
+public class PollController {
+    // Weight given to the newest per record time sample when it is lower than the estimate
+    private static final double TIME_SMOOTHING = 0.3;
+    // Share of max.poll.interval.ms a single batch may take, the rest is left as a safety margin
+    private static final double POLL_INTERVAL_SHARE = 0.25;
+
+    private final boolean adaptive;
+    private final int minBatch;
+    private final int maxBatch;
+    private final long targetBatchNanos;
+    private final long budgetNanos;
+    private final Duration minTimeout;
+    private final Duration maxTimeout;
+    private final Sensor batchTime;
+    private final LongSupplier nanoClock;
+
+    private volatile double recordNanos;
+    private volatile int batchSize;
+    private volatile Duration idleTimeout;
+    private long batchStart;
+
+    /**
+     * Takes in the batch size bounds, the time a batch should take, the consumer's max.poll.interval.ms, the poll
+     * timeout bounds and the metrics the decisions are published to.
+     */
+    public PollController(int minBatch, int maxBatch, long targetBatchMillis, long maxPollIntervalMillis,
+                          Duration minTimeout, Duration maxTimeout, ServiceMetrics metrics) {
+        this(minBatch, maxBatch, targetBatchMillis, maxPollIntervalMillis, minTimeout, maxTimeout, metrics,
+                System::nanoTime);
+    }
+
+    /**
+     * Same as the public constructor, with nanoClock timing the batches instead of System.nanoTime
+     */
+    PollController(int minBatch, int maxBatch, long targetBatchMillis, long maxPollIntervalMillis,
+                   Duration minTimeout, Duration maxTimeout, ServiceMetrics metrics, LongSupplier nanoClock) {
+        this(true, minBatch, maxBatch, targetBatchMillis, maxPollIntervalMillis, minTimeout, maxTimeout, metrics,
+                nanoClock);
+    }
+
+    private PollController(boolean adaptive, int minBatch, int maxBatch, long targetBatchMillis,
+                           long maxPollIntervalMillis, Duration minTimeout, Duration maxTimeout,
+                           ServiceMetrics metrics, LongSupplier nanoClock) {
+        if (minBatch < 1 || maxBatch < minBatch) {
+            throw new IllegalArgumentException("invalid batch bounds [" + minBatch + ", " + maxBatch + "]");
+        }
+        this.adaptive = adaptive;
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        this.targetBatchNanos = targetBatchMillis * 1_000_000;
+        this.budgetNanos = (long) (maxPollIntervalMillis * POLL_INTERVAL_SHARE * 1_000_000);
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.batchSize = minBatch;
+        this.idleTimeout = minTimeout;
+        this.nanoClock = nanoClock;
+
+        metrics.gauge("batch-size", "Records handed to the workers per batch", () -> batchSize);
+        metrics.gauge("poll-timeout-ms", "Timeout of the next poll while no records are buffered",
+                () -> idleTimeout.toMillis());
+        metrics.gauge("record-time-us", "Estimated batch wall time per record in microseconds",
+                () -> recordNanos / 1000);
+        metrics.gauge("batch-budget-records", "Most records a batch may hold within the max.poll.interval.ms margin",
+                this::budgetRecords);
+        this.batchTime = metrics.latency("batch-time-ms", "Milliseconds spent processing a batch");
+    }
+
+    /**
+     * Takes in two parameters batchSize and timeout and returns a controller that always uses them, the behaviour of
+     * a poll loop with static settings
+     * @param batchSize
+     * @param timeout
+     * @param metrics
+     * @return
+     */
+    public static PollController fixed(int batchSize, Duration timeout, ServiceMetrics metrics) {
+        return new PollController(false, batchSize, batchSize, 0, Long.MAX_VALUE / 1_000_000, timeout, timeout,
+                metrics, System::nanoTime);
+    }
+
+    /**
+     * Takes in one parameter buffered, the records still waiting for the workers, and returns the timeout of the
+     * next poll
+     * @param buffered
+     * @return
+     */
+    public Duration pollTimeout(int buffered) {
+        return buffered > 0 ? Duration.ZERO : idleTimeout;
+    }
+
+    /**
+     * Takes in one parameter records, the number of records the last poll returned
+     * @param records
+     */
+    public void polled(int records) {
+        if (records > 0) {
+            idleTimeout = minTimeout;
+        } else if (idleTimeout.compareTo(maxTimeout) < 0) {
+            Duration doubled = idleTimeout.isZero() ? Duration.ofMillis(1) : idleTimeout.multipliedBy(2);
+            idleTimeout = doubled.compareTo(maxTimeout) < 0 ? doubled : maxTimeout;
+        }
+    }
+
+    /**
+     * Starts timing a batch, called right before it is handed to the workers
+     */
+    public void batchStarted() {
+        batchStart = nanoClock.getAsLong();
+    }
+
+    /**
+     * Takes in one parameter records, the size of the batch processed since batchStarted, and resizes the next
+     * batches from how long it took
+     * @param records
+     */
+    public void batchProcessed(int records) {
+        batchProcessed(records, nanoClock.getAsLong() - batchStart);
+    }
+
+    private void batchProcessed(int records, long nanos) {
+        batchTime.record(nanos / 1_000_000.0);
+        if (records == 0 || !adaptive) {
+            return;
+        }
+        double sample = (double) nanos / records;
+        // Follow slower handlers immediately so the next batch stays within the budget, recover gradually
+        recordNanos = recordNanos == 0 || sample > recordNanos
+                ? sample : TIME_SMOOTHING * sample + (1 - TIME_SMOOTHING) * recordNanos;
+        long target = (long) (targetBatchNanos / recordNanos);
+        // The max.poll.interval.ms margin wins over the minimum batch size
+        batchSize = (int) Math.min(budgetRecords(), Math.max(minBatch, Math.min(maxBatch, target)));
+    }
+
+    /**
+     * Returns the number of records to hand to the workers in the next batch
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    private long budgetRecords() {
+        return recordNanos == 0 ? maxBatch : Math.max(1, (long) (budgetNanos / recordNanos));
+    }
+}
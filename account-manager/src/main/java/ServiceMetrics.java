@@ -0,0 +1,93 @@
+import org.apache.kafka.common.metrics.*;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.utils.Time;
+
+import java.util.Collections;
+import java.util.function.Supplier;
+
+/**
+ * Registry for the service's own metrics. Uses the Kafka client metrics library so the service metrics are
+ * published over JMX next to the consumer and producer metrics, under the "distributed.banking" domain.
+ */
+public class ServiceMetrics implements AutoCloseable {
+    private static final String JMX_PREFIX = "distributed.banking";
+    private final Metrics metrics;
+    private final String group;
+
+    /**
+     * Takes in one parameter group, the metric group (usually the consumer group) all metrics are registered under
+     * @param group
+     */
+    public ServiceMetrics(String group) {
+        this.group = group;
+        this.metrics = new Metrics(new MetricConfig(),
+                Collections.singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM);
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier every time the metric is sampled
+     * @param name
+     * @param description
+     * @param value
+     */
+    public void gauge(String name, String description, Supplier<? extends Number> value) {
+        metrics.addMetric(metrics.metricName(name, group, description),
+                (Gauge<Number>) (config, now) -> value.get());
+    }
+
+    /**
+     * Returns a sensor that keeps a running total and a per second rate of the values recorded on it.
+     * Calling this again with the same name returns the existing sensor.
+     * @param name
+     * @param description
+     * @return
+     */
+    public Sensor counter(String name, String description) {
+        Sensor sensor = metrics.getSensor(name);
+        if (sensor == null) {
+            sensor = metrics.sensor(name);
+            sensor.add(metrics.metricName(name + "-total", group, description), new CumulativeSum());
+            sensor.add(metrics.metricName(name + "-rate", group, description), new Rate());
+        }
+        return sensor;
+    }
+
+    /**
+     * Returns a sensor that keeps the average and maximum of the values recorded on it (e.g. latencies in ms).
+     * Calling this again with the same name returns the existing sensor.
+     * @param name
+     * @param description
+     * @return
+     */
+    public Sensor latency(String name, String description) {
+        Sensor sensor = metrics.getSensor(name);
+        if (sensor == null) {
+            sensor = metrics.sensor(name);
+            sensor.add(metrics.metricName(name + "-avg", group, description), new Avg());
+            sensor.add(metrics.metricName(name + "-max", group, description), new Max());
+        }
+        return sensor;
+    }
+
+    /**
+     * Returns the current value of a metric registered by this class, or null if it doesn't exist
+     * @param name
+     * @return
+     */
+    public Object value(String name) {
+        KafkaMetric metric = metrics.metric(metrics.metricName(name, group));
+        return metric == null ? null : metric.metricValue();
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    @Override
+    public void close() {
+        metrics.close();
+    }
+}
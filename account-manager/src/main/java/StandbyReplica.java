@@ -0,0 +1,315 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Warm standby of the {@link AccountLedger} partitions this instance doesn't own. A consumer outside the consumer
+ * group is assigned the changelog partitions of every source partition that isn't active here and continuously
+ * applies them to in-memory ledgers, so when the group moves a partition here it is taken over with only the tail
+ * of the changelog left to read instead of the whole history.
+ * Partitions move between the two sides through adopt (revoked or lost by the active ledger) and takeOver (assigned
+ * to it). The consumer is shared with the replication thread under a fair lock, a take over wakes the thread up
+ * so it doesn't wait out a poll. The lag of the replicas behind the changelog is published as standby-replication-lag.
+ */
+public class StandbyReplica implements Runnable, AutoCloseable {
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(100);
+    private static final long LAG_INTERVAL_MILLIS = 1_000;
+    private static final long CATCH_UP_TIMEOUT_MILLIS = Long.getLong("account.standby.catch-up.ms", 30_000);
+
+    private final Consumer<String, byte[]> consumer;
+    private final String changelogTopic;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    // Replicated ledgers and the partitions active in this instance, both by partition number and guarded by lock
+    private final Map<Integer, AccountLedger.PartitionLedger> replicas = new HashMap<>();
+    private final Set<Integer> active = new HashSet<>();
+    private final Sensor takeOverTime;
+    private final Sensor catchUpRecords;
+    private volatile long replicationLag;
+    private long lastLagCheck;
+    private volatile boolean closed;
+
+    /**
+     * Takes in three parameters consumer, a consumer without a group that is only used by the replica,
+     * changelogTopic, partitioned like the topic the ledger is built from, and metrics.
+     * @param consumer
+     * @param changelogTopic
+     * @param metrics
+     */
+    public StandbyReplica(Consumer<String, byte[]> consumer, String changelogTopic, ServiceMetrics metrics) {
+        this.consumer = consumer;
+        this.changelogTopic = changelogTopic;
+        this.takeOverTime = metrics.latency("standby-takeover-ms",
+                "Milliseconds to take a partition over from the standby replica");
+        this.catchUpRecords = metrics.counter("standby-catch-up-records",
+                "Changelog records read while taking partitions over");
+        metrics.gauge("standby-replication-lag", "Changelog records not yet applied to the standby replicas",
+                () -> replicationLag);
+        metrics.gauge("standby-partitions", "Partitions replicated by the standby", replicas::size);
+    }
+
+    /**
+     * Replicates every partition that isn't active here, then keeps applying the changelog until closed. A take over
+     * waking the thread up before it started replicating (e.g. the group assigned partitions straight away) has it
+     * start again once the take over is done.
+     */
+    @Override
+    public void run() {
+        try {
+            boolean replicating = false;
+            while (!closed) {
+                if (replicating) {
+                    pollOnce(POLL_TIMEOUT);
+                    continue;
+                }
+                try {
+                    replicateAll();
+                    replicating = true;
+                } catch (WakeupException e) {
+                    // Woken up to let a take over or close have the consumer, try again after it
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                consumer.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        consumer.wakeup();
+    }
+
+    /**
+     * Starts replicating, from the beginning of the changelog, every partition that is neither active nor replicated
+     */
+    void replicateAll() {
+        lock.lock();
+        try {
+            List<TopicPartition> added = new ArrayList<>();
+            for (PartitionInfo partition : consumer.partitionsFor(changelogTopic)) {
+                if (!active.contains(partition.partition()) && !replicas.containsKey(partition.partition())) {
+                    replicas.put(partition.partition(), new AccountLedger.PartitionLedger());
+                    added.add(changelog(partition.partition()));
+                }
+            }
+            assignReplicas();
+            consumer.seekToBeginning(added);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes in one parameter timeout and applies what one poll of the changelog returns to the replicas, or waits
+     * out the timeout while no partition is replicated
+     * @param timeout
+     */
+    void pollOnce(Duration timeout) {
+        boolean idle;
+        lock.lock();
+        try {
+            // Every partition is active here, a consumer without partitions can't poll until one is adopted
+            idle = consumer.assignment().isEmpty();
+            if (!idle) {
+                apply(consumer.poll(timeout));
+                if (System.currentTimeMillis() - lastLagCheck >= LAG_INTERVAL_MILLIS) {
+                    measureLag();
+                }
+            }
+        } catch (WakeupException e) {
+            // Woken up to let a take over or close have the consumer
+            return;
+        } finally {
+            lock.unlock();
+        }
+        if (idle) {
+            try {
+                Thread.sleep(timeout.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes in two parameters partition, a source partition the active ledger no longer owns, and ledger, its state
+     * with every change already flushed to the changelog, or null when its state was lost. The partition is
+     * replicated from there on, or rebuilt from the beginning of the changelog without a ledger.
+     * @param partition
+     * @param ledger
+     */
+    public void adopt(TopicPartition partition, AccountLedger.PartitionLedger ledger) {
+        acquire();
+        try {
+            TopicPartition changelog = changelog(partition.partition());
+            active.remove(partition.partition());
+            Long end = null;
+            if (ledger != null) {
+                try {
+                    end = consumer.endOffsets(Collections.singleton(changelog)).get(changelog);
+                } catch (KafkaException e) {
+                    e.printStackTrace();
+                    System.out.println("ERROR-EXCEPTION - [No changelog end offset for " + changelog
+                            + ", rebuilding its replica]");
+                }
+            }
+            replicas.put(partition.partition(), end != null ? ledger : new AccountLedger.PartitionLedger());
+            assignReplicas();
+            if (end != null) {
+                consumer.seek(changelog, end);
+            } else {
+                consumer.seekToBeginning(Collections.singleton(changelog));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes in one parameter partition, a source partition newly assigned to the active ledger, and returns its
+     * ledger caught up to the end of the changelog. The partition is no longer replicated afterwards.
+     * @param partition
+     * @return
+     */
+    public AccountLedger.PartitionLedger takeOver(TopicPartition partition) {
+        long start = System.nanoTime();
+        acquire();
+        try {
+            if (!replicas.containsKey(partition.partition())) {
+                // Never replicated here (e.g. assigned before replicateAll ran), read its whole changelog
+                replicas.put(partition.partition(), new AccountLedger.PartitionLedger());
+                assignReplicas();
+                consumer.seekToBeginning(Collections.singleton(changelog(partition.partition())));
+                // A wake up acquire couldn't clear without partitions to poll would otherwise end the catch up
+                clearWakeup();
+            }
+            catchUp(changelog(partition.partition()));
+            AccountLedger.PartitionLedger ledger = replicas.remove(partition.partition());
+            active.add(partition.partition());
+            assignReplicas();
+            return ledger;
+        } finally {
+            lock.unlock();
+            double millis = (System.nanoTime() - start) / 1_000_000.0;
+            takeOverTime.record(millis);
+            System.out.println(String.format("Took over %s from the standby replica in %.1f ms", partition, millis));
+        }
+    }
+
+    /**
+     * Takes in one parameter changelog and reads it up to its current end offset, applying what is read. Only this
+     * changelog partition is fetched meanwhile.
+     * @param changelog
+     */
+    private void catchUp(TopicPartition changelog) {
+        Set<TopicPartition> others = new HashSet<>(consumer.assignment());
+        others.remove(changelog);
+        consumer.pause(others);
+        try {
+            long end = consumer.endOffsets(Collections.singleton(changelog)).get(changelog);
+            long from = consumer.position(changelog);
+            long deadline = System.currentTimeMillis() + CATCH_UP_TIMEOUT_MILLIS;
+            while (consumer.position(changelog) < end && System.currentTimeMillis() < deadline) {
+                apply(consumer.poll(POLL_TIMEOUT));
+            }
+            catchUpRecords.record(consumer.position(changelog) - from);
+            if (consumer.position(changelog) < end) {
+                System.out.println("ERROR-EXCEPTION - [Gave up catching up " + changelog + " at offset "
+                        + consumer.position(changelog) + " of " + end + "]");
+            }
+        } catch (KafkaException e) {
+            // Take the partition over with what was replicated rather than refusing the assignment
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to catch up " + changelog + "]");
+        } finally {
+            consumer.resume(others);
+        }
+    }
+
+    /**
+     * Measures how many changelog records the replicas are behind, summed over the replicated partitions
+     * @return
+     */
+    long measureLag() {
+        lastLagCheck = System.currentTimeMillis();
+        long lag = 0;
+        try {
+            for (Map.Entry<TopicPartition, Long> end : consumer.endOffsets(consumer.assignment()).entrySet()) {
+                lag += Math.max(0, end.getValue() - consumer.position(end.getKey()));
+            }
+            replicationLag = lag;
+        } catch (KafkaException e) {
+            // Keep the last measurement, the next poll tries again
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to measure the standby replication lag]");
+        }
+        return replicationLag;
+    }
+
+    /**
+     * Wakes the replication thread up and takes the consumer over from it. A wake up that found the thread outside
+     * of poll is still pending afterwards, it is cleared here so it can't interrupt the caller's own calls. The lock
+     * is held on return, unless the consumer failed and the failure is thrown.
+     */
+    private void acquire() {
+        consumer.wakeup();
+        lock.lock();
+        try {
+            clearWakeup();
+        } catch (RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Polls without waiting so a pending wake up is thrown and dropped here. Must be called holding the lock.
+     */
+    private void clearWakeup() {
+        if (consumer.assignment().isEmpty()) {
+            return;
+        }
+        try {
+            apply(consumer.poll(Duration.ZERO));
+        } catch (WakeupException e) {
+            // The pending wake up, nothing was polled
+        }
+    }
+
+
+    private void apply(ConsumerRecords<String, byte[]> records) {
+        for (ConsumerRecord<String, byte[]> record : records) {
+            AccountLedger.PartitionLedger ledger = replicas.get(record.partition());
+            if (ledger != null) {
+                ledger.put(record.key(), record.value());
+            }
+        }
+    }
+
+    private void assignReplicas() {
+        List<TopicPartition> changelogs = new ArrayList<>();
+        for (Integer partition : replicas.keySet()) {
+            changelogs.add(changelog(partition));
+        }
+        // Partitions that stay assigned keep their position
+        consumer.assign(changelogs);
+    }
+
+    private TopicPartition changelog(int partition) {
+        return new TopicPartition(changelogTopic, partition);
+    }
+}
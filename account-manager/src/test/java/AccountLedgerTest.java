@@ -0,0 +1,94 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.NotLeaderForPartitionException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccountLedgerTest {
+    private static final String TOPIC = "valid-transactions";
+    private static final String CHANGELOG = "account-ledger-changelog";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final ServiceMetrics metrics = new ServiceMetrics("account-manager-ledger-test");
+    private final MockProducer<String, byte[]> changelog = new MockProducer<>(false, new StringSerializer(),
+            new ByteArraySerializer());
+    private final AccountLedger ledger = new AccountLedger(changelog, CHANGELOG, null);
+
+    @BeforeEach
+    void assign() {
+        ledger.restore(PARTITION);
+    }
+
+    @AfterEach
+    void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    void testFailedChangelogWriteFailsEveryLaterFlush() {
+        assertTrue(ledger.apply(record(0, "joe1680")));
+        assertTrue(ledger.apply(record(1, "dkelly9283")));
+        assertTrue(changelog.completeNext());
+        assertTrue(changelog.errorNext(new NotLeaderForPartitionException("no leader")));
+
+        KafkaException thrown = assertThrows(KafkaException.class, ledger::flush);
+        assertTrue(thrown.getCause() instanceof NotLeaderForPartitionException);
+        // Later writes succeeding doesn't close the gap in the changelog
+        assertTrue(ledger.apply(record(2, "joe1680")));
+        assertThrows(KafkaException.class, ledger::flush);
+    }
+
+    @Test
+    void testRecordsOfReleasedPartitionsAreNotApplied() {
+        assertTrue(ledger.apply(record(0, "joe1680")));
+        ledger.drop(PARTITION);
+
+        // A lane still working on the partition neither changes nor recreates it
+        assertFalse(ledger.apply(record(1, "joe1680")));
+        assertEquals(0, ledger.size());
+        assertNull(ledger.account("joe1680"));
+
+        ledger.restore(PARTITION);
+        assertTrue(ledger.apply(record(1, "joe1680")));
+        assertEquals(1, ledger.account("joe1680").getTransactionCount());
+    }
+
+    @Test
+    void testConsumerLoopDoesNotCommitRecordsMissingFromTheChangelog() throws Exception {
+        MockConsumer<String, Transaction> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        ConsumerLoop<String, Transaction> loop = new ConsumerLoop<>(consumer, metrics);
+        loop.subscribe(Collections.singletonList(TOPIC), ledger);
+        consumer.rebalance(Collections.singletonList(PARTITION));
+        consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        consumer.addRecord(record(0, "joe1680"));
+        consumer.addRecord(record(1, "dkelly9283"));
+
+        // The changelog write of the first record fails while the batch is processed
+        assertThrows(KafkaException.class, () -> loop.pollOnce(record -> {
+            ledger.apply(record);
+            if (record.offset() == 0) {
+                changelog.errorNext(new NotLeaderForPartitionException("no leader"));
+            }
+        }));
+        assertNull(consumer.committed(Collections.singleton(PARTITION)).get(PARTITION));
+    }
+
+    private static ConsumerRecord<String, Transaction> record(long offset, String user) {
+        Transaction transaction = new Transaction();
+        transaction.setUser(user);
+        transaction.setAmount(128.63);
+        transaction.setTransactionLocation("Ireland");
+        return new ConsumerRecord<>(TOPIC, PARTITION.partition(), offset, user, transaction);
+    }
+}
@@ -0,0 +1,194 @@
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyOrderedConsumerLoopTest {
+    private static final String TOPIC = "valid-transactions";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+    private static final int LANES = 4;
+
+    private final ServiceMetrics metrics = new ServiceMetrics("account-manager-key-ordered-test");
+    private final ListenerCapturingConsumer consumer = new ListenerCapturingConsumer();
+    private KeyOrderedConsumerLoop<String, Transaction> loop;
+
+    @BeforeEach
+    void subscribe() {
+        loop = new KeyOrderedConsumerLoop<>(consumer, metrics, LANES, 200);
+        loop.subscribe(Collections.singletonList(TOPIC), PartitionStateStore.NONE, new RetryTopics<>(
+                "account-manager-service", Collections.emptyList(), new MockProducer<>(true,
+                new ByteArraySerializer(), new ByteArraySerializer()), new StringSerializer(),
+                new Transaction.TransactionSerializer(), metrics));
+        consumer.rebalance(Collections.singletonList(PARTITION));
+        consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+    }
+
+    @AfterEach
+    void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    void testRecordsOfAKeyAreHandledInOrderAcrossLanes() throws InterruptedException {
+        Map<String, List<Long>> handled = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        for (long offset = 0; offset < 200; offset++) {
+            consumer.addRecord(record(offset, "user-" + offset % 10));
+        }
+
+        pollUntilCommitted(200, record -> {
+            // Later records of a key often finish first when they aren't held in order
+            TimeUnit.MILLISECONDS.sleep(record.offset() % 3);
+            handled.computeIfAbsent(record.key(), key -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(record.offset());
+            threads.add(Thread.currentThread().getName());
+        });
+
+        assertEquals(10, handled.size());
+        for (List<Long> offsets : handled.values()) {
+            assertEquals(20, offsets.size());
+            List<Long> sorted = new ArrayList<>(offsets);
+            Collections.sort(sorted);
+            assertEquals(sorted, offsets);
+        }
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    void testOnlyTheContiguousCompletedOffsetIsCommitted() throws InterruptedException {
+        List<String> keys = keysInDistinctLanes(LANES);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch othersDone = new CountDownLatch(3);
+        for (long offset = 0; offset < 4; offset++) {
+            consumer.addRecord(record(offset, keys.get((int) offset)));
+        }
+        ConsumerLoop.RecordHandler<String, Transaction> handler = record -> {
+            if (record.offset() == 1) {
+                release.await();
+            } else {
+                othersDone.countDown();
+            }
+        };
+
+        loop.pollOnce(handler);
+        assertTrue(othersDone.await(5, TimeUnit.SECONDS));
+        loop.pollOnce(handler);
+        // Offsets 2 and 3 are complete but 1 isn't, so the partition stays at 1
+        assertEquals(1, committed());
+
+        release.countDown();
+        pollUntilCommitted(4, handler);
+    }
+
+    @Test
+    void testRevokeWaitsForInFlightRecords() throws InterruptedException {
+        consumer.addRecord(record(0, "joe1680"));
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        loop.pollOnce(record -> {
+            TimeUnit.MILLISECONDS.sleep(50);
+            handled.add(record.offset());
+        });
+
+        consumer.listener.onPartitionsRevoked(Collections.singletonList(PARTITION));
+
+        assertEquals(Collections.singletonList(0L), handled);
+        assertEquals(1, committed());
+    }
+
+    @Test
+    void testRevokeFencesRecordsThatDidNotDrain() throws InterruptedException {
+        List<String> keys = keysInDistinctLanes(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        consumer.addRecord(record(0, keys.get(0)));
+        consumer.addRecord(record(1, keys.get(1)));
+        // Queued in the same lane behind the record that doesn't drain
+        consumer.addRecord(record(2, keys.get(1)));
+        loop.pollOnce(record -> {
+            handled.add(record.offset());
+            if (record.offset() == 1) {
+                release.await();
+                finished.countDown();
+            }
+        });
+
+        consumer.listener.onPartitionsRevoked(Collections.singletonList(PARTITION));
+        // Only the record before the one still in flight is committed
+        assertEquals(1, committed());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        TimeUnit.MILLISECONDS.sleep(100);
+        // The record queued behind it was left to the partition's next owner
+        assertEquals(Arrays.asList(0L, 1L), handled);
+        assertEquals(1, committed());
+    }
+
+    private void pollUntilCommitted(long offset, ConsumerLoop.RecordHandler<String, Transaction> handler)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (committed() < offset) {
+            assertTrue(System.currentTimeMillis() < deadline, "Offset " + offset + " never committed");
+            loop.pollOnce(handler);
+        }
+        assertEquals(offset, committed());
+    }
+
+    private long committed() {
+        OffsetAndMetadata committed = consumer.committed(Collections.singleton(PARTITION)).get(PARTITION);
+        return committed == null ? -1 : committed.offset();
+    }
+
+    /**
+     * Returns count keys that are dispatched to different lanes
+     */
+    private static List<String> keysInDistinctLanes(int count) {
+        Map<Integer, String> keys = new LinkedHashMap<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "user-" + i;
+            keys.putIfAbsent(Math.floorMod(key.hashCode(), LANES), key);
+        }
+        return new ArrayList<>(keys.values());
+    }
+
+    private static ConsumerRecord<String, Transaction> record(long offset, String user) {
+        Transaction transaction = new Transaction();
+        transaction.setUser(user);
+        transaction.setAmount(offset);
+        transaction.setTransactionLocation("Ireland");
+        return new ConsumerRecord<>(TOPIC, PARTITION.partition(), offset, user, transaction);
+    }
+
+    /**
+     * MockConsumer doesn't call the rebalance listener, so it is kept to drive the hand-off directly
+     */
+    private static class ListenerCapturingConsumer extends MockConsumer<String, Transaction> {
+        private ConsumerRebalanceListener listener;
+
+        ListenerCapturingConsumer() {
+            super(OffsetResetStrategy.EARLIEST);
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+            this.listener = listener;
+            super.subscribe(topics, listener);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffsetTrackerTest {
+    private static final TopicPartition FIRST = new TopicPartition("valid-transactions", 0);
+    private static final TopicPartition SECOND = new TopicPartition("valid-transactions", 1);
+
+    private final OffsetTracker tracker = new OffsetTracker();
+
+    @Test
+    void testOnlyContiguousCompletionsAreCommitted() {
+        for (long offset = 0; offset < 4; offset++) {
+            tracker.dispatched(FIRST, offset);
+        }
+        tracker.completed(FIRST, 1);
+        tracker.completed(FIRST, 3);
+        // Offset 0 is still in flight, the position stays on it
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(0)), tracker.commitableOffsets());
+        assertTrue(tracker.commitableOffsets().isEmpty());
+        assertEquals(2, tracker.inFlight());
+
+        tracker.completed(FIRST, 0);
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(2)), tracker.commitableOffsets());
+        // Nothing moved since the last call
+        assertTrue(tracker.commitableOffsets().isEmpty());
+
+        tracker.completed(FIRST, 2);
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(4)), tracker.commitableOffsets());
+        assertEquals(0, tracker.inFlight());
+    }
+
+    @Test
+    void testGapsInTheOffsetsAreSkipped() {
+        // Compacted records and transaction markers leave gaps between the offsets fetched
+        tracker.dispatched(FIRST, 3);
+        tracker.dispatched(FIRST, 7);
+        tracker.dispatched(FIRST, 12);
+        tracker.completed(FIRST, 12);
+        tracker.completed(FIRST, 7);
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(3)), tracker.commitableOffsets());
+
+        tracker.completed(FIRST, 3);
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(13)), tracker.commitableOffsets());
+    }
+
+    @Test
+    void testPartitionsAreTrackedSeparately() {
+        tracker.dispatched(FIRST, 0);
+        tracker.dispatched(SECOND, 0);
+        tracker.dispatched(SECOND, 1);
+        tracker.completed(SECOND, 0);
+
+        assertEquals(1, tracker.inFlight(Collections.singleton(FIRST)));
+        assertEquals(1, tracker.inFlight(Collections.singleton(SECOND)));
+        Map<TopicPartition, OffsetAndMetadata> offsets = tracker.commitableOffsets();
+        assertEquals(new OffsetAndMetadata(0), offsets.get(FIRST));
+        assertEquals(new OffsetAndMetadata(1), offsets.get(SECOND));
+    }
+
+    @Test
+    void testRemovedPartitionIsFenced() {
+        tracker.dispatched(FIRST, 0);
+        tracker.dispatched(FIRST, 1);
+        tracker.dispatched(SECOND, 0);
+        tracker.completed(FIRST, 0);
+        assertTrue(tracker.isInFlight(FIRST, 1));
+
+        // Revoked while offset 1 is still being handled
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(1)),
+                tracker.commitableOffsets(Collections.singleton(FIRST)));
+        tracker.remove(Collections.singleton(FIRST));
+        assertFalse(tracker.isInFlight(FIRST, 1));
+        assertEquals(1, tracker.inFlight());
+
+        // Its late completion neither counts nor makes anything committable
+        tracker.completed(FIRST, 1);
+        assertEquals(1, tracker.inFlight());
+        assertFalse(tracker.commitableOffsets().containsKey(FIRST));
+
+        // Assigned again, it starts from the records fetched anew
+        tracker.dispatched(FIRST, 1);
+        tracker.completed(FIRST, 1);
+        assertEquals(Collections.singletonMap(FIRST, new OffsetAndMetadata(2)),
+                tracker.commitableOffsets(Collections.singleton(FIRST)));
+    }
+
+    @Test
+    void testRemoveRacingCompletionsCountsEveryRecordOnce() throws InterruptedException {
+        for (int round = 0; round < 100; round++) {
+            for (long offset = 0; offset < 1_000; offset++) {
+                tracker.dispatched(FIRST, offset);
+            }
+            Thread lane = new Thread(() -> {
+                for (long offset = 0; offset < 1_000; offset++) {
+                    tracker.completed(FIRST, offset);
+                }
+            });
+            lane.start();
+            tracker.remove(Collections.singleton(FIRST));
+            lane.join();
+            assertEquals(0, tracker.inFlight());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PollControllerTest {
+    private static final Duration MIN_TIMEOUT = Duration.ofMillis(10);
+    private static final Duration MAX_TIMEOUT = Duration.ofSeconds(1);
+
+    private final ServiceMetrics metrics = new ServiceMetrics("account-manager-poll-test");
+    private final AtomicLong clock = new AtomicLong();
+
+    @AfterEach
+    void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    void testBatchSizeFollowsTheSmoothedTimePerRecord() {
+        // Batches should take 250 ms, the poll interval allows far more
+        PollController controller = controller(10, 5_000, 250, 300_000);
+        assertEquals(10, controller.getBatchSize());
+
+        batch(controller, 100, 100);
+        // 1 ms per record
+        assertEquals(250, controller.getBatchSize());
+
+        batch(controller, 250, 25);
+        // A faster sample only moves the estimate by 30%: 0.3 * 0.1 + 0.7 * 1 = 0.73 ms
+        assertEquals(342, controller.getBatchSize());
+
+        batch(controller, 342, 684);
+        // A slower sample is followed at once: 2 ms
+        assertEquals(125, controller.getBatchSize());
+    }
+
+    @Test
+    void testBatchSizeStaysWithinItsBounds() {
+        PollController controller = controller(10, 1_000, 250, 300_000);
+
+        batch(controller, 100, 1);
+        assertEquals(1_000, controller.getBatchSize());
+
+        batch(controller, 10, 10_000);
+        assertEquals(10, controller.getBatchSize());
+        // Empty batches don't change anything
+        batch(controller, 0, 60_000);
+        assertEquals(10, controller.getBatchSize());
+    }
+
+    @Test
+    void testPollIntervalBudgetWinsOverTheMinimumBatch() {
+        // A quarter of the 4 s max.poll.interval.ms may be spent on one batch
+        PollController controller = controller(500, 5_000, 250, 4_000);
+
+        batch(controller, 500, 5_000);
+        // 10 ms per record, 1 s of budget
+        assertEquals(100, controller.getBatchSize());
+
+        batch(controller, 100, 100_000);
+        assertEquals(1, controller.getBatchSize());
+    }
+
+    @Test
+    void testIdlePollsBackOffUntilRecordsArrive() {
+        PollController controller = controller(10, 1_000, 250, 300_000);
+        assertEquals(Duration.ZERO, controller.pollTimeout(3));
+        assertEquals(MIN_TIMEOUT, controller.pollTimeout(0));
+
+        long[] expected = {20, 40, 80, 160, 320, 640, 1_000, 1_000};
+        for (long millis : expected) {
+            controller.polled(0);
+            assertEquals(Duration.ofMillis(millis), controller.pollTimeout(0));
+        }
+        // Buffered records are never waited on
+        assertEquals(Duration.ZERO, controller.pollTimeout(1));
+
+        controller.polled(5);
+        assertEquals(MIN_TIMEOUT, controller.pollTimeout(0));
+    }
+
+    @Test
+    void testIdleBackOffStartsFromZeroTimeout() {
+        PollController controller = new PollController(10, 1_000, 250, 300_000, Duration.ZERO, Duration.ofMillis(4),
+                metrics, clock::get);
+        controller.polled(0);
+        assertEquals(Duration.ofMillis(1), controller.pollTimeout(0));
+        controller.polled(0);
+        controller.polled(0);
+        controller.polled(0);
+        assertEquals(Duration.ofMillis(4), controller.pollTimeout(0));
+    }
+
+    @Test
+    void testFixedControllerIgnoresTheMeasurements() {
+        PollController controller = PollController.fixed(500, Duration.ofSeconds(1), metrics);
+        controller.batchStarted();
+        controller.batchProcessed(500);
+        controller.polled(0);
+
+        assertEquals(500, controller.getBatchSize());
+        assertEquals(Duration.ofSeconds(1), controller.pollTimeout(0));
+    }
+
+    private PollController controller(int minBatch, int maxBatch, long targetBatchMillis,
+                                      long maxPollIntervalMillis) {
+        return new PollController(minBatch, maxBatch, targetBatchMillis, maxPollIntervalMillis, MIN_TIMEOUT,
+                MAX_TIMEOUT, metrics, clock::get);
+    }
+
+    private void batch(PollController controller, int records, long millis) {
+        controller.batchStarted();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        controller.batchProcessed(records);
+    }
+}
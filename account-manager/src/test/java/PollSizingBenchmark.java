@@ -0,0 +1,140 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the {@link PollController} with the static defaults (max.poll.records 500, one poll and one batch of at
+ * most 500 records per loop iteration) on a cheap and an expensive handler. A MockConsumer stands in for the
+ * brokers: every poll that fetches records costs one simulated fetch round trip and returns at most max.poll.records.
+ * Prints the throughput, the number of batches (each one a commit) and the longest gap between two polls, which has
+ * to stay well below max.poll.interval.ms. Not part of the default test run, run it with:
+ * mvn test -Dtest=PollSizingBenchmark [-Dbenchmark.records=500000] [-Dbenchmark.expensive.micros=2000]
+ */
+class PollSizingBenchmark {
+    private static final String TOPIC = "valid-transactions";
+    private static final int PARTITIONS = 4;
+    private static final int STATIC_MAX_POLL_RECORDS = 500;
+    private static final long FETCH_MICROS = 1_000;
+    // max.poll.interval.ms of the benchmark, scaled down so the margin of the expensive handler is visible
+    private static final long MAX_POLL_INTERVAL_MILLIS = 4_000;
+
+    @Test
+    void compareStaticAndAdaptiveSizing() throws InterruptedException {
+        int records = Integer.getInteger("benchmark.records", 500_000);
+        long expensiveMicros = Long.getLong("benchmark.expensive.micros", 2_000);
+        Transaction transaction = new Transaction();
+        transaction.setUser("joe1680");
+        transaction.setAmount(250.0);
+        transaction.setTransactionLocation("Ireland");
+
+        ConsumerLoop.RecordHandler<String, Transaction> cheap = record -> record.value().getAmount();
+        ConsumerLoop.RecordHandler<String, Transaction> expensive =
+                record -> LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(expensiveMicros));
+        int expensiveRecords = (int) Math.min(records, TimeUnit.SECONDS.toMicros(20) / expensiveMicros);
+
+        System.out.println(String.format("%-10s %-9s %9s %12s %9s %14s", "handler", "sizing", "records",
+                "records/s", "batches", "max-poll-gap"));
+        for (int run = 0; run < 2; run++) {
+            // The first round only warms up the JIT
+            boolean print = run == 1;
+            benchmark("cheap", "static", cheap, records, transaction, print, false);
+            benchmark("cheap", "adaptive", cheap, records, transaction, print, true);
+            benchmark("expensive", "static", expensive, expensiveRecords, transaction, print, false);
+            benchmark("expensive", "adaptive", expensive, expensiveRecords, transaction, print, true);
+        }
+    }
+
+    private static void benchmark(String handlerName, String sizing,
+                                  ConsumerLoop.RecordHandler<String, Transaction> handler, int records,
+                                  Transaction transaction, boolean print, boolean adaptive)
+            throws InterruptedException {
+        ServiceMetrics metrics = new ServiceMetrics("poll-benchmark-" + handlerName + "-" + sizing);
+        int maxPollRecords = adaptive ? ConsumerLoop.MAX_BATCH : STATIC_MAX_POLL_RECORDS;
+        SimulatedConsumer consumer = new SimulatedConsumer(records, maxPollRecords, transaction);
+        PollController pollController = adaptive
+                ? new PollController(50, ConsumerLoop.MAX_BATCH, 250, MAX_POLL_INTERVAL_MILLIS,
+                Duration.ofMillis(10), Duration.ofSeconds(1), metrics)
+                : PollController.fixed(STATIC_MAX_POLL_RECORDS, Duration.ofSeconds(1), metrics);
+        ConsumerLoop<String, Transaction> loop = new ConsumerLoop<>(consumer, metrics, pollController);
+
+        AtomicLong handled = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        long maxGapNanos = 0;
+        long start = System.nanoTime();
+        long lastPoll = start;
+        while (handled.get() < records) {
+            long before = handled.get();
+            loop.pollOnce(record -> {
+                handler.handle(record);
+                handled.incrementAndGet();
+            });
+            if (handled.get() > before) {
+                batches.incrementAndGet();
+            }
+            long now = System.nanoTime();
+            maxGapNanos = Math.max(maxGapNanos, now - lastPoll);
+            lastPoll = now;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        metrics.close();
+        if (print) {
+            long maxGapMillis = TimeUnit.NANOSECONDS.toMillis(maxGapNanos);
+            System.out.println(String.format("%-10s %-9s %9d %12.0f %9d %11d ms%s", handlerName, sizing, records,
+                    records / seconds, batches.get(), maxGapMillis,
+                    maxGapMillis > MAX_POLL_INTERVAL_MILLIS * 0.5 ? " (over half of max.poll.interval.ms)" : ""));
+        }
+    }
+
+    /**
+     * MockConsumer that fetches the next records of a fixed backlog on every poll, at most maxPollRecords of them,
+     * paying one simulated fetch round trip each time
+     */
+    private static class SimulatedConsumer extends MockConsumer<String, Transaction> {
+        private final int records;
+        private final int maxPollRecords;
+        private final Transaction transaction;
+        private final List<TopicPartition> partitions = new ArrayList<>();
+        private int fetched;
+
+        private SimulatedConsumer(int records, int maxPollRecords, Transaction transaction) {
+            super(OffsetResetStrategy.EARLIEST);
+            this.records = records;
+            this.maxPollRecords = maxPollRecords;
+            this.transaction = transaction;
+            Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+            Map<TopicPartition, Long> endOffsets = new HashMap<>();
+            for (int i = 0; i < PARTITIONS; i++) {
+                TopicPartition partition = new TopicPartition(TOPIC, i);
+                partitions.add(partition);
+                beginningOffsets.put(partition, 0L);
+                endOffsets.put(partition, (long) (records + PARTITIONS - 1 - i) / PARTITIONS);
+            }
+            subscribe(Collections.singletonList(TOPIC));
+            rebalance(partitions);
+            updateBeginningOffsets(beginningOffsets);
+            updateEndOffsets(endOffsets);
+        }
+
+        @Override
+        public synchronized ConsumerRecords<String, Transaction> poll(Duration timeout) {
+            if (fetched < records && paused().isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(FETCH_MICROS));
+                for (int i = 0; i < maxPollRecords && fetched < records; i++, fetched++) {
+                    TopicPartition partition = partitions.get(fetched % PARTITIONS);
+                    addRecord(new ConsumerRecord<>(TOPIC, partition.partition(), fetched / PARTITIONS,
+                            "user-" + (fetched % 1000), transaction));
+                }
+            }
+            return super.poll(timeout);
+        }
+    }
+}
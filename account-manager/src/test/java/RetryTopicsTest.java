@@ -0,0 +1,163 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryTopicsTest {
+    private static final String TOPIC = "valid-transactions";
+    private static final String GROUP = "account-manager-service";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private final ServiceMetrics metrics = new ServiceMetrics("account-manager-retry-test");
+
+    @AfterEach
+    void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    void testParseDelays() {
+        assertEquals(Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(30), Duration.ofMinutes(5)),
+                RetryTopics.parseDelays("1s,30s,5m"));
+        assertEquals(Arrays.asList(Duration.ofMillis(250), Duration.ofHours(1)),
+                RetryTopics.parseDelays(" 250ms , 1h "));
+        assertEquals(Collections.emptyList(), RetryTopics.parseDelays(""));
+        assertThrows(IllegalArgumentException.class, () -> RetryTopics.parseDelays("5d"));
+    }
+
+    @Test
+    void testFailedRecordMovesThroughTheTiersToTheDeadLetterTopic() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+        RetryTopics<String, Transaction> retries = retryTopics(producer, "1s");
+        ConsumerLoop.RecordHandler<String, Transaction> handler = retries.wrap(record -> {
+            throw new IllegalStateException("handler failed");
+        });
+
+        handler.handle(record(TOPIC, 7));
+        retries.flush();
+        ProducerRecord<byte[], byte[]> retry = producer.history().get(0);
+        assertEquals(GROUP + "-retry-1s", retry.topic());
+        assertEquals("1", header(retry, RetryTopics.ATTEMPT_HEADER));
+        assertEquals(TOPIC, header(retry, RetryTopics.ORIGINAL_TOPIC_HEADER));
+
+        // The retry fails again, there is no further tier
+        ConsumerRecord<String, Transaction> retried = new ConsumerRecord<>(retry.topic(), 0, 0, 0L,
+                TimestampType.CREATE_TIME, null, 0, 0, "joe1680", transaction(), retry.headers());
+        handler.handle(retried);
+        retries.flush();
+        ProducerRecord<byte[], byte[]> deadLetter = producer.history().get(1);
+        assertEquals(GROUP + "-dead-letter", deadLetter.topic());
+        assertEquals("7", header(deadLetter, RetryTopics.ORIGINAL_OFFSET_HEADER));
+    }
+
+    @Test
+    void testFailedMoveFailsTheFlush() throws Exception {
+        RetryTopics<String, Transaction> retries = retryTopics(new FailingProducer(), "1s");
+        retries.wrap(record -> {
+            throw new IllegalStateException("handler failed");
+        }).handle(record(TOPIC, 0));
+
+        KafkaException thrown = assertThrows(KafkaException.class, retries::flush);
+        assertTrue(thrown.getCause() instanceof TimeoutException);
+        // Later moves succeeding don't make the lost one committable
+        assertThrows(KafkaException.class, retries::flush);
+    }
+
+    @Test
+    void testMoveRejectedBeforeSendingFailsTheFlush() throws Exception {
+        MockProducer<byte[], byte[]> producer = new MockProducer<byte[], byte[]>(true, new ByteArraySerializer(),
+                new ByteArraySerializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<byte[], byte[]> record,
+                                                            Callback callback) {
+                throw new SerializationException("record too odd to serialize");
+            }
+        };
+        RetryTopics<String, Transaction> retries = retryTopics(producer, "");
+        // A record that couldn't be deserialized goes straight to the dead-letter topic
+        ConsumerRecord<String, Transaction> undecodable = new ConsumerRecord<>(TOPIC, 0, 0, "joe1680", null);
+        undecodable.headers().add(RetryTopics.DESERIALIZATION_FAILED_HEADER, "{".getBytes(StandardCharsets.UTF_8));
+        retries.wrap(record -> fail("undecodable records aren't handled")).handle(undecodable);
+
+        assertThrows(KafkaException.class, retries::flush);
+    }
+
+    @Test
+    void testConsumerLoopDoesNotCommitRecordsThatWereNotMoved() throws Exception {
+        MockConsumer<String, Transaction> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        RetryTopics<String, Transaction> retries = retryTopics(new FailingProducer(), "1s");
+        ConsumerLoop<String, Transaction> loop = new ConsumerLoop<>(consumer, metrics);
+        loop.subscribe(Collections.singletonList(TOPIC), PartitionStateStore.NONE, retries);
+        consumer.rebalance(Collections.singletonList(PARTITION));
+        consumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        consumer.addRecord(record(TOPIC, 0));
+        consumer.addRecord(record(TOPIC, 1));
+
+        assertThrows(KafkaException.class, () -> loop.pollOnce(record -> {
+            if (record.offset() == 0) {
+                throw new IllegalStateException("handler failed");
+            }
+        }));
+        assertNull(consumer.committed(Collections.singleton(PARTITION)).get(PARTITION));
+    }
+
+    private RetryTopics<String, Transaction> retryTopics(MockProducer<byte[], byte[]> producer, String delays) {
+        List<Duration> tiers = RetryTopics.parseDelays(delays);
+        return new RetryTopics<>(GROUP, tiers, producer, new StringSerializer(),
+                new Transaction.TransactionSerializer(), metrics);
+    }
+
+    private static ConsumerRecord<String, Transaction> record(String topic, long offset) {
+        return new ConsumerRecord<>(topic, PARTITION.partition(), offset, "joe1680", transaction());
+    }
+
+    private static Transaction transaction() {
+        Transaction transaction = new Transaction();
+        transaction.setUser("joe1680");
+        transaction.setAmount(128.63);
+        transaction.setTransactionLocation("Ireland");
+        return transaction;
+    }
+
+    private static String header(ProducerRecord<byte[], byte[]> record, String key) {
+        return new String(record.headers().lastHeader(key).value(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Producer whose every send is acknowledged with an error
+     */
+    private static class FailingProducer extends MockProducer<byte[], byte[]> {
+        private FailingProducer() {
+            super(false, new ByteArraySerializer(), new ByteArraySerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<byte[], byte[]> record, Callback callback) {
+            Future<RecordMetadata> future = super.send(record, callback);
+            errorNext(new TimeoutException("no broker"));
+            return future;
+        }
+    }
+}
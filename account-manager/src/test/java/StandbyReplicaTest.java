@@ -0,0 +1,305 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs several account-manager instances against one simulated changelog topic: the changelog producer's history
+ * stands in for the topic and is delivered to each instance's standby consumer on demand, so replication lag and
+ * failover can be staged deterministically.
+ */
+class StandbyReplicaTest {
+    private static final String TOPIC = "valid-transactions";
+    private static final String CHANGELOG = "account-ledger-changelog";
+    private static final int PARTITIONS = 2;
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    private MockProducer<String, byte[]> changelog;
+    private final List<Instance> instances = new ArrayList<>();
+
+    @BeforeEach
+    void createChangelog() {
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions.add(new PartitionInfo(CHANGELOG, i, node, new Node[]{node}, new Node[]{node}));
+        }
+        Cluster cluster = new Cluster("test", Collections.singletonList(node), partitions, Collections.emptySet(),
+                Collections.emptySet());
+        changelog = new MockProducer<>(cluster, true, new DefaultPartitioner(), new StringSerializer(),
+                new ByteArraySerializer());
+    }
+
+    @AfterEach
+    void closeMetrics() {
+        for (Instance instance : instances) {
+            instance.metrics.close();
+        }
+    }
+
+    @Test
+    void testStandbyTakesOverWithOnlyTheChangelogTail() {
+        Instance active = new Instance("active");
+        Instance standby = new Instance("standby");
+        Instance cold = new Instance("cold");
+        active.ledger.restore(PARTITION);
+
+        long offset = 0;
+        for (; offset < 20_000; offset++) {
+            assertTrue(active.ledger.apply(record(offset)));
+        }
+        // The standby keeps up with the changelog, the cold instance never replicated anything
+        standby.deliver();
+        standby.replica.pollOnce(Duration.ZERO);
+        for (; offset < 20_010; offset++) {
+            active.ledger.apply(record(offset));
+        }
+        standby.deliver();
+        cold.deliver();
+        assertEquals(10, standby.replica.measureLag());
+        assertEquals(20_010, cold.replica.measureLag());
+
+        // The active instance fails without handing anything over
+        long hotStart = System.nanoTime();
+        standby.ledger.restore(PARTITION);
+        long hotNanos = System.nanoTime() - hotStart;
+        long coldStart = System.nanoTime();
+        cold.ledger.restore(PARTITION);
+        long coldNanos = System.nanoTime() - coldStart;
+
+        assertEquals(0, standby.replica.measureLag());
+        for (int user = 0; user < 1000; user++) {
+            AccountLedger.Account expected = active.ledger.account("user" + user);
+            for (Instance instance : Arrays.asList(standby, cold)) {
+                AccountLedger.Account account = instance.ledger.account("user" + user);
+                assertEquals(expected.getTransactionCount(), account.getTransactionCount());
+                assertEquals(expected.getTotalAmount(), account.getTotalAmount(), 1e-6);
+            }
+        }
+        assertTrue(hotNanos < coldNanos, "hot take over " + hotNanos + "ns, cold " + coldNanos + "ns");
+        assertTrue(hotNanos < Duration.ofMillis(500).toNanos(), "hot take over " + hotNanos + "ns");
+
+        // Records redelivered from before the failover are skipped, new ones are applied
+        assertFalse(standby.ledger.apply(record(20_009)));
+        assertTrue(standby.ledger.apply(record(20_010)));
+    }
+
+    @Test
+    void testRevokedPartitionStaysHotOnItsPreviousOwner() {
+        Instance first = new Instance("first");
+        Instance second = new Instance("second");
+        first.ledger.restore(PARTITION);
+        long offset = 0;
+        for (; offset < 1_000; offset++) {
+            first.ledger.apply(record(offset));
+        }
+
+        // A rebalance moves the partition to the second instance, the first keeps it as a standby
+        first.deliver();
+        first.ledger.checkpoint(PARTITION);
+        assertEquals(0, first.ledger.size());
+        assertNull(first.ledger.account("user0"));
+        second.deliver();
+        second.ledger.restore(PARTITION);
+        for (; offset < 1_100; offset++) {
+            assertTrue(second.ledger.apply(record(offset)));
+        }
+
+        // Moving it back only reads what the second instance added
+        second.deliver();
+        second.ledger.checkpoint(PARTITION);
+        first.deliver();
+        assertEquals(100, first.replica.measureLag());
+        first.ledger.restore(PARTITION);
+
+        assertEquals(1, first.ledger.size());
+        assertNull(second.ledger.account("user0"));
+        for (int user = 0; user < 1000; user++) {
+            assertEquals(user < 100 ? 2 : 1, first.ledger.account("user" + user).getTransactionCount());
+        }
+        assertFalse(first.ledger.apply(record(1_099)));
+    }
+
+    @Test
+    void testTakeOverBeforeReplicationStartedKeepsTheReplicaRunning() throws InterruptedException {
+        Instance instance = new Instance("early", new BrokerLikeConsumer(true), false);
+        Thread thread = new Thread(instance.replica);
+        thread.start();
+        BrokerLikeConsumer consumer = (BrokerLikeConsumer) instance.consumer;
+        assertTrue(consumer.partitionsForEntered.await(5, TimeUnit.SECONDS));
+
+        // The group assigns a partition while the replica is still looking the changelog up
+        assertNotNull(instance.replica.takeOver(PARTITION));
+
+        // The replica starts again and replicates the partition that isn't active
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!consumer.assignment().equals(Collections.singleton(new TopicPartition(CHANGELOG, 1)))) {
+            assertTrue(System.currentTimeMillis() < deadline, "replication never started");
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertTrue(thread.isAlive());
+        instance.replica.close();
+        thread.join(5_000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    void testFailedAcquireReleasesTheLock() {
+        Instance instance = new Instance("failing", new BrokerLikeConsumer(false), true);
+        BrokerLikeConsumer consumer = (BrokerLikeConsumer) instance.consumer;
+        consumer.failNextPoll = true;
+
+        assertThrows(IllegalStateException.class, () -> instance.replica.adopt(PARTITION, null));
+
+        // The replication thread can still have the consumer
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> instance.replica.pollOnce(Duration.ZERO));
+    }
+
+    @Test
+    void testReplicaIdlesWhileEveryPartitionIsActive() {
+        Instance instance = new Instance("idle", new BrokerLikeConsumer(false), true);
+        for (int i = 0; i < PARTITIONS; i++) {
+            instance.replica.takeOver(new TopicPartition(TOPIC, i));
+        }
+
+        // Polling a consumer without partitions would throw
+        instance.replica.pollOnce(Duration.ofMillis(10));
+        instance.replica.adopt(PARTITION, null);
+        instance.replica.pollOnce(Duration.ZERO);
+        assertEquals(Collections.singleton(new TopicPartition(CHANGELOG, 0)), instance.consumer.assignment());
+    }
+
+    private static ConsumerRecord<String, Transaction> record(long offset) {
+        Transaction transaction = new Transaction();
+        transaction.setUser("user" + offset % 1000);
+        transaction.setAmount(offset % 97 + 0.25);
+        transaction.setTransactionLocation("Ireland");
+        return new ConsumerRecord<>(TOPIC, PARTITION.partition(), offset, transaction.getUser(), transaction);
+    }
+
+    /**
+     * One account-manager instance: its ledger, writing to the shared changelog, and its standby replica
+     */
+    private class Instance {
+        private final ServiceMetrics metrics;
+        private final MockConsumer<String, byte[]> consumer;
+        private final StandbyReplica replica;
+        private final AccountLedger ledger;
+        // Changelog records already handed to the consumer, per partition
+        private final Map<TopicPartition, Long> delivered = new HashMap<>();
+
+        private Instance(String name) {
+            this(name, new MockConsumer<>(OffsetResetStrategy.EARLIEST), true);
+        }
+
+        private Instance(String name, MockConsumer<String, byte[]> consumer, boolean replicate) {
+            this.consumer = consumer;
+            metrics = new ServiceMetrics("account-manager-" + name);
+            instances.add(this);
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            List<PartitionInfo> partitions = new ArrayList<>();
+            for (int i = 0; i < PARTITIONS; i++) {
+                beginning.put(new TopicPartition(CHANGELOG, i), 0L);
+                partitions.add(new PartitionInfo(CHANGELOG, i, null, null, null));
+            }
+            consumer.updateBeginningOffsets(beginning);
+            consumer.updateEndOffsets(beginning);
+            consumer.updatePartitions(CHANGELOG, partitions);
+            replica = new StandbyReplica(consumer, CHANGELOG, metrics);
+            if (replicate) {
+                replica.replicateAll();
+            }
+            ledger = new AccountLedger(changelog, CHANGELOG, replica);
+        }
+
+        /**
+         * Hands the changelog records written since the last call to the consumer and moves its end offsets
+         */
+        private void deliver() {
+            Map<TopicPartition, Long> ends = new HashMap<>();
+            for (ProducerRecord<String, byte[]> record : changelog.history()) {
+                TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                long offset = ends.merge(partition, 1L, Long::sum) - 1;
+                if (consumer.assignment().contains(partition) && offset >= delivered.getOrDefault(partition, 0L)) {
+                    consumer.addRecord(new ConsumerRecord<>(record.topic(), record.partition(), offset,
+                            record.key(), record.value()));
+                    delivered.put(partition, offset + 1);
+                }
+            }
+            consumer.updateEndOffsets(ends);
+        }
+    }
+
+    /**
+     * Behaves like a KafkaConsumer where MockConsumer doesn't: polling without partitions fails, and partitionsFor
+     * can be made to block until woken up
+     */
+    private static class BrokerLikeConsumer extends MockConsumer<String, byte[]> {
+        private final CountDownLatch partitionsForEntered = new CountDownLatch(1);
+        private final CountDownLatch wokenUp = new CountDownLatch(1);
+        private volatile boolean blockPartitionsFor;
+        private volatile boolean failNextPoll;
+
+        private BrokerLikeConsumer(boolean blockPartitionsFor) {
+            super(OffsetResetStrategy.EARLIEST);
+            this.blockPartitionsFor = blockPartitionsFor;
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            if (blockPartitionsFor) {
+                partitionsForEntered.countDown();
+                try {
+                    wokenUp.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                blockPartitionsFor = false;
+                throw new WakeupException();
+            }
+            return super.partitionsFor(topic);
+        }
+
+        @Override
+        public void wakeup() {
+            // A blocked partitionsFor takes the wake up, otherwise it is pending for the next poll
+            if (blockPartitionsFor && partitionsForEntered.getCount() == 0) {
+                wokenUp.countDown();
+            } else {
+                super.wakeup();
+            }
+        }
+
+        @Override
+        public synchronized ConsumerRecords<String, byte[]> poll(Duration timeout) {
+            if (failNextPoll) {
+                failNextPoll = false;
+                throw new IllegalStateException("This consumer has already been closed.");
+            }
+            if (assignment().isEmpty()) {
+                throw new IllegalStateException("Consumer is not subscribed to any topics or assigned any partitions");
+            }
+            return super.poll(timeout);
+        }
+    }
+}
@@ -1,10 +1,17 @@
 import org.apache.kafka.clients.producer.*;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.Properties;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StreamsConfig;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Banking API Service
@@ -12,31 +19,96 @@ import java.util.concurrent.ExecutionException;
 public class Application {
     // Final String List of the TOPICS and Servers available
     //valid-transaction = 0, suspicious-transaction=1, high-value-transaction=2
-    private static final List<String> TOPICS = Collections.unmodifiableList(
+    static final List<String> TOPICS = Collections.unmodifiableList(
             Arrays.asList("valid-transactions","suspicious-transactions","high-value-transactions"));
     private static final String BOOTSTRAP_SERVERS = "localhost:9092,localhost:9093,localhost:9094";
+    // Transactions of users missing from the residence store are parked here instead of failing the run
+    static final String QUARANTINE_TOPIC = "quarantined-transactions";
+    // Number of transactions whose users are looked up together with one multi-get
+    private static final int LOOKUP_BATCH_SIZE = 100;
+    // Topics whose consumers only report or alert, so hot users can be spread over all their partitions
+    private static final String SPREAD_TOPICS = TOPICS.get(2) + "," + QUARANTINE_TOPIC;
+    // Time to the first routed transaction and to peak throughput, measured from JVM start
+    static final StartupTimer STARTUP_TIMER = new StartupTimer(Long.getLong("startup.window.ms", 1_000));
+    // Metrics of the routing loop and the watchdog dumping a flight recording when the p99 routing latency is breached
+    private static final ServiceMetrics METRICS = new ServiceMetrics("banking-api");
+    private static final LatencyWatchdog LATENCY_WATCHDOG = new LatencyWatchdog("banking-api", METRICS);
+    // Where the input position is checkpointed, and how often, so a restart resumes instead of starting over
+    private static final Path INGEST_CHECKPOINT_FILE = Paths.get(
+            System.getProperty("ingest.checkpoint.file", "state/banking-api/ingest.checkpoint"));
+    private static final long INGEST_CHECKPOINT_INTERVAL_MILLIS = Long.getLong("ingest.checkpoint.interval.ms", 1_000);
+    // Failed sends are retried after each of these delays in turn, then sent to the dead-letter topic
+    private static final List<Duration> RETRY_DELAYS = RetryingSender.parseDelays(
+            System.getProperty("producer.retry.delays", "1s,30s,5m"));
+    static final String DEAD_LETTER_TOPIC = "banking-api-dead-letter";
+    // Transactions that couldn't be sent to the dead-letter topic either, checkpoints stop advancing after the first one
+    private static final AtomicLong FAILED_SENDS = new AtomicLong();
 
     /**
      * Main method call for Application class. Creates new instance of Application. Creates IncomingTransactionsReader,
-     * CustomerAddressDatabase. Creates a new kafkaProducer with the BOOTSTRAP_SERVERS
+     * CustomerAddressDatabase with the TieredResidenceLookup in front of it and the ImpossibleTravelDetector.
+     * Creates a new DualLaneProducer (or a single kafkaProducer with --single-lane) with the BOOTSTRAP_SERVERS
      * Uses a try to processTransactions, catch exceptions and print errors to console, and finally flushes and
-     * closes the Producer.
+     * closes the Producer. When started with --streams the routing is done by the Kafka Streams engine instead,
+     * and with --cds-training it runs the StartupTraining and exits. --capture and --replay run the traffic tool.
+     * The routing resumes from the IngestionCheckpoint of the incoming transactions, unless started with
+     * --from-start, and checkpoints its position as the transactions are acknowledged.
      * @param args
      * @throws ExecutionException
      * @throws InterruptedException
      */
     public static void main(String[] args) throws ExecutionException, InterruptedException {
+        // Capture or replay topic traffic instead of processing the incoming transactions file when asked to
+        if (args.length > 0 && (args[0].equals("--capture") || args[0].equals("--replay"))) {
+            runTrafficTool(args);
+            return;
+        }
         // Create a new instance IncomingTransactionsReader AND CustomerAddressDatabase Object
         IncomingTransactionsReader incomingTransactionsReader = new IncomingTransactionsReader();
         CustomerAddressDatabase customerAddressDatabase = new CustomerAddressDatabase();
+        // Route with the Kafka Streams topology instead of the hand-written producer loop when asked to
+        if (Arrays.asList(args).contains("--streams")) {
+            runStreamsEngine(incomingTransactionsReader, customerAddressDatabase);
+            return;
+        }
+        // Run generated transactions through the hot path and exit, used to build the class data sharing archive
+        if (Arrays.asList(args).contains("--cds-training")) {
+            StartupTraining.run(customerAddressDatabase);
+            return;
+        }
+        // Put the LRU cache tier in front of the CustomerAddressDatabase
+        TieredResidenceLookup residenceLookup = new TieredResidenceLookup(customerAddressDatabase);
+        // Create the detection stage that remembers where each user last transacted
+        ImpossibleTravelDetector travelDetector = new ImpossibleTravelDetector();
+        // Resume reading just past the last checkpointed transaction that the brokers acknowledged
+        IngestionCheckpoint checkpoint = new IngestionCheckpoint(INGEST_CHECKPOINT_FILE,
+                INGEST_CHECKPOINT_INTERVAL_MILLIS);
+        long resumeOffset = Arrays.asList(args).contains("--from-start")
+                ? 0 : checkpoint.load(incomingTransactionsReader.getSource());
+        if (resumeOffset > 0) {
+            System.out.println("Resuming " + incomingTransactionsReader.getSource() + " at byte " + resumeOffset
+                    + "\n");
+            incomingTransactionsReader = new IncomingTransactionsReader(incomingTransactionsReader.getSource(),
+                    resumeOffset);
+        }
+        IncomingTransactionsReader reader = incomingTransactionsReader;
+        METRICS.gauge("ingest-checkpoint-offset", "Byte offset of the last saved ingestion checkpoint",
+                checkpoint::getSavedPosition);
         // Create a instance of class Application
         Application kafkaApp = new Application();
-        // Call createKafkaProducer method and pass the Servers
-        Producer<String, Transaction> kafkaProducer = kafkaApp.createKafkaProducer(BOOTSTRAP_SERVERS);
+        // Send alerts and bulk traffic through separate producer lanes, unless asked for a single producer
+        Producer<String, Transaction> kafkaProducer = Arrays.asList(args).contains("--single-lane")
+                ? kafkaApp.createKafkaProducer(BOOTSTRAP_SERVERS)
+                : kafkaApp.createDualLaneProducer(BOOTSTRAP_SERVERS);
 
-        // Try to processTransactions passing 3 parameters
+        // Try to processTransactions, checkpointing the reader's position after acknowledged batches
         try {
-            processTransactions(incomingTransactionsReader, customerAddressDatabase, kafkaProducer);
+            processTransactions(reader, residenceLookup, travelDetector, kafkaProducer,
+                    () -> checkpoint.maybeSave(reader.getSource(), reader.getOffset()));
+            // Everything read was acknowledged, a restart has nothing left to route
+            if (FAILED_SENDS.get() == 0) {
+                checkpoint.save(reader.getSource(), reader.getOffset());
+            }
         } // Catch Execution OR Interrupted Exceptions
         catch (ExecutionException | InterruptedException e) {
             // Print stack trace and error message to console.
@@ -46,14 +118,15 @@ public class Application {
         finally {
             kafkaProducer.flush();
             kafkaProducer.close();
+            closeQuietly(reader);
         }
+        System.out.println(STARTUP_TIMER.summary());
     }
 
     /**
      * Takes in three parameters incomingTransactionsReader, customerAddressDatabase, and kafkaProducer
-     * and throws two Exceptions. Retrieve the next transaction from the incomingTransactionsReader. Get the transaction
-     * amount and check if it exceeds the 1000.00 limit. Get the transaction residence can compare it to the users address
-     * from customerAddressDatabase. Send a message to the appropriate topic based on the criteria
+     * and throws two Exceptions. Wraps the customerAddressDatabase in a TieredResidenceLookup and processes
+     * the transactions through it.
      * @param incomingTransactionsReader
      * @param customerAddressDatabase
      * @param kafkaProducer
@@ -63,91 +136,482 @@ public class Application {
     public static void processTransactions(IncomingTransactionsReader incomingTransactionsReader,
                                            CustomerAddressDatabase customerAddressDatabase,
             Producer<String, Transaction> kafkaProducer) throws ExecutionException, InterruptedException {
+        processTransactions(incomingTransactionsReader, new TieredResidenceLookup(customerAddressDatabase),
+                new ImpossibleTravelDetector(), kafkaProducer);
+    }
+
+    /**
+     * Takes in four parameters incomingTransactionsReader, residenceLookup, travelDetector and kafkaProducer
+     * and throws two Exceptions. Reads the transactions in micro-batches of LOOKUP_BATCH_SIZE and prefetches the
+     * residence of every user in the batch with one multi-get before routing each transaction of the batch.
+     * Every transaction that carries its event time is checked against the user's previous one by the
+     * travelDetector as it is routed, transactions without one are never impossible travel.
+     * The lookup, serialize, send-wait and print stages of each transaction emit TransactionStageEvents for
+     * Java Flight Recorder, and the latency of each transaction is reported to the LatencyWatchdog.
+     * @param incomingTransactionsReader
+     * @param residenceLookup
+     * @param travelDetector
+     * @param kafkaProducer
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void processTransactions(Iterator<Transaction> incomingTransactionsReader,
+                                           TieredResidenceLookup residenceLookup,
+                                           ImpossibleTravelDetector travelDetector,
+            Producer<String, Transaction> kafkaProducer) throws ExecutionException, InterruptedException {
+        processTransactions(incomingTransactionsReader, residenceLookup, travelDetector, kafkaProducer, () -> { });
+    }
+
+    /**
+     * Takes in five parameters like processTransactions above, plus onAcknowledged, which is run after every
+     * micro-batch once all of its transactions have been acknowledged by the brokers. Sends that fail are retried by
+     * a RetryingSender in the background while the routing carries on, and sent to the dead-letter topic once their
+     * retries ran out. onAcknowledged isn't run while retries are pending and no longer run once a transaction was
+     * lost, so a checkpoint taken in it never skips an unsent transaction. Pending retries are waited for (up to
+     * producer.retry.drain.ms) before returning.
+     * @param incomingTransactionsReader
+     * @param residenceLookup
+     * @param travelDetector
+     * @param kafkaProducer
+     * @param onAcknowledged
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void processTransactions(Iterator<Transaction> incomingTransactionsReader,
+                                           TieredResidenceLookup residenceLookup,
+                                           ImpossibleTravelDetector travelDetector,
+                                           Producer<String, Transaction> kafkaProducer,
+                                           Runnable onAcknowledged) throws ExecutionException, InterruptedException {
+        // Retry failed sends without holding up the routing of the next transactions
+        RetryingSender<String, Transaction> sender = new RetryingSender<>(kafkaProducer, DEAD_LETTER_TOPIC,
+                RETRY_DELAYS, METRICS);
+        try {
+            routeAll(incomingTransactionsReader, residenceLookup, travelDetector, kafkaProducer, sender,
+                    onAcknowledged);
+        } finally {
+            sender.close();
+            FAILED_SENDS.addAndGet(sender.getLost());
+        }
+    }
+
+    /**
+     * Takes in six parameters like processTransactions above, plus sender, the RetryingSender the transactions are
+     * routed through
+     * @param incomingTransactionsReader
+     * @param residenceLookup
+     * @param travelDetector
+     * @param kafkaProducer
+     * @param sender
+     * @param onAcknowledged
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    private static void routeAll(Iterator<Transaction> incomingTransactionsReader,
+                                 TieredResidenceLookup residenceLookup, ImpossibleTravelDetector travelDetector,
+                                 Producer<String, Transaction> kafkaProducer,
+                                 RetryingSender<String, Transaction> sender,
+                                 Runnable onAcknowledged) throws ExecutionException, InterruptedException {
         // While incomingTransactionsReader has another value to read do
         while (incomingTransactionsReader.hasNext()) {
-            // Create a new Transaction info, String user, and double value to store Transaction information.
-            Transaction info = incomingTransactionsReader.next();
-            String user = info.getUser();
-            double value = info.getAmount();
-            // Creates a currentTopic and printTopic and initializes them.
-            String currentTopic = "";
-            String printTopic = "";
-            // Creates a new ProducerRecord with <String, Transaction>
-            ProducerRecord<String, Transaction> record;
-
-            // If the Transaction amount if greater then 1000.00 do
-            if (info.getAmount() > 1000.00) {
-                // Sets current topic to high-value-transactions
-                currentTopic = TOPICS.get(2);
-                // If the printTopic is empty add the currentTopic to printTopic
-                if (printTopic.isEmpty())
-                    printTopic += currentTopic;
-                // Else if not empty add a comma break before adding currentTopic to printTopic
-                else if (!printTopic.isEmpty())
-                    printTopic += ", " + currentTopic;
-
-                // Set record to a new Producer record with the currentTopic, user, and info
-                record = new ProducerRecord<>(currentTopic, user, info);
-                // Produce the message and send it out to be consumed elsewhere
-                kafkaProducer.send(record).get();
+            // Read the next micro-batch of transactions and collect the users they belong to
+            List<Transaction> batch = new ArrayList<>(LOOKUP_BATCH_SIZE);
+            Set<String> users = new HashSet<>();
+            while (incomingTransactionsReader.hasNext() && batch.size() < LOOKUP_BATCH_SIZE) {
+                Transaction info = incomingTransactionsReader.next();
+                batch.add(info);
+                users.add(info.getUser());
+            }
+            // Load every user of the batch missing from the cache with a single multi-get
+            residenceLookup.prefetch(users).get();
+
+            // Route each transaction of the batch now that the residences are in memory
+            for (Transaction info : batch) {
+                long start = System.nanoTime();
+                // Time the residence lookup on its own, a cache miss here is the usual source of slowdowns
+                TransactionStageEvent lookupEvent = new TransactionStageEvent();
+                lookupEvent.begin();
+                int residenceId = residenceLookup.getUserResidenceId(info.getUser());
+                lookupEvent.end();
+                if (lookupEvent.shouldCommit()) {
+                    lookupEvent.stage = "lookup";
+                    lookupEvent.userHash = Objects.hashCode(info.getUser());
+                    lookupEvent.commit();
+                }
+                // Check the time and place of the transaction against the user's previous transaction, only
+                // transactions that carry their event time can be checked
+                boolean impossibleTravel = travelDetector.isImpossibleTravel(info.getUser(), info.getLocationId(),
+                        info.getTimestamp());
+                routeTransaction(info, residenceId, impossibleTravel, sender);
+                LATENCY_WATCHDOG.record(System.nanoTime() - start);
+                STARTUP_TIMER.recordProcessed(1);
+            }
+            // Wait for the valid transactions of the batch to be acknowledged before reading the next one
+            kafkaProducer.flush();
+            if (FAILED_SENDS.get() == 0 && sender.getPending() == 0 && sender.getLost() == 0) {
+                onAcknowledged.run();
+            }
+        }
+    }
+
+    /**
+     * Takes in four parameters info, residenceId, impossibleTravel and sender and throws an Exception. Get
+     * the transaction amount and check if it exceeds the 1000.00 limit. Compare the CountryDictionary id of the
+     * transaction location to the id of the users residence, a transaction made away from home or after impossible
+     * travel is suspicious. Send a message to the appropriate topic based on the criteria. Transactions of unknown
+     * users (NO_RESIDENCE) are sent to the quarantine topic instead.
+     * @param info
+     * @param residenceId
+     * @param impossibleTravel
+     * @param sender
+     * @throws InterruptedException
+     */
+    private static void routeTransaction(Transaction info, int residenceId, boolean impossibleTravel,
+            RetryingSender<String, Transaction> sender) throws InterruptedException {
+        // Create a String user, and double value to store Transaction information.
+        String user = info.getUser();
+        double value = info.getAmount();
+        // Creates a currentTopic and printTopic and initializes them.
+        String currentTopic = "";
+        String printTopic = "";
+        // Creates a new ProducerRecord with <String, Transaction>
+        ProducerRecord<String, Transaction> record;
+
+        // If the user doesn't exist quarantine the transaction for investigation and stop routing it
+        if (residenceId == TieredResidenceLookup.NO_RESIDENCE) {
+            record = new ProducerRecord<>(QUARANTINE_TOPIC, user, info);
+            sendAndWait(sender, record);
+            print(QUARANTINE_TOPIC, user, String.format("[%s] - [User: %s, Amount: %.2f, Loc: %s, Home: UNKNOWN]",
+                    QUARANTINE_TOPIC, user, value, info.getTransactionLocation()));
+            return;
+        }
+
+        // If the Transaction amount if greater then 1000.00 do
+        if (info.getAmount() > 1000.00) {
+            // Sets current topic to high-value-transactions
+            currentTopic = TOPICS.get(2);
+            // If the printTopic is empty add the currentTopic to printTopic
+            if (printTopic.isEmpty())
+                printTopic += currentTopic;
+            // Else if not empty add a comma break before adding currentTopic to printTopic
+            else if (!printTopic.isEmpty())
+                printTopic += ", " + currentTopic;
+
+            // Set record to a new Producer record with the currentTopic, user, and info
+            record = new ProducerRecord<>(currentTopic, user, info);
+            // Produce the message and send it out to be consumed elsewhere
+            sendAndWait(sender, record);
+        }
+
+        // Checks for valid location in relation to userAddress and that the user could have travelled there,
+        // locations that couldn't be given an id never match
+        if (info.getLocationId() != CountryDictionary.UNKNOWN && info.getLocationId() == residenceId
+                && !impossibleTravel) {
+            // Sets current topic to valid-transactions
+            currentTopic = TOPICS.get(0);
+            // If the printTopic is empty add the currentTopic to printTopic
+            if (printTopic.isEmpty())
+                printTopic += currentTopic;
+            // Else if not empty add a comma break before adding currentTopic to printTopic
+            else if (!printTopic.isEmpty())
+                printTopic += ", " + currentTopic;
+
+            // Set record to a new Producer record with the currentTopic, user, and info
+            record = new ProducerRecord<>(currentTopic, user, info);
+            // Produce the message without waiting, valid transactions are acknowledged with the whole batch
+            sendInBulk(sender, record);
+        } // Else if the user address does not match the transaction address (or the travel was impossible)
+        // mark as suspicious-transactions
+        else {
+            // Sets current topic to suspicious-transactions
+            currentTopic = TOPICS.get(1);
+            // If the printTopic is empty add the currentTopic to printTopic
+            if (printTopic.isEmpty())
+                printTopic += currentTopic;
+            // Else if not empty add a comma break before adding currentTopic to printTopic
+            else if (!printTopic.isEmpty())
+                printTopic += ", " + currentTopic;
+
+            // Set record to a new Producer record with the currentTopic, user, and info
+            record = new ProducerRecord<>(currentTopic, user, info);
+            // Produce the message and send it out to be consumed elsewhere
+            sendAndWait(sender, record);
+        }
+        // Note the impossible travel so it's clear why a transaction made at home was suspicious
+        if (impossibleTravel)
+            printTopic += " (impossible travel)";
+        // Print out a formatted message to the console informing the banking-api what type of transaction each is
+        print(currentTopic, user, String.format("[%s] - [User: %s, Amount: %.2f, Loc: %s, Home: %s]",
+                printTopic, user, value, info.getTransactionLocation(),
+                CountryDictionary.shared().nameOf(residenceId)));
+    }
+
+    /**
+     * Takes in two parameters sender and record, sends the record and waits for the broker to acknowledge
+     * it, emitting a TransactionStageEvent for the "send-wait" stage. A failed send is left to the sender's retries.
+     * @param sender
+     * @param record
+     * @throws InterruptedException
+     */
+    private static void sendAndWait(RetryingSender<String, Transaction> sender,
+            ProducerRecord<String, Transaction> record) throws InterruptedException {
+        TransactionStageEvent event = new TransactionStageEvent();
+        event.begin();
+        RecordMetadata metadata = sender.sendAndWait(record);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = "send-wait";
+            event.topic = record.topic();
+            event.partition = metadata != null ? metadata.partition() : -1;
+            event.userHash = Objects.hashCode(record.key());
+            event.commit();
+        }
+    }
+
+    /**
+     * Takes in two parameters sender and record and sends the record without waiting for the broker, so
+     * bulk records can be batched (and, with the DualLaneProducer, sent through the throughput lane). Failures are
+     * handed to the sender's retries when the acknowledgement comes back.
+     * @param sender
+     * @param record
+     */
+    private static void sendInBulk(RetryingSender<String, Transaction> sender,
+                                   ProducerRecord<String, Transaction> record) {
+        TransactionStageEvent event = new TransactionStageEvent();
+        event.begin();
+        sender.send(record);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = "send";
+            event.topic = record.topic();
+            event.userHash = Objects.hashCode(record.key());
+            event.commit();
+        }
+    }
+
+    /**
+     * Takes in one parameter reader and closes it, printing any error instead of throwing it
+     * @param reader
+     */
+    private static void closeQuietly(IncomingTransactionsReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to close " + reader.getSource() + "]");
+        }
+    }
+
+    /**
+     * Takes in three parameters topic, user and message and prints the message to the console, emitting a
+     * TransactionStageEvent for the "print" stage.
+     * @param topic
+     * @param user
+     * @param message
+     */
+    private static void print(String topic, String user, String message) {
+        TransactionStageEvent event = new TransactionStageEvent();
+        event.begin();
+        System.out.println(message);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = "print";
+            event.topic = topic;
+            event.userHash = Objects.hashCode(user);
+            event.commit();
+        }
+    }
+
+    /**
+     * Takes in one parameter args and runs the traffic capture and replay tool:
+     * --capture <file> <seconds>          records the traffic of the TOPICS into the file for that many seconds
+     * --replay <file> <speed>             routes the captured transactions again through processTransactions
+     * --replay <file> <speed> --to-topics sends the captured records back to their topics for the consumers
+     * The speed is 1x for the captured pace, Nx for N times faster or max for as fast as possible.
+     * @param args
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void runTrafficTool(String[] args) throws ExecutionException, InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: --capture <file> <seconds> | --replay <file> <1x|Nx|max> [--to-topics]");
+            return;
+        }
+        Path file = Paths.get(args[1]);
+        // Try to capture or replay, catch IO Exceptions and print errors to console
+        try {
+            if (args[0].equals("--capture")) {
+                new TrafficCapture(BOOTSTRAP_SERVERS, TOPICS, file, Long.parseLong(args[2]) * 1000).run();
+                return;
+            }
+            TrafficReplay replay = new TrafficReplay(TrafficReplay.parseSpeed(args[2]));
+            long start = System.currentTimeMillis();
+            long replayed;
+            try (TrafficFile.Reader reader = new TrafficFile.Reader(file)) {
+                if (Arrays.asList(args).contains("--to-topics")) {
+                    Properties prop = new Properties();
+                    prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+                    prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+                    prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+                    try (Producer<byte[], byte[]> producer = new KafkaProducer<>(prop)) {
+                        replayed = replay.toTopics(reader, producer);
+                    }
+                } else {
+                    // Every transaction is on the valid or suspicious topic, the high-value copies are skipped
+                    try (Producer<String, Transaction> kafkaProducer =
+                                 new Application().createDualLaneProducer(BOOTSTRAP_SERVERS)) {
+                        CountingIterator transactions = new CountingIterator(replay.transactions(reader,
+                                TOPICS.get(2)));
+                        processTransactions(transactions, new TieredResidenceLookup(new CustomerAddressDatabase()),
+                                new ImpossibleTravelDetector(), kafkaProducer);
+                        replayed = transactions.count;
+                    }
+                }
             }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println(String.format("Replayed %d records in %.1f s (%.0f records/s)", replayed,
+                    elapsed / 1000.0, replayed * 1000.0 / elapsed));
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to read or write the traffic file " + file + "]");
+        }
+    }
 
-            // Checks for valid location in relation to userAddress
-            if (info.getTransactionLocation().equals(customerAddressDatabase.getUserResidence(user))) {
-                // Sets current topic to valid-transactions
-                currentTopic = TOPICS.get(0);
-                // If the printTopic is empty add the currentTopic to printTopic
-                if (printTopic.isEmpty())
-                    printTopic += currentTopic;
-                // Else if not empty add a comma break before adding currentTopic to printTopic
-                else if (!printTopic.isEmpty())
-                    printTopic += ", " + currentTopic;
-
-                // Set record to a new Producer record with the currentTopic, user, and info
-                record = new ProducerRecord<>(currentTopic, user, info);
-                // Produce the message and send it out to be consumed elsewhere
-                kafkaProducer.send(record).get();
-            } // Else if the user address does not match the transaction address mark as suspicious-transactions
-            else if (!info.getTransactionLocation().equals(customerAddressDatabase.getUserResidence(user))) {
-                // Sets current topic to suspicious-transactions
-                currentTopic = TOPICS.get(1);
-                // If the printTopic is empty add the currentTopic to printTopic
-                if (printTopic.isEmpty())
-                    printTopic += currentTopic;
-                // Else if not empty add a comma break before adding currentTopic to printTopic
-                else if (!printTopic.isEmpty())
-                    printTopic += ", " + currentTopic;
-
-                // Set record to a new Producer record with the currentTopic, user, and info
-                record = new ProducerRecord<>(currentTopic, user, info);
-                // Produce the message and send it out to be consumed elsewhere
-                kafkaProducer.send(record).get();
+    /**
+     * Takes in two parameters incomingTransactionsReader and customerAddressDatabase. Seeds the residences topic
+     * with every user of the customerAddressDatabase and the incoming topic with the transactions read, then runs
+     * the StreamsRoutingTopology until the process is stopped. The number of stream threads can be set with the
+     * streams.threads system property.
+     * @param incomingTransactionsReader
+     * @param customerAddressDatabase
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void runStreamsEngine(IncomingTransactionsReader incomingTransactionsReader,
+                                        CustomerAddressDatabase customerAddressDatabase)
+            throws ExecutionException, InterruptedException {
+        // Publish the residences the topology's GlobalKTable is built from
+        Properties residenceProp = new Properties();
+        residenceProp.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+        residenceProp.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        residenceProp.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        try (Producer<String, String> residenceProducer = new KafkaProducer<>(residenceProp)) {
+            for (Map.Entry<String, String> residence : customerAddressDatabase.getUserResidences().entrySet()) {
+                residenceProducer.send(new ProducerRecord<>(StreamsRoutingTopology.RESIDENCES_TOPIC,
+                        residence.getKey(), residence.getValue()));
+            }
+        }
+        // Publish the incoming transactions for the topology to route
+        try (Producer<String, Transaction> kafkaProducer = new Application().createKafkaProducer(BOOTSTRAP_SERVERS)) {
+            while (incomingTransactionsReader.hasNext()) {
+                Transaction info = incomingTransactionsReader.next();
+                kafkaProducer.send(new ProducerRecord<>(StreamsRoutingTopology.INCOMING_TOPIC, info.getUser(), info))
+                        .get();
             }
-            // Print out a formatted message to the console informing the banking-api what type of transaction each is
-            System.out.println(String.format("[%s] - [User: %s, Amount: %.2f, Loc: %s, Home: %s]",
-                    printTopic, user, value, info.getTransactionLocation(), customerAddressDatabase.getUserResidence(user)));
         }
+
+        Properties prop = new Properties();
+        prop.put(StreamsConfig.APPLICATION_ID_CONFIG, "banking-api-routing");
+        prop.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+        prop.put(StreamsConfig.NUM_STREAM_THREADS_CONFIG, Integer.getInteger("streams.threads", 3));
+        KafkaStreams streams = new KafkaStreams(StreamsRoutingTopology.build(), prop);
+        // Close the streams cleanly and let main return when the process is stopped
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            streams.close();
+            stopped.countDown();
+        }));
+        streams.start();
+        System.out.println("Routing transactions with the Kafka Streams engine");
+        stopped.await();
     }
 
     /**
-     * Takes in one parameter bootstrapServers. Creates a new Properties, prop, and adds the
-     * servers (ports), serializes the <Key, Value> pair, adds the Client I.D.
+     * Takes in one parameter bootstrapServers. Creates the producer Properties with producerProperties.
      * Returns a new KafkaProducer of type <String, Transaction> with the new Properties, prop.
      * @param bootstrapServers
      * @return
      */
     public Producer<String, Transaction> createKafkaProducer(String bootstrapServers) {
+        // Returns a new KafkaProducer made with the properties of producerProperties
+        return new KafkaProducer<String, Transaction>(producerProperties(bootstrapServers, "banking-api"));
+    }
+
+    /**
+     * Takes in one parameter bootstrapServers. Creates a DualLaneProducer made of two KafkaProducers, each with its
+     * own send buffer and I/O thread:
+     * - the priority lane for the high-value, suspicious and quarantine topics sends every record straight away
+     *   (linger.ms=0) in small batches, so customer alerts aren't held up
+     * - the bulk lane for valid-transactions lingers to fill large lz4 compressed batches
+     * The lanes report their records, errors and acknowledgement latency to METRICS.
+     * @param bootstrapServers
+     * @return
+     */
+    public Producer<String, Transaction> createDualLaneProducer(String bootstrapServers) {
+        Properties priorityProp = producerProperties(bootstrapServers, "banking-api-priority");
+        priorityProp.put(ProducerConfig.LINGER_MS_CONFIG, 0);
+        priorityProp.put(ProducerConfig.BATCH_SIZE_CONFIG, 4 * 1024);
+        priorityProp.put(ProducerConfig.ACKS_CONFIG, "all");
+
+        Properties bulkProp = producerProperties(bootstrapServers, "banking-api-bulk");
+        bulkProp.put(ProducerConfig.LINGER_MS_CONFIG, 20);
+        bulkProp.put(ProducerConfig.BATCH_SIZE_CONFIG, 256 * 1024);
+        bulkProp.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+        bulkProp.put(ProducerConfig.BUFFER_MEMORY_CONFIG, 64L * 1024 * 1024);
+
+        return new DualLaneProducer<>(new KafkaProducer<String, Transaction>(priorityProp),
+                new KafkaProducer<String, Transaction>(bulkProp),
+                Arrays.asList(TOPICS.get(1), TOPICS.get(2), QUARANTINE_TOPIC), METRICS);
+    }
+
+    /**
+     * Takes in two parameters bootstrapServers and clientId. Creates a new Properties, prop, and adds the
+     * servers (ports), serializes the <Key, Value> pair, adds the Client I.D. and the HotKeyPartitioner.
+     * The producer is idempotent, so retried sends are never written twice.
+     * @param bootstrapServers
+     * @param clientId
+     * @return
+     */
+    private static Properties producerProperties(String bootstrapServers, String clientId) {
         // Make a new Properties object called prop
         Properties prop = new Properties();
         // Set the properties servers (ports)
         prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         // Configure the Producer client I.D.
-        prop.put(ProducerConfig.CLIENT_ID_CONFIG, "banking-api");
+        prop.put(ProducerConfig.CLIENT_ID_CONFIG, clientId);
         // Serialize the Key (String)
         prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         // Serialize the Value (Transaction)
         prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, Transaction.TransactionSerializer.class.getName());
-        // Returns a new KafkaConsumer made with the properties we set in prop
-        return new KafkaProducer<String, Transaction>(prop);
+        // Track hot users and spread them where their consumers don't need them in order
+        prop.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, HotKeyPartitioner.class.getName());
+        prop.put(HotKeyPartitioner.SPREAD_TOPICS_CONFIG, SPREAD_TOPICS);
+        // Let the brokers drop duplicates of retried batches, which requires acknowledgement by all replicas
+        prop.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        prop.put(ProducerConfig.ACKS_CONFIG, "all");
+        prop.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 5);
+        return prop;
+    }
+
+    /**
+     * Iterator counting the transactions taken from the wrapped one
+     */
+    private static class CountingIterator implements Iterator<Transaction> {
+        private final Iterator<Transaction> transactions;
+        private long count;
+
+        private CountingIterator(Iterator<Transaction> transactions) {
+            this.transactions = transactions;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return transactions.hasNext();
+        }
+
+        @Override
+        public Transaction next() {
+            count++;
+            return transactions.next();
+        }
     }
 }
@@ -0,0 +1,110 @@
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Table of country (or region) centroids used to estimate the distance between two transaction locations.
+ * Locations are looked up by their CountryDictionary id, the one transactions carry on the wire, and the
+ * great-circle distance between every pair of locations is computed once when the table is loaded, so a distance
+ * lookup at runtime is two array reads.
+ */
+public class CountryCentroids {
+    private static final String DEFAULT_CENTROIDS_FILE = "country-centroids.txt";
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final CountryDictionary dictionary;
+    // Index in the table of every CountryDictionary id, -1 for ids without a centroid
+    private int[] indexById = new int[0];
+    private final float[][] distancesKm;
+
+    public CountryCentroids() {
+        this(DEFAULT_CENTROIDS_FILE);
+    }
+
+    public CountryCentroids(String centroidsFile) {
+        this(centroidsFile, CountryDictionary.shared());
+    }
+
+    /**
+     * Takes in two parameters centroidsFile and dictionary, which every location of the file must be in
+     * @param centroidsFile
+     * @param dictionary
+     */
+    public CountryCentroids(String centroidsFile, CountryDictionary dictionary) {
+        this.dictionary = dictionary;
+        List<double[]> centroids = loadCentroidsFromFile(centroidsFile);
+        int size = centroids.size();
+        this.distancesKm = new float[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                float distance = (float) haversineKm(centroids.get(i), centroids.get(j));
+                distancesKm[i][j] = distance;
+                distancesKm[j][i] = distance;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the location (or any alias of it) in the table, or -1 if the location is unknown
+     */
+    public int indexOf(String location) {
+        return indexOf(dictionary.idOf(location));
+    }
+
+    /**
+     * Returns the index in the table of the location with this CountryDictionary id, or -1 if it has no centroid
+     */
+    public int indexOf(int locationId) {
+        return locationId >= 0 && locationId < indexById.length ? indexById[locationId] : -1;
+    }
+
+    /**
+     * Returns the distance in kilometres between the centroids of two locations given by their index
+     */
+    public float distanceKm(int fromIndex, int toIndex) {
+        return distancesKm[fromIndex][toIndex];
+    }
+
+    public int size() {
+        return distancesKm.length;
+    }
+
+    private List<double[]> loadCentroidsFromFile(String centroidsFile) {
+        List<double[]> centroids = new ArrayList<>();
+
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(centroidsFile);
+
+        Scanner scanner = new Scanner(inputStream);
+
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] centroid = line.split(" ");
+            int id = dictionary.idOf(centroid[0]);
+            if (!dictionary.isStandard(id)) {
+                throw new IllegalStateException("centroid location isn't in the country dictionary: " + centroid[0]);
+            }
+            if (id >= indexById.length) {
+                int size = indexById.length;
+                indexById = Arrays.copyOf(indexById, Math.max(id + 1, size * 2));
+                Arrays.fill(indexById, size, indexById.length, -1);
+            }
+            indexById[id] = centroids.size();
+            centroids.add(new double[]{Math.toRadians(Double.parseDouble(centroid[1])),
+                    Math.toRadians(Double.parseDouble(centroid[2]))});
+        }
+        return centroids;
+    }
+
+    private static double haversineKm(double[] from, double[] to) {
+        double deltaLatitude = to[0] - from[0];
+        double deltaLongitude = to[1] - from[1];
+        double a = Math.pow(Math.sin(deltaLatitude / 2), 2)
+                + Math.cos(from[0]) * Math.cos(to[0]) * Math.pow(Math.sin(deltaLongitude / 2), 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(a));
+    }
+}
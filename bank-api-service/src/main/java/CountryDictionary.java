@@ -0,0 +1,255 @@
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical dictionary of the countries (and regions) transactions are made in. Every country has a compact numeric
+ * id, stable across services because it is what travels on the wire, and any number of aliases ("Eire", "IE",
+ * "republic of ireland"). Names are resolved through a trie over their letters and digits, ignoring case, spaces and
+ * punctuation, so resolving a name is one array walk without allocating. Comparing two locations is then a single
+ * integer comparison. Names that aren't in the dictionary get a process local id on {@link #intern}, which is never
+ * written to the wire; there are at most MAX_LOCAL_IDS of them, after that unknown names resolve to UNKNOWN.
+ */
+public class CountryDictionary {
+    public static final int UNKNOWN = 0;
+    private static final String DEFAULT_DICTIONARY_FILE = "country-dictionary.txt";
+    private static final int MAX_LOCAL_IDS = 10_000;
+    // Trie alphabet: a-z then 0-9
+    private static final int ALPHABET = 36;
+    // Symbols of characters that are ignored (spaces, punctuation) and of ones that can't be in a name (non ASCII)
+    private static final int SKIP = -1;
+    private static final int INVALID = -2;
+
+    // Children of node n are at children[n * ALPHABET + symbol], 0 meaning no child (the root is never a child)
+    private int[] children = new int[ALPHABET * 64];
+    // Id of the country whose name or alias ends at node n, UNKNOWN if none does
+    private int[] terminalIds = new int[64];
+    private int nodes = 1;
+
+    private final List<String> names = new ArrayList<>();
+    private final int maxStandardId;
+    private final Map<String, Integer> localIds = new ConcurrentHashMap<>();
+    private final List<String> localNames = Collections.synchronizedList(new ArrayList<>());
+
+    public CountryDictionary() {
+        this(DEFAULT_DICTIONARY_FILE);
+    }
+
+    public CountryDictionary(String dictionaryFile) {
+        names.add(null);
+        this.maxStandardId = loadDictionaryFromFile(dictionaryFile);
+    }
+
+    /**
+     * Returns the dictionary loaded from the default file, shared by the serializers of the service
+     * @return
+     */
+    public static CountryDictionary shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Takes in one parameter name and returns the id of the country it names or is an alias of, UNKNOWN when it
+     * isn't in the dictionary
+     * @param name
+     * @return
+     */
+    public int idOf(CharSequence name) {
+        if (name == null) {
+            return UNKNOWN;
+        }
+        int node = 0;
+        boolean empty = true;
+        for (int i = 0; i < name.length(); i++) {
+            int symbol = symbol(name.charAt(i));
+            if (symbol == SKIP) {
+                continue;
+            }
+            if (symbol == INVALID) {
+                return UNKNOWN;
+            }
+            node = children[node * ALPHABET + symbol];
+            if (node == 0) {
+                return UNKNOWN;
+            }
+            empty = false;
+        }
+        return empty ? UNKNOWN : terminalIds[node];
+    }
+
+    /**
+     * Takes in one parameter name and returns its id like idOf, except that names missing from the dictionary get
+     * a process local id, the same one for every spelling that only differs in case, spaces or punctuation
+     * @param name
+     * @return
+     */
+    public int intern(String name) {
+        int id = idOf(name);
+        if (id != UNKNOWN || name == null) {
+            return id;
+        }
+        String key = normalize(name);
+        if (key.isEmpty()) {
+            return UNKNOWN;
+        }
+        Integer localId = localIds.get(key);
+        if (localId != null) {
+            return localId;
+        }
+        synchronized (localNames) {
+            if (localNames.size() >= MAX_LOCAL_IDS) {
+                return UNKNOWN;
+            }
+            return localIds.computeIfAbsent(key, unused -> {
+                localNames.add(name);
+                return maxStandardId + localNames.size();
+            });
+        }
+    }
+
+    /**
+     * Takes in one parameter id and returns the canonical name of the country, or the first spelling seen of a
+     * local id. Returns null for UNKNOWN and ids that were never given out.
+     * @param id
+     * @return
+     */
+    public String nameOf(int id) {
+        if (id > UNKNOWN && id <= maxStandardId) {
+            return names.get(id);
+        }
+        int local = id - maxStandardId - 1;
+        return local >= 0 && local < localNames.size() ? localNames.get(local) : null;
+    }
+
+    /**
+     * Takes in one parameter name and returns the canonical name of the country, or the name itself when it isn't
+     * in the dictionary
+     * @param name
+     * @return
+     */
+    public String canonicalName(String name) {
+        int id = idOf(name);
+        return id == UNKNOWN ? name : names.get(id);
+    }
+
+    /**
+     * Returns true if the id belongs to the dictionary and may be written to the wire, false for UNKNOWN and local ids
+     * @param id
+     * @return
+     */
+    public boolean isStandard(int id) {
+        return id > UNKNOWN && id <= maxStandardId && names.get(id) != null;
+    }
+
+    /**
+     * Returns the number of countries in the dictionary
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (String name : names) {
+            if (name != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private int loadDictionaryFromFile(String dictionaryFile) {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(dictionaryFile);
+        if (inputStream == null) {
+            throw new IllegalStateException("country dictionary " + dictionaryFile + " not found");
+        }
+        Scanner scanner = new Scanner(inputStream, "UTF-8");
+        int maxId = UNKNOWN;
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] entry = line.split(",");
+            int id = Integer.parseInt(entry[0].trim());
+            if (id <= UNKNOWN) {
+                throw new IllegalStateException("country id must be positive: " + line);
+            }
+            while (names.size() <= id) {
+                names.add(null);
+            }
+            if (names.get(id) != null) {
+                throw new IllegalStateException("country id " + id + " is used twice");
+            }
+            names.set(id, entry[1].trim());
+            for (int i = 1; i < entry.length; i++) {
+                insert(entry[i], id);
+            }
+            maxId = Math.max(maxId, id);
+        }
+        return maxId;
+    }
+
+    private void insert(String name, int id) {
+        int node = 0;
+        for (int i = 0; i < name.length(); i++) {
+            int symbol = symbol(name.charAt(i));
+            if (symbol == SKIP) {
+                continue;
+            }
+            if (symbol == INVALID) {
+                throw new IllegalStateException("country names must be ASCII: " + name);
+            }
+            int child = children[node * ALPHABET + symbol];
+            if (child == 0) {
+                child = newNode();
+                children[node * ALPHABET + symbol] = child;
+            }
+            node = child;
+        }
+        if (node == 0) {
+            throw new IllegalStateException("empty country name for id " + id);
+        }
+        if (terminalIds[node] != UNKNOWN && terminalIds[node] != id) {
+            throw new IllegalStateException("country alias " + name + " is used by ids " + terminalIds[node]
+                    + " and " + id);
+        }
+        terminalIds[node] = id;
+    }
+
+    private int newNode() {
+        if (nodes == terminalIds.length) {
+            terminalIds = Arrays.copyOf(terminalIds, nodes * 2);
+            children = Arrays.copyOf(children, nodes * 2 * ALPHABET);
+        }
+        return nodes++;
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        }
+        return Character.isLetterOrDigit(c) ? INVALID : SKIP;
+    }
+
+    private static String normalize(String name) {
+        StringBuilder key = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                key.append(Character.toLowerCase(c));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Loads the shared dictionary the first time it is used
+     */
+    private static class Shared {
+        private static final CountryDictionary INSTANCE = new CountryDictionary();
+    }
+}
@@ -1,13 +1,15 @@
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
 
 /**
- * Mock database that contains a map from a user to its country of residence
+ * Mock database that contains a map from a user to its country of residence, normalized through the
+ * {@link CountryDictionary}
  */
-public class CustomerAddressDatabase {
+public class CustomerAddressDatabase implements ResidenceStore {
     private static final String DEFAULT_USER_RESIDENCE_FILE = "user-residence.txt";
     private final Map<String, String> userToResidenceMap;
     private final String userResidenceFile;
@@ -32,8 +34,31 @@ public class CustomerAddressDatabase {
         return userToResidenceMap.get(user);
     }
 
+    /**
+     * Returns every user with their country of residence
+     */
+    public Map<String, String> getUserResidences() {
+        return userToResidenceMap;
+    }
+
+    /**
+     * Returns the country of residence of every user in the batch that exists in the database
+     */
+    @Override
+    public Map<String, String> multiGet(Collection<String> users) {
+        Map<String, String> residences = new HashMap<>();
+        for (String user : users) {
+            String residence = userToResidenceMap.get(user);
+            if (residence != null) {
+                residences.put(user, residence);
+            }
+        }
+        return residences;
+    }
+
     private Map<String, String> loadUsersResidenceFromFile() {
         Map<String, String> userToResidence = new HashMap<>();
+        CountryDictionary countries = CountryDictionary.shared();
 
         InputStream inputStream = getClass().getClassLoader().getResourceAsStream(userResidenceFile);
 
@@ -42,7 +67,8 @@ public class CustomerAddressDatabase {
         while (scanner.hasNextLine()) {
             String line = scanner.nextLine();
             String []userResidencePair = line.split(" ");
-            userToResidence.put(userResidencePair[0], userResidencePair[1]);
+            // Store the canonical name of the country so every alias of it reads back the same
+            userToResidence.put(userResidencePair[0], countries.canonicalName(userResidencePair[1]));
         }
         return Collections.unmodifiableMap(userToResidence);
     }
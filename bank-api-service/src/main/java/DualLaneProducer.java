@@ -0,0 +1,162 @@
+import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Producer made of two independent producers (lanes), each with its own send buffer and I/O thread. Records of the
+ * priority topics go to the priority lane, tuned for latency, and everything else goes to the bulk lane, tuned for
+ * throughput, so a surge of bulk records can't queue up in front of the priority ones. Each lane counts its records
+ * and errors and measures the time from send to broker acknowledgement under its own metric names.
+ * Transactions aren't supported since a transaction can't span two producers.
+ */
+public class DualLaneProducer<K, V> implements Producer<K, V> {
+    private final Lane priority;
+    private final Lane bulk;
+    private final Set<String> priorityTopics;
+
+    /**
+     * Takes in four parameters priorityProducer, bulkProducer, priorityTopics, the topics sent through the
+     * priority lane, and metrics, where the lane metrics are registered.
+     * @param priorityProducer
+     * @param bulkProducer
+     * @param priorityTopics
+     * @param metrics
+     */
+    public DualLaneProducer(Producer<K, V> priorityProducer, Producer<K, V> bulkProducer,
+                            Collection<String> priorityTopics, ServiceMetrics metrics) {
+        this.priority = new Lane("priority", priorityProducer, metrics);
+        this.bulk = new Lane("bulk", bulkProducer, metrics);
+        this.priorityTopics = new HashSet<>(priorityTopics);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record) {
+        return send(record, null);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+        return laneOf(record.topic()).send(record, callback);
+    }
+
+    @Override
+    public void flush() {
+        // Flush the priority lane first so it's never stuck behind a large bulk flush
+        priority.producer.flush();
+        bulk.producer.flush();
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return laneOf(topic).producer.partitionsFor(topic);
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        // Client metrics are tagged with the client id, so the two lanes don't collide
+        Map<MetricName, Metric> metrics = new HashMap<>(priority.producer.metrics());
+        metrics.putAll(bulk.producer.metrics());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        priority.producer.close();
+        bulk.producer.close();
+    }
+
+    @Override
+    public void close(Duration timeout) {
+        priority.producer.close(timeout);
+        bulk.producer.close(timeout);
+    }
+
+    @Override
+    public void initTransactions() {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    @Override
+    public void beginTransaction() {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    @Override
+    public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId) {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    @Override
+    public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets,
+                                         ConsumerGroupMetadata groupMetadata) {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    @Override
+    public void commitTransaction() {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    @Override
+    public void abortTransaction() {
+        throw new UnsupportedOperationException("Transactions can't span the two lanes of a DualLaneProducer");
+    }
+
+    /**
+     * Returns true if records of the topic are sent through the priority lane
+     * @param topic
+     * @return
+     */
+    public boolean isPriority(String topic) {
+        return priorityTopics.contains(topic);
+    }
+
+    private Lane laneOf(String topic) {
+        return isPriority(topic) ? priority : bulk;
+    }
+
+    /**
+     * One producer with the sensors measuring it
+     */
+    private class Lane {
+        private final Producer<K, V> producer;
+        private final Sensor records;
+        private final Sensor errors;
+        private final Sensor ackLatency;
+
+        private Lane(String name, Producer<K, V> producer, ServiceMetrics metrics) {
+            this.producer = producer;
+            this.records = metrics.counter(name + "-lane-records", "Records sent through the " + name + " lane");
+            this.errors = metrics.counter(name + "-lane-errors", "Failed sends of the " + name + " lane");
+            this.ackLatency = metrics.latency(name + "-lane-ack-latency-ms",
+                    "Milliseconds from send to broker acknowledgement in the " + name + " lane");
+        }
+
+        private Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+            long start = System.nanoTime();
+            records.record();
+            return producer.send(record, (metadata, exception) -> {
+                if (exception != null) {
+                    errors.record();
+                } else {
+                    ackLatency.record((System.nanoTime() - start) / 1_000_000.0);
+                }
+                if (callback != null) {
+                    callback.onCompletion(metadata, exception);
+                }
+            });
+        }
+    }
+}
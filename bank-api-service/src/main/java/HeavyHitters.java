@@ -0,0 +1,160 @@
+import java.util.*;
+
+/**
+ * Streaming heavy-hitters sketch (Space-Saving). Keeps at most capacity counters in an indexed min-heap, so counting a
+ * key is O(log capacity) and the memory doesn't grow with the number of distinct keys. A key that isn't tracked takes
+ * over the counter of the least frequent tracked key, inheriting its count as the error bound, so every key with a
+ * frequency above total / capacity is guaranteed to be tracked. Counts are halved every window records, which lets
+ * keys that stopped being hot fall out again.
+ */
+public class HeavyHitters {
+    private final int capacity;
+    private final long window;
+
+    // Min-heap of counters ordered by count, position holds where each key is in the heap
+    private final String[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<String, Integer> position = new HashMap<>();
+    private int size;
+    private long total;
+
+    /**
+     * Takes in two parameters capacity, the number of keys tracked, and window, the number of records after which
+     * the counts are halved.
+     * @param capacity
+     * @param window
+     */
+    public HeavyHitters(int capacity, long window) {
+        this.capacity = capacity;
+        this.window = window;
+        this.keys = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+    }
+
+    /**
+     * Takes in one parameter key, counts one occurrence of it and returns its estimated count
+     * @param key
+     * @return
+     */
+    public synchronized long add(String key) {
+        if (++total > window) {
+            decay();
+        }
+        Integer index = position.get(key);
+        if (index != null) {
+            counts[index]++;
+            return counts[siftDown(index)];
+        }
+        if (size < capacity) {
+            keys[size] = key;
+            counts[size] = 1;
+            errors[size] = 0;
+            position.put(key, size);
+            return counts[siftUp(size++)];
+        }
+        // Replace the least frequent key, the new key may have occurred up to that many times already
+        position.remove(keys[0]);
+        keys[0] = key;
+        errors[0] = counts[0];
+        counts[0]++;
+        position.put(key, 0);
+        return counts[siftDown(0)];
+    }
+
+    /**
+     * Returns the estimated share (0 to 1) of the records counted in the current window that had this key
+     * @param key
+     * @return
+     */
+    public synchronized double share(String key) {
+        Integer index = position.get(key);
+        return index == null || total == 0 ? 0 : (double) counts[index] / total;
+    }
+
+    /**
+     * Returns the tracked keys whose estimated share is at least minShare, most frequent first
+     * @param minShare
+     * @return
+     */
+    public synchronized List<Map.Entry<String, Double>> top(double minShare) {
+        List<Map.Entry<String, Double>> top = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            double share = total == 0 ? 0 : (double) counts[i] / total;
+            if (share >= minShare) {
+                top.add(new AbstractMap.SimpleImmutableEntry<>(keys[i], share));
+            }
+        }
+        top.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        return top;
+    }
+
+    /**
+     * Returns the upper bound of how much the count of the key may be overestimated, 0 when it isn't tracked
+     * @param key
+     * @return
+     */
+    public synchronized long error(String key) {
+        Integer index = position.get(key);
+        return index == null ? 0 : errors[index];
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    private void decay() {
+        // Halving every count keeps the heap order, so no re-heapify is needed
+        for (int i = 0; i < size; i++) {
+            counts[i] /= 2;
+            errors[i] /= 2;
+        }
+        total /= 2;
+    }
+
+    private int siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (counts[parent] <= counts[index]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+        return index;
+    }
+
+    private int siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return index;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        long error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        position.put(keys[i], i);
+        position.put(keys[j], j);
+    }
+}
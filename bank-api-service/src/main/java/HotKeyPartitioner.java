@@ -0,0 +1,204 @@
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.utils.Utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Skew-aware replacement for the default partitioner. The frequency of the keys of each topic is tracked with a
+ * {@link HeavyHitters} sketch, and keys are otherwise partitioned exactly like the default partitioner (murmur2 of
+ * the key), so the partition of a normal key doesn't change.
+ * - On the topics listed in hot-key.spread.topics the order per key doesn't matter to the consumers, so the records
+ *   of hot keys (more than hot-key.threshold of the topic's records) are spread round-robin over all partitions.
+ * - On every other topic the order per user is kept. The partitioner only measures the skew (busiest partition's load
+ *   over the mean load) and, when it passes hot-key.skew.warning, prints rebalance advice naming the hot keys.
+ * The skew, hot key count and spread records are published as metrics under the
+ * banking-api-partitioner-{@code <client.id>} group.
+ */
+public class HotKeyPartitioner implements Partitioner {
+    public static final String SPREAD_TOPICS_CONFIG = "hot-key.spread.topics";
+    public static final String THRESHOLD_CONFIG = "hot-key.threshold";
+    public static final String SKEW_WARNING_CONFIG = "hot-key.skew.warning";
+    public static final String SKETCH_CAPACITY_CONFIG = "hot-key.sketch.capacity";
+    public static final String WINDOW_CONFIG = "hot-key.window";
+    private static final long ADVICE_INTERVAL_MILLIS = 60_000;
+
+    private final Map<String, TopicState> topics = new ConcurrentHashMap<>();
+    private Set<String> spreadTopics = Collections.emptySet();
+    private double threshold = 0.01;
+    private double skewWarning = 1.5;
+    private int sketchCapacity = 1000;
+    private long window = 100_000;
+    private ServiceMetrics metrics;
+    private Sensor spreadRecords;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object spread = configs.get(SPREAD_TOPICS_CONFIG);
+        if (spread != null && !spread.toString().isEmpty()) {
+            spreadTopics = new HashSet<>(Arrays.asList(spread.toString().split(",")));
+        }
+        threshold = doubleConfig(configs, THRESHOLD_CONFIG, threshold);
+        skewWarning = doubleConfig(configs, SKEW_WARNING_CONFIG, skewWarning);
+        sketchCapacity = (int) doubleConfig(configs, SKETCH_CAPACITY_CONFIG, sketchCapacity);
+        window = (long) doubleConfig(configs, WINDOW_CONFIG, window);
+        // One partitioner per producer, keep the metrics of each producer apart
+        Object clientId = configs.get(ProducerConfig.CLIENT_ID_CONFIG);
+        metrics = new ServiceMetrics(clientId == null ? "banking-api-partitioner"
+                : "banking-api-partitioner-" + clientId);
+        spreadRecords = metrics.counter("hot-key-spread-records", "Records of hot keys spread over all partitions");
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes,
+                         Cluster cluster) {
+        List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
+        int numPartitions = partitions.size();
+        if (keyBytes == null) {
+            // No key to keep in order, just round-robin
+            return topicState(topic).nextPartition(numPartitions);
+        }
+        int partition = Utils.toPositive(Utils.murmur2(keyBytes)) % numPartitions;
+        TopicState state = topicState(topic);
+        String user = key.toString();
+        if (spreadTopics.contains(topic) && state.isHot(user)) {
+            partition = state.nextPartition(numPartitions);
+            spreadRecords.record();
+        }
+        state.record(user, partition, numPartitions);
+        return partition;
+    }
+
+    /**
+     * Returns the load of the busiest partition of the topic over the mean load, 1.0 being perfectly even
+     * @param topic
+     * @return
+     */
+    public double skew(String topic) {
+        TopicState state = topics.get(topic);
+        return state == null ? 1.0 : state.skew();
+    }
+
+    /**
+     * Returns the keys of the topic currently above the hot key threshold with their share of the records
+     * @param topic
+     * @return
+     */
+    public List<Map.Entry<String, Double>> hotKeys(String topic) {
+        TopicState state = topics.get(topic);
+        return state == null ? Collections.emptyList() : state.sketch.top(threshold);
+    }
+
+    /**
+     * Returns the last rebalance advice given for the topic, or null if there wasn't any
+     * @param topic
+     * @return
+     */
+    public String advice(String topic) {
+        TopicState state = topics.get(topic);
+        return state == null ? null : state.advice;
+    }
+
+    @Override
+    public void close() {
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
+    private TopicState topicState(String topic) {
+        return topics.computeIfAbsent(topic, name -> {
+            TopicState state = new TopicState(name);
+            metrics.gauge("partition-skew-" + name, "Busiest partition's load over the mean load", state::skew);
+            metrics.gauge("hot-keys-" + name, "Keys above the hot key threshold", () -> state.sketch.top(threshold).size());
+            return state;
+        });
+    }
+
+    private static double doubleConfig(Map<String, ?> configs, String name, double defaultValue) {
+        Object value = configs.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value.toString());
+    }
+
+    /**
+     * Key frequencies and per partition record counts of one topic
+     */
+    private class TopicState {
+        private final String topic;
+        private final HeavyHitters sketch = new HeavyHitters(sketchCapacity, window);
+        private final AtomicInteger roundRobin = new AtomicInteger();
+        private long[] partitionCounts = new long[0];
+        private long recorded;
+        private long lastAdviceMillis;
+        private volatile String advice;
+
+        private TopicState(String topic) {
+            this.topic = topic;
+        }
+
+        private boolean isHot(String user) {
+            // Don't judge on the first few records, every key would look hot
+            return sketch.getTotal() >= sketchCapacity && sketch.share(user) > threshold;
+        }
+
+        private int nextPartition(int numPartitions) {
+            return Utils.toPositive(roundRobin.getAndIncrement()) % numPartitions;
+        }
+
+        private synchronized void record(String user, int partition, int numPartitions) {
+            sketch.add(user);
+            if (partitionCounts.length != numPartitions) {
+                partitionCounts = Arrays.copyOf(partitionCounts, numPartitions);
+            }
+            partitionCounts[partition]++;
+            // Decay the partition counts with the same window as the sketch
+            if (++recorded >= window) {
+                for (int i = 0; i < partitionCounts.length; i++) {
+                    partitionCounts[i] /= 2;
+                }
+                recorded /= 2;
+            }
+            if (!spreadTopics.contains(topic)) {
+                maybeAdvise();
+            }
+        }
+
+        private synchronized double skew() {
+            long max = 0;
+            long sum = 0;
+            for (long count : partitionCounts) {
+                max = Math.max(max, count);
+                sum += count;
+            }
+            return sum == 0 ? 1.0 : (double) max * partitionCounts.length / sum;
+        }
+
+        private void maybeAdvise() {
+            long now = System.currentTimeMillis();
+            // Wait for enough records to judge and don't flood the console
+            if (recorded < sketchCapacity || now - lastAdviceMillis < ADVICE_INTERVAL_MILLIS) {
+                return;
+            }
+            double skew = skew();
+            if (skew < skewWarning) {
+                return;
+            }
+            lastAdviceMillis = now;
+            StringBuilder hotKeys = new StringBuilder();
+            for (Map.Entry<String, Double> hotKey : sketch.top(threshold)) {
+                hotKeys.append(hotKeys.length() == 0 ? "" : ", ")
+                        .append(String.format("%s %.1f%%", hotKey.getKey(), hotKey.getValue() * 100));
+            }
+            advice = String.format("PARTITION-SKEW - [%s: busiest partition takes %.1fx the mean load, hot keys: %s. "
+                            + "Per-user order is kept on this topic, so give the consumer of that partition more "
+                            + "capacity, or list the topic in %s if its consumers don't need the order]",
+                    topic, skew, hotKeys.length() == 0 ? "none" : hotKeys, SPREAD_TOPICS_CONFIG);
+            System.out.println(advice);
+        }
+    }
+}
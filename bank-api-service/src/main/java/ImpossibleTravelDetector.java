@@ -0,0 +1,160 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stateful "impossible travel" check. Keeps each user's last transaction location and time and flags a transaction
+ * when getting from the last location to the new one would need a speed no traveller can reach. The state is a
+ * bounded LRU map holding one packed long per user (location index in the top 16 bits, epoch milliseconds in the
+ * low 48 bits), so memory stays fixed however many users there are and the least recently active users are evicted.
+ * The check compares event times, when each transaction was made. Processing times would flag any two transactions
+ * of a user far apart that are merely routed close together (a file read in batches, a replay at full speed), so
+ * transactions without an event time (Transaction.NO_TIMESTAMP) are never flagged and leave the state unchanged.
+ * The state can be kept elsewhere through {@link LastSeen}, e.g. in a state store of the Kafka Streams engine.
+ */
+public class ImpossibleTravelDetector {
+    public static final int DEFAULT_MAX_USERS = 1_000_000;
+    // Faster than a commercial flight including getting to and from the airports
+    private static final double DEFAULT_MAX_SPEED_KMH = 1000.0;
+    // Centroids are only approximate, so short hops such as across a border are never flagged
+    private static final double DEFAULT_MIN_DISTANCE_KM = 500.0;
+    private static final long TIMESTAMP_MASK = (1L << 48) - 1;
+    private static final double MILLIS_PER_HOUR = 3_600_000.0;
+
+    private final CountryCentroids centroids;
+    private final double maxSpeedKmh;
+    private final double minDistanceKm;
+    private final LastSeen lastSeen;
+
+    public ImpossibleTravelDetector() {
+        this(new CountryCentroids(), DEFAULT_MAX_USERS, DEFAULT_MAX_SPEED_KMH, DEFAULT_MIN_DISTANCE_KM);
+    }
+
+    public ImpossibleTravelDetector(CountryCentroids centroids, int maxUsers, double maxSpeedKmh,
+                                    double minDistanceKm) {
+        this(centroids, maxSpeedKmh, minDistanceKm, new RecentUsers(maxUsers));
+    }
+
+    /**
+     * Takes in two parameters centroids and lastSeen, where the state of every user is kept, and uses the default
+     * speed and distance limits
+     * @param centroids
+     * @param lastSeen
+     */
+    public ImpossibleTravelDetector(CountryCentroids centroids, LastSeen lastSeen) {
+        this(centroids, DEFAULT_MAX_SPEED_KMH, DEFAULT_MIN_DISTANCE_KM, lastSeen);
+    }
+
+    public ImpossibleTravelDetector(CountryCentroids centroids, double maxSpeedKmh, double minDistanceKm,
+                                    LastSeen lastSeen) {
+        this.centroids = centroids;
+        this.maxSpeedKmh = maxSpeedKmh;
+        this.minDistanceKm = minDistanceKm;
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * Takes in three parameters user, locationId, the CountryDictionary id of the location, and timestampMillis, the
+     * event time of the transaction. Records the transaction as the user's latest one unless an event later than
+     * it was already seen, and returns true if it couldn't physically have been made within the time between it and
+     * the user's latest transaction. Locations missing from the centroid
+     * table and transactions without an event time are never flagged.
+     * @param user
+     * @param locationId
+     * @param timestampMillis
+     * @return
+     */
+    public boolean isImpossibleTravel(String user, int locationId, long timestampMillis) {
+        return check(user, centroids.indexOf(locationId), timestampMillis);
+    }
+
+    /**
+     * Takes in three parameters user, location, a location name, and timestampMillis, like isImpossibleTravel above
+     * @param user
+     * @param location
+     * @param timestampMillis
+     * @return
+     */
+    public boolean isImpossibleTravel(String user, String location, long timestampMillis) {
+        return check(user, centroids.indexOf(location), timestampMillis);
+    }
+
+    private synchronized boolean check(String user, int locationIndex, long timestampMillis) {
+        if (locationIndex < 0 || timestampMillis == Transaction.NO_TIMESTAMP) {
+            return false;
+        }
+        Long previous = lastSeen.get(user);
+        if (previous == null) {
+            lastSeen.put(user, pack(locationIndex, timestampMillis));
+            return false;
+        }
+        int previousIndex = (int) (previous >>> 48);
+        long previousTimestamp = previous & TIMESTAMP_MASK;
+        // A late transaction is still checked against the latest one but mustn't roll the user's state back
+        if (timestampMillis >= previousTimestamp) {
+            lastSeen.put(user, pack(locationIndex, timestampMillis));
+        }
+        double distanceKm = centroids.distanceKm(previousIndex, locationIndex);
+        if (distanceKm < minDistanceKm) {
+            return false;
+        }
+        // Late transactions are as far from the latest one as on time ones, and the same millisecond counts as one
+        long elapsedMillis = Math.max(1, Math.abs(timestampMillis - previousTimestamp));
+        return distanceKm / (elapsedMillis / MILLIS_PER_HOUR) > maxSpeedKmh;
+    }
+
+    public synchronized int size() {
+        return lastSeen.size();
+    }
+
+    /**
+     * The last location and time of every user, packed into one long per user
+     */
+    public interface LastSeen {
+        /**
+         * Returns the packed state of the user, or null if the user wasn't seen
+         * @param user
+         * @return
+         */
+        Long get(String user);
+
+        void put(String user, long packed);
+
+        int size();
+    }
+
+    /**
+     * In-memory LastSeen holding at most maxUsers users
+     */
+    private static class RecentUsers implements LastSeen {
+        private final Map<String, Long> users;
+
+        private RecentUsers(int maxUsers) {
+            // Access ordered LinkedHashMap evicts the user that transacted least recently once maxUsers is exceeded
+            this.users = new LinkedHashMap<>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > maxUsers;
+                }
+            };
+        }
+
+        @Override
+        public Long get(String user) {
+            return users.get(user);
+        }
+
+        @Override
+        public void put(String user, long packed) {
+            users.put(user, packed);
+        }
+
+        @Override
+        public int size() {
+            return users.size();
+        }
+    }
+
+    private static long pack(int locationIndex, long timestampMillis) {
+        return ((long) locationIndex << 48) | (timestampMillis & TIMESTAMP_MASK);
+    }
+}
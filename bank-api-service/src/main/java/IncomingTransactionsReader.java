@@ -1,49 +1,148 @@
-import java.io.InputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.*;
 
 /**
- * Mocks an HTTP server that receives purchase transactions in real time
+ * Mocks an HTTP server that receives purchase transactions in real time. The transactions are read one line at a
+ * time from a file on disk, or from the classpath when there is no such file, keeping track of the byte offset just
+ * past the last transaction handed out. A reader can be started at such an offset to resume after a restart.
+ * A line is "user location amount", optionally followed by the time the transaction was made, as epoch
+ * milliseconds or an ISO-8601 instant. Transactions without it have no event time (Transaction.NO_TIMESTAMP).
  */
-public class IncomingTransactionsReader implements Iterator<Transaction> {
+public class IncomingTransactionsReader implements Iterator<Transaction>, Closeable {
     private static final String DEFAULT_INPUT_TRANSACTIONS_FILE = "user-transactions.txt";
-    private final List<Transaction> transactions;
-    private final Iterator<Transaction> transactionIterator;
     private final String transactionsFile;
+    private final InputStream inputStream;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    // Offset just past the last transaction returned by next, and just past the line read ahead by hasNext
+    private long offset;
+    private long readOffset;
+    private Transaction nextTransaction;
 
     public IncomingTransactionsReader(){
         this(DEFAULT_INPUT_TRANSACTIONS_FILE);
     }
 
     public IncomingTransactionsReader(String transactionsFile){
-        this.transactionsFile = transactionsFile;
-        this.transactions = loadTransactions();
-        this.transactionIterator = transactions.iterator();
+        this(transactionsFile, 0);
     }
 
-    private List<Transaction> loadTransactions() {
-        InputStream inputStream = getClass().getClassLoader().getResourceAsStream(transactionsFile);
-
-        Scanner scanner = new Scanner(inputStream);
-        List<Transaction> transactions = new ArrayList<>();
+    /**
+     * Takes in two parameters transactionsFile and startOffset, the byte offset of the first line to read. A file on
+     * disk is seeked to the offset straight away, a classpath resource skips to it.
+     * @param transactionsFile
+     * @param startOffset
+     */
+    public IncomingTransactionsReader(String transactionsFile, long startOffset) {
+        this.transactionsFile = transactionsFile;
+        this.inputStream = new BufferedInputStream(open(transactionsFile, startOffset));
+        this.offset = startOffset;
+        this.readOffset = startOffset;
+    }
 
-        while (scanner.hasNextLine()) {
-            String[] transaction = scanner.nextLine().split(" ");
-            String user = transaction[0];
-            String transactionLocation = transaction[1];
-            double amount = Double.valueOf(transaction[2]);
-            transactions.add(new Transaction(user, amount, transactionLocation));
-        }
+    /**
+     * Returns the name of the file the transactions are read from
+     * @return
+     */
+    public String getSource() {
+        return transactionsFile;
+    }
 
-        return Collections.unmodifiableList(transactions);
+    /**
+     * Returns the byte offset just past the last transaction returned by next, where a new reader would resume
+     * @return
+     */
+    public long getOffset() {
+        return offset;
     }
 
     @Override
     public boolean hasNext() {
-        return transactionIterator.hasNext();
+        while (nextTransaction == null) {
+            String text = readLine();
+            if (text == null) {
+                return false;
+            }
+            if (!text.isBlank()) {
+                String[] transaction = text.split(" ");
+                String user = transaction[0];
+                String transactionLocation = transaction[1];
+                double amount = Double.valueOf(transaction[2]);
+                nextTransaction = new Transaction(user, amount, transactionLocation);
+                if (transaction.length > 3) {
+                    nextTransaction.setTimestamp(parseTimestamp(transaction[3]));
+                }
+            }
+        }
+        return true;
     }
 
     @Override
     public Transaction next() {
-        return transactionIterator.next();
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Transaction transaction = nextTransaction;
+        nextTransaction = null;
+        offset = readOffset;
+        return transaction;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private static long parseTimestamp(String timestamp) {
+        return timestamp.indexOf('T') >= 0 ? Instant.parse(timestamp).toEpochMilli() : Long.parseLong(timestamp);
+    }
+
+    private String readLine() {
+        line.reset();
+        try {
+            int b;
+            while ((b = inputStream.read()) != -1) {
+                readOffset++;
+                if (b == '\n') {
+                    return line.toString(StandardCharsets.UTF_8).stripTrailing();
+                }
+                line.write(b);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + transactionsFile, e);
+        }
+        // The last line may not end with a newline
+        return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+    }
+
+    private InputStream open(String file, long startOffset) {
+        try {
+            Path path = Paths.get(file);
+            InputStream stream;
+            if (Files.isRegularFile(path)) {
+                stream = Files.newInputStream(path);
+            } else {
+                stream = getClass().getClassLoader().getResourceAsStream(file);
+                if (stream == null) {
+                    throw new FileNotFoundException(file);
+                }
+            }
+            // Skipping a file stream moves its position without reading the skipped bytes
+            long remaining = startOffset;
+            while (remaining > 0) {
+                long skipped = stream.skip(remaining);
+                if (skipped <= 0) {
+                    break;
+                }
+                remaining -= skipped;
+            }
+            return stream;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open " + file, e);
+        }
     }
 }
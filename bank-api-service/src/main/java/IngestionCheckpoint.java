@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Remembers how far the input of the banking-api has been routed, so a restart resumes there instead of from the
+ * start. The position is the byte offset in the input file (it would be the id of the last acknowledged request for
+ * network ingestion) and is only saved once every transaction before it has been acknowledged by the brokers. Saves
+ * are at most one per interval, so after a crash at most one interval of transactions is routed again.
+ * The checkpoint is replaced atomically, a crash while saving leaves the previous one in place.
+ */
+public class IngestionCheckpoint {
+    private final Path file;
+    private final long intervalMillis;
+    private long lastSaveMillis;
+    private volatile long savedPosition;
+
+    /**
+     * Takes in two parameters file, where the checkpoint is kept, and intervalMillis, the least time between two
+     * saves made with maybeSave
+     * @param file
+     * @param intervalMillis
+     */
+    public IngestionCheckpoint(Path file, long intervalMillis) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Takes in one parameter source and returns the saved position of that source, 0 when there is no checkpoint
+     * or it belongs to another source
+     * @param source
+     * @return
+     */
+    public long load(String source) {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            checkpoint.load(inputStream);
+            if (!source.equals(checkpoint.getProperty("source"))) {
+                return 0;
+            }
+            savedPosition = Long.parseLong(checkpoint.getProperty("position", "0"));
+            return savedPosition;
+        } catch (IOException | NumberFormatException e) {
+            // Start over rather than refuse to start
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to read the ingestion checkpoint " + file + "]");
+            return 0;
+        }
+    }
+
+    /**
+     * Takes in two parameters source and position and saves them if the interval passed since the last save
+     * @param source
+     * @param position
+     */
+    public void maybeSave(String source, long position) {
+        if (System.currentTimeMillis() - lastSaveMillis >= intervalMillis) {
+            save(source, position);
+        }
+    }
+
+    /**
+     * Takes in two parameters source and position and saves them. Every transaction before the position must have
+     * been acknowledged.
+     * @param source
+     * @param position
+     */
+    public void save(String source, long position) {
+        if (position == savedPosition) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("source", source);
+        checkpoint.setProperty("position", String.valueOf(position));
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                checkpoint.store(outputStream, "banking-api ingestion checkpoint");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedPosition = position;
+            lastSaveMillis = System.currentTimeMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to save the ingestion checkpoint " + file + "]");
+        }
+    }
+
+    public long getSavedPosition() {
+        return savedPosition;
+    }
+}
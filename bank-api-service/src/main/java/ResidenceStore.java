@@ -0,0 +1,17 @@
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Backing store of customer residences that the {@link TieredResidenceLookup} reads through to on a cache miss.
+ * Implementations may be remote (a database or key-value service) so lookups are always made in batches.
+ */
+public interface ResidenceStore {
+
+    /**
+     * Takes in a collection of users and returns a map from each known user to their country of residence.
+     * Users that do not exist in the store are simply left out of the returned map.
+     * @param users
+     * @return
+     */
+    Map<String, String> multiGet(Collection<String> users);
+}
@@ -0,0 +1,264 @@
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends records for the routing loop without letting a failed send stop it. A record whose send fails with a
+ * retriable error is sent again after the delay of the next retry tier (e.g. 1s, 30s and 5m) from a scheduler
+ * thread, while the routing loop carries on with the next transaction. Once every tier failed, or straight away for
+ * errors that retrying can't fix, the record is sent to the dead-letter topic with its original topic, the attempts
+ * and the error as headers. Records whose dead-letter send failed as well are counted as lost.
+ * Retry and dead-letter volumes are published as send-retries, send-retries-recovered, dead-letter-records and
+ * lost-records.
+ */
+public class RetryingSender<K, V> implements AutoCloseable {
+    // Header names shared with the RetryTopics of the consumer services
+    static final String ATTEMPT_HEADER = "retry.attempt";
+    static final String ERROR_HEADER = "retry.error";
+    static final String ORIGINAL_TOPIC_HEADER = "retry.original.topic";
+    // How long close waits for scheduled retries before dead-lettering them
+    private static final long DRAIN_MILLIS = Long.getLong("producer.retry.drain.ms", 60_000);
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private final Producer<K, V> producer;
+    private final String deadLetterTopic;
+    private final List<Long> delays = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final Set<ScheduledRetry> scheduled = ConcurrentHashMap.newKeySet();
+    // Records that failed once and aren't acknowledged, dead-lettered or lost yet
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong lost = new AtomicLong();
+    private final Sensor retried;
+    private final Sensor recovered;
+    private final Sensor deadLettered;
+    private final Sensor lostRecords;
+
+    /**
+     * Takes in four parameters producer, deadLetterTopic, delays, the delay of each retry tier, and metrics
+     * @param producer
+     * @param deadLetterTopic
+     * @param delays
+     * @param metrics
+     */
+    public RetryingSender(Producer<K, V> producer, String deadLetterTopic, List<Duration> delays,
+                          ServiceMetrics metrics) {
+        this.producer = producer;
+        this.deadLetterTopic = deadLetterTopic;
+        for (Duration delay : delays) {
+            this.delays.add(delay.toMillis());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "send-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retried = metrics.counter("send-retries", "Failed sends scheduled to be retried");
+        this.recovered = metrics.counter("send-retries-recovered", "Records acknowledged after a retry");
+        this.deadLettered = metrics.counter("dead-letter-records", "Records sent to " + deadLetterTopic);
+        this.lostRecords = metrics.counter("lost-records", "Records that couldn't be sent to the dead-letter topic");
+    }
+
+    /**
+     * Takes in one parameter delays, a comma separated list like 1s,30s,5m (ms, s, m and h are understood), and
+     * returns the delays of the retry tiers. The consumer services' RetryTopics.parseDelays reads the same format,
+     * change both together.
+     * @param delays
+     * @return
+     */
+    public static List<Duration> parseDelays(String delays) {
+        List<Duration> parsed = new ArrayList<>();
+        for (String delay : delays.split(",")) {
+            delay = delay.trim();
+            if (delay.isEmpty()) {
+                continue;
+            }
+            int unit = delay.length() - (delay.endsWith("ms") ? 2 : 1);
+            long amount = Long.parseLong(delay.substring(0, unit));
+            switch (delay.substring(unit)) {
+                case "ms":
+                    parsed.add(Duration.ofMillis(amount));
+                    break;
+                case "s":
+                    parsed.add(Duration.ofSeconds(amount));
+                    break;
+                case "m":
+                    parsed.add(Duration.ofMinutes(amount));
+                    break;
+                case "h":
+                    parsed.add(Duration.ofHours(amount));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown unit in retry delay " + delay);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Takes in one parameter record, sends it and waits for the acknowledgement. Returns its metadata, or null when
+     * the send failed and the record was handed to the retries.
+     * @param record
+     * @return
+     * @throws InterruptedException
+     */
+    public RecordMetadata sendAndWait(ProducerRecord<K, V> record) throws InterruptedException {
+        try {
+            return producer.send(record).get();
+        } catch (ExecutionException e) {
+            failed(record, 0, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Takes in one parameter record and sends it without waiting, a failure is handed to the retries when the
+     * acknowledgement comes back
+     * @param record
+     */
+    public void send(ProducerRecord<K, V> record) {
+        send(record, 0);
+    }
+
+    /**
+     * Returns the number of records that failed and are still being retried or dead-lettered
+     * @return
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of records that couldn't be sent to the dead-letter topic either
+     * @return
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Waits up to producer.retry.drain.ms for the scheduled retries, then dead-letters the ones still waiting
+     */
+    @Override
+    public void close() {
+        close(DRAIN_MILLIS);
+    }
+
+    /**
+     * Takes in one parameter drainMillis, how long to wait for the scheduled retries before dead-lettering the ones
+     * still waiting, and stops the scheduler. Returns once every record is acknowledged, dead-lettered or lost.
+     * @param drainMillis
+     */
+    void close(long drainMillis) {
+        long deadline = System.currentTimeMillis() + drainMillis;
+        try {
+            while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+                producer.flush();
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdownNow();
+        for (ScheduledRetry retry : scheduled) {
+            if (scheduled.remove(retry)) {
+                deadLetter(retry.record, retry.attempt, "not retried before shutdown after: " + retry.error);
+            }
+        }
+        producer.flush();
+    }
+
+    private void send(ProducerRecord<K, V> record, int attempt) {
+        producer.send(record, (metadata, exception) -> {
+            if (exception != null) {
+                failed(record, attempt, exception);
+            } else if (attempt > 0) {
+                recovered.record();
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Takes in three parameters record, attempt, the number of retries it already had, and error and schedules the
+     * next retry or dead-letters the record
+     */
+    private void failed(ProducerRecord<K, V> record, int attempt, Throwable error) {
+        if (attempt == 0) {
+            pending.incrementAndGet();
+        }
+        System.out.println(String.format("ERROR-EXCEPTION - [Failed to send transaction of %s to %s (attempt %d): %s]",
+                record.key(), record.topic(), attempt + 1, error));
+        if (attempt >= delays.size() || !(error instanceof RetriableException)) {
+            deadLetter(record, attempt, String.valueOf(error));
+            return;
+        }
+        retried.record();
+        ScheduledRetry retry = new ScheduledRetry(record, attempt + 1, String.valueOf(error));
+        scheduled.add(retry);
+        try {
+            scheduler.schedule(retry, delays.get(attempt), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile, nothing is going to retry it
+            if (scheduled.remove(retry)) {
+                deadLetter(record, attempt, String.valueOf(error));
+            }
+        }
+    }
+
+    private void deadLetter(ProducerRecord<K, V> record, int attempts, String error) {
+        Headers headers = new RecordHeaders();
+        headers.add(ORIGINAL_TOPIC_HEADER, record.topic().getBytes(StandardCharsets.UTF_8));
+        headers.add(ATTEMPT_HEADER, Integer.toString(attempts).getBytes(StandardCharsets.UTF_8));
+        headers.add(ERROR_HEADER, error.substring(0, Math.min(error.length(), MAX_ERROR_LENGTH))
+                .getBytes(StandardCharsets.UTF_8));
+        producer.send(new ProducerRecord<>(deadLetterTopic, null, record.timestamp(), record.key(), record.value(),
+                headers), (metadata, exception) -> {
+            if (exception != null) {
+                lost.incrementAndGet();
+                lostRecords.record();
+                exception.printStackTrace();
+                System.out.println(String.format("ERROR-EXCEPTION - [Lost transaction of %s to %s]",
+                        record.key(), record.topic()));
+            } else {
+                deadLettered.record();
+            }
+            pending.decrementAndGet();
+        });
+    }
+
+    /**
+     * A record waiting for its next attempt
+     */
+    private class ScheduledRetry implements Runnable {
+        private final ProducerRecord<K, V> record;
+        private final int attempt;
+        private final String error;
+
+        private ScheduledRetry(ProducerRecord<K, V> record, int attempt, String error) {
+            this.record = record;
+            this.attempt = attempt;
+            this.error = error;
+        }
+
+        @Override
+        public void run() {
+            // Whoever removes it first (this or close) sends it
+            if (scheduled.remove(this)) {
+                send(record, attempt);
+            }
+        }
+    }
+}
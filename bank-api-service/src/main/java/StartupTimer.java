@@ -0,0 +1,79 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how quickly the service gets up to speed after the JVM starts: the time until the first record is
+ * processed and the time until the per window throughput peaks (i.e. when JIT warm-up stops paying off).
+ * Both are measured from the JVM start time, so class loading and initialisation are included.
+ */
+public class StartupTimer {
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final long windowMillis;
+
+    private long firstRecordMillis = -1;
+    private long windowStartMillis;
+    private long windowCount;
+    private double peakThroughput;
+    private long peakAtMillis = -1;
+
+    /**
+     * Takes in one parameter windowMillis, the length of the windows throughput is measured over
+     * @param windowMillis
+     */
+    public StartupTimer(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Takes in one parameter count, the number of records that were just processed
+     * @param count
+     */
+    public synchronized void recordProcessed(int count) {
+        long now = System.currentTimeMillis();
+        if (firstRecordMillis < 0) {
+            firstRecordMillis = now;
+            windowStartMillis = now;
+        }
+        long elapsed = now - windowStartMillis;
+        if (elapsed >= windowMillis) {
+            double throughput = windowCount * 1000.0 / elapsed;
+            if (throughput > peakThroughput) {
+                peakThroughput = throughput;
+                peakAtMillis = now;
+            }
+            windowStartMillis = now;
+            windowCount = 0;
+        }
+        windowCount += count;
+    }
+
+    /**
+     * Returns the milliseconds from JVM start to the first processed record, or -1 if there wasn't one yet
+     * @return
+     */
+    public synchronized long getTimeToFirstRecordMillis() {
+        return firstRecordMillis < 0 ? -1 : firstRecordMillis - jvmStartMillis;
+    }
+
+    /**
+     * Returns the milliseconds from JVM start to the end of the highest throughput window so far,
+     * or -1 if no window has completed yet
+     * @return
+     */
+    public synchronized long getTimeToPeakThroughputMillis() {
+        return peakAtMillis < 0 ? -1 : peakAtMillis - jvmStartMillis;
+    }
+
+    public synchronized double getPeakThroughput() {
+        return peakThroughput;
+    }
+
+    /**
+     * Returns a one line summary of the startup measurements
+     * @return
+     */
+    public synchronized String summary() {
+        return String.format("Startup - [Time to first record: %d ms, Time to peak throughput: %d ms, " +
+                        "Peak throughput: %.0f transactions/s]",
+                getTimeToFirstRecordMillis(), getTimeToPeakThroughputMillis(), peakThroughput);
+    }
+}
@@ -0,0 +1,74 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Training run used to build the AppCDS archive of the fast-startup profile, and to benchmark startup.
+ * Synthetic transactions for the users of the CustomerAddressDatabase are parsed, looked up, checked and routed by
+ * the same code as the live service, with a MockProducer serializing them instead of sending them to the brokers,
+ * so every class on the hot path gets loaded (and archived when run with -XX:ArchiveClassesAtExit).
+ * The number of transactions can be changed with the training.records system property.
+ */
+public class StartupTraining {
+    private static final int TRAINING_RECORDS = Integer.getInteger("training.records", 200_000);
+    private static final String[] LOCATIONS = {"Ireland", "Dubai", "England", "California", "India", "Atlantis"};
+
+    /**
+     * Takes in one parameter customerAddressDatabase and routes the training transactions against it
+     * @param customerAddressDatabase
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    public static void run(CustomerAddressDatabase customerAddressDatabase)
+            throws ExecutionException, InterruptedException {
+        List<String> users = new ArrayList<>(customerAddressDatabase.getUserResidences().keySet());
+        // One unknown user so the quarantine path is trained too
+        users.add("training-unknown-user");
+        Random random = new Random(42);
+        Transaction.TransactionDeserializer deserializer = new Transaction.TransactionDeserializer();
+
+        // Transactions are generated as JSON and parsed, the way they arrive over the wire
+        Iterator<Transaction> transactions = new Iterator<Transaction>() {
+            private int generated;
+
+            @Override
+            public boolean hasNext() {
+                return generated < TRAINING_RECORDS;
+            }
+
+            @Override
+            public Transaction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                generated++;
+                byte[] json = String.format("{\"user\":\"%s\",\"amount\":%.2f,\"transactionLocation\":\"%s\"}",
+                        users.get(random.nextInt(users.size())), random.nextDouble() * 2000,
+                        LOCATIONS[random.nextInt(LOCATIONS.length)]).getBytes(StandardCharsets.UTF_8);
+                return deserializer.deserialize(StreamsRoutingTopology.INCOMING_TOPIC, json);
+            }
+        };
+        MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                new Transaction.TransactionSerializer());
+
+        // Keep the per transaction console output out of the way, it is still exercised
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Application.processTransactions(transactions, new TieredResidenceLookup(customerAddressDatabase),
+                    new ImpossibleTravelDetector(), producer);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(Application.STARTUP_TIMER.summary());
+    }
+}
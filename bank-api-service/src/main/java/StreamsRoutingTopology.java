@@ -0,0 +1,149 @@
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.kstream.*;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+
+/**
+ * Kafka Streams alternative to the hand-written routing loop in {@link Application#processTransactions}.
+ * Incoming transactions are joined against a GlobalKTable of user residences, checked for impossible travel by an
+ * {@link ImpossibleTravelDetector} and routed to the same topics:
+ * - high-value-transactions when the amount is over 1000.00 (in addition to one of the two below)
+ * - valid-transactions when the transaction location matches the user's residence (compared by CountryDictionary id)
+ *   and the user could have travelled there since their previous transaction
+ * - suspicious-transactions when it doesn't or they couldn't
+ * - quarantined-transactions when the user has no residence
+ * The incoming topic is keyed by user, so every transaction of a user reaches the same task and the detector state
+ * of the user is kept in that task's store, an LRU map of the same size as the default engine's backed by a
+ * changelog topic.
+ * Because the residence table is global every stream thread and instance holds a full copy of it, so the
+ * topology scales out with stream threads and instances up to the partition count of the incoming topic.
+ */
+public class StreamsRoutingTopology {
+    public static final String INCOMING_TOPIC = "incoming-transactions";
+    public static final String RESIDENCES_TOPIC = "user-residences";
+    public static final String TRAVEL_STORE = "impossible-travel-state";
+    private static final double HIGH_VALUE_THRESHOLD = 1000.00;
+
+    /**
+     * Builds the routing topology
+     * @return
+     */
+    public static Topology build() {
+        StreamsBuilder builder = new StreamsBuilder();
+        Serde<String> stringSerde = Serdes.String();
+        Serde<Transaction> transactionSerde = Transaction.serde();
+        Produced<String, Transaction> produced = Produced.with(stringSerde, transactionSerde);
+
+        // Residences keyed by user, replicated in full to every instance
+        GlobalKTable<String, String> residences = builder.globalTable(RESIDENCES_TOPIC,
+                Consumed.with(stringSerde, stringSerde));
+
+        // Last location and time of each user, the centroid table is read only so the tasks share it
+        builder.addStateStore(Stores.keyValueStoreBuilder(
+                Stores.lruMap(TRAVEL_STORE, ImpossibleTravelDetector.DEFAULT_MAX_USERS), stringSerde, Serdes.Long()));
+        CountryCentroids centroids = new CountryCentroids();
+
+        // Attach the user's residence to each transaction, null when the user doesn't exist, and check it against
+        // the user's previous transaction
+        KStream<String, RoutedTransaction> routed = builder
+                .stream(INCOMING_TOPIC, Consumed.with(stringSerde, transactionSerde))
+                .leftJoin(residences, (user, transaction) -> transaction.getUser(), RoutedTransaction::new)
+                .transformValues(() -> new TravelCheck(centroids), TRAVEL_STORE);
+
+        // High-value transactions of known users are sent on top of their valid or suspicious routing
+        routed.filter((user, routedTransaction) -> routedTransaction.residence != null
+                        && routedTransaction.transaction.getAmount() > HIGH_VALUE_THRESHOLD)
+                .mapValues(routedTransaction -> routedTransaction.transaction)
+                .to(Application.TOPICS.get(2), produced);
+
+        @SuppressWarnings("unchecked")
+        KStream<String, RoutedTransaction>[] branches = routed.branch(
+                (user, routedTransaction) -> routedTransaction.residence == null,
+                (user, routedTransaction) -> routedTransaction.isHome() && !routedTransaction.impossibleTravel,
+                (user, routedTransaction) -> true);
+        branches[0].mapValues(routedTransaction -> routedTransaction.transaction)
+                .to(Application.QUARANTINE_TOPIC, produced);
+        branches[1].mapValues(routedTransaction -> routedTransaction.transaction)
+                .to(Application.TOPICS.get(0), produced);
+        branches[2].mapValues(routedTransaction -> routedTransaction.transaction)
+                .to(Application.TOPICS.get(1), produced);
+
+        return builder.build();
+    }
+
+    /**
+     * A transaction together with the residence of its user. Only passed between operators of the topology,
+     * never written to a topic, so it doesn't need a serde.
+     */
+    private static class RoutedTransaction {
+        private final Transaction transaction;
+        private final String residence;
+        private final boolean impossibleTravel;
+
+        private RoutedTransaction(Transaction transaction, String residence) {
+            this(transaction, residence, false);
+        }
+
+        private RoutedTransaction(Transaction transaction, String residence, boolean impossibleTravel) {
+            this.transaction = transaction;
+            this.residence = residence;
+            this.impossibleTravel = impossibleTravel;
+        }
+
+        private boolean isHome() {
+            return transaction.getLocationId() != CountryDictionary.UNKNOWN
+                    && transaction.getLocationId() == CountryDictionary.shared().intern(residence);
+        }
+    }
+
+    /**
+     * Runs the ImpossibleTravelDetector of the task over its transactions, with the detector state in TRAVEL_STORE
+     */
+    private static class TravelCheck implements ValueTransformer<RoutedTransaction, RoutedTransaction> {
+        private final CountryCentroids centroids;
+        private ImpossibleTravelDetector detector;
+
+        private TravelCheck(CountryCentroids centroids) {
+            this.centroids = centroids;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void init(ProcessorContext context) {
+            KeyValueStore<String, Long> store = (KeyValueStore<String, Long>) context.getStateStore(TRAVEL_STORE);
+            detector = new ImpossibleTravelDetector(centroids, new ImpossibleTravelDetector.LastSeen() {
+                @Override
+                public Long get(String user) {
+                    return store.get(user);
+                }
+
+                @Override
+                public void put(String user, long packed) {
+                    store.put(user, packed);
+                }
+
+                @Override
+                public int size() {
+                    return (int) Math.min(Integer.MAX_VALUE, store.approximateNumEntries());
+                }
+            });
+        }
+
+        @Override
+        public RoutedTransaction transform(RoutedTransaction routedTransaction) {
+            // Same check as the default engine, only transactions that carry their event time can be flagged
+            Transaction transaction = routedTransaction.transaction;
+            boolean impossibleTravel = detector.isImpossibleTravel(transaction.getUser(),
+                    transaction.getLocationId(), transaction.getTimestamp());
+            return new RoutedTransaction(transaction, routedTransaction.residence, impossibleTravel);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
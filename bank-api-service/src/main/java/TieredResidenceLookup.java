@@ -0,0 +1,186 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Tiered lookup of customer residences. The first tier is a bounded in-memory LRU cache of recently seen users,
+ * the second tier is a {@link ResidenceStore} which is only called in batches for the users missing from the cache.
+ * Users that the store doesn't know about are cached as negative entries for a short time so that a burst of
+ * transactions from an unknown user doesn't turn into a burst of store round-trips.
+ * Residences are cached together with their {@link CountryDictionary} id, so routing compares ids, not names.
+ */
+public class TieredResidenceLookup {
+    private static final int DEFAULT_CACHE_CAPACITY = 10_000;
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = 60_000;
+    // Residence id returned for users the store doesn't know about
+    public static final int NO_RESIDENCE = -1;
+
+    private final ResidenceStore residenceStore;
+    private final Map<String, CacheEntry> cache;
+    private final long negativeTtlMillis;
+    private final Executor executor;
+    private final LongSupplier clock;
+
+    // Counters for how each lookup was answered
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong storeCalls = new AtomicLong();
+
+    public TieredResidenceLookup(ResidenceStore residenceStore) {
+        this(residenceStore, DEFAULT_CACHE_CAPACITY, DEFAULT_NEGATIVE_TTL_MILLIS, ForkJoinPool.commonPool());
+    }
+
+    public TieredResidenceLookup(ResidenceStore residenceStore, int cacheCapacity, long negativeTtlMillis,
+                                 Executor executor) {
+        this(residenceStore, cacheCapacity, negativeTtlMillis, executor, System::currentTimeMillis);
+    }
+
+    TieredResidenceLookup(ResidenceStore residenceStore, int cacheCapacity, long negativeTtlMillis,
+                          Executor executor, LongSupplier clock) {
+        if (cacheCapacity <= 0) {
+            throw new IllegalArgumentException("cacheCapacity must be positive but was " + cacheCapacity);
+        }
+        this.residenceStore = residenceStore;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.executor = executor;
+        this.clock = clock;
+        // Access ordered LinkedHashMap evicts the least recently used user once the capacity is exceeded
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > cacheCapacity;
+            }
+        };
+    }
+
+    /**
+     * Takes in a micro-batch of users and loads every user that isn't already cached with a single asynchronous
+     * multi-get against the backing store. The returned future completes once the cache has been populated, after
+     * which {@link #getUserResidence(String)} answers every user of the batch from memory.
+     * @param users
+     * @return
+     */
+    public CompletableFuture<Void> prefetch(Collection<String> users) {
+        Set<String> missing = new HashSet<>();
+        synchronized (cache) {
+            long now = clock.getAsLong();
+            for (String user : users) {
+                CacheEntry entry = cache.get(user);
+                if (entry == null || entry.isExpired(now)) {
+                    missing.add(user);
+                }
+            }
+        }
+        // Everything is already cached so there is nothing to wait for
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> loadFromStore(missing), executor)
+                .thenAccept(residences -> populate(missing, residences));
+    }
+
+    /**
+     * Returns the user's country of residence, or null if the user doesn't exist. Cached answers (including
+     * cached unknown users) are returned straight from memory, a miss falls through to the backing store.
+     * @param user
+     * @return
+     */
+    public String getUserResidence(String user) {
+        return lookup(user).residence;
+    }
+
+    /**
+     * Returns the {@link CountryDictionary} id of the user's country of residence, or NO_RESIDENCE if the user
+     * doesn't exist. Answered like {@link #getUserResidence(String)}.
+     * @param user
+     * @return
+     */
+    public int getUserResidenceId(String user) {
+        return lookup(user).residenceId;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStoreCalls() {
+        return storeCalls.get();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private CacheEntry lookup(String user) {
+        synchronized (cache) {
+            CacheEntry entry = cache.get(user);
+            if (entry != null && !entry.isExpired(clock.getAsLong())) {
+                if (entry.residence == null) {
+                    negativeHits.incrementAndGet();
+                } else {
+                    hits.incrementAndGet();
+                }
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+        Set<String> missing = Collections.singleton(user);
+        return populate(missing, loadFromStore(missing)).get(user);
+    }
+
+    private Map<String, String> loadFromStore(Set<String> users) {
+        storeCalls.incrementAndGet();
+        return residenceStore.multiGet(users);
+    }
+
+    private Map<String, CacheEntry> populate(Set<String> requested, Map<String, String> residences) {
+        Map<String, CacheEntry> entries = new HashMap<>();
+        CountryDictionary countries = CountryDictionary.shared();
+        synchronized (cache) {
+            long now = clock.getAsLong();
+            for (String user : requested) {
+                String residence = residences.get(user);
+                // Unknown users are remembered as negative entries until the negative TTL runs out
+                CacheEntry entry = residence == null
+                        ? new CacheEntry(null, NO_RESIDENCE, now + negativeTtlMillis)
+                        : new CacheEntry(residence, countries.intern(residence), Long.MAX_VALUE);
+                cache.put(user, entry);
+                entries.put(user, entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * A cached residence, where a null residence marks a user that the backing store doesn't know about
+     */
+    private static class CacheEntry {
+        private final String residence;
+        private final int residenceId;
+        private final long expiresAtMillis;
+
+        private CacheEntry(String residence, int residenceId, long expiresAtMillis) {
+            this.residence = residence;
+            this.residenceId = residenceId;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAtMillis;
+        }
+    }
+}
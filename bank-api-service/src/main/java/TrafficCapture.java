@@ -0,0 +1,99 @@
+import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records the live traffic of a set of topics into a {@link TrafficFile}, with the record timestamps, partitions
+ * and the raw key and value bytes, so a production traffic pattern (bursts, key skew) can be replayed later with
+ * {@link TrafficReplay}. The capture reads every partition from its current end without joining a consumer group,
+ * so it doesn't take partitions away from the services.
+ */
+public class TrafficCapture {
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+    private static final long PROGRESS_INTERVAL_MILLIS = 10_000;
+
+    private final String bootstrapServers;
+    private final List<String> topics;
+    private final Path file;
+    private final long durationMillis;
+
+    /**
+     * Takes in four parameters bootstrapServers, topics, file, where the capture is written, and durationMillis,
+     * how long to capture for.
+     * @param bootstrapServers
+     * @param topics
+     * @param file
+     * @param durationMillis
+     */
+    public TrafficCapture(String bootstrapServers, List<String> topics, Path file, long durationMillis) {
+        this.bootstrapServers = bootstrapServers;
+        this.topics = topics;
+        this.file = file;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Captures the traffic for the configured duration and returns the number of records written
+     * @return
+     * @throws IOException
+     */
+    public long run() throws IOException {
+        Properties prop = new Properties();
+        prop.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        prop.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        prop.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+        prop.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        try (Consumer<byte[], byte[]> consumer = new KafkaConsumer<>(prop);
+             TrafficFile.Writer writer = new TrafficFile.Writer(file, topics)) {
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (String topic : topics) {
+                for (PartitionInfo partition : consumer.partitionsFor(topic)) {
+                    partitions.add(new TopicPartition(topic, partition.partition()));
+                }
+            }
+            consumer.assign(partitions);
+            // Only capture what arrives from now on
+            consumer.seekToEnd(partitions);
+            long captured = capture(consumer, writer, durationMillis);
+            System.out.println(String.format("Captured %d records from %s into %s", captured, topics, file));
+            return captured;
+        }
+    }
+
+    /**
+     * Takes in three parameters consumer, writer and durationMillis and writes every record polled by the
+     * already assigned consumer until the duration is over. Returns the number of records written.
+     * @param consumer
+     * @param writer
+     * @param durationMillis
+     * @return
+     * @throws IOException
+     */
+    static long capture(Consumer<byte[], byte[]> consumer, TrafficFile.Writer writer, long durationMillis)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        long deadline = now + durationMillis;
+        long nextProgress = now + PROGRESS_INTERVAL_MILLIS;
+        while (now < deadline) {
+            for (ConsumerRecord<byte[], byte[]> record : consumer.poll(POLL_TIMEOUT)) {
+                writer.write(new TrafficFile.CapturedRecord(record.timestamp(), record.topic(), record.partition(),
+                        record.key(), record.value()));
+            }
+            now = System.currentTimeMillis();
+            if (now >= nextProgress) {
+                System.out.println(String.format("Captured %d records, %d s left", writer.getCount(),
+                        Math.max(0, deadline - now) / 1000));
+                nextProgress = now + PROGRESS_INTERVAL_MILLIS;
+            }
+        }
+        return writer.getCount();
+    }
+}
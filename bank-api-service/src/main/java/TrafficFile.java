@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact file format for captured topic traffic. The file is gzip compressed and holds:
+ * - a header: magic "BKTC", version, and the table of captured topic names
+ * - one entry per record: the timestamp as a zig-zag varint delta to the previous record (records of different
+ *   partitions can be slightly out of order), the topic's index in the table, the partition, and the key and value
+ *   as varint length prefixed raw bytes (exactly as they were on the topic)
+ * Most entries take a few bytes more than their value, and the JSON values compress well.
+ */
+public class TrafficFile {
+    private static final int MAGIC = 0x424B5443;
+    private static final int VERSION = 1;
+
+    /**
+     * One captured record
+     */
+    public static class CapturedRecord {
+        private final long timestamp;
+        private final String topic;
+        private final int partition;
+        private final byte[] key;
+        private final byte[] value;
+
+        public CapturedRecord(long timestamp, String topic, int partition, byte[] key, byte[] value) {
+            this.timestamp = timestamp;
+            this.topic = topic;
+            this.partition = partition;
+            this.key = key;
+            this.value = value;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Writes captured records to a traffic file
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final List<String> topics;
+        private long previousTimestamp;
+        private long count;
+
+        /**
+         * Takes in two parameters file and topics, the only topics records can be written for
+         * @param file
+         * @param topics
+         * @throws IOException
+         */
+        public Writer(Path file, List<String> topics) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(file), 64 * 1024)));
+            this.topics = new ArrayList<>(topics);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, topics.size());
+            for (String topic : topics) {
+                writeBytes(out, topic.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        public void write(CapturedRecord record) throws IOException {
+            int topicId = topics.indexOf(record.getTopic());
+            if (topicId < 0) {
+                throw new IllegalArgumentException("topic not in the file's topic table: " + record.getTopic());
+            }
+            long delta = record.getTimestamp() - previousTimestamp;
+            previousTimestamp = record.getTimestamp();
+            // Zig-zag encode so small negative deltas stay small
+            writeVarint(out, (delta << 1) ^ (delta >> 63));
+            writeVarint(out, topicId);
+            writeVarint(out, record.getPartition());
+            writeBytes(out, record.getKey());
+            writeBytes(out, record.getValue());
+            count++;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the records of a traffic file back in the order they were written
+     */
+    public static class Reader implements Iterator<CapturedRecord>, Closeable {
+        private final DataInputStream in;
+        private final List<String> topics = new ArrayList<>();
+        private long previousTimestamp;
+        private CapturedRecord next;
+
+        /**
+         * Takes in one parameter file and reads its header
+         * @param file
+         * @throws IOException
+         */
+        public Reader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                    Files.newInputStream(file), 64 * 1024)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a traffic capture file");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                in.close();
+                throw new IOException("Unsupported traffic capture version " + version);
+            }
+            int topicCount = (int) readVarint(in);
+            for (int i = 0; i < topicCount; i++) {
+                topics.add(new String(readBytes(in), StandardCharsets.UTF_8));
+            }
+            next = readRecord();
+        }
+
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public CapturedRecord next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            CapturedRecord record = next;
+            try {
+                next = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private CapturedRecord readRecord() throws IOException {
+            long zigZag;
+            try {
+                zigZag = readVarint(in);
+            } catch (EOFException e) {
+                // Clean end of the file
+                return null;
+            }
+            previousTimestamp += (zigZag >>> 1) ^ -(zigZag & 1);
+            String topic = topics.get((int) readVarint(in));
+            int partition = (int) readVarint(in);
+            byte[] key = readBytes(in);
+            byte[] value = readBytes(in);
+            return new CapturedRecord(previousTimestamp, topic, partition, key, value);
+        }
+    }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in traffic capture file");
+    }
+
+    /**
+     * Writes a length prefixed byte array, null is written as length 0 and read back as null
+     */
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = (int) readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
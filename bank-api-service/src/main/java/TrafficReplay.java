@@ -0,0 +1,134 @@
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a {@link TrafficFile} keeping the relative timing of the captured records, at the captured speed (1x),
+ * sped up (Nx) or as fast as possible (max). The records can either be sent back to their topics as they were
+ * captured, feeding the consumer services, or turned back into transactions for the bank-api routing.
+ */
+public class TrafficReplay {
+    private final double speed;
+    private long firstTimestamp = -1;
+    private long startNanos;
+
+    /**
+     * Takes in one parameter speed, how many times faster than captured to replay, 0 for as fast as possible
+     * @param speed
+     */
+    public TrafficReplay(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Takes in one parameter speed such as "1x", "10x", "0.5x" or "max" and returns the speed factor,
+     * 0 standing for max
+     * @param speed
+     * @return
+     */
+    public static double parseSpeed(String speed) {
+        if (speed.equalsIgnoreCase("max")) {
+            return 0;
+        }
+        double factor = Double.parseDouble(speed.endsWith("x") ? speed.substring(0, speed.length() - 1) : speed);
+        if (factor <= 0) {
+            throw new IllegalArgumentException("replay speed must be positive or max: " + speed);
+        }
+        return factor;
+    }
+
+    /**
+     * Takes in two parameters reader and producer and sends every record of the file to the topic and partition it
+     * was captured from, paced by its timestamp. Returns the number of records sent.
+     * @param reader
+     * @param producer
+     * @return
+     * @throws InterruptedException
+     */
+    public long toTopics(TrafficFile.Reader reader, Producer<byte[], byte[]> producer) throws InterruptedException {
+        long sent = 0;
+        while (reader.hasNext()) {
+            TrafficFile.CapturedRecord record = reader.next();
+            pace(record.getTimestamp());
+            producer.send(new ProducerRecord<>(record.getTopic(), record.getPartition(), record.getKey(),
+                    record.getValue()));
+            sent++;
+        }
+        producer.flush();
+        return sent;
+    }
+
+    /**
+     * Takes in two parameters reader and skipTopic and returns the records of the file as transactions, each one
+     * only handed out once it is due. Transactions without an event time get the captured record timestamp.
+     * Records of skipTopic are left out, e.g. the high-value-transactions topic whose
+     * transactions are also on the valid or suspicious topic and would otherwise be routed twice.
+     * @param reader
+     * @param skipTopic
+     * @return
+     */
+    public Iterator<Transaction> transactions(TrafficFile.Reader reader, String skipTopic) {
+        Transaction.TransactionDeserializer deserializer = new Transaction.TransactionDeserializer();
+        return new Iterator<Transaction>() {
+            private TrafficFile.CapturedRecord next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Transaction next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                TrafficFile.CapturedRecord record = next;
+                next = advance();
+                try {
+                    pace(record.getTimestamp());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Transaction transaction = deserializer.deserialize(record.getTopic(), record.getValue());
+                // Transactions routed without an event time were sent when they were read, close enough to it
+                if (transaction != null && transaction.getTimestamp() == Transaction.NO_TIMESTAMP) {
+                    transaction.setTimestamp(record.getTimestamp());
+                }
+                return transaction;
+            }
+
+            private TrafficFile.CapturedRecord advance() {
+                while (reader.hasNext()) {
+                    TrafficFile.CapturedRecord record = reader.next();
+                    if (!record.getTopic().equals(skipTopic) && record.getValue() != null) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Sleeps until the record with this timestamp is due, relative to the first record replayed
+     */
+    private void pace(long timestamp) throws InterruptedException {
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+            startNanos = System.nanoTime();
+            return;
+        }
+        if (speed == 0) {
+            return;
+        }
+        long dueNanos = startNanos + (long) ((timestamp - firstTimestamp) * 1_000_000 / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        // Records slightly out of order or behind schedule are sent straight away
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -1,17 +1,58 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.common.serialization.Serializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Objects;
 
 public class Transaction {
+    // Timestamp of a transaction whose event time isn't known
+    public static final long NO_TIMESTAMP = -1;
+    // Thread-safe factory shared by the serializer and deserializer
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
     private String user;
     private double amount;
     private String transactionLocation;
+    // Id of the location in the CountryDictionary, compared instead of the name
+    private int locationId;
+    // When the transaction was made, in epoch milliseconds, NO_TIMESTAMP when the source didn't say
+    private long timestamp = NO_TIMESTAMP;
 
+    /**
+     * Takes in three parameters user, amount and transactionLocation. Aliases of a country in the
+     * CountryDictionary are replaced with its canonical name.
+     * @param user
+     * @param amount
+     * @param transactionLocation
+     */
     public Transaction(String user, double amount, String transactionLocation) {
+        CountryDictionary countries = CountryDictionary.shared();
         this.user = user;
         this.amount = amount;
-        this.transactionLocation = transactionLocation;
+        this.locationId = countries.intern(transactionLocation);
+        this.transactionLocation = countries.isStandard(locationId)
+                ? countries.nameOf(locationId) : transactionLocation;
+    }
+
+    /**
+     * Takes in three parameters user, amount and locationId, the id of a country in the CountryDictionary
+     * @param user
+     * @param amount
+     * @param locationId
+     */
+    public Transaction(String user, double amount, int locationId) {
+        this.user = user;
+        this.amount = amount;
+        this.locationId = locationId;
+        String name = CountryDictionary.shared().nameOf(locationId);
+        // Ids from a newer dictionary than this service's are kept, with a placeholder name
+        this.transactionLocation = name != null ? name : "location-" + locationId;
     }
 
     public String getUser() {
@@ -26,6 +67,18 @@ public class Transaction {
         return transactionLocation;
     }
 
+    public int getLocationId() {
+        return locationId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     @Override
     public String toString() {
         return "Transaction{" +
@@ -52,19 +105,121 @@ public class Transaction {
 
     /**
      * Kafka Serializer implementation.
-     * Serializes a Transaction to JSON so it can be sent to a Kafka Topic
+     * Serializes a Transaction to JSON so it can be sent to a Kafka Topic. The JSON is written field by field with
+     * the Jackson streaming API, so no reflection or class introspection is needed at startup. Locations in the
+     * CountryDictionary are written as their locationId, any other location as the transactionLocation string.
+     * The event time is only written when it is known.
      */
     public static class TransactionSerializer implements Serializer<Transaction> {
         @Override
         public byte[] serialize(String topic, Transaction data) {
-            byte[] serializedData = null;
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-                serializedData = objectMapper.writeValueAsString(data).getBytes();
+            if (data == null) {
+                return null;
+            }
+            TransactionStageEvent event = new TransactionStageEvent();
+            event.begin();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(96);
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+                generator.writeStartObject();
+                generator.writeStringField("user", data.getUser());
+                generator.writeNumberField("amount", data.getAmount());
+                if (CountryDictionary.shared().isStandard(data.getLocationId())) {
+                    generator.writeNumberField("locationId", data.getLocationId());
+                } else {
+                    generator.writeStringField("transactionLocation", data.getTransactionLocation());
+                }
+                if (data.getTimestamp() != NO_TIMESTAMP) {
+                    generator.writeNumberField("timestamp", data.getTimestamp());
+                }
+                generator.writeEndObject();
             } catch (Exception e) {
                 e.printStackTrace();
+                return null;
             }
-            return serializedData;
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = "serialize";
+                event.topic = topic;
+                event.userHash = Objects.hashCode(data.getUser());
+                event.commit();
+            }
+            return outputStream.toByteArray();
         }
     }
+
+    /**
+     * Kafka Deserializer implementation.
+     * Deserializes a Transaction from JSON to a {@link Transaction} object. The JSON is read field by field with
+     * the Jackson streaming API, so no reflection or class introspection is needed at startup. The location is read
+     * from either the locationId or the transactionLocation field.
+     */
+    public static class TransactionDeserializer implements Deserializer<Transaction> {
+
+        @Override
+        public Transaction deserialize(String topic, byte[] data) {
+            if (data == null) {
+                return null;
+            }
+            TransactionStageEvent event = new TransactionStageEvent();
+            event.begin();
+            Transaction transaction = null;
+            try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+                String user = null;
+                double amount = 0;
+                String transactionLocation = null;
+                int locationId = CountryDictionary.UNKNOWN;
+                long timestamp = NO_TIMESTAMP;
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Transaction JSON must be an object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "user":
+                            user = parser.getValueAsString();
+                            break;
+                        case "amount":
+                            amount = parser.getValueAsDouble();
+                            break;
+                        case "transactionLocation":
+                            transactionLocation = parser.getValueAsString();
+                            break;
+                        case "locationId":
+                            locationId = parser.getValueAsInt();
+                            break;
+                        case "timestamp":
+                            timestamp = parser.getValueAsLong(NO_TIMESTAMP);
+                            break;
+                        default:
+                            // Ignore fields added by newer producers
+                            parser.skipChildren();
+                    }
+                }
+                transaction = locationId != CountryDictionary.UNKNOWN
+                        ? new Transaction(user, amount, locationId)
+                        : new Transaction(user, amount, transactionLocation);
+                transaction.setTimestamp(timestamp);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = "deserialize";
+                event.topic = topic;
+                event.userHash = transaction == null ? 0 : Objects.hashCode(transaction.getUser());
+                event.commit();
+            }
+            return transaction;
+
+        }
+    }
+
+    /**
+     * Returns a Kafka Serde for Transactions made of the {@link TransactionSerializer}
+     * and {@link TransactionDeserializer}, used by the Kafka Streams engine
+     */
+    public static Serde<Transaction> serde() {
+        return Serdes.serdeFrom(new TransactionSerializer(), new TransactionDeserializer());
+    }
 }
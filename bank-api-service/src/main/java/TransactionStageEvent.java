@@ -0,0 +1,28 @@
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder event timing one stage of the processing of a single transaction, e.g. the residence lookup,
+ * serialization, the wait for the broker acknowledgement, console printing or a consumer's record handler.
+ * Usage: begin() before the stage, end() after it, then set the fields and commit() only if shouldCommit() is true.
+ * Without a running recording (or with the event disabled in it) shouldCommit() is false and the cost is a couple
+ * of branches, so the events can be left in the hot path.
+ */
+@Name("distributed.banking.TransactionStage")
+@Label("Transaction Stage")
+@Category("Distributed Banking")
+@Description("Time spent in one processing stage of a transaction")
+@StackTrace(false)
+public class TransactionStageEvent extends Event {
+    @Label("Stage")
+    public String stage;
+
+    @Label("Topic")
+    public String topic;
+
+    @Label("Partition")
+    public int partition = -1;
+
+    @Label("User Hash")
+    @Description("Hash code of the user, so records of one user can be correlated without recording the user")
+    public int userHash;
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountryDictionaryTest {
+
+    @Test
+    void testAliasesResolveToTheSameId() {
+        CountryDictionary countries = new CountryDictionary();
+
+        int ireland = countries.idOf("Ireland");
+        assertNotEquals(CountryDictionary.UNKNOWN, ireland);
+        assertEquals(ireland, countries.idOf("ireland"));
+        assertEquals(ireland, countries.idOf("Eire"));
+        assertEquals(ireland, countries.idOf("Republic of Ireland"));
+        assertEquals(ireland, countries.idOf("IRL"));
+        assertEquals(countries.idOf("NewYork"), countries.idOf("new york"));
+        assertEquals(countries.idOf("NewYork"), countries.idOf("New-York"));
+        assertEquals("Ireland", countries.nameOf(ireland));
+    }
+
+    @Test
+    void testUnknownNames() {
+        CountryDictionary countries = new CountryDictionary();
+
+        assertEquals(CountryDictionary.UNKNOWN, countries.idOf("Atlantis"));
+        assertEquals(CountryDictionary.UNKNOWN, countries.idOf("Irel"));
+        assertEquals(CountryDictionary.UNKNOWN, countries.idOf(""));
+        assertEquals(CountryDictionary.UNKNOWN, countries.idOf("Türkiye"));
+        assertEquals("Atlantis", countries.canonicalName("Atlantis"));
+    }
+
+    @Test
+    void testInternGivesUnknownNamesALocalId() {
+        CountryDictionary countries = new CountryDictionary();
+
+        int atlantis = countries.intern("Atlantis");
+        assertNotEquals(CountryDictionary.UNKNOWN, atlantis);
+        assertFalse(countries.isStandard(atlantis));
+        assertEquals(atlantis, countries.intern("ATLANTIS"));
+        assertNotEquals(atlantis, countries.intern("Lemuria"));
+        assertEquals("Atlantis", countries.nameOf(atlantis));
+        assertEquals(countries.idOf("Dubai"), countries.intern("UAE"));
+    }
+
+    @Test
+    void testTransactionsCarryTheLocationIdOnTheWire() {
+        Transaction transaction = new Transaction("joe1680", 128.63, "Eire");
+        byte[] json = new Transaction.TransactionSerializer().serialize("valid-transactions", transaction);
+
+        String wire = new String(json, StandardCharsets.UTF_8);
+        assertTrue(wire.contains("\"locationId\""));
+        assertFalse(wire.contains("transactionLocation"));
+        Transaction read = new Transaction.TransactionDeserializer().deserialize("valid-transactions", json);
+        assertEquals("Ireland", read.getTransactionLocation());
+        assertEquals(transaction.getLocationId(), read.getLocationId());
+        assertEquals(Transaction.NO_TIMESTAMP, read.getTimestamp());
+        assertFalse(wire.contains("timestamp"));
+
+        transaction.setTimestamp(1614585600000L);
+        json = new Transaction.TransactionSerializer().serialize("valid-transactions", transaction);
+        read = new Transaction.TransactionDeserializer().deserialize("valid-transactions", json);
+        assertEquals(1614585600000L, read.getTimestamp());
+    }
+
+    @Test
+    void testDeserializerAcceptsLocationNames() {
+        byte[] legacy = "{\"user\":\"joe1680\",\"amount\":5.0,\"transactionLocation\":\"ireland\"}"
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] unknown = "{\"user\":\"joe1680\",\"amount\":5.0,\"transactionLocation\":\"Atlantis\"}"
+                .getBytes(StandardCharsets.UTF_8);
+        Transaction.TransactionDeserializer deserializer = new Transaction.TransactionDeserializer();
+
+        assertEquals("Ireland", deserializer.deserialize("valid-transactions", legacy).getTransactionLocation());
+        Transaction atlantis = deserializer.deserialize("valid-transactions", unknown);
+        assertEquals("Atlantis", atlantis.getTransactionLocation());
+        String wire = new String(new Transaction.TransactionSerializer().serialize("valid-transactions", atlantis),
+                StandardCharsets.UTF_8);
+        assertTrue(wire.contains("\"transactionLocation\":\"Atlantis\""));
+    }
+}
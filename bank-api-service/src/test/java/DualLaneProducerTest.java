@@ -0,0 +1,79 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DualLaneProducerTest {
+
+    private MockProducer<String, Transaction> priorityProducer;
+    private MockProducer<String, Transaction> bulkProducer;
+    private ServiceMetrics metrics;
+    private DualLaneProducer<String, Transaction> producer;
+
+    @BeforeEach
+    void setup() {
+        // Nothing is acknowledged until the test completes the sends
+        priorityProducer = new MockProducer<>(false, new StringSerializer(), new Transaction.TransactionSerializer());
+        bulkProducer = new MockProducer<>(false, new StringSerializer(), new Transaction.TransactionSerializer());
+        metrics = new ServiceMetrics("dual-lane-test");
+        producer = new DualLaneProducer<>(priorityProducer, bulkProducer,
+                Arrays.asList("suspicious-transactions", "high-value-transactions"), metrics);
+    }
+
+    @AfterEach
+    void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    void testRecordsAreRoutedToTheirLane() {
+        producer.send(record("valid-transactions"));
+        producer.send(record("suspicious-transactions"));
+        producer.send(record("high-value-transactions"));
+
+        assertEquals(2, priorityProducer.history().size());
+        assertEquals(1, bulkProducer.history().size());
+        assertEquals("valid-transactions", bulkProducer.history().get(0).topic());
+        assertEquals(2.0, metrics.value("priority-lane-records-total"));
+        assertEquals(1.0, metrics.value("bulk-lane-records-total"));
+    }
+
+    @Test
+    void testPriorityLaneIsNotBlockedByPendingBulkRecords() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            producer.send(record("valid-transactions"));
+        }
+        Future<RecordMetadata> alert = producer.send(record("high-value-transactions"));
+        priorityProducer.completeNext();
+
+        assertTrue(alert.isDone());
+        assertEquals("high-value-transactions", alert.get().topic());
+        assertEquals(0.0, metrics.value("bulk-lane-errors-total"));
+    }
+
+    @Test
+    void testFailedSendsAreCountedPerLane() {
+        producer.send(record("valid-transactions"));
+        bulkProducer.errorNext(new RuntimeException("broker unavailable"));
+
+        assertEquals(1.0, metrics.value("bulk-lane-errors-total"));
+        assertEquals(0.0, metrics.value("priority-lane-errors-total"));
+    }
+
+    @Test
+    void testTransactionsAreNotSupported() {
+        assertThrows(UnsupportedOperationException.class, producer::initTransactions);
+    }
+
+    private static ProducerRecord<String, Transaction> record(String topic) {
+        return new ProducerRecord<>(topic, "joe1680", new Transaction("joe1680", 1653.32, "Ireland"));
+    }
+}
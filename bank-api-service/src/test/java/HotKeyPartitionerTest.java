@@ -0,0 +1,137 @@
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotKeyPartitionerTest {
+
+    private static final String ORDERED_TOPIC = "valid-transactions";
+    private static final String SPREAD_TOPIC = "high-value-transactions";
+    private static final int PARTITIONS = 12;
+    private static final int USERS = 10_000;
+    private static final int RECORDS = 200_000;
+
+    private HotKeyPartitioner partitioner;
+    private Cluster cluster;
+
+    @BeforeEach
+    void setup() {
+        partitioner = new HotKeyPartitioner();
+        Map<String, Object> configs = new HashMap<>();
+        configs.put(HotKeyPartitioner.SPREAD_TOPICS_CONFIG, SPREAD_TOPIC);
+        partitioner.configure(configs);
+
+        Node node = new Node(0, "localhost", 9092);
+        List<PartitionInfo> partitions = new ArrayList<>();
+        for (String topic : Arrays.asList(ORDERED_TOPIC, SPREAD_TOPIC)) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                partitions.add(new PartitionInfo(topic, i, node, new Node[]{node}, new Node[]{node}));
+            }
+        }
+        cluster = new Cluster("test", Collections.singletonList(node), partitions, Collections.emptySet(),
+                Collections.emptySet());
+    }
+
+    @AfterEach
+    void tearDown() {
+        partitioner.close();
+    }
+
+    @Test
+    void testZipfianLoadIsEvenOnSpreadTopic() {
+        long[] counts = send(SPREAD_TOPIC);
+
+        assertTrue(maxOverMean(counts) < 1.2, "spread skew " + maxOverMean(counts));
+        assertTrue(partitioner.skew(SPREAD_TOPIC) < 1.2);
+        assertEquals("user0", partitioner.hotKeys(SPREAD_TOPIC).get(0).getKey());
+    }
+
+    @Test
+    void testZipfianLoadKeepsKeyOrderAndReportsSkewOnOrderedTopic() {
+        long[] counts = send(ORDERED_TOPIC);
+
+        // Every record of a user still goes to the same partition, so the hottest user makes one partition hot
+        assertTrue(maxOverMean(counts) > 1.5, "ordered skew " + maxOverMean(counts));
+        assertTrue(partitioner.skew(ORDERED_TOPIC) > 1.5);
+        String advice = partitioner.advice(ORDERED_TOPIC);
+        assertNotNull(advice);
+        assertTrue(advice.contains("user0"));
+    }
+
+    @Test
+    void testNormalKeysUseDefaultPartitioning() {
+        for (int i = 0; i < 5000; i++) {
+            String user = "user" + i;
+            assertEquals(partition(ORDERED_TOPIC, user), partition(SPREAD_TOPIC, user));
+        }
+        assertEquals(partition(ORDERED_TOPIC, "joe1680"), partition(SPREAD_TOPIC, "joe1680"));
+    }
+
+    @Test
+    void testHeavyHittersFindsHotKeysWithinBoundedMemory() {
+        HeavyHitters sketch = new HeavyHitters(100, Long.MAX_VALUE);
+        Random random = new Random(7);
+        ZipfGenerator zipf = new ZipfGenerator(USERS, 1.2, random);
+        for (int i = 0; i < RECORDS; i++) {
+            sketch.add("user" + zipf.next());
+        }
+
+        List<Map.Entry<String, Double>> top = sketch.top(0.02);
+        assertEquals("user0", top.get(0).getKey());
+        assertEquals("user1", top.get(1).getKey());
+        // The hottest key is counted nearly exactly
+        assertTrue(sketch.error("user0") < RECORDS / 100);
+        assertEquals(RECORDS, sketch.getTotal());
+    }
+
+    private long[] send(String topic) {
+        ZipfGenerator zipf = new ZipfGenerator(USERS, 1.2, new Random(42));
+        long[] counts = new long[PARTITIONS];
+        for (int i = 0; i < RECORDS; i++) {
+            counts[partition(topic, "user" + zipf.next())]++;
+        }
+        return counts;
+    }
+
+    private int partition(String topic, String user) {
+        return partitioner.partition(topic, user, user.getBytes(StandardCharsets.UTF_8), null, null, cluster);
+    }
+
+    private static double maxOverMean(long[] counts) {
+        long max = Arrays.stream(counts).max().getAsLong();
+        return (double) max * counts.length / Arrays.stream(counts).sum();
+    }
+
+    /**
+     * Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent
+     */
+    private static class ZipfGenerator {
+        private final double[] cumulative;
+        private final Random random;
+
+        private ZipfGenerator(int n, double exponent, Random random) {
+            this.cumulative = new double[n];
+            this.random = random;
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        private int next() {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+        }
+    }
+}
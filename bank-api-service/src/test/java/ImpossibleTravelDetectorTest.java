@@ -0,0 +1,130 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImpossibleTravelDetectorTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testDistantLocationsMinutesApartAreImpossible() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("joe1680", "Ireland", 0));
+        assertTrue(detector.isImpossibleTravel("joe1680", "China", 10 * MINUTE));
+    }
+
+    @Test
+    void testDistantLocationsAFlightApartArePossible() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("dkelly9283", "Dubai", 0));
+        assertFalse(detector.isImpossibleTravel("dkelly9283", "Ireland", 10 * HOUR));
+    }
+
+    @Test
+    void testNeighbouringLocationsAreNeverFlagged() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("fjoyce252", "England", 0));
+        assertFalse(detector.isImpossibleTravel("fjoyce252", "Wales", MINUTE));
+    }
+
+    @Test
+    void testUnknownLocationsAreIgnored() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("ajamal327", "California", 0));
+        assertFalse(detector.isImpossibleTravel("ajamal327", "Atlantis", MINUTE));
+    }
+
+    @Test
+    void testStateIsBoundedByMaxUsers() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector(new CountryCentroids(), 2, 1000, 500);
+
+        detector.isImpossibleTravel("joe1680", "Ireland", 0);
+        detector.isImpossibleTravel("dkelly9283", "Dubai", 0);
+        detector.isImpossibleTravel("fjoyce252", "England", 0);
+
+        assertEquals(2, detector.size());
+        // The evicted user's previous location is forgotten
+        assertFalse(detector.isImpossibleTravel("joe1680", "China", MINUTE));
+    }
+
+    @Test
+    void testTransactionsWithoutEventTimeAreNeverFlagged() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("joe1680", "Ireland", 0));
+        assertFalse(detector.isImpossibleTravel("joe1680", "China", Transaction.NO_TIMESTAMP));
+        // The transaction without event time didn't move the user
+        assertFalse(detector.isImpossibleTravel("joe1680", "Ireland", MINUTE));
+    }
+
+    @Test
+    void testOutOfOrderEventsUseTheRealGapAndKeepTheNewerState() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+
+        assertFalse(detector.isImpossibleTravel("joe1680", "Ireland", 12 * HOUR));
+        // Arrives late but was made twelve hours before, a flight apart
+        assertFalse(detector.isImpossibleTravel("joe1680", "China", 0));
+        // The user is still in Ireland as of the newer event, so China ten minutes later is impossible
+        assertTrue(detector.isImpossibleTravel("joe1680", "China", 12 * HOUR + 10 * MINUTE));
+    }
+
+    @Test
+    void testLocationsAreLookedUpByDictionaryId() {
+        ImpossibleTravelDetector detector = new ImpossibleTravelDetector();
+        CountryDictionary countries = CountryDictionary.shared();
+
+        assertFalse(detector.isImpossibleTravel("mkatiyar623", countries.idOf("India"), 0));
+        assertTrue(detector.isImpossibleTravel("mkatiyar623", countries.idOf("Eire"), 10 * MINUTE));
+        assertFalse(detector.isImpossibleTravel("mkatiyar623", CountryDictionary.UNKNOWN, 20 * MINUTE));
+        assertTrue(detector.isImpossibleTravel("mkatiyar623", "IN", 30 * MINUTE));
+    }
+
+    @Test
+    void testRoutingComparesEventTimesNotProcessingTimes() throws Exception {
+        // The same two transactions, read and routed within milliseconds of each other
+        List<String> hoursApart = Arrays.asList("joe1680 China 20.00 2021-03-01T08:00:00Z",
+                "joe1680 Ireland 30.00 2021-03-01T20:00:00Z");
+        List<String> minutesApart = Arrays.asList("joe1680 China 20.00 1614585600000",
+                "joe1680 Ireland 30.00 1614586200000");
+        List<String> withoutEventTime = Arrays.asList("joe1680 China 20.00", "joe1680 Ireland 30.00");
+
+        assertEquals(Arrays.asList("suspicious-transactions", "valid-transactions"), route(hoursApart));
+        assertEquals(Arrays.asList("suspicious-transactions", "suspicious-transactions"), route(minutesApart));
+        assertEquals(Arrays.asList("suspicious-transactions", "valid-transactions"), route(withoutEventTime));
+    }
+
+    private List<String> route(List<String> lines) throws Exception {
+        Path input = directory.resolve("transactions.txt");
+        Files.write(input, lines, StandardCharsets.UTF_8);
+        MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                new Transaction.TransactionSerializer());
+        try (IncomingTransactionsReader reader = new IncomingTransactionsReader(input.toString())) {
+            Application.processTransactions(reader, new TieredResidenceLookup(
+                    new CustomerAddressDatabase("test-user-residence.txt")), new ImpossibleTravelDetector(), producer);
+        }
+        List<String> topics = new ArrayList<>();
+        for (ProducerRecord<String, Transaction> record : producer.history()) {
+            topics.add(record.topic());
+        }
+        return topics;
+    }
+}
@@ -0,0 +1,88 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestionCheckpointTest {
+
+    private static final List<String> LINES = Arrays.asList("joe1680 Ireland 128.63", "dkelly9283 China 1653.32",
+            "", "fjoyce252 England 321.21", "ajamal327 California 34.87");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReaderResumesAtTheOffsetOfTheLastTransaction() throws Exception {
+        Path input = directory.resolve("transactions.txt");
+        Files.write(input, LINES, StandardCharsets.UTF_8);
+
+        long offset;
+        try (IncomingTransactionsReader reader = new IncomingTransactionsReader(input.toString())) {
+            assertEquals("joe1680", reader.next().getUser());
+            assertEquals("dkelly9283", reader.next().getUser());
+            offset = reader.getOffset();
+            // Reading ahead doesn't move the offset
+            assertTrue(reader.hasNext());
+            assertEquals(offset, reader.getOffset());
+        }
+
+        List<String> users = new ArrayList<>();
+        try (IncomingTransactionsReader reader = new IncomingTransactionsReader(input.toString(), offset)) {
+            reader.forEachRemaining(transaction -> users.add(transaction.getUser()));
+            assertEquals(Files.size(input), reader.getOffset());
+        }
+        assertEquals(Arrays.asList("fjoyce252", "ajamal327"), users);
+    }
+
+    @Test
+    void testCheckpointIsKeptPerSource() {
+        Path file = directory.resolve("state").resolve("ingest.checkpoint");
+        IngestionCheckpoint checkpoint = new IngestionCheckpoint(file, 1_000);
+
+        assertEquals(0, checkpoint.load("transactions.txt"));
+        checkpoint.save("transactions.txt", 42);
+
+        IngestionCheckpoint restarted = new IngestionCheckpoint(file, 1_000);
+        assertEquals(42, restarted.load("transactions.txt"));
+        assertEquals(0, restarted.load("other-transactions.txt"));
+        assertFalse(Files.exists(file.resolveSibling("ingest.checkpoint.tmp")));
+    }
+
+    @Test
+    void testRestartRoutesOnlyTransactionsAfterTheCheckpoint() throws Exception {
+        Path input = directory.resolve("transactions.txt");
+        Files.write(input, LINES, StandardCharsets.UTF_8);
+        IngestionCheckpoint checkpoint = new IngestionCheckpoint(directory.resolve("ingest.checkpoint"), 0);
+        CustomerAddressDatabase database = new CustomerAddressDatabase("test-user-residence.txt");
+
+        // First run crashes after the second transaction has been acknowledged and checkpointed
+        try (IncomingTransactionsReader reader = new IncomingTransactionsReader(input.toString())) {
+            List<Transaction> firstTwo = Arrays.asList(reader.next(), reader.next());
+            MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                    new Transaction.TransactionSerializer());
+            Application.processTransactions(firstTwo.iterator(), new TieredResidenceLookup(database),
+                    new ImpossibleTravelDetector(), producer,
+                    () -> checkpoint.save(reader.getSource(), reader.getOffset()));
+        }
+
+        long resumeOffset = checkpoint.load(input.toString());
+        MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                new Transaction.TransactionSerializer());
+        try (IncomingTransactionsReader reader = new IncomingTransactionsReader(input.toString(), resumeOffset)) {
+            Application.processTransactions(reader, new TieredResidenceLookup(database),
+                    new ImpossibleTravelDetector(), producer);
+        }
+        List<String> users = new ArrayList<>();
+        producer.history().forEach(record -> users.add(record.key()));
+        assertEquals(Arrays.asList("fjoyce252", "ajamal327"), users);
+    }
+}
@@ -0,0 +1,145 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryingSenderTest {
+
+    private static final String TOPIC = "suspicious-transactions";
+    private static final String DEAD_LETTER_TOPIC = "banking-api-dead-letter";
+
+    private final ServiceMetrics metrics = new ServiceMetrics("banking-api-retry-test");
+    private final MockProducer<String, String> mockProducer = new MockProducer<>(false, new StringSerializer(),
+            new StringSerializer());
+
+    @AfterEach
+    void closeMetrics() {
+        metrics.close();
+    }
+
+    @Test
+    void testParseDelays() {
+        assertEquals(Arrays.asList(Duration.ofSeconds(1), Duration.ofSeconds(30), Duration.ofMinutes(5)),
+                RetryingSender.parseDelays("1s,30s,5m"));
+        assertEquals(Arrays.asList(Duration.ofMillis(250), Duration.ofHours(1)),
+                RetryingSender.parseDelays(" 250ms , 1h "));
+        assertEquals(Collections.emptyList(), RetryingSender.parseDelays(""));
+        assertThrows(IllegalArgumentException.class, () -> RetryingSender.parseDelays("5d"));
+    }
+
+    @Test
+    void testFailedWaitIsRetriedInsteadOfThrown() throws Exception {
+        RetryingSender<String, String> sender = sender(Duration.ofMillis(20));
+        ExecutorService routing = Executors.newSingleThreadExecutor();
+        try {
+            Future<RecordMetadata> sent = routing.submit(() -> sender.sendAndWait(record("joe1680")));
+            await(() -> mockProducer.history().size() == 1);
+            assertTrue(mockProducer.errorNext(new TimeoutException("no broker")));
+            // The routing moves on, the record waits for its retry
+            assertNull(sent.get());
+            assertEquals(1, sender.getPending());
+
+            await(() -> mockProducer.history().size() == 2);
+            assertEquals(TOPIC, mockProducer.history().get(1).topic());
+            assertTrue(mockProducer.completeNext());
+            assertEquals(0, sender.getPending());
+            assertEquals(0, sender.getLost());
+        } finally {
+            routing.shutdownNow();
+            sender.close(0);
+        }
+    }
+
+    @Test
+    void testRecordIsDeadLetteredOnceEveryTierFailed() throws Exception {
+        RetryingSender<String, String> sender = sender(Duration.ofMillis(10), Duration.ofMillis(20));
+        sender.send(record("dkelly9283"));
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            int sends = attempt;
+            await(() -> mockProducer.history().size() == sends);
+            assertTrue(mockProducer.errorNext(new TimeoutException("attempt " + attempt)));
+        }
+
+        assertEquals(4, mockProducer.history().size());
+        ProducerRecord<String, String> deadLetter = mockProducer.history().get(3);
+        assertEquals(DEAD_LETTER_TOPIC, deadLetter.topic());
+        assertEquals("dkelly9283", deadLetter.key());
+        assertEquals(TOPIC, header(deadLetter, "retry.original.topic"));
+        assertEquals("2", header(deadLetter, "retry.attempt"));
+        assertTrue(header(deadLetter, "retry.error").contains("attempt 3"));
+        assertEquals(1, sender.getPending());
+        assertTrue(mockProducer.completeNext());
+        assertEquals(0, sender.getPending());
+        assertEquals(0, sender.getLost());
+        sender.close(0);
+    }
+
+    @Test
+    void testNonRetriableFailureSkipsTheRetries() throws Exception {
+        RetryingSender<String, String> sender = sender(Duration.ofMillis(10));
+        sender.send(record("fjoyce252"));
+        assertTrue(mockProducer.errorNext(new RecordTooLargeException("too large")));
+
+        assertEquals(2, mockProducer.history().size());
+        assertEquals(DEAD_LETTER_TOPIC, mockProducer.history().get(1).topic());
+        assertEquals("0", header(mockProducer.history().get(1), "retry.attempt"));
+        // The dead-letter send fails as well, the record is lost
+        assertTrue(mockProducer.errorNext(new RecordTooLargeException("too large")));
+        assertEquals(0, sender.getPending());
+        assertEquals(1, sender.getLost());
+        sender.close(0);
+    }
+
+    @Test
+    void testCloseDeadLettersRetriesThatAreNotDueYet() throws Exception {
+        RetryingSender<String, String> sender = sender(Duration.ofHours(1));
+        sender.send(record("ajamal327"));
+        assertTrue(mockProducer.errorNext(new TimeoutException("no broker")));
+        assertEquals(1, mockProducer.history().size());
+
+        sender.close(0);
+        assertEquals(2, mockProducer.history().size());
+        assertEquals(DEAD_LETTER_TOPIC, mockProducer.history().get(1).topic());
+        assertTrue(header(mockProducer.history().get(1), "retry.error").startsWith("not retried before shutdown"));
+        // close flushed the dead-letter send
+        assertEquals(0, sender.getPending());
+        assertEquals(0, sender.getLost());
+    }
+
+    private RetryingSender<String, String> sender(Duration... delays) {
+        return new RetryingSender<>(mockProducer, DEAD_LETTER_TOPIC, Arrays.asList(delays), metrics);
+    }
+
+    private static ProducerRecord<String, String> record(String user) {
+        return new ProducerRecord<>(TOPIC, user, user + " Ireland 128.63");
+    }
+
+    private static String header(ProducerRecord<String, String> record, String key) {
+        Header header = record.headers().lastHeader(key);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+}
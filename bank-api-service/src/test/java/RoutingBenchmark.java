@@ -0,0 +1,130 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the throughput and per transaction latency of the hand-written producer path with the Kafka Streams
+ * routing topology, both run in-process (MockProducer and TopologyTestDriver) so only the routing cost is measured.
+ * Not part of the default test run, run it with:
+ * mvn test -DskipTests=false -Dtest=RoutingBenchmark
+ */
+class RoutingBenchmark {
+
+    private static final int TRANSACTIONS = 200_000;
+    private static final int WARMUP_TRANSACTIONS = 50_000;
+    private static final String[] LOCATIONS = {"Ireland", "Dubai", "England", "California", "India", "China"};
+
+    @Test
+    void compareRoutingEngines() throws Exception {
+        CustomerAddressDatabase userDb = new CustomerAddressDatabase("test-user-residence.txt");
+        List<String> users = new ArrayList<>(userDb.getUserResidences().keySet());
+
+        // Keep the per transaction console output of the producer path out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            runProducerPath(userDb, generate(users, WARMUP_TRANSACTIONS));
+            long[] producerLatencies = runProducerPath(userDb, generate(users, TRANSACTIONS));
+            runStreamsPath(userDb, generate(users, WARMUP_TRANSACTIONS));
+            long[] streamsLatencies = runStreamsPath(userDb, generate(users, TRANSACTIONS));
+
+            report(console, "hand-written producer", producerLatencies);
+            report(console, "kafka streams topology", streamsLatencies);
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private static long[] runProducerPath(CustomerAddressDatabase userDb, List<Transaction> transactions)
+            throws Exception {
+        // Latency of a transaction runs from reading it to the last send made for it
+        long[] readAt = new long[transactions.size()];
+        long[] latencies = new long[transactions.size()];
+        Map<Transaction, Integer> positions = new IdentityHashMap<>();
+        Iterator<Transaction> source = transactions.iterator();
+        Iterator<Transaction> timedReader = new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Transaction next() {
+                Transaction transaction = source.next();
+                positions.put(transaction, next);
+                readAt[next++] = System.nanoTime();
+                return transaction;
+            }
+        };
+        MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                new Transaction.TransactionSerializer()) {
+            @Override
+            public synchronized Future<RecordMetadata> send(ProducerRecord<String, Transaction> record) {
+                Future<RecordMetadata> result = super.send(record);
+                int position = positions.get(record.value());
+                latencies[position] = System.nanoTime() - readAt[position];
+                // Keep the history from growing over the whole run
+                clear();
+                return result;
+            }
+        };
+        Application.processTransactions(timedReader, new TieredResidenceLookup(userDb),
+                new ImpossibleTravelDetector(), producer);
+        return latencies;
+    }
+
+    private static long[] runStreamsPath(CustomerAddressDatabase userDb, List<Transaction> transactions) {
+        Properties prop = new Properties();
+        prop.put(StreamsConfig.APPLICATION_ID_CONFIG, "routing-benchmark");
+        prop.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        long[] latencies = new long[transactions.size()];
+        try (TopologyTestDriver testDriver = new TopologyTestDriver(StreamsRoutingTopology.build(), prop)) {
+            TestInputTopic<String, String> residencesTopic = testDriver.createInputTopic(
+                    StreamsRoutingTopology.RESIDENCES_TOPIC, new StringSerializer(), new StringSerializer());
+            userDb.getUserResidences().forEach(residencesTopic::pipeInput);
+            TestInputTopic<String, Transaction> incomingTopic = testDriver.createInputTopic(
+                    StreamsRoutingTopology.INCOMING_TOPIC, new StringSerializer(), new Transaction.TransactionSerializer());
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction transaction = transactions.get(i);
+                long started = System.nanoTime();
+                incomingTopic.pipeInput(transaction.getUser(), transaction);
+                latencies[i] = System.nanoTime() - started;
+            }
+        }
+        return latencies;
+    }
+
+    private static List<Transaction> generate(List<String> users, int count) {
+        Random random = new Random(42);
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            transactions.add(new Transaction(users.get(random.nextInt(users.size())),
+                    Math.round(random.nextDouble() * 150_000) / 100.0, LOCATIONS[random.nextInt(LOCATIONS.length)]));
+        }
+        return transactions;
+    }
+
+    private static void report(PrintStream console, String engine, long[] latencies) {
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        console.println(String.format("[%s] - [Throughput: %.0f transactions/s, p50: %.1f us, p99: %.1f us]",
+                engine, latencies.length / (total / 1e9), sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.99)] / 1e3));
+    }
+}
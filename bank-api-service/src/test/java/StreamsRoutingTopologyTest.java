@@ -0,0 +1,144 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamsRoutingTopologyTest {
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final List<String> ROUTED_TOPICS = Arrays.asList("valid-transactions", "suspicious-transactions",
+            "high-value-transactions", "quarantined-transactions");
+
+    private TopologyTestDriver testDriver;
+    private TestInputTopic<String, Transaction> incomingTopic;
+    private TestOutputTopic<String, Transaction> validTopic;
+    private TestOutputTopic<String, Transaction> suspiciousTopic;
+    private TestOutputTopic<String, Transaction> highValueTopic;
+    private TestOutputTopic<String, Transaction> quarantineTopic;
+
+    @BeforeEach
+    void setup() {
+        Properties prop = new Properties();
+        prop.put(StreamsConfig.APPLICATION_ID_CONFIG, "banking-api-routing-test");
+        prop.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        testDriver = new TopologyTestDriver(StreamsRoutingTopology.build(), prop);
+
+        TestInputTopic<String, String> residencesTopic = testDriver.createInputTopic(
+                StreamsRoutingTopology.RESIDENCES_TOPIC, new StringSerializer(), new StringSerializer());
+        for (Map.Entry<String, String> residence :
+                new CustomerAddressDatabase("test-user-residence.txt").getUserResidences().entrySet()) {
+            residencesTopic.pipeInput(residence.getKey(), residence.getValue());
+        }
+
+        incomingTopic = testDriver.createInputTopic(StreamsRoutingTopology.INCOMING_TOPIC,
+                new StringSerializer(), new Transaction.TransactionSerializer());
+        validTopic = outputTopic("valid-transactions");
+        suspiciousTopic = outputTopic("suspicious-transactions");
+        highValueTopic = outputTopic("high-value-transactions");
+        quarantineTopic = outputTopic("quarantined-transactions");
+    }
+
+    @AfterEach
+    void teardown() {
+        testDriver.close();
+    }
+
+    @Test
+    void testRoutesLikeTheProducerPath() {
+        IncomingTransactionsReader transactionsReader = new IncomingTransactionsReader("test-transactions.txt");
+        while (transactionsReader.hasNext()) {
+            Transaction transaction = transactionsReader.next();
+            incomingTopic.pipeInput(transaction.getUser(), transaction);
+        }
+
+        assertEquals(4, validTopic.getQueueSize());
+        Transaction suspicious = suspiciousTopic.readValue();
+        assertEquals(new Transaction("dkelly9283", 1653.32, "China"), suspicious);
+        assertEquals(suspicious, highValueTopic.readValue());
+        assertTrue(suspiciousTopic.isEmpty());
+        assertTrue(quarantineTopic.isEmpty());
+    }
+
+    @Test
+    void testMessageContents() {
+        Transaction transaction = new Transaction("joe1680", 128.63, "Ireland");
+        incomingTopic.pipeInput(transaction.getUser(), transaction);
+
+        assertEquals(new org.apache.kafka.streams.KeyValue<>("joe1680", transaction), validTopic.readKeyValue());
+    }
+
+    @Test
+    void testUnknownUserIsQuarantined() {
+        Transaction transaction = new Transaction("ghost404", 50.00, "Ireland");
+        incomingTopic.pipeInput(transaction.getUser(), transaction);
+
+        assertEquals(transaction, quarantineTopic.readValue());
+        assertTrue(validTopic.isEmpty());
+        assertTrue(suspiciousTopic.isEmpty());
+    }
+
+    @Test
+    void testRoutesLikeTheDefaultEngine() throws Exception {
+        List<Transaction> transactions = Arrays.asList(
+                transaction("joe1680", 20.00, "Ireland", 0),
+                // Away from home, and too far to have got there in ten minutes
+                transaction("joe1680", 30.00, "China", 10 * MINUTE),
+                // Home, but only ten minutes after China
+                transaction("joe1680", 40.00, "Ireland", 20 * MINUTE),
+                transaction("joe1680", 50.00, "Ireland", 20 * HOUR),
+                transaction("dkelly9283", 1653.32, "China", Transaction.NO_TIMESTAMP),
+                transaction("dkelly9283", 1200.00, "Dubai", HOUR),
+                transaction("fjoyce252", 321.21, "England", Transaction.NO_TIMESTAMP),
+                transaction("ghost404", 50.00, "Ireland", 0));
+
+        Map<String, List<Transaction>> defaultEngine = routeWithDefaultEngine(transactions);
+        for (Transaction transaction : transactions) {
+            incomingTopic.pipeInput(transaction.getUser(), transaction);
+        }
+        Map<String, List<Transaction>> streamsEngine = new HashMap<>();
+        for (String topic : ROUTED_TOPICS) {
+            streamsEngine.put(topic, outputTopic(topic).readValuesToList());
+        }
+
+        assertEquals(defaultEngine, streamsEngine);
+        assertEquals(Arrays.asList(transactions.get(1), transactions.get(2), transactions.get(4)),
+                streamsEngine.get("suspicious-transactions"));
+    }
+
+    private static Map<String, List<Transaction>> routeWithDefaultEngine(List<Transaction> transactions)
+            throws Exception {
+        MockProducer<String, Transaction> producer = new MockProducer<>(true, new StringSerializer(),
+                new Transaction.TransactionSerializer());
+        Application.processTransactions(transactions.iterator(), new TieredResidenceLookup(
+                new CustomerAddressDatabase("test-user-residence.txt")), new ImpossibleTravelDetector(), producer);
+        Map<String, List<Transaction>> routed = new HashMap<>();
+        for (String topic : ROUTED_TOPICS) {
+            routed.put(topic, new ArrayList<>());
+        }
+        for (ProducerRecord<String, Transaction> record : producer.history()) {
+            routed.get(record.topic()).add(record.value());
+        }
+        return routed;
+    }
+
+    private static Transaction transaction(String user, double amount, String location, long timestamp) {
+        Transaction transaction = new Transaction(user, amount, location);
+        transaction.setTimestamp(timestamp);
+        return transaction;
+    }
+
+    private TestOutputTopic<String, Transaction> outputTopic(String topic) {
+        return testDriver.createOutputTopic(topic, new StringDeserializer(), new Transaction.TransactionDeserializer());
+    }
+}
@@ -0,0 +1,80 @@
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredResidenceLookupTest {
+
+    private static final String QUARANTINE_TOPIC = "quarantined-transactions";
+    private CustomerAddressDatabase userDb;
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setup() {
+        userDb = new CustomerAddressDatabase("test-user-residence.txt");
+        clock = new AtomicLong();
+    }
+
+    @Test
+    void testPrefetchLoadsBatchWithOneStoreCall() throws ExecutionException, InterruptedException {
+        TieredResidenceLookup lookup = new TieredResidenceLookup(userDb, 100, 1000, Runnable::run, clock::get);
+        lookup.prefetch(Arrays.asList("joe1680", "dkelly9283", "fjoyce252")).get();
+
+        assertEquals("Ireland", lookup.getUserResidence("joe1680"));
+        assertEquals("Dubai", lookup.getUserResidence("dkelly9283"));
+        assertEquals("England", lookup.getUserResidence("fjoyce252"));
+        assertEquals(1, lookup.getStoreCalls());
+        assertEquals(3, lookup.getHits());
+    }
+
+    @Test
+    void testUnknownUserIsNegativelyCachedUntilTtlExpires() {
+        TieredResidenceLookup lookup = new TieredResidenceLookup(userDb, 100, 1000, Runnable::run, clock::get);
+
+        assertNull(lookup.getUserResidence("ghost404"));
+        assertNull(lookup.getUserResidence("ghost404"));
+        assertEquals(1, lookup.getStoreCalls());
+        assertEquals(1, lookup.getNegativeHits());
+
+        clock.set(1000);
+        assertNull(lookup.getUserResidence("ghost404"));
+        assertEquals(2, lookup.getStoreCalls());
+    }
+
+    @Test
+    void testLeastRecentlyUsedUserIsEvicted() {
+        TieredResidenceLookup lookup = new TieredResidenceLookup(userDb, 2, 1000, Runnable::run, clock::get);
+        lookup.getUserResidence("joe1680");
+        lookup.getUserResidence("dkelly9283");
+        lookup.getUserResidence("joe1680");
+        lookup.getUserResidence("fjoyce252");
+
+        assertEquals(2, lookup.size());
+        lookup.getUserResidence("joe1680");
+        assertEquals(3, lookup.getStoreCalls());
+        lookup.getUserResidence("dkelly9283");
+        assertEquals(4, lookup.getStoreCalls());
+    }
+
+    @Test
+    void testUnknownUserIsQuarantined() throws ExecutionException, InterruptedException {
+        IncomingTransactionsReader transactionsReader =
+                new IncomingTransactionsReader("test-unknown-user-transactions.txt");
+        MockProducer<String, Transaction> mockProducer =
+                new MockProducer<>(true, new StringSerializer(), new Transaction.TransactionSerializer());
+
+        Application.processTransactions(transactionsReader, userDb, mockProducer);
+
+        assertEquals(3, mockProducer.history().size());
+        ProducerRecord<String, Transaction> record = mockProducer.history().get(1);
+        assertEquals(QUARANTINE_TOPIC, record.topic());
+        assertEquals("ghost404", record.key());
+    }
+}
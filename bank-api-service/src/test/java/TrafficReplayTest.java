@@ -0,0 +1,147 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficReplayTest {
+
+    private static final List<String> TOPICS = Arrays.asList("valid-transactions", "suspicious-transactions",
+            "high-value-transactions");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testFileRoundTripKeepsOrderTimestampsAndBytes() throws Exception {
+        Path file = directory.resolve("capture.bktc");
+        List<TrafficFile.CapturedRecord> records = Arrays.asList(
+                record(1_000_000, "valid-transactions", 2, "joe1680", 10.5, "Ireland"),
+                // Slightly older record of another partition
+                record(999_990, "suspicious-transactions", 0, "dkelly9283", 50.0, "China"),
+                new TrafficFile.CapturedRecord(1_005_000, "high-value-transactions", 1, null, null));
+        try (TrafficFile.Writer writer = new TrafficFile.Writer(file, TOPICS)) {
+            for (TrafficFile.CapturedRecord record : records) {
+                writer.write(record);
+            }
+        }
+
+        List<TrafficFile.CapturedRecord> read = new ArrayList<>();
+        try (TrafficFile.Reader reader = new TrafficFile.Reader(file)) {
+            assertEquals(TOPICS, reader.getTopics());
+            reader.forEachRemaining(read::add);
+        }
+        assertEquals(3, read.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).getTimestamp(), read.get(i).getTimestamp());
+            assertEquals(records.get(i).getTopic(), read.get(i).getTopic());
+            assertEquals(records.get(i).getPartition(), read.get(i).getPartition());
+            assertArrayEquals(records.get(i).getKey(), read.get(i).getKey());
+            assertArrayEquals(records.get(i).getValue(), read.get(i).getValue());
+        }
+    }
+
+    @Test
+    void testCaptureWritesPolledRecords() throws Exception {
+        MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        TopicPartition partition = new TopicPartition("valid-transactions", 0);
+        consumer.assign(Collections.singletonList(partition));
+        consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+        for (int i = 0; i < 5; i++) {
+            TrafficFile.CapturedRecord record = record(1000 + i, "valid-transactions", 0, "joe1680", i, "Ireland");
+            consumer.addRecord(new ConsumerRecord<>("valid-transactions", 0, i, record.getTimestamp(),
+                    TimestampType.CREATE_TIME, 0L, 0, 0, record.getKey(),
+                    record.getValue()));
+        }
+
+        Path file = directory.resolve("capture.bktc");
+        try (TrafficFile.Writer writer = new TrafficFile.Writer(file, TOPICS)) {
+            assertEquals(5, TrafficCapture.capture(consumer, writer, 100));
+        }
+        try (TrafficFile.Reader reader = new TrafficFile.Reader(file)) {
+            assertEquals(1004, last(reader).getTimestamp());
+        }
+    }
+
+    @Test
+    void testReplayToTopicsKeepsRelativeTimingAtSpeed() throws Exception {
+        Path file = writeCapture(directory.resolve("capture.bktc"), 11, 100);
+        MockProducer<byte[], byte[]> producer = new MockProducer<>(true, new ByteArraySerializer(),
+                new ByteArraySerializer());
+
+        long start = System.nanoTime();
+        try (TrafficFile.Reader reader = new TrafficFile.Reader(file)) {
+            // 1 second of traffic at 5x takes 200 ms
+            assertEquals(11, new TrafficReplay(TrafficReplay.parseSpeed("5x")).toTopics(reader, producer));
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis >= 190, "replay took " + elapsedMillis + " ms");
+        assertEquals(11, producer.history().size());
+        assertEquals(1, producer.history().get(0).partition());
+    }
+
+    @Test
+    void testReplayTransactionsAtMaxSpeedSkipsHighValueCopies() throws Exception {
+        Path file = directory.resolve("capture.bktc");
+        try (TrafficFile.Writer writer = new TrafficFile.Writer(file, TOPICS)) {
+            writer.write(record(0, "high-value-transactions", 0, "dkelly9283", 1653.32, "China"));
+            writer.write(record(0, "suspicious-transactions", 0, "dkelly9283", 1653.32, "China"));
+            writer.write(record(3_600_000, "valid-transactions", 0, "joe1680", 10.5, "Ireland"));
+        }
+
+        List<Transaction> transactions = new ArrayList<>();
+        long start = System.nanoTime();
+        try (TrafficFile.Reader reader = new TrafficFile.Reader(file)) {
+            new TrafficReplay(TrafficReplay.parseSpeed("max")).transactions(reader, "high-value-transactions")
+                    .forEachRemaining(transactions::add);
+        }
+
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        assertEquals(Arrays.asList(new Transaction("dkelly9283", 1653.32, "China"),
+                new Transaction("joe1680", 10.5, "Ireland")), transactions);
+    }
+
+    @Test
+    void testInvalidSpeedIsRejected() {
+        assertEquals(0, TrafficReplay.parseSpeed("max"));
+        assertEquals(10, TrafficReplay.parseSpeed("10x"));
+        assertThrows(IllegalArgumentException.class, () -> TrafficReplay.parseSpeed("0x"));
+    }
+
+    private static Path writeCapture(Path file, int count, long intervalMillis) throws Exception {
+        try (TrafficFile.Writer writer = new TrafficFile.Writer(file, TOPICS)) {
+            for (int i = 0; i < count; i++) {
+                writer.write(record(1_000_000 + i * intervalMillis, "valid-transactions", 1, "joe1680", i,
+                        "Ireland"));
+            }
+        }
+        return file;
+    }
+
+    private static TrafficFile.CapturedRecord record(long timestamp, String topic, int partition, String user,
+                                                     double amount, String location) {
+        byte[] value = new Transaction.TransactionSerializer().serialize(topic,
+                new Transaction(user, amount, location));
+        return new TrafficFile.CapturedRecord(timestamp, topic, partition, user.getBytes(StandardCharsets.UTF_8),
+                value);
+    }
+
+    private static TrafficFile.CapturedRecord last(Iterator<TrafficFile.CapturedRecord> records) {
+        TrafficFile.CapturedRecord last = null;
+        while (records.hasNext()) {
+            last = records.next();
+        }
+        return last;
+    }
+}
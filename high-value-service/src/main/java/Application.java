@@ -1,22 +1,46 @@
 import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 
-import java.time.Duration;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Application {
     // Final Strings of the Topic and Servers available
     private static final String TOPIC = "high-value-transactions";
     private static final String BOOTSTRAP_SERVERS = "localhost:9092,localhost:9093,localhost:9094";
+    // How long a stopped static member keeps its partitions before the group rebalances without it
+    private static final int SESSION_TIMEOUT_MS = Integer.getInteger("consumer.session.timeout.ms", 45_000);
+    // Delays of the retry topics failed records go through before the dead-letter topic
+    private static final String DEFAULT_RETRY_DELAYS = "1s,30s,5m";
+    // Instance slot locks, held for the life of the process
+    private static final List<FileLock> INSTANCE_SLOTS = new CopyOnWriteArrayList<>();
 
     /**
      * Main method call for Application class. Creates new instance of Application. Creates a consumerGroup
      * prints to console the consumerGroup and then creates a new accountConsumer with the BOOTSTRAP_SERVERS and
-     * consumerGroup. Calls the consumeMessage function passing the TOPIC and accountConsumer as parameters.
+     * consumerGroup. Calls the consumeMessage function passing the TOPIC, accountConsumer and the service
+     * metrics as parameters. Started with --cds-training it runs the StartupTraining instead and exits.
      * @param args
+     * @throws InterruptedException
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         // Create a instance of class Application
         Application kafkaHighValueNotificationConsumerApp = new Application();
         // String stores the service I.D. of this consumer group
@@ -24,46 +48,51 @@ public class Application {
         // Print out message of which Consumer Group we belong to
         System.out.println("Consumer is part of consumer group " + consumerGroup + "\n");
 
+        // Run generated records through the hot path and exit, used to build the class data sharing archive
+        if (Arrays.asList(args).contains("--cds-training")) {
+            StartupTraining.run(Collections.singletonList(TOPIC), record -> highValueTransactionForReporting(record.topic(), record.value()), new ServiceMetrics(consumerGroup));
+            return;
+        }
+
         // Call createKafkaConsumer method and pass the Servers and Consumer Group
         Consumer<String, Transaction> highValueConsumer = kafkaHighValueNotificationConsumerApp.createKafkaConsumer(BOOTSTRAP_SERVERS, consumerGroup);
-        // Call consumerMessages method and pass the TOPIC and Consumer we created above
-        kafkaHighValueNotificationConsumerApp.consumeMessages(TOPIC, highValueConsumer);
+        // Create the metrics registry the consumer loop reports its lag and worker count to
+        ServiceMetrics metrics = new ServiceMetrics(consumerGroup);
+        // Records the handler fails on are moved to the retry topics instead of blocking their partition
+        RetryTopics<String, Transaction> retries = createRetryTopics(BOOTSTRAP_SERVERS, consumerGroup, metrics);
+        // Call consumerMessages method and pass the TOPIC, Consumer, metrics and retries we created above
+        kafkaHighValueNotificationConsumerApp.consumeMessages(TOPIC, highValueConsumer, metrics, retries);
     }
 
     /**
-     * Takes in two parameters topics and kafkaConsumer and subscribes the topics to the kafkaConsumer.
-     * Continues to listen indefinitely and polls the kafkaConsumer into a ConsumerRecords<String, Transaction>.
-     * While consumerRecords is not empty loop through each record in consumerRecords and call the function
-     * highValueTransactionForReporting passing the record topic and record value (Transaction). Commit asynchronous
+     * Takes in four parameters topic, kafkaConsumer, metrics and retries and subscribes the topic and the retry
+     * topics to the kafkaConsumer. Failed records are moved aside through retries.
+     * Continues to listen indefinitely through a ConsumerLoop, which scales its worker threads with the consumer lag
+     * and calls the function highValueTransactionForReporting passing the record topic and
+     * record value (Transaction) for each record.
      * @param topic
      * @param kafkaConsumer
+     * @param metrics
+     * @param retries
+     * @throws InterruptedException
      */
-    public static void consumeMessages(String topic, Consumer<String, Transaction> kafkaConsumer) {
-        // Subscribe the consumer to the topic passed in list format
-        kafkaConsumer.subscribe(Collections.singletonList(topic));
+    public static void consumeMessages(String topic, Consumer<String, Transaction> kafkaConsumer,
+                                       ServiceMetrics metrics, RetryTopics<String, Transaction> retries)
+            throws InterruptedException {
+        ConsumerLoop<String, Transaction> consumerLoop = new ConsumerLoop<>(kafkaConsumer, metrics);
+        // Subscribe the consumer to the topic passed in list format, the service keeps no partition state
+        consumerLoop.subscribe(Collections.singletonList(topic), PartitionStateStore.NONE, retries);
 
-        // Create an indefinite loop while continuously checking for new messages
-        while (true) {
-            // ConsumerRecords stores a list of ConsumerRecords and polls every 1 second
-            ConsumerRecords<String, Transaction> consumerRecords = kafkaConsumer.poll(Duration.ofSeconds(1));
-            // If consumerRecords is not empty i.e. has a record then do
-            if (!consumerRecords.isEmpty()) {
-                // For each ConsumerRecord in the list ConsumerRecords consume message
-                for (ConsumerRecord<String, Transaction> record : consumerRecords) {
-                    // Call function highValueTransactionForReporting passing the record topic and value (Transaction)
-                    highValueTransactionForReporting(record.topic(), record.value());
-                }
-            } else {
-                // DO NOTHING FOR NOW
-            }
-            // Tell kafka its done processing messages with a commit as a final confirmation
-            kafkaConsumer.commitAsync();
-        }
+        // Call function highValueTransactionForReporting passing the record topic and value (Transaction)
+        consumerLoop.run(
+                record -> highValueTransactionForReporting(record.topic(), record.value()));
     }
 
     /**
      * Takes in two parameters bootstrapServers and consumerGroup. Creates a new Properties, prop, and adds the
      * servers (ports), deserializes the <Key, Value> pair, adds the consumerGroup I.D. and sets auto commits to false.
+     * Partitions are assigned with the cooperative sticky assignor and the consumer is a static member of the group,
+     * so a rebalance only stops the partitions that move and a restart within the session timeout doesn't rebalance.
      * Returns a new KafkaConsumer of type <String, Transaction> with the new Properties, prop.
      * @param bootstrapServers
      * @param consumerGroup
@@ -82,10 +111,97 @@ public class Application {
         prop.put(ConsumerConfig.GROUP_ID_CONFIG, consumerGroup);
         // Disable auto commit configuration
         prop.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Only revoke the partitions that move to another consumer instead of stopping every partition
+        prop.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, CooperativeStickyAssignor.class.getName());
+        // Rejoin under the same identity after a restart so the partitions stay where they were
+        prop.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupInstanceId(consumerGroup));
+        prop.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, SESSION_TIMEOUT_MS);
+        // Let a poll return up to the largest batch the poll controller may choose, within the same poll interval
+        prop.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, ConsumerLoop.MAX_BATCH);
+        prop.put(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, ConsumerLoop.MAX_POLL_INTERVAL_MILLIS);
         // Returns a new KafkaConsumer made with the properties we set in prop
         return new KafkaConsumer<String, Transaction>(prop);
     }
 
+    /**
+     * Takes in three parameters bootstrapServers, consumerGroup and metrics and returns the RetryTopics records the
+     * handler fails on are moved to, with the retry tiers of the consumer.retry.delays system property (default
+     * DEFAULT_RETRY_DELAYS). The producer waits for every replica, the consumer commits the failed records once
+     * they are moved aside.
+     * @param bootstrapServers
+     * @param consumerGroup
+     * @param metrics
+     * @return
+     */
+    private static RetryTopics<String, Transaction> createRetryTopics(String bootstrapServers, String consumerGroup,
+                                                                     ServiceMetrics metrics) {
+        Properties prop = new Properties();
+        prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        prop.put(ProducerConfig.ACKS_CONFIG, "all");
+        Producer<byte[], byte[]> producer = new KafkaProducer<byte[], byte[]>(prop);
+        return new RetryTopics<>(consumerGroup, RetryTopics.parseDelays(System.getProperty("consumer.retry.delays",
+                DEFAULT_RETRY_DELAYS)), producer, new StringSerializer(), new Transaction.TransactionSerializer(),
+                metrics);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the static member I.D. of this instance, set with the
+     * consumer.instance.id system property or the CONSUMER_INSTANCE_ID environment variable, otherwise derived from
+     * the host name and the instance slot this process holds on the host. Every instance in the group needs its own.
+     * @param consumerGroup
+     * @return
+     */
+    private static String groupInstanceId(String consumerGroup) {
+        String instanceId = System.getProperty("consumer.instance.id", System.getenv("CONSUMER_INSTANCE_ID"));
+        if (instanceId != null) {
+            return instanceId;
+        }
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Unknown host name, set consumer.instance.id]");
+            hostName = "localhost";
+        }
+        return consumerGroup + "-" + hostName + "-" + instanceSlot(consumerGroup);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the lowest instance slot of the group that no other consumer
+     * on this host holds, locking it for the life of the process. Instances started side by side get different
+     * slots, while a restarted instance takes its slot, and so its static membership, back. Falls back to the
+     * process I.D. when the lock files in java.io.tmpdir can't be written.
+     * @param consumerGroup
+     * @return
+     */
+    private static String instanceSlot(String consumerGroup) {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        try {
+            for (int slot = 0; ; slot++) {
+                FileChannel channel = FileChannel.open(directory.resolve(consumerGroup + "-instance-" + slot + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    FileLock lock = channel.tryLock();
+                    if (lock != null) {
+                        INSTANCE_SLOTS.add(lock);
+                        return Integer.toString(slot);
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // Held by another consumer of this process
+                }
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to lock an instance slot, set consumer.instance.id]");
+            return "pid" + ProcessHandle.current().pid();
+        }
+    }
+
     /**
      * Takes in two parameters topic and transaction and prints out a formatted string to the console
      * with all the needed details of the passed Transaction.
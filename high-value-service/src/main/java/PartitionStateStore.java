@@ -0,0 +1,50 @@
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * State a consumer keeps per partition (aggregates, ledgers, join buffers). The {@link StatefulRebalanceListener}
+ * calls it only for the partitions that actually move: checkpoint before a partition is handed to another consumer,
+ * restore when one is newly assigned, and drop when a partition was lost without a chance to checkpoint it.
+ * The consumer loops call flush before committing offsets, so the state of committed records is never lost.
+ */
+public interface PartitionStateStore {
+    /**
+     * Store for consumers without any partition state
+     */
+    PartitionStateStore NONE = new PartitionStateStore() {
+        @Override
+        public void checkpoint(TopicPartition partition) {
+        }
+
+        @Override
+        public void restore(TopicPartition partition) {
+        }
+
+        @Override
+        public void drop(TopicPartition partition) {
+        }
+    };
+
+    /**
+     * Flushes and saves the state of a partition that is being revoked, then releases it from memory
+     * @param partition
+     */
+    void checkpoint(TopicPartition partition);
+
+    /**
+     * Loads the last checkpoint of a newly assigned partition, if there is one
+     * @param partition
+     */
+    void restore(TopicPartition partition);
+
+    /**
+     * Discards the state of a partition that was lost, its new owner restores it from the last checkpoint
+     * @param partition
+     */
+    void drop(TopicPartition partition);
+
+    /**
+     * Makes the state changes of the records processed so far durable, called before their offsets are committed
+     */
+    default void flush() {
+    }
+}
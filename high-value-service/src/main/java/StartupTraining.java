@@ -0,0 +1,81 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Training run used to build the AppCDS archive of the fast-startup profile, and to benchmark startup.
+ * Synthetic transactions are deserialized and pushed through the same ConsumerLoop and handler as the live service,
+ * using a MockConsumer instead of the brokers, so every class on the hot path gets loaded (and archived when run
+ * with -XX:ArchiveClassesAtExit). Prints the time to first record and time to peak throughput when done.
+ * The number of records can be changed with the training.records system property.
+ */
+public class StartupTraining {
+    private static final int TRAINING_RECORDS = Integer.getInteger("training.records", 200_000);
+    private static final int RECORDS_PER_POLL = 500;
+    private static final String[] USERS = {"joe1680", "dkelly9283", "fjoyce252", "ajamal327", "mkatiyar623"};
+    private static final String[] LOCATIONS = {"Ireland", "Dubai", "England", "California", "India"};
+
+    /**
+     * Takes in three parameters topics, handler and metrics and runs the training records through the handler
+     * @param topics
+     * @param handler
+     * @param metrics
+     * @throws InterruptedException
+     */
+    public static void run(List<String> topics, ConsumerLoop.RecordHandler<String, Transaction> handler,
+                           ServiceMetrics metrics) throws InterruptedException {
+        MockConsumer<String, Transaction> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        List<TopicPartition> partitions = new ArrayList<>();
+        Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+        for (String topic : topics) {
+            TopicPartition partition = new TopicPartition(topic, 0);
+            partitions.add(partition);
+            beginningOffsets.put(partition, 0L);
+        }
+        consumer.subscribe(topics);
+        consumer.rebalance(partitions);
+        consumer.updateBeginningOffsets(beginningOffsets);
+
+        ConsumerLoop<String, Transaction> loop = new ConsumerLoop<>(consumer, metrics);
+        Transaction.TransactionDeserializer deserializer = new Transaction.TransactionDeserializer();
+        AtomicLong handled = new AtomicLong();
+        Map<TopicPartition, Long> endOffsets = new HashMap<>(beginningOffsets);
+        Random random = new Random(42);
+
+        // Keep the per record console output of the handler out of the way, it is still exercised
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            int added = 0;
+            while (handled.get() < TRAINING_RECORDS) {
+                // Feed the next poll's worth of records as if they had just arrived from the brokers
+                for (int i = 0; i < RECORDS_PER_POLL && added < TRAINING_RECORDS; i++, added++) {
+                    TopicPartition partition = partitions.get(added % partitions.size());
+                    String user = USERS[random.nextInt(USERS.length)];
+                    byte[] json = String.format("{\"user\":\"%s\",\"amount\":%.2f,\"transactionLocation\":\"%s\"}",
+                            user, random.nextDouble() * 2000, LOCATIONS[random.nextInt(LOCATIONS.length)])
+                            .getBytes(StandardCharsets.UTF_8);
+                    long offset = endOffsets.get(partition);
+                    consumer.addRecord(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, user,
+                            deserializer.deserialize(partition.topic(), json)));
+                    endOffsets.put(partition, offset + 1);
+                }
+                consumer.updateEndOffsets(endOffsets);
+                loop.pollOnce(record -> {
+                    handler.handle(record);
+                    handled.incrementAndGet();
+                });
+            }
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println(loop.getStartupTimer().summary());
+    }
+}
@@ -1,7 +1,25 @@
 import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
-import java.time.Duration;
+import org.apache.kafka.common.serialization.StringSerializer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Application {
     // Final String List of the TOPICS and Servers available
@@ -9,14 +27,66 @@ public class Application {
     private static final List<String> TOPICS = Collections.unmodifiableList(
             Arrays.asList("valid-transactions","suspicious-transactions","high-value-transactions"));
     private static final String BOOTSTRAP_SERVERS = "localhost:9092,localhost:9093,localhost:9094";
+    // How long a stopped static member keeps its partitions before the group rebalances without it
+    private static final int SESSION_TIMEOUT_MS = Integer.getInteger("consumer.session.timeout.ms", 45_000);
+    // Delays of the retry topics failed records go through before the dead-letter topic
+    private static final String DEFAULT_RETRY_DELAYS = "1s,30s,5m";
+    // Instance slot locks, held for the life of the process
+    private static final List<FileLock> INSTANCE_SLOTS = new CopyOnWriteArrayList<>();
+    // Size, retention and HTTP port of the index of recent transactions
+    private static final int INDEX_CAPACITY = Integer.getInteger("reporting.index.capacity", 1_000_000);
+    private static final long INDEX_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final int QUERY_PORT = Integer.getInteger("reporting.query.port", 8085);
+    // Number of hourly analytics windows kept
+    private static final int ANALYTICS_HOURS = Integer.getInteger("reporting.analytics.hours", 24);
 
     /**
      * Main method call for Application class. Creates new instance of Application. Creates a consumerGroup
      * prints to console the consumerGroup and then creates a new accountConsumer with the BOOTSTRAP_SERVERS and
-     * consumerGroup. Calls the consumeMessage function passing the TOPICS and accountConsumer as parameters.
+     * consumerGroup. Calls the consumeMessage function passing the TOPICS, accountConsumer and the service
+     * metrics as parameters. When started with --backfill <start> <end> <output-file> it instead runs a
+     * ReportingBackfill over the TOPICS between the two ISO-8601 timestamps and exits. Otherwise it also creates the
+     * RecentTransactionIndex and the QueryServer answering queries against it. Started with --cds-training it runs
+     * the StartupTraining instead and exits.
      * @param args
+     * @throws InterruptedException
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        // Run the backfill mode instead of joining the consumer group when asked to
+        if (args.length > 0 && args[0].equals("--backfill")) {
+            String usage = "Usage: --backfill <start-timestamp> <end-timestamp> <output-file>";
+            if (args.length != 4) {
+                System.out.println(usage);
+                return;
+            }
+            // Try to parse the ISO-8601 timestamps, catch parse errors and print the usage to console
+            long startMillis;
+            long endMillis;
+            try {
+                startMillis = Instant.parse(args[1]).toEpochMilli();
+                endMillis = Instant.parse(args[2]).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                System.out.println("ERROR-EXCEPTION - [Invalid backfill timestamp " + e.getParsedString() + "]");
+                System.out.println(usage);
+                return;
+            }
+            if (endMillis <= startMillis) {
+                System.out.println("ERROR-EXCEPTION - [The backfill end timestamp must be after the start timestamp]");
+                System.out.println(usage);
+                return;
+            }
+            ReportingBackfill backfill = new ReportingBackfill(BOOTSTRAP_SERVERS, TOPICS, startMillis, endMillis,
+                    Paths.get(args[3]));
+            // Try to run the backfill, catch IO Exceptions and print errors to console
+            try {
+                backfill.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("ERROR-EXCEPTION - [Failed to write the backfill output!]");
+            }
+            return;
+        }
+
         // Create a instance of class Application
         Application kafkaReportingNotificationConsumerApp = new Application();
         // String stores the service I.D. of this consumer group
@@ -24,46 +94,90 @@ public class Application {
         // Print out message of which Consumer Group we belong to
         System.out.println("Consumer is part of consumer group " + consumerGroup + "\n");
 
+        // Run generated records through the hot path and exit, used to build the class data sharing archive
+        if (Arrays.asList(args).contains("--cds-training")) {
+            RecentTransactionIndex trainingIndex = new RecentTransactionIndex(INDEX_CAPACITY, INDEX_RETENTION_MILLIS,
+                    TOPICS);
+            WindowedAnalytics trainingAnalytics = new WindowedAnalytics(ANALYTICS_HOURS, TOPICS.get(1),
+                    Collections.singletonList(TOPICS.get(2)));
+            StartupTraining.run(TOPICS, record -> {
+                trainingIndex.add(record.topic(), record.value(), record.timestamp());
+                trainingAnalytics.add(record.topic(), record.value(), record.timestamp());
+                recordTransactionForReporting(record.topic(), record.value());
+            }, new ServiceMetrics(consumerGroup));
+            return;
+        }
+
         // Call createKafkaConsumer method and pass the Servers and Consumer Group
         Consumer<String, Transaction> reportingConsumer = kafkaReportingNotificationConsumerApp.createKafkaConsumer(BOOTSTRAP_SERVERS, consumerGroup);
-        // Call consumerMessages method and pass the TOPICS and Consumer we created above
-        kafkaReportingNotificationConsumerApp.consumeMessages(TOPICS, reportingConsumer);
+        // Create the metrics registry the consumer loop reports its lag and worker count to
+        ServiceMetrics metrics = new ServiceMetrics(consumerGroup);
+
+        // Create the index of recent transactions and serve queries against it over HTTP
+        RecentTransactionIndex index = new RecentTransactionIndex(INDEX_CAPACITY, INDEX_RETENTION_MILLIS, TOPICS);
+        metrics.gauge("indexed-transactions", "Transactions held in the recent transaction index", index::size);
+        // Create the hourly sketches, high-value transactions are copies of valid or suspicious ones so skip them
+        WindowedAnalytics analytics = new WindowedAnalytics(ANALYTICS_HOURS, TOPICS.get(1),
+                Collections.singletonList(TOPICS.get(2)));
+        metrics.gauge("analytics-windows", "Hourly analytics windows held", analytics::size);
+        try {
+            new QueryServer(index, analytics, QUERY_PORT).start();
+        } catch (IOException e) {
+            // Keep reporting even if the port is taken, only the queries are unavailable
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to start the query server on port " + QUERY_PORT + "]");
+        }
+        // Periodically drop the per-user index of users with no live transactions
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-pruner");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(index::pruneUsers, 1, 1, TimeUnit.MINUTES);
+
+        // Records the handler fails on are moved to the retry topics instead of blocking their partition
+        RetryTopics<String, Transaction> retries = createRetryTopics(BOOTSTRAP_SERVERS, consumerGroup, metrics);
+        // Call consumerMessages method and pass the TOPICS, Consumer, metrics, index, analytics and retries
+        kafkaReportingNotificationConsumerApp.consumeMessages(TOPICS, reportingConsumer, metrics, index, analytics,
+                retries);
     }
 
     /**
-     * Takes in two parameters topics and kafkaConsumer and subscribes the topics to the kafkaConsumer.
-     * Continues to listen indefinitely and polls the kafkaConsumer into a ConsumerRecords<String, Transaction>.
-     * While consumerRecords is not empty loop through each record in consumerRecords and call the function
-     * recordTransactionForReporting passing the record topic and record value (Transaction). Commit asynchronous
+     * Takes in six parameters topics, kafkaConsumer, metrics, index, analytics and retries and subscribes the topics
+     * and the retry topics to the kafkaConsumer. Failed records are moved aside through retries. Continues to listen indefinitely through a ConsumerLoop, which scales its worker threads with
+     * the consumer lag. For each record it adds the record to the index and the analytics and calls the function
+     * recordTransactionForReporting passing the record topic and record value (Transaction).
      * @param topics
      * @param kafkaConsumer
+     * @param metrics
+     * @param index
+     * @param analytics
+     * @param retries
+     * @throws InterruptedException
      */
-    public static void consumeMessages(List<String> topics, Consumer<String, Transaction> kafkaConsumer) {
-        // Subscribe the consumer to the topics list passed
-        kafkaConsumer.subscribe(topics);
+    public static void consumeMessages(List<String> topics, Consumer<String, Transaction> kafkaConsumer,
+                                       ServiceMetrics metrics, RecentTransactionIndex index,
+                                       WindowedAnalytics analytics, RetryTopics<String, Transaction> retries)
+            throws InterruptedException {
+        ConsumerLoop<String, Transaction> consumerLoop = new ConsumerLoop<>(kafkaConsumer, metrics);
+        // Subscribe the consumer to the topics list passed. The index and analytics cover every partition rather
+        // than being split per partition, so there is no partition state to hand over
+        consumerLoop.subscribe(topics, PartitionStateStore.NONE, retries);
 
-        // Create and indefinite loop while continuously checking for new messages
-        while (true) {
-            // ConsumerRecords stores a list of ConsumerRecords and polls every 1 second
-            ConsumerRecords<String, Transaction> consumerRecords = kafkaConsumer.poll(Duration.ofSeconds(1));
-            // If consumerRecords is not empty i.e. has a record then do
-            if (!consumerRecords.isEmpty()) {
-                // For each ConsumerRecord in the list ConsumerRecords consume message
-                for (ConsumerRecord<String, Transaction> record : consumerRecords) {
-                    // Call function recordTransactionForReporting passing the record topic and value (Transaction)
-                    recordTransactionForReporting(record.topic(), record.value());
-                }
-            } else {
-                // DO NOTHING FOR NOW
-            }
-            // Tell kafka its done processing messages with a commit as a final confirmation
-            kafkaConsumer.commitAsync();
-        }
+        consumerLoop.run(record -> {
+            // Index the transaction by the time it was produced so it can be queried
+            index.add(record.topic(), record.value(), record.timestamp());
+            // Add the transaction to the sketches of its hour
+            analytics.add(record.topic(), record.value(), record.timestamp());
+            // Call function recordTransactionForReporting passing the record topic and value (Transaction)
+            recordTransactionForReporting(record.topic(), record.value());
+        });
     }
 
     /**
      * Takes in two parameters bootstrapServers and consumerGroup. Creates a new Properties, prop, and adds the
      * servers (ports), deserializes the <Key, Value> pair, adds the consumerGroup I.D. and sets auto commits to false.
+     * Partitions are assigned with the cooperative sticky assignor and the consumer is a static member of the group,
+     * so a rebalance only stops the partitions that move and a restart within the session timeout doesn't rebalance.
      * Returns a new KafkaConsumer of type <String, Transaction> with the new Properties, prop.
      * @param bootstrapServers
      * @param consumerGroup
@@ -82,10 +196,97 @@ public class Application {
         prop.put(ConsumerConfig.GROUP_ID_CONFIG, consumerGroup);
         // Disable auto commit configuration
         prop.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        // Only revoke the partitions that move to another consumer instead of stopping every partition
+        prop.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, CooperativeStickyAssignor.class.getName());
+        // Rejoin under the same identity after a restart so the partitions stay where they were
+        prop.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupInstanceId(consumerGroup));
+        prop.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, SESSION_TIMEOUT_MS);
+        // Let a poll return up to the largest batch the poll controller may choose, within the same poll interval
+        prop.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, ConsumerLoop.MAX_BATCH);
+        prop.put(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, ConsumerLoop.MAX_POLL_INTERVAL_MILLIS);
         // Returns a new KafkaConsumer made with the properties we set in prop
         return new KafkaConsumer<String, Transaction>(prop);
     }
 
+    /**
+     * Takes in three parameters bootstrapServers, consumerGroup and metrics and returns the RetryTopics records the
+     * handler fails on are moved to, with the retry tiers of the consumer.retry.delays system property (default
+     * DEFAULT_RETRY_DELAYS). The producer waits for every replica, the consumer commits the failed records once
+     * they are moved aside.
+     * @param bootstrapServers
+     * @param consumerGroup
+     * @param metrics
+     * @return
+     */
+    private static RetryTopics<String, Transaction> createRetryTopics(String bootstrapServers, String consumerGroup,
+                                                                     ServiceMetrics metrics) {
+        Properties prop = new Properties();
+        prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        prop.put(ProducerConfig.ACKS_CONFIG, "all");
+        Producer<byte[], byte[]> producer = new KafkaProducer<byte[], byte[]>(prop);
+        return new RetryTopics<>(consumerGroup, RetryTopics.parseDelays(System.getProperty("consumer.retry.delays",
+                DEFAULT_RETRY_DELAYS)), producer, new StringSerializer(), new Transaction.TransactionSerializer(),
+                metrics);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the static member I.D. of this instance, set with the
+     * consumer.instance.id system property or the CONSUMER_INSTANCE_ID environment variable, otherwise derived from
+     * the host name and the instance slot this process holds on the host. Every instance in the group needs its own.
+     * @param consumerGroup
+     * @return
+     */
+    private static String groupInstanceId(String consumerGroup) {
+        String instanceId = System.getProperty("consumer.instance.id", System.getenv("CONSUMER_INSTANCE_ID"));
+        if (instanceId != null) {
+            return instanceId;
+        }
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Unknown host name, set consumer.instance.id]");
+            hostName = "localhost";
+        }
+        return consumerGroup + "-" + hostName + "-" + instanceSlot(consumerGroup);
+    }
+
+    /**
+     * Takes in one parameter consumerGroup and returns the lowest instance slot of the group that no other consumer
+     * on this host holds, locking it for the life of the process. Instances started side by side get different
+     * slots, while a restarted instance takes its slot, and so its static membership, back. Falls back to the
+     * process I.D. when the lock files in java.io.tmpdir can't be written.
+     * @param consumerGroup
+     * @return
+     */
+    private static String instanceSlot(String consumerGroup) {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        try {
+            for (int slot = 0; ; slot++) {
+                FileChannel channel = FileChannel.open(directory.resolve(consumerGroup + "-instance-" + slot + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    FileLock lock = channel.tryLock();
+                    if (lock != null) {
+                        INSTANCE_SLOTS.add(lock);
+                        return Integer.toString(slot);
+                    }
+                } catch (OverlappingFileLockException e) {
+                    // Held by another consumer of this process
+                }
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to lock an instance slot, set consumer.instance.id]");
+            return "pid" + ProcessHandle.current().pid();
+        }
+    }
+
     /**
      * Takes in two parameters topic and transaction and based on the topic passed prints
      * out a formatted string to the console with all the needed details of the passed Transaction.
@@ -93,21 +294,38 @@ public class Application {
      * @param transaction
      */
     private static void recordTransactionForReporting(String topic, Transaction transaction) {
+        // Format the report line for the topic and print it if the topic is one we report on
+        String report = formatTransactionForReporting(topic, transaction);
+        if (report != null) {
+            System.out.println(report);
+        }
+    }
+
+    /**
+     * Takes in two parameters topic and transaction and based on the topic passed returns a formatted string
+     * with all the needed details of the passed Transaction, or null if the topic isn't reported on.
+     * Shared by the live consumer and the backfill mode so both produce the same report lines.
+     * @param topic
+     * @param transaction
+     * @return
+     */
+    static String formatTransactionForReporting(String topic, Transaction transaction) {
         // If the topic is a valid-transaction then do the following
         if (topic.equals(TOPICS.get(0))) {
-            // Print confirmation message of valid-transaction with formatted transaction details adn topics
-            System.out.println(String.format("Recording [%s] for [User: %s, Amount: %.2f] for print to monthly statements.\n",
-                    topic, transaction.getUser(), transaction.getAmount()));
+            // Confirmation message of valid-transaction with formatted transaction details adn topics
+            return String.format("Recording [%s] for [User: %s, Amount: %.2f] for print to monthly statements.\n",
+                    topic, transaction.getUser(), transaction.getAmount());
         } // Else if the topic is a suspicious-transaction then do the following
         else if (topic.equals(TOPICS.get(1))) {
-            // Print confirmation message of suspicious-transaction with formatted transaction details adn topics
-            System.out.println(String.format("Recording [%s] for [User: %s, Amount: %.2f, Location: %s] for verification tracking.\n",
-                    topic, transaction.getUser(), transaction.getAmount(), transaction.getTransactionLocation()));
+            // Confirmation message of suspicious-transaction with formatted transaction details adn topics
+            return String.format("Recording [%s] for [User: %s, Amount: %.2f, Location: %s] for verification tracking.\n",
+                    topic, transaction.getUser(), transaction.getAmount(), transaction.getTransactionLocation());
         } // Else if the topic is a high-value-transaction then do the following
         else if (topic.equals(TOPICS.get(2))) {
-            // Print confirmation message of high-value-transaction with formatted transaction details adn topics
-            System.out.println(String.format("Recording [%s] for [User: %s, Amount: %.2f, Location: %s] for spending records.\n",
-                    topic, transaction.getUser(), transaction.getAmount(), transaction.getTransactionLocation()));
+            // Confirmation message of high-value-transaction with formatted transaction details adn topics
+            return String.format("Recording [%s] for [User: %s, Amount: %.2f, Location: %s] for spending records.\n",
+                    topic, transaction.getUser(), transaction.getAmount(), transaction.getTransactionLocation());
         }
+        return null;
     }
 }
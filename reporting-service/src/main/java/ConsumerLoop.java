@@ -0,0 +1,280 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Poll loop shared by the consumer services. Polled records are buffered up to the prefetch depth and handed to an
+ * {@link ElasticWorkerPool} in batches. The {@link LagScaler} grows and shrinks the pool and the prefetch depth with
+ * the consumer's lag so a backlog drains without redeploying the service. Offsets are committed after each batch.
+ * Subscribing through {@link #subscribe} uses a {@link StatefulRebalanceListener}: buffered records of revoked
+ * partitions are dropped, their processed offsets committed synchronously and their state checkpointed.
+ * The batch size and poll timeout are chosen by a {@link PollController} from the measured time per record.
+ * Subscribed with {@link RetryTopics}, records the handler fails on are moved to delayed retry topics instead of
+ * blocking their partition, and retry partitions stay paused while their next record isn't due.
+ * Bounds can be changed with the consumer.workers.min/max, consumer.prefetch.min/max, consumer.batch.min/max and
+ * consumer.poll.timeout.min/max.ms system properties, the batch time with consumer.batch.target.ms.
+ */
+public class ConsumerLoop<K, V> {
+    static final int MAX_BATCH = Integer.getInteger("consumer.batch.max", 2000);
+    static final int MAX_POLL_INTERVAL_MILLIS = Integer.getInteger("consumer.max.poll.interval.ms", 300_000);
+    private static final int MIN_BATCH = Integer.getInteger("consumer.batch.min", 50);
+    private static final long TARGET_BATCH_MILLIS = Long.getLong("consumer.batch.target.ms", 250);
+    private static final Duration MIN_POLL_TIMEOUT = Duration.ofMillis(
+            Long.getLong("consumer.poll.timeout.min.ms", 10));
+    private static final Duration MAX_POLL_TIMEOUT = Duration.ofMillis(
+            Long.getLong("consumer.poll.timeout.max.ms", 1000));
+    private static final int MIN_WORKERS = Integer.getInteger("consumer.workers.min", 1);
+    private static final int MAX_WORKERS = Integer.getInteger("consumer.workers.max", 8);
+    private static final int MIN_PREFETCH = Integer.getInteger("consumer.prefetch.min", 100);
+    private static final int MAX_PREFETCH = Integer.getInteger("consumer.prefetch.max", 5000);
+    private static final int PREFETCH_PER_WORKER = 250;
+    private static final long TARGET_DRAIN_MILLIS = 60_000;
+    private static final long SCALE_INTERVAL_MILLIS = 5_000;
+    private static final long STARTUP_WINDOW_MILLIS = Long.getLong("startup.window.ms", 1_000);
+
+    private final Consumer<K, V> consumer;
+    private final ElasticWorkerPool workerPool;
+    private final LagScaler lagScaler;
+    private final PollController pollController;
+    private final Deque<ConsumerRecord<K, V>> buffer = new ArrayDeque<>();
+    private final StartupTimer startupTimer = new StartupTimer(STARTUP_WINDOW_MILLIS);
+    private final LatencyWatchdog latencyWatchdog;
+    private final ServiceMetrics metrics;
+    // Offsets to commit for the records processed so far, per partition
+    private final Map<TopicPartition, OffsetAndMetadata> processedOffsets = new HashMap<>();
+    private PartitionStateStore stateStore = PartitionStateStore.NONE;
+    // Where failed records are moved aside, null when the handler's failures are only printed
+    private RetryTopics<K, V> retries;
+
+    /**
+     * Takes in two parameters consumer and metrics. The consumer must be subscribed with subscribe, or already be
+     * subscribed to its topics.
+     * @param consumer
+     * @param metrics
+     */
+    public ConsumerLoop(Consumer<K, V> consumer, ServiceMetrics metrics) {
+        this(consumer, metrics, new PollController(MIN_BATCH, MAX_BATCH, TARGET_BATCH_MILLIS,
+                MAX_POLL_INTERVAL_MILLIS, MIN_POLL_TIMEOUT, MAX_POLL_TIMEOUT, metrics));
+    }
+
+    /**
+     * Takes in three parameters consumer, metrics and pollController, used by the benchmark to compare controllers
+     * @param consumer
+     * @param metrics
+     * @param pollController
+     */
+    ConsumerLoop(Consumer<K, V> consumer, ServiceMetrics metrics, PollController pollController) {
+        this.consumer = consumer;
+        this.pollController = pollController;
+        this.workerPool = new ElasticWorkerPool(MIN_WORKERS, MAX_WORKERS);
+        this.lagScaler = new LagScaler(consumer, workerPool, MIN_PREFETCH, MAX_PREFETCH, PREFETCH_PER_WORKER,
+                TARGET_DRAIN_MILLIS, SCALE_INTERVAL_MILLIS, metrics);
+        metrics.gauge("buffered-records", "Records polled but not yet handed to the workers", buffer::size);
+        startupTimer.register(metrics);
+        this.latencyWatchdog = new LatencyWatchdog(metrics.getGroup(), metrics);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Takes in two parameters topics and store and subscribes the consumer to the topics, handing the state of
+     * partitions that move in a rebalance over through the store.
+     * @param topics
+     * @param store
+     */
+    public void subscribe(Collection<String> topics, PartitionStateStore store) {
+        this.stateStore = store;
+        consumer.subscribe(topics, new StatefulRebalanceListener(store, new HandOff(), metrics));
+    }
+
+    /**
+     * Takes in three parameters topics, store and retries and subscribes the consumer to the topics and the retry
+     * topics, moving the records the handler fails on aside through retries.
+     * @param topics
+     * @param store
+     * @param retries
+     */
+    public void subscribe(Collection<String> topics, PartitionStateStore store, RetryTopics<K, V> retries) {
+        this.retries = retries;
+        List<String> subscribed = new ArrayList<>(topics);
+        subscribed.addAll(retries.getTopics());
+        subscribe(subscribed, store);
+    }
+
+    /**
+     * Takes in one parameter handler and polls indefinitely, passing every record to the handler
+     * @param handler
+     * @throws InterruptedException
+     */
+    public void run(RecordHandler<K, V> handler) throws InterruptedException {
+        // Create an indefinite loop while continuously checking for new messages
+        while (true) {
+            pollOnce(handler);
+        }
+    }
+
+    /**
+     * Takes in one parameter handler and runs a single iteration of the loop: poll, process up to one batch of
+     * buffered records, commit them, apply backpressure and let the scaler react to the lag.
+     * @param handler
+     * @throws InterruptedException
+     */
+    void pollOnce(RecordHandler<K, V> handler) throws InterruptedException {
+        int batchSize = pollController.getBatchSize();
+        // Don't wait for new records while there are still buffered ones to process
+        int polled = poll(pollController.pollTimeout(buffer.size()));
+        // Keep taking what the fetcher already has while records are arriving, until a full batch is buffered
+        while (polled > 0 && buffer.size() < batchSize) {
+            polled = poll(Duration.ZERO);
+        }
+
+        List<ConsumerRecord<K, V>> batch = takeBatch(batchSize);
+        if (!batch.isEmpty()) {
+            pollController.batchStarted();
+            workerPool.process(batch, profiled(retries == null ? handler : retries.wrap(handler), latencyWatchdog));
+            pollController.batchProcessed(batch.size());
+            // Tell kafka its done processing the batch with a commit as a final confirmation, once its state is durable
+            stateStore.flush();
+            if (retries != null) {
+                retries.flush();
+            }
+            Map<TopicPartition, OffsetAndMetadata> offsets = nextOffsets(batch);
+            processedOffsets.putAll(offsets);
+            consumer.commitAsync(offsets, null);
+            lagScaler.recordProcessed(batch.size());
+            startupTimer.recordProcessed(batch.size());
+        }
+
+        // Stop fetching while the buffer holds a full prefetch depth, or a full batch when batches are larger
+        if (buffer.size() >= Math.max(lagScaler.getPrefetchDepth(), batchSize)) {
+            consumer.pause(consumer.assignment());
+        } else if (!consumer.paused().isEmpty()) {
+            // Retry partitions held back until their next record is due stay paused
+            consumer.resume(retries == null ? consumer.paused() : retries.resumable(consumer.paused()));
+        }
+        lagScaler.maybeRescale();
+    }
+
+    private int poll(Duration timeout) {
+        int count = 0;
+        ConsumerRecords<K, V> records = consumer.poll(timeout);
+        for (TopicPartition partition : records.partitions()) {
+            for (ConsumerRecord<K, V> record : records.records(partition)) {
+                // The rest of a held back retry partition is fetched again once it is due
+                if (retries != null && retries.holdBack(consumer, record)) {
+                    break;
+                }
+                buffer.add(record);
+                count++;
+            }
+        }
+        pollController.polled(count);
+        return count;
+    }
+
+    public StartupTimer getStartupTimer() {
+        return startupTimer;
+    }
+
+    private List<ConsumerRecord<K, V>> takeBatch(int maxRecords) {
+        Set<TopicPartition> assignment = consumer.assignment();
+        List<ConsumerRecord<K, V>> batch = new ArrayList<>(Math.min(maxRecords, buffer.size()));
+        while (!buffer.isEmpty() && batch.size() < maxRecords) {
+            ConsumerRecord<K, V> record = buffer.poll();
+            // Skip records of partitions that were reassigned to another consumer since they were polled
+            if (assignment.contains(new TopicPartition(record.topic(), record.partition()))) {
+                batch.add(record);
+            }
+        }
+        return batch;
+    }
+
+    private static <K, V> Map<TopicPartition, OffsetAndMetadata> nextOffsets(List<ConsumerRecord<K, V>> batch) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (ConsumerRecord<K, V> record : batch) {
+            offsets.put(new TopicPartition(record.topic(), record.partition()),
+                    new OffsetAndMetadata(record.offset() + 1));
+        }
+        return offsets;
+    }
+
+    /**
+     * Takes in two parameters handler and latencyWatchdog and returns a handler that emits a
+     * {@link TransactionStageEvent} for the "handle" stage of every record and reports its latency to the watchdog
+     * @param handler
+     * @param latencyWatchdog
+     * @return
+     */
+    static <K, V> RecordHandler<K, V> profiled(RecordHandler<K, V> handler, LatencyWatchdog latencyWatchdog) {
+        return record -> {
+            TransactionStageEvent event = new TransactionStageEvent();
+            long start = System.nanoTime();
+            event.begin();
+            try {
+                handler.handle(record);
+            } finally {
+                event.end();
+                latencyWatchdog.record(System.nanoTime() - start);
+                if (event.shouldCommit()) {
+                    event.stage = "handle";
+                    event.topic = record.topic();
+                    event.partition = record.partition();
+                    event.userHash = Objects.hashCode(record.key());
+                    event.commit();
+                }
+            }
+        };
+    }
+
+    /**
+     * Called from poll when partitions move. Batches are processed within pollOnce, so nothing is in flight here:
+     * buffered records of the partitions are dropped (the next owner reads them from the committed offset) and, on
+     * revoke, the offsets of the processed ones are committed synchronously.
+     */
+    private class HandOff implements StatefulRebalanceListener.PartitionHandOff {
+        @Override
+        public void revoked(Collection<TopicPartition> partitions) {
+            Map<TopicPartition, OffsetAndMetadata> offsets = discard(partitions);
+            if (!offsets.isEmpty()) {
+                stateStore.flush();
+                if (retries != null) {
+                    retries.flush();
+                }
+                consumer.commitSync(offsets);
+            }
+        }
+
+        @Override
+        public void lost(Collection<TopicPartition> partitions) {
+            discard(partitions);
+        }
+
+        private Map<TopicPartition, OffsetAndMetadata> discard(Collection<TopicPartition> partitions) {
+            Set<TopicPartition> moving = new HashSet<>(partitions);
+            if (retries != null) {
+                retries.forget(moving);
+            }
+            buffer.removeIf(record -> moving.contains(new TopicPartition(record.topic(), record.partition())));
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+            for (TopicPartition partition : moving) {
+                OffsetAndMetadata offset = processedOffsets.remove(partition);
+                if (offset != null) {
+                    offsets.put(partition, offset);
+                }
+            }
+            return offsets;
+        }
+    }
+
+    /**
+     * Handles a single consumed record
+     */
+    @FunctionalInterface
+    public interface RecordHandler<K, V> {
+        void handle(ConsumerRecord<K, V> record) throws Exception;
+    }
+}
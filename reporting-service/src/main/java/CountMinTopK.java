@@ -0,0 +1,193 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Count-Min sketch of weighted counts per key (e.g. amount spent per user), with a bounded list of the heaviest keys
+ * seen so far. The sketch is depth rows of width counters and never under-estimates a key; the over-estimate is at
+ * most about 2/width of the total weight. The heavy-hitters list keeps the tracked keys with the highest estimates,
+ * so the top-K can be read without storing every key. Two sketches of the same dimensions merge by adding their
+ * counters, after which the union of their tracked keys is re-estimated against the merged counters.
+ */
+public class CountMinTopK {
+    private final int depth;
+    private final int width;
+    private final int trackedKeys;
+    private final double[][] counts;
+    private final Map<String, Double> heavyHitters = new HashMap<>();
+    private double total;
+    // Lower bound of the lightest tracked estimate (tracked estimates only grow), saves a scan for most light keys
+    private double lightestBound;
+
+    /**
+     * Takes in three parameters depth and width of the sketch, and trackedKeys, how many of the heaviest keys are
+     * kept in the heavy-hitters list
+     * @param depth
+     * @param width
+     * @param trackedKeys
+     */
+    public CountMinTopK(int depth, int width, int trackedKeys) {
+        this.depth = depth;
+        this.width = width;
+        this.trackedKeys = trackedKeys;
+        this.counts = new double[depth][width];
+    }
+
+    /**
+     * Takes in two parameters key and weight and adds the weight to the key's count
+     * @param key
+     * @param weight
+     */
+    public void add(String key, double weight) {
+        long hash = SketchHash.hash64(key);
+        double estimate = Double.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int column = column(hash, row);
+            counts[row][column] += weight;
+            estimate = Math.min(estimate, counts[row][column]);
+        }
+        total += weight;
+        track(key, estimate);
+    }
+
+    /**
+     * Returns the estimated count of the key, never less than the real count
+     * @param key
+     * @return
+     */
+    public double estimate(String key) {
+        long hash = SketchHash.hash64(key);
+        double estimate = Double.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts[row][column(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns up to n of the heaviest keys with their estimated counts, heaviest first
+     * @param n
+     * @return
+     */
+    public List<Map.Entry<String, Double>> top(int n) {
+        List<Map.Entry<String, Double>> top = new ArrayList<>(heavyHitters.entrySet());
+        top.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+    }
+
+    public double getTotal() {
+        return total;
+    }
+
+    /**
+     * Takes in one parameter other and adds its counts into this sketch
+     * @param other
+     */
+    public void merge(CountMinTopK other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException(String.format("can't merge Count-Min sketches of %dx%d and %dx%d",
+                    depth, width, other.depth, other.width));
+        }
+        for (int row = 0; row < depth; row++) {
+            for (int column = 0; column < width; column++) {
+                counts[row][column] += other.counts[row][column];
+            }
+        }
+        total += other.total;
+        Set<String> candidates = new HashSet<>(heavyHitters.keySet());
+        candidates.addAll(other.heavyHitters.keySet());
+        heavyHitters.clear();
+        lightestBound = 0;
+        for (String key : candidates) {
+            track(key, estimate(key));
+        }
+    }
+
+    public CountMinTopK copy() {
+        CountMinTopK copy = new CountMinTopK(depth, width, trackedKeys);
+        copy.merge(this);
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeInt(trackedKeys);
+        out.writeDouble(total);
+        for (double[] row : counts) {
+            for (double count : row) {
+                out.writeDouble(count);
+            }
+        }
+        out.writeInt(heavyHitters.size());
+        for (String key : heavyHitters.keySet()) {
+            out.writeUTF(key);
+        }
+    }
+
+    /**
+     * Takes in four parameters in, and depth, width and trackedKeys, the dimensions the sketch must have, and reads a
+     * sketch written by writeTo. Throws an IOException for a sketch of other dimensions, before allocating its
+     * counters.
+     * @param in
+     * @param depth
+     * @param width
+     * @param trackedKeys
+     * @return
+     * @throws IOException
+     */
+    public static CountMinTopK readFrom(DataInput in, int depth, int width, int trackedKeys) throws IOException {
+        int writtenDepth = in.readInt();
+        int writtenWidth = in.readInt();
+        int writtenTrackedKeys = in.readInt();
+        if (writtenDepth != depth || writtenWidth != width || writtenTrackedKeys != trackedKeys) {
+            throw new IOException(String.format("expected a %dx%d Count-Min sketch tracking %d keys but got %dx%d "
+                    + "tracking %d", depth, width, trackedKeys, writtenDepth, writtenWidth, writtenTrackedKeys));
+        }
+        CountMinTopK sketch = new CountMinTopK(depth, width, trackedKeys);
+        sketch.total = in.readDouble();
+        for (double[] row : sketch.counts) {
+            for (int column = 0; column < row.length; column++) {
+                row[column] = in.readDouble();
+            }
+        }
+        int keys = in.readInt();
+        if (keys < 0 || keys > trackedKeys) {
+            throw new IOException("can't track " + keys + " heavy hitters in a sketch tracking " + trackedKeys);
+        }
+        for (int i = 0; i < keys; i++) {
+            String key = in.readUTF();
+            sketch.track(key, sketch.estimate(key));
+        }
+        return sketch;
+    }
+
+    private void track(String key, double estimate) {
+        if (heavyHitters.containsKey(key) || heavyHitters.size() < trackedKeys) {
+            heavyHitters.put(key, estimate);
+            return;
+        }
+        if (estimate <= lightestBound) {
+            return;
+        }
+        // Replace the lightest tracked key if this one is heavier
+        Map.Entry<String, Double> lightest = null;
+        for (Map.Entry<String, Double> entry : heavyHitters.entrySet()) {
+            if (lightest == null || entry.getValue() < lightest.getValue()) {
+                lightest = entry;
+            }
+        }
+        lightestBound = lightest.getValue();
+        if (estimate > lightest.getValue()) {
+            heavyHitters.remove(lightest.getKey());
+            heavyHitters.put(key, estimate);
+        }
+    }
+
+    private int column(long hash, int row) {
+        // Derive the row hashes from the two halves of the 64-bit hash
+        int combined = (int) hash + row * (int) (hash >>> 32);
+        return Math.floorMod(combined, width);
+    }
+}
@@ -0,0 +1,133 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of worker threads whose size can be changed while records are being processed. Each batch of records is
+ * split into one shard per worker by record key, so records with the same key are always handled by the same worker
+ * in the order they were polled.
+ */
+public class ElasticWorkerPool implements AutoCloseable {
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final ThreadPoolExecutor executor;
+    private volatile int workers;
+
+    /**
+     * Takes in two parameters minWorkers and maxWorkers, the bounds the pool can be resized within.
+     * The pool starts with minWorkers threads.
+     * @param minWorkers
+     * @param maxWorkers
+     */
+    public ElasticWorkerPool(int minWorkers, int maxWorkers) {
+        if (minWorkers < 1 || maxWorkers < minWorkers) {
+            throw new IllegalArgumentException("invalid worker bounds [" + minWorkers + ", " + maxWorkers + "]");
+        }
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.workers = minWorkers;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(minWorkers, minWorkers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "record-worker-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Takes in two parameters records and handler. Shards the records by key across the current number of workers,
+     * runs every shard on the pool and blocks until all of them are done. Handler failures are printed and don't
+     * stop the rest of the shard from being processed.
+     * @param records
+     * @param handler
+     * @throws InterruptedException
+     */
+    public <K, V> void process(List<ConsumerRecord<K, V>> records, ConsumerLoop.RecordHandler<K, V> handler)
+            throws InterruptedException {
+        int shardCount = Math.min(workers, records.size());
+        // Nothing to gain from handing a single shard over to another thread
+        if (shardCount <= 1) {
+            runShard(records, handler);
+            return;
+        }
+        List<List<ConsumerRecord<K, V>>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (ConsumerRecord<K, V> record : records) {
+            Object key = record.key() != null ? record.key() : record.partition();
+            shards.get(Math.floorMod(key.hashCode(), shardCount)).add(record);
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(shardCount);
+        for (List<ConsumerRecord<K, V>> shard : shards) {
+            tasks.add(() -> {
+                runShard(shard, handler);
+                return null;
+            });
+        }
+        executor.invokeAll(tasks);
+    }
+
+    /**
+     * Takes in one parameter target and resizes the pool to it, clamped to the configured bounds.
+     * Returns the new number of workers.
+     * @param target
+     * @return
+     */
+    public synchronized int resize(int target) {
+        int clamped = Math.max(minWorkers, Math.min(maxWorkers, target));
+        if (clamped > executor.getMaximumPoolSize()) {
+            // Growing: raise the maximum first so the core size never exceeds it
+            executor.setMaximumPoolSize(clamped);
+            executor.setCorePoolSize(clamped);
+        } else if (clamped < executor.getMaximumPoolSize()) {
+            // Shrinking: lower the core size first for the same reason
+            executor.setCorePoolSize(clamped);
+            executor.setMaximumPoolSize(clamped);
+        }
+        workers = clamped;
+        return clamped;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getMinWorkers() {
+        return minWorkers;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Returns the number of threads the executor may run, which follows every resize
+     * @return
+     */
+    int getThreadLimit() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static <K, V> void runShard(List<ConsumerRecord<K, V>> shard, ConsumerLoop.RecordHandler<K, V> handler) {
+        for (ConsumerRecord<K, V> record : shard) {
+            try {
+                handler.handle(record);
+            } catch (Exception e) {
+                // Print the failure and move on to the next record of the shard
+                e.printStackTrace();
+                System.out.println(String.format("ERROR-EXCEPTION - [Failed to handle record %s-%d@%d]",
+                        record.topic(), record.partition(), record.offset()));
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter. Uses 2^precision one byte registers (4 KB at the default precision of 12, for a
+ * standard error of about 1.6%) no matter how many distinct values are added. Two counters of the same precision are
+ * merged by taking the maximum of each register, which gives the distinct count of the union.
+ */
+public class HyperLogLog {
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Takes in one parameter precision, the number of hash bits used to pick a register (4 to 16)
+     * @param precision
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 4 and 16: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public void add(String value) {
+        long hash = SketchHash.hash64(value);
+        int index = (int) (hash >>> (64 - precision));
+        // Rank of the first set bit of the remaining bits, the sentinel bit caps it
+        long remaining = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct values added
+     * @return
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // Small cardinalities are estimated better by linear counting of the empty registers
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Takes in one parameter other and merges its registers into this counter
+     * @param other
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("can't merge HyperLogLogs of precision " + precision + " and "
+                    + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+        }
+    }
+
+    public HyperLogLog copy() {
+        HyperLogLog copy = new HyperLogLog(precision);
+        System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    /**
+     * Takes in two parameters in and precision, the precision the counter must have, and reads a counter written by
+     * writeTo. Throws an IOException for a counter of another precision, before allocating its registers.
+     * @param in
+     * @param precision
+     * @return
+     * @throws IOException
+     */
+    public static HyperLogLog readFrom(DataInput in, int precision) throws IOException {
+        int written = in.readUnsignedByte();
+        if (written != precision) {
+            throw new IOException("expected a HyperLogLog of precision " + precision + " but got " + written);
+        }
+        HyperLogLog hyperLogLog = new HyperLogLog(precision);
+        in.readFully(hyperLogLog.registers);
+        return hyperLogLog;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(registers, ((HyperLogLog) o).registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+}
@@ -0,0 +1,157 @@
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a histogram of per record latencies and computes the p99 every window. When the jfr.p99.threshold.ms system
+ * property is set it also keeps a continuous flight recording (last jfr.max-age.minutes minutes, including the
+ * {@link TransactionStageEvent}s slower than jfr.stage.threshold.ms) and dumps it to jfr.dump.dir whenever a window's p99 goes over the threshold,
+ * at most once every jfr.dump.cooldown.minutes, so production slowdowns can be analysed after the fact.
+ */
+public class LatencyWatchdog implements AutoCloseable {
+    private static final long THRESHOLD_MILLIS = Long.getLong("jfr.p99.threshold.ms", 0);
+    private static final Duration MAX_AGE = Duration.ofMinutes(Long.getLong("jfr.max-age.minutes", 5));
+    private static final long DUMP_COOLDOWN_MILLIS = Long.getLong("jfr.dump.cooldown.minutes", 5) * 60_000;
+    private static final Duration STAGE_THRESHOLD = Duration.ofMillis(Long.getLong("jfr.stage.threshold.ms", 1));
+    private static final Path DUMP_DIR = Paths.get(System.getProperty("jfr.dump.dir", "."));
+    private static final long WINDOW_MILLIS = 10_000;
+    // Histogram buckets: exact below 8 microseconds, then 8 buckets per power of two
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = SUB_BUCKETS * 40;
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final String service;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong windowStartMillis = new AtomicLong(System.currentTimeMillis());
+    private final Sensor dumps;
+    private final Recording recording;
+    private volatile double lastP99Millis;
+    private long lastDumpMillis;
+
+    /**
+     * Takes in two parameters service, used in the dump file names, and metrics, where the p99 is published
+     * @param service
+     * @param metrics
+     */
+    public LatencyWatchdog(String service, ServiceMetrics metrics) {
+        this.service = service;
+        this.dumps = metrics.counter("latency-dumps", "Flight recordings dumped after a p99 breach");
+        metrics.gauge("record-latency-p99-ms", "p99 latency per record over the last window", () -> lastP99Millis);
+        this.recording = THRESHOLD_MILLIS > 0 ? startRecording() : null;
+    }
+
+    /**
+     * Takes in one parameter nanos, the latency of one record, and checks the p99 once the window is over
+     * @param nanos
+     */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucket(nanos / 1000));
+        long now = System.currentTimeMillis();
+        long start = windowStartMillis.get();
+        // Only the thread that moves the window on evaluates it
+        if (now - start >= WINDOW_MILLIS && windowStartMillis.compareAndSet(start, now)) {
+            lastP99Millis = drainP99Micros() / 1000.0;
+            if (recording != null && lastP99Millis > THRESHOLD_MILLIS) {
+                dump(now);
+            }
+        }
+    }
+
+    public double getLastP99Millis() {
+        return lastP99Millis;
+    }
+
+    @Override
+    public void close() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    private Recording startRecording() {
+        try {
+            Recording continuous = new Recording(Configuration.getConfiguration("default"));
+            continuous.setName(service + "-continuous");
+            // Only keep the stages slow enough to matter, recording every stage of every record isn't free
+            continuous.enable(TransactionStageEvent.class).withThreshold(STAGE_THRESHOLD);
+            continuous.setMaxAge(MAX_AGE);
+            continuous.setToDisk(true);
+            continuous.start();
+            System.out.println(String.format("Flight recording started, dumps to %s when p99 > %d ms",
+                    DUMP_DIR.toAbsolutePath(), THRESHOLD_MILLIS));
+            return continuous;
+        } catch (IOException | ParseException e) {
+            // Keep running without the recording
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to start the continuous flight recording]");
+            return null;
+        }
+    }
+
+    private synchronized void dump(long now) {
+        if (now - lastDumpMillis < DUMP_COOLDOWN_MILLIS) {
+            return;
+        }
+        lastDumpMillis = now;
+        Path file = DUMP_DIR.resolve(String.format("%s-p99-%s.jfr", service,
+                LocalDateTime.now().format(FILE_TIMESTAMP)));
+        try {
+            recording.dump(file);
+            dumps.record();
+            System.out.println(String.format("SLOWDOWN - [p99 %.1f ms over %d ms, flight recording dumped to %s]",
+                    lastP99Millis, THRESHOLD_MILLIS, file.toAbsolutePath()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR-EXCEPTION - [Failed to dump the flight recording to " + file + "]");
+        }
+    }
+
+    /**
+     * Returns the p99 of the recorded latencies in microseconds (the upper bound of its bucket) and resets them
+     */
+    private long drainP99Micros() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * 0.99);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return bucketUpperMicros(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - 2) * SUB_BUCKETS + mantissa, BUCKETS - 1);
+    }
+
+    private static long bucketUpperMicros(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        int mantissa = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + mantissa + 1L) << (exponent - 3)) - 1;
+    }
+}
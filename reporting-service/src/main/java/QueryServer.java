@@ -0,0 +1,225 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP endpoint answering queries against the {@link RecentTransactionIndex}, e.g.
+ * GET /transactions?user=joe1680&topic=suspicious-transactions&hours=24
+ * GET /transactions?country=Ireland&topic=high-value-transactions&hours=12&limit=50
+ * Responses are a JSON array of transactions, newest first.
+ * GET /analytics?hours=6&top=10 returns the hourly {@link WindowedAnalytics} of the last hours as JSON.
+ * GET /analytics/window?start=<window-start-millis> exports one window as bytes, and POSTing those bytes to
+ * /analytics/window merges them into the same window here, combining the analytics of several instances.
+ */
+public class QueryServer implements AutoCloseable {
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 10_000;
+    private static final long MILLIS_PER_HOUR = 3_600_000;
+
+    private final RecentTransactionIndex index;
+    private final WindowedAnalytics analytics;
+    private final HttpServer server;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Takes in three parameters index, analytics and port and binds the server to localhost on that port
+     * @param index
+     * @param analytics
+     * @param port
+     * @throws IOException
+     */
+    public QueryServer(RecentTransactionIndex index, WindowedAnalytics analytics, int port) throws IOException {
+        this.index = index;
+        this.analytics = analytics;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.server.createContext("/transactions", this::handleTransactions);
+        this.server.createContext("/analytics", this::handleAnalytics);
+        this.server.createContext("/analytics/window", this::handleAnalyticsWindow);
+        this.server.setExecutor(Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "query-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Query server listening on http://localhost:" + server.getAddress().getPort()
+                + "/transactions\n");
+    }
+
+    /**
+     * Returns the port the server is bound to, the one picked by the system when it was created with port 0
+     * @return
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handleTransactions(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, "{\"error\":\"only GET is supported\"}");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            long now = System.currentTimeMillis();
+            long hours = Long.parseLong(parameters.getOrDefault("hours", "24"));
+            int limit = Math.min(MAX_LIMIT, Integer.parseInt(parameters.getOrDefault("limit",
+                    String.valueOf(DEFAULT_LIMIT))));
+            if (limit < 1) {
+                respond(exchange, 400, "{\"error\":\"limit must be at least 1\"}");
+                return;
+            }
+            List<RecentTransactionIndex.IndexedTransaction> results = index.query(parameters.get("user"),
+                    parameters.get("country"), parameters.get("topic"), now - hours * MILLIS_PER_HOUR, now, limit);
+            respond(exchange, 200, toJson(results));
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"hours and limit must be numbers\"}");
+        }
+    }
+
+    private void handleAnalytics(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            long hours = Long.parseLong(parameters.getOrDefault("hours", "1"));
+            int top = Integer.parseInt(parameters.getOrDefault("top", "10"));
+            List<WindowedAnalytics.AnalyticsWindow> windows = analytics.windows(System.currentTimeMillis()
+                    - (hours - 1) * WindowedAnalytics.WINDOW_MILLIS);
+            respond(exchange, 200, analyticsToJson(windows, top));
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"hours and top must be numbers\"}");
+        }
+    }
+
+    private void handleAnalyticsWindow(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equals("POST")) {
+            byte[] body;
+            try (InputStream inputStream = exchange.getRequestBody()) {
+                body = inputStream.readAllBytes();
+            }
+            try {
+                analytics.merge(body);
+                respond(exchange, 200, "{\"merged\":true}");
+            } catch (IOException e) {
+                respond(exchange, 400, "{\"error\":\"not an exported analytics window\"}");
+            }
+            return;
+        }
+        try {
+            String start = parseQuery(exchange.getRequestURI().getRawQuery()).get("start");
+            byte[] window = start == null ? null : analytics.export(Long.parseLong(start));
+            if (window == null) {
+                respond(exchange, 404, "{\"error\":\"no window starting at " + start + "\"}");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, window.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(window);
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\":\"start must be the window start in milliseconds\"}");
+        }
+    }
+
+    private String analyticsToJson(List<WindowedAnalytics.AnalyticsWindow> windows, int top) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JsonGenerator generator = jsonFactory.createGenerator(outputStream)) {
+            generator.writeStartArray();
+            for (WindowedAnalytics.AnalyticsWindow window : windows) {
+                generator.writeStartObject();
+                generator.writeNumberField("windowStart", window.getStart());
+                generator.writeNumberField("transactions", window.getTransactionCount());
+                generator.writeObjectFieldStart("distinctUsersByCountry");
+                for (Map.Entry<String, Long> country : window.distinctUsersByCountry().entrySet()) {
+                    generator.writeNumberField(country.getKey(), country.getValue());
+                }
+                generator.writeEndObject();
+                writeTop(generator, "topSpenders", "user", "amount", window.topSpenders(top));
+                writeTop(generator, "suspiciousByCountry", "country", "transactions",
+                        window.suspiciousByCountry(top));
+                generator.writeObjectFieldStart("amountPercentiles");
+                generator.writeNumberField("p50", window.amountQuantile(0.5));
+                generator.writeNumberField("p90", window.amountQuantile(0.9));
+                generator.writeNumberField("p99", window.amountQuantile(0.99));
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void writeTop(JsonGenerator generator, String field, String keyName, String valueName,
+                                 List<Map.Entry<String, Double>> top) throws IOException {
+        generator.writeArrayFieldStart(field);
+        for (Map.Entry<String, Double> entry : top) {
+            generator.writeStartObject();
+            generator.writeStringField(keyName, entry.getKey());
+            generator.writeNumberField(valueName, entry.getValue());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private String toJson(List<RecentTransactionIndex.IndexedTransaction> results) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (JsonGenerator generator = jsonFactory.createGenerator(outputStream)) {
+            generator.writeStartArray();
+            for (RecentTransactionIndex.IndexedTransaction result : results) {
+                generator.writeStartObject();
+                generator.writeNumberField("timestamp", result.getTimestamp());
+                generator.writeStringField("topic", result.getTopic());
+                generator.writeStringField("user", result.getUser());
+                generator.writeNumberField("amount", result.getAmount());
+                generator.writeStringField("transactionLocation", result.getTransactionLocation());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory, time-bounded index of the most recent transactions seen by the reporting-service.
+ * Transactions are kept in a columnar ring buffer of fixed capacity (one array per field, indexed by slot), so the
+ * oldest transaction is overwritten once the buffer is full. On top of the columns there are:
+ * - a small ring buffer of sequence numbers per user, answering "transactions of user X" without a scan. A user
+ *   with more live transactions than the ring holds is answered by scanning the columns past the ring, so the
+ *   answer is never cut short at the ring size.
+ * - one bitmap of slots per country and per topic, answering "transactions in country Y / on topic Z" by
+ *   intersecting bitmaps. Countries are keyed on their CountryDictionary locationId, and all locations missing
+ *   from the dictionary share one bitmap, so garbage locations can't add a bitmap of the full capacity each.
+ * Queries only return transactions newer than the retention period.
+ */
+public class RecentTransactionIndex {
+    private static final int USER_RING_SIZE = 64;
+
+    private final int capacity;
+    private final long retentionMillis;
+    private final List<String> topics;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Columns of the ring buffer, all indexed by slot
+    private final long[] timestamps;
+    private final String[] users;
+    private final double[] amounts;
+    private final String[] locations;
+    private final int[] countryIds;
+    private final byte[] topicIds;
+
+    private final CountryDictionary countries = CountryDictionary.shared();
+
+    // Secondary indexes, the country bitmaps by locationId (UNKNOWN for every location not in the dictionary)
+    private final Map<String, UserRing> userRings = new HashMap<>();
+    private final Map<Integer, BitSet> countryBitmaps = new HashMap<>();
+    private final BitSet[] topicBitmaps;
+
+    // Total number of transactions ever added, the next one goes to slot (sequence % capacity)
+    private long sequence;
+
+    /**
+     * Takes in three parameters capacity, the number of transactions kept, retentionMillis, how far back queries
+     * look, and topics, the topics that can be indexed.
+     * @param capacity
+     * @param retentionMillis
+     * @param topics
+     */
+    public RecentTransactionIndex(int capacity, long retentionMillis, List<String> topics) {
+        if (topics.size() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("too many topics to index: " + topics.size());
+        }
+        this.capacity = capacity;
+        this.retentionMillis = retentionMillis;
+        this.topics = topics;
+        this.timestamps = new long[capacity];
+        this.users = new String[capacity];
+        this.amounts = new double[capacity];
+        this.locations = new String[capacity];
+        this.countryIds = new int[capacity];
+        this.topicIds = new byte[capacity];
+        this.topicBitmaps = new BitSet[topics.size()];
+        for (int i = 0; i < topicBitmaps.length; i++) {
+            topicBitmaps[i] = new BitSet(capacity);
+        }
+    }
+
+    /**
+     * Takes in three parameters topic, transaction and timestampMillis and adds the transaction to the index,
+     * overwriting the oldest transaction when the index is full. Transactions of topics that aren't indexed are ignored.
+     * @param topic
+     * @param transaction
+     * @param timestampMillis
+     */
+    public void add(String topic, Transaction transaction, long timestampMillis) {
+        int topicId = topics.indexOf(topic);
+        if (topicId < 0 || transaction == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = (int) (sequence % capacity);
+            // Remove the overwritten transaction from the bitmaps first
+            if (sequence >= capacity) {
+                countryBitmaps.get(countryIds[slot]).clear(slot);
+                topicBitmaps[topicIds[slot]].clear(slot);
+            }
+            int countryId = countries.isStandard(transaction.getLocationId())
+                    ? transaction.getLocationId() : CountryDictionary.UNKNOWN;
+            timestamps[slot] = timestampMillis;
+            users[slot] = transaction.getUser();
+            amounts[slot] = transaction.getAmount();
+            locations[slot] = transaction.getTransactionLocation();
+            countryIds[slot] = countryId;
+            topicIds[slot] = (byte) topicId;
+            countryBitmaps.computeIfAbsent(countryId, id -> new BitSet(capacity)).set(slot);
+            topicBitmaps[topicId].set(slot);
+            userRings.computeIfAbsent(transaction.getUser(), user -> new UserRing()).add(sequence);
+            sequence++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the most recent transactions, newest first, matching every filter that isn't null and made at or after
+     * sinceMillis (never earlier than the retention period allows). At most limit transactions are returned.
+     * @param user
+     * @param country
+     * @param topic
+     * @param sinceMillis
+     * @param nowMillis
+     * @param limit
+     * @return
+     */
+    public List<IndexedTransaction> query(String user, String country, String topic, long sinceMillis,
+                                          long nowMillis, int limit) {
+        long from = Math.max(sinceMillis, nowMillis - retentionMillis);
+        // Transactions are indexed under the canonical country name, so accept any alias in the query
+        String canonicalCountry = country == null ? null : countries.canonicalName(country);
+        lock.readLock().lock();
+        try {
+            List<IndexedTransaction> results = new ArrayList<>();
+            long oldestLive = Math.max(0, sequence - capacity);
+            if (user != null) {
+                // Walk the user's ring from newest to oldest and check the remaining filters on the columns
+                UserRing ring = userRings.get(user);
+                if (ring == null) {
+                    return results;
+                }
+                for (int i = 0; i < ring.count && results.size() < limit; i++) {
+                    long entry = ring.get(i);
+                    if (entry < oldestLive) {
+                        return results;
+                    }
+                    int slot = (int) (entry % capacity);
+                    if (matches(slot, canonicalCountry, topic, from)) {
+                        results.add(read(slot));
+                    }
+                }
+                // The ring wrapped while its oldest entry is still live, older ones can only be found by a scan
+                if (ring.count == USER_RING_SIZE) {
+                    for (long entry = ring.get(ring.count - 1) - 1; entry >= oldestLive && results.size() < limit;
+                         entry--) {
+                        int slot = (int) (entry % capacity);
+                        if (user.equals(users[slot]) && matches(slot, canonicalCountry, topic, from)) {
+                            results.add(read(slot));
+                        }
+                    }
+                }
+                return results;
+            }
+            // Intersect the country and topic bitmaps, or scan all live slots when neither is given
+            BitSet candidates = candidates(canonicalCountry, topic);
+            if (candidates == null) {
+                return results;
+            }
+            for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+                // The bitmap of locations missing from the dictionary holds all of them
+                if (matches(slot, canonicalCountry, null, from)) {
+                    results.add(read(slot));
+                }
+            }
+            results.sort(Comparator.comparingLong(IndexedTransaction::getTimestamp).reversed());
+            return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the rings of users none of whose transactions are still live, so the per-user index
+     * doesn't grow with every user ever seen.
+     */
+    public void pruneUsers() {
+        lock.writeLock().lock();
+        try {
+            long oldestLive = Math.max(0, sequence - capacity);
+            userRings.values().removeIf(ring -> ring.count == 0 || ring.get(0) < oldestLive);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of transactions currently held
+     * @return
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) Math.min(sequence, capacity);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private BitSet candidates(String country, String topic) {
+        BitSet candidates;
+        if (country != null) {
+            BitSet countryBitmap = countryBitmaps.get(countries.idOf(country));
+            if (countryBitmap == null) {
+                return null;
+            }
+            candidates = (BitSet) countryBitmap.clone();
+        } else {
+            candidates = new BitSet(capacity);
+            candidates.set(0, size());
+        }
+        if (topic != null) {
+            int topicId = topics.indexOf(topic);
+            if (topicId < 0) {
+                return null;
+            }
+            candidates.and(topicBitmaps[topicId]);
+        }
+        return candidates;
+    }
+
+    private boolean matches(int slot, String country, String topic, long from) {
+        return timestamps[slot] >= from
+                && (country == null || country.equals(locations[slot]))
+                && (topic == null || topics.get(topicIds[slot]).equals(topic));
+    }
+
+    private IndexedTransaction read(int slot) {
+        return new IndexedTransaction(timestamps[slot], topics.get(topicIds[slot]), users[slot], amounts[slot],
+                locations[slot]);
+    }
+
+    /**
+     * Fixed size ring of the sequence numbers of a user's most recent transactions
+     */
+    private static class UserRing {
+        private final long[] sequences = new long[USER_RING_SIZE];
+        private int next;
+        private int count;
+
+        private void add(long sequence) {
+            sequences[next] = sequence;
+            next = (next + 1) % sequences.length;
+            count = Math.min(count + 1, sequences.length);
+        }
+
+        /**
+         * Returns the i-th most recent sequence number, 0 being the newest
+         */
+        private long get(int i) {
+            return sequences[Math.floorMod(next - 1 - i, sequences.length)];
+        }
+    }
+
+    /**
+     * A transaction read back from the index
+     */
+    public static class IndexedTransaction {
+        private final long timestamp;
+        private final String topic;
+        private final String user;
+        private final double amount;
+        private final String transactionLocation;
+
+        public IndexedTransaction(long timestamp, String topic, String user, double amount,
+                                  String transactionLocation) {
+            this.timestamp = timestamp;
+            this.topic = topic;
+            this.user = user;
+            this.amount = amount;
+            this.transactionLocation = transactionLocation;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+
+        public String getTransactionLocation() {
+            return transactionLocation;
+        }
+    }
+}
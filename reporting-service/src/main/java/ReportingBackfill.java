@@ -0,0 +1,197 @@
+import org.apache.kafka.clients.consumer.*;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * High-speed backfill of the reporting output. Seeks every partition of the reported topics to a start timestamp
+ * with offsetsForTimes, reads all partitions in parallel with large fetches and writes the report lines to a file
+ * in bulk until the end timestamp is reached. The backfill consumers don't join a consumer group and never commit,
+ * so they run alongside the live reporting-service group without disturbing it.
+ */
+public class ReportingBackfill {
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+    private static final int MAX_PARALLELISM = 16;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private final List<String> topics;
+    private final long startMillis;
+    private final long endMillis;
+    private final Path outputFile;
+    private final Supplier<Consumer<String, Transaction>> consumers;
+
+    /**
+     * Takes in the bootstrapServers, the topics to read, the start and end timestamps in epoch milliseconds
+     * and the outputFile the report lines are written to.
+     */
+    public ReportingBackfill(String bootstrapServers, List<String> topics, long startMillis, long endMillis,
+                             Path outputFile) {
+        this(topics, startMillis, endMillis, outputFile, () -> createBackfillConsumer(bootstrapServers));
+    }
+
+    /**
+     * Takes in the topics, the start and end timestamps, the outputFile and the consumers factory every partition
+     * reader and the offset lookup get their own consumer from.
+     */
+    ReportingBackfill(List<String> topics, long startMillis, long endMillis, Path outputFile,
+                      Supplier<Consumer<String, Transaction>> consumers) {
+        if (endMillis <= startMillis) {
+            throw new IllegalArgumentException("end timestamp must be after the start timestamp");
+        }
+        this.topics = topics;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.outputFile = outputFile;
+        this.consumers = consumers;
+    }
+
+    /**
+     * Resolves the offset range of every partition, reads the ranges in parallel and prints a summary of the
+     * number of records written and the read throughput.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        Map<TopicPartition, long[]> ranges = resolveOffsetRanges();
+        System.out.println(String.format("Backfilling [%d] partitions of %s into [%s]\n",
+                ranges.size(), topics, outputFile));
+
+        AtomicLong recordCount = new AtomicLong();
+        long started = System.nanoTime();
+        ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARALLELISM, ranges.size())));
+        try (BufferedWriter writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            List<Future<?>> results = new ArrayList<>();
+            for (Map.Entry<TopicPartition, long[]> range : ranges.entrySet()) {
+                results.add(readers.submit(() -> {
+                    readPartition(range.getKey(), range.getValue()[0], range.getValue()[1], writer, recordCount);
+                    return null;
+                }));
+            }
+            // Wait for every partition and surface the first failure
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Backfill of a partition failed", e.getCause());
+                }
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.println(String.format("Backfill complete: [%d] records in [%.1f s], [%.0f records/s]\n",
+                recordCount.get(), seconds, recordCount.get() / Math.max(seconds, 1e-9)));
+    }
+
+    /**
+     * Returns the [start, end) offset range of every partition of the topics for the timestamps. A partition with
+     * no record at or after the start timestamp is left out, a partition with no record at or after the end timestamp
+     * is read up to its current end offset.
+     */
+    Map<TopicPartition, long[]> resolveOffsetRanges() {
+        Map<TopicPartition, long[]> ranges = new HashMap<>();
+        try (Consumer<String, Transaction> metadataConsumer = consumers.get()) {
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (String topic : topics) {
+                for (PartitionInfo partitionInfo : metadataConsumer.partitionsFor(topic)) {
+                    partitions.add(new TopicPartition(topic, partitionInfo.partition()));
+                }
+            }
+            Map<TopicPartition, Long> startQuery = new HashMap<>();
+            Map<TopicPartition, Long> endQuery = new HashMap<>();
+            for (TopicPartition partition : partitions) {
+                startQuery.put(partition, startMillis);
+                endQuery.put(partition, endMillis);
+            }
+            Map<TopicPartition, OffsetAndTimestamp> startOffsets = metadataConsumer.offsetsForTimes(startQuery);
+            Map<TopicPartition, OffsetAndTimestamp> endOffsets = metadataConsumer.offsetsForTimes(endQuery);
+            Map<TopicPartition, Long> latestOffsets = metadataConsumer.endOffsets(partitions);
+
+            for (TopicPartition partition : partitions) {
+                OffsetAndTimestamp start = startOffsets.get(partition);
+                if (start == null) {
+                    continue;
+                }
+                OffsetAndTimestamp end = endOffsets.get(partition);
+                long endOffset = end != null ? end.offset() : latestOffsets.get(partition);
+                if (endOffset > start.offset()) {
+                    ranges.put(partition, new long[]{start.offset(), endOffset});
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Reads one partition from startOffset up to (excluding) endOffset, formatting every record into a chunk that
+     * is written to the shared writer once per poll.
+     */
+    void readPartition(TopicPartition partition, long startOffset, long endOffset, BufferedWriter writer,
+                       AtomicLong recordCount) throws IOException {
+        try (Consumer<String, Transaction> consumer = consumers.get()) {
+            consumer.assign(Collections.singletonList(partition));
+            consumer.seek(partition, startOffset);
+            long position = startOffset;
+            StringBuilder chunk = new StringBuilder(WRITE_BUFFER_BYTES);
+            while (position < endOffset) {
+                int written = 0;
+                for (ConsumerRecord<String, Transaction> record : consumer.poll(POLL_TIMEOUT)) {
+                    position = record.offset() + 1;
+                    if (record.offset() >= endOffset) {
+                        break;
+                    }
+                    String report = record.value() == null ? null
+                            : Application.formatTransactionForReporting(record.topic(), record.value());
+                    if (report != null) {
+                        chunk.append(report);
+                        written++;
+                    }
+                }
+                // Compacted or transactional partitions can end below the requested offset
+                position = Math.max(position, consumer.position(partition));
+                if (chunk.length() > 0) {
+                    synchronized (writer) {
+                        writer.append(chunk);
+                    }
+                    chunk.setLength(0);
+                    recordCount.addAndGet(written);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a consumer tuned for bulk reads. No group.id is configured so it never joins the live consumer group
+     * and never commits offsets.
+     */
+    private static Consumer<String, Transaction> createBackfillConsumer(String bootstrapServers) {
+        Properties prop = new Properties();
+        prop.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        prop.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+        prop.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, Transaction.TransactionDeserializer.class.getName());
+        prop.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        prop.put(ConsumerConfig.CLIENT_ID_CONFIG, "reporting-backfill-" + UUID.randomUUID());
+        // Large fetches so each round-trip to the brokers carries as much data as they allow
+        prop.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, 1 << 20);
+        prop.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, 500);
+        prop.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG, 16 << 20);
+        prop.put(ConsumerConfig.FETCH_MAX_BYTES_CONFIG, 64 << 20);
+        prop.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 10_000);
+        prop.put(ConsumerConfig.RECEIVE_BUFFER_CONFIG, 8 << 20);
+        // The brokers already checked the records when they were written
+        prop.put(ConsumerConfig.CHECK_CRCS_CONFIG, false);
+        return new KafkaConsumer<>(prop);
+    }
+}
@@ -0,0 +1,318 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non-blocking retries for records the handler failed on. Instead of blocking its partition, a failed record is
+ * republished to the first of a chain of delayed retry topics of the consumer group, e.g.
+ * account-manager-service-retry-1s, -retry-30s and -retry-5m, then to the next one each time it fails again, and
+ * finally to the group's dead-letter topic. Records that couldn't even be deserialized (the TransactionDeserializer
+ * keeps their bytes in the deserialization.failed header) go straight to the dead-letter topic.
+ * The consumer subscribes to the retry topics next to its own. A retry record that isn't due yet holds its partition
+ * back: the partition is seeked back to it and paused until it is due, which works because every record of a
+ * retry topic waits for the same delay. Retried records are handed to the handler under the topic, partition,
+ * offset and timestamp they originally had.
+ * Retry and dead-letter volumes are published as retry-records (per tier) and dead-letter-records. A record that
+ * couldn't be moved aside makes every later flush throw, so its offset is never committed and the record isn't lost.
+ */
+public class RetryTopics<K, V> {
+    // Raw value of a record the deserializer couldn't read
+    static final String DESERIALIZATION_FAILED_HEADER = "deserialization.failed";
+    static final String ATTEMPT_HEADER = "retry.attempt";
+    static final String DUE_HEADER = "retry.due";
+    static final String ERROR_HEADER = "retry.error";
+    static final String ORIGINAL_TOPIC_HEADER = "retry.original.topic";
+    static final String ORIGINAL_PARTITION_HEADER = "retry.original.partition";
+    static final String ORIGINAL_OFFSET_HEADER = "retry.original.offset";
+    private static final int MAX_ERROR_LENGTH = 500;
+
+    private final Producer<byte[], byte[]> producer;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final List<String> retryTopics = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<Sensor> retried = new ArrayList<>();
+    private final String deadLetterTopic;
+    private final Sensor deadLettered;
+    private final Sensor sendFailures;
+    // First record that couldn't be moved aside, nothing may be committed past it
+    private final AtomicReference<Exception> sendFailure = new AtomicReference<>();
+    // Retry partitions held back until their next record is due, only used by the polling thread
+    private final Map<TopicPartition, Long> heldBack = new HashMap<>();
+
+    /**
+     * Takes in six parameters consumerGroup, the prefix of the retry and dead-letter topics, delays, the delay of
+     * each retry tier (none to dead-letter failed records straight away), producer, keySerializer, valueSerializer
+     * and metrics.
+     * @param consumerGroup
+     * @param delays
+     * @param producer
+     * @param keySerializer
+     * @param valueSerializer
+     * @param metrics
+     */
+    public RetryTopics(String consumerGroup, List<Duration> delays, Producer<byte[], byte[]> producer,
+                       Serializer<K> keySerializer, Serializer<V> valueSerializer, ServiceMetrics metrics) {
+        this.producer = producer;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        for (Duration delay : delays) {
+            String topic = consumerGroup + "-retry-" + format(delay);
+            retryTopics.add(topic);
+            this.delays.add(delay.toMillis());
+            retried.add(metrics.counter("retry-records-" + format(delay), "Records sent to " + topic));
+        }
+        this.deadLetterTopic = consumerGroup + "-dead-letter";
+        this.deadLettered = metrics.counter("dead-letter-records", "Records sent to " + deadLetterTopic);
+        this.sendFailures = metrics.counter("retry-send-failures",
+                "Records that couldn't be sent to a retry or dead-letter topic");
+        metrics.gauge("retry-partitions-held-back", "Retry partitions paused until their next record is due",
+                heldBack::size);
+    }
+
+    /**
+     * Takes in one parameter delays, a comma separated list like 1s,30s,5m (ms, s, m and h are understood), and
+     * returns the delays of the retry tiers. The bank-api-service's RetryingSender.parseDelays reads the same format,
+     * change both together.
+     * @param delays
+     * @return
+     */
+    public static List<Duration> parseDelays(String delays) {
+        List<Duration> parsed = new ArrayList<>();
+        for (String delay : delays.split(",")) {
+            delay = delay.trim();
+            if (delay.isEmpty()) {
+                continue;
+            }
+            int unit = delay.length() - (delay.endsWith("ms") ? 2 : 1);
+            long amount = Long.parseLong(delay.substring(0, unit));
+            switch (delay.substring(unit)) {
+                case "ms":
+                    parsed.add(Duration.ofMillis(amount));
+                    break;
+                case "s":
+                    parsed.add(Duration.ofSeconds(amount));
+                    break;
+                case "m":
+                    parsed.add(Duration.ofMinutes(amount));
+                    break;
+                case "h":
+                    parsed.add(Duration.ofHours(amount));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown unit in retry delay " + delay);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the retry topics, which the consumer must subscribe to as well
+     * @return
+     */
+    public List<String> getTopics() {
+        return Collections.unmodifiableList(retryTopics);
+    }
+
+    public String getDeadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+    /**
+     * Takes in one parameter handler and returns a handler that never throws: records the handler fails on are sent
+     * to the next retry tier or the dead-letter topic, and records of the retry topics are handed to the handler as
+     * the original record.
+     * @param handler
+     * @return
+     */
+    public ConsumerLoop.RecordHandler<K, V> wrap(ConsumerLoop.RecordHandler<K, V> handler) {
+        return record -> {
+            Header undecodable = record.headers().lastHeader(DESERIALIZATION_FAILED_HEADER);
+            if (record.value() == null && undecodable != null) {
+                // Retrying can't make the bytes readable
+                deadLetter(record, undecodable.value(), "value could not be deserialized");
+                return;
+            }
+            try {
+                handler.handle(original(record));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println(String.format("ERROR-EXCEPTION - [Failed to handle record %s-%d@%d, moving it "
+                        + "aside]", record.topic(), record.partition(), record.offset()));
+                retry(record, e);
+            }
+        };
+    }
+
+    /**
+     * Takes in two parameters consumer and record, a record just polled, and returns true when it is a retry record
+     * that isn't due yet. Its partition is then seeked back to it and paused, so the caller must drop it and the
+     * records after it in the same partition.
+     * @param consumer
+     * @param record
+     * @return
+     */
+    boolean holdBack(Consumer<K, V> consumer, ConsumerRecord<K, V> record) {
+        if (!retryTopics.contains(record.topic())) {
+            return false;
+        }
+        long due = longHeader(record.headers(), DUE_HEADER, 0);
+        if (due <= System.currentTimeMillis()) {
+            return false;
+        }
+        TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+        consumer.seek(partition, record.offset());
+        consumer.pause(Collections.singleton(partition));
+        heldBack.put(partition, due);
+        return true;
+    }
+
+    /**
+     * Takes in one parameter paused, the paused partitions, and returns those that may be resumed: every partition
+     * except the retry partitions whose next record isn't due yet
+     * @param paused
+     * @return
+     */
+    Set<TopicPartition> resumable(Collection<TopicPartition> paused) {
+        long now = System.currentTimeMillis();
+        heldBack.values().removeIf(due -> due <= now);
+        Set<TopicPartition> resumable = new HashSet<>(paused);
+        resumable.removeAll(heldBack.keySet());
+        return resumable;
+    }
+
+    /**
+     * Takes in one parameter partitions, partitions revoked from or lost by the consumer, and stops holding them back
+     * @param partitions
+     */
+    void forget(Collection<TopicPartition> partitions) {
+        heldBack.keySet().removeAll(partitions);
+    }
+
+    /**
+     * Waits for the records moved aside so far to be acknowledged, so the offsets of the failed records can be
+     * committed. Throws a KafkaException once any record couldn't be moved aside, the records since the last commit
+     * must be consumed again.
+     */
+    void flush() {
+        producer.flush();
+        Exception failure = sendFailure.get();
+        if (failure != null) {
+            throw new KafkaException("A failed record couldn't be moved to a retry or dead-letter topic", failure);
+        }
+    }
+
+    private void retry(ConsumerRecord<K, V> record, Exception error) {
+        int attempt = (int) longHeader(record.headers(), ATTEMPT_HEADER, 0);
+        byte[] value = valueSerializer.serialize(record.topic(), record.value());
+        if (attempt >= retryTopics.size()) {
+            deadLetter(record, value, String.valueOf(error));
+            return;
+        }
+        Headers headers = headers(record, attempt + 1, String.valueOf(error));
+        headers.add(DUE_HEADER, bytes(System.currentTimeMillis() + delays.get(attempt)));
+        send(retryTopics.get(attempt), record, value, headers);
+        retried.get(attempt).record();
+    }
+
+    private void deadLetter(ConsumerRecord<K, V> record, byte[] value, String error) {
+        int attempt = (int) longHeader(record.headers(), ATTEMPT_HEADER, 0);
+        send(deadLetterTopic, record, value, headers(record, attempt, error));
+        deadLettered.record();
+    }
+
+    private void send(String topic, ConsumerRecord<K, V> record, byte[] value, Headers headers) {
+        byte[] key = keySerializer.serialize(record.topic(), record.key());
+        // Keep the original timestamp so time based processing sees the record where it belongs
+        Long timestamp = record.timestamp() >= 0 ? record.timestamp() : null;
+        try {
+            producer.send(new ProducerRecord<>(topic, null, timestamp, key, value, headers),
+                    (metadata, exception) -> {
+                        if (exception != null) {
+                            sendFailed(record, topic, exception);
+                        }
+                    });
+        } catch (KafkaException | IllegalStateException e) {
+            // Thrown before the record was queued, e.g. it couldn't be serialized or the producer was closed
+            sendFailed(record, topic, e);
+        }
+    }
+
+    private void sendFailed(ConsumerRecord<K, V> record, String topic, Exception exception) {
+        sendFailures.record();
+        sendFailure.compareAndSet(null, exception);
+        exception.printStackTrace();
+        System.out.println(String.format("ERROR-EXCEPTION - [Failed to move record %s-%d@%d to %s]",
+                record.topic(), record.partition(), record.offset(), topic));
+    }
+
+    /**
+     * Returns the headers of the next copy of a record: the original coordinates (kept from the first failure),
+     * the attempt and the error
+     */
+    private Headers headers(ConsumerRecord<K, V> record, int attempt, String error) {
+        Headers headers = new RecordHeaders();
+        if (record.headers().lastHeader(ORIGINAL_TOPIC_HEADER) != null) {
+            headers.add(record.headers().lastHeader(ORIGINAL_TOPIC_HEADER));
+            headers.add(record.headers().lastHeader(ORIGINAL_PARTITION_HEADER));
+            headers.add(record.headers().lastHeader(ORIGINAL_OFFSET_HEADER));
+        } else {
+            headers.add(ORIGINAL_TOPIC_HEADER, record.topic().getBytes(StandardCharsets.UTF_8));
+            headers.add(ORIGINAL_PARTITION_HEADER, bytes(record.partition()));
+            headers.add(ORIGINAL_OFFSET_HEADER, bytes(record.offset()));
+        }
+        headers.add(ATTEMPT_HEADER, bytes(attempt));
+        headers.add(ERROR_HEADER, error.substring(0, Math.min(error.length(), MAX_ERROR_LENGTH))
+                .getBytes(StandardCharsets.UTF_8));
+        return headers;
+    }
+
+    /**
+     * Returns the record as it was on its original topic when it comes from a retry topic, otherwise the record itself
+     */
+    private ConsumerRecord<K, V> original(ConsumerRecord<K, V> record) {
+        Header topic = record.headers().lastHeader(ORIGINAL_TOPIC_HEADER);
+        if (topic == null || !retryTopics.contains(record.topic())) {
+            return record;
+        }
+        return new ConsumerRecord<>(new String(topic.value(), StandardCharsets.UTF_8),
+                (int) longHeader(record.headers(), ORIGINAL_PARTITION_HEADER, record.partition()),
+                longHeader(record.headers(), ORIGINAL_OFFSET_HEADER, record.offset()), record.timestamp(),
+                record.timestampType(), null, record.serializedKeySize(), record.serializedValueSize(),
+                record.key(), record.value(), record.headers());
+    }
+
+    private static long longHeader(Headers headers, String name, long defaultValue) {
+        Header header = headers.lastHeader(name);
+        return header == null ? defaultValue : Long.parseLong(new String(header.value(), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String format(Duration delay) {
+        long millis = delay.toMillis();
+        if (millis % 3_600_000 == 0) {
+            return millis / 3_600_000 + "h";
+        } else if (millis % 60_000 == 0) {
+            return millis / 60_000 + "m";
+        } else if (millis % 1_000 == 0) {
+            return millis / 1_000 + "s";
+        }
+        return millis + "ms";
+    }
+}
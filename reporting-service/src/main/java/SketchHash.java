@@ -0,0 +1,29 @@
+/**
+ * 64-bit hash shared by the sketches. Every reporting-service instance must hash the same way for their sketches to
+ * be mergeable, so this must never depend on String.hashCode or anything else that could change between JVMs.
+ */
+public final class SketchHash {
+    private SketchHash() {
+    }
+
+    /**
+     * Takes in one parameter value and returns its 64-bit hash
+     * @param value
+     * @return
+     */
+    public static long hash64(String value) {
+        long hash = 0x9E3779B97F4A7C15L ^ value.length();
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash = Long.rotateLeft(hash, 31);
+        }
+        // Final avalanche of MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
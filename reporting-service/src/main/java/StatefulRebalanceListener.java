@@ -0,0 +1,98 @@
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Sensor;
+
+import java.util.Collection;
+
+/**
+ * Rebalance listener handing partition state over between consumers. With the cooperative-sticky assignor the
+ * callbacks only receive the partitions that move, so consumption of every other partition carries on during the
+ * rebalance and only the moving partitions are flushed and checkpointed (on revoke) or restored (on assign).
+ * The time spent in the callbacks, i.e. how long this consumer stopped consuming, is published as rebalance-pause-ms.
+ */
+public class StatefulRebalanceListener implements ConsumerRebalanceListener {
+    private final PartitionStateStore store;
+    private final PartitionHandOff handOff;
+    private final Sensor pause;
+    private final Sensor revoked;
+    private final Sensor assigned;
+    private final Sensor lost;
+
+    /**
+     * Takes in three parameters store, handOff, run first so the consumer loop can finish or discard its work on
+     * the moving partitions, and metrics.
+     * @param store
+     * @param handOff
+     * @param metrics
+     */
+    public StatefulRebalanceListener(PartitionStateStore store, PartitionHandOff handOff, ServiceMetrics metrics) {
+        this.store = store;
+        this.handOff = handOff;
+        this.pause = metrics.latency("rebalance-pause-ms", "Milliseconds spent handing partitions over");
+        this.revoked = metrics.counter("partitions-revoked", "Partitions revoked from this consumer");
+        this.assigned = metrics.counter("partitions-assigned", "Partitions newly assigned to this consumer");
+        this.lost = metrics.counter("partitions-lost", "Partitions lost without being revoked");
+    }
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        handOff.revoked(partitions);
+        for (TopicPartition partition : partitions) {
+            store.checkpoint(partition);
+        }
+        revoked.record(partitions.size());
+        recordPause(start, "Revoked", partitions);
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (TopicPartition partition : partitions) {
+            store.restore(partition);
+        }
+        assigned.record(partitions.size());
+        recordPause(start, "Assigned", partitions);
+    }
+
+    @Override
+    public void onPartitionsLost(Collection<TopicPartition> partitions) {
+        // The partitions may already belong to another consumer, so nothing can be committed or checkpointed
+        handOff.lost(partitions);
+        for (TopicPartition partition : partitions) {
+            store.drop(partition);
+        }
+        lost.record(partitions.size());
+        System.out.println("Lost partitions " + partitions);
+    }
+
+    private void recordPause(long start, String action, Collection<TopicPartition> partitions) {
+        double millis = (System.nanoTime() - start) / 1_000_000.0;
+        pause.record(millis);
+        System.out.println(String.format("%s partitions %s in %.1f ms", action, partitions, millis));
+    }
+
+    /**
+     * The consumer loop's side of a hand-off
+     */
+    public interface PartitionHandOff {
+        /**
+         * Finishes the work on partitions about to be revoked, e.g. drains in-flight records and commits their
+         * offsets synchronously, before their state is checkpointed
+         * @param partitions
+         */
+        void revoked(Collection<TopicPartition> partitions);
+
+        /**
+         * Discards the work on partitions that were lost, without committing anything
+         * @param partitions
+         */
+        void lost(Collection<TopicPartition> partitions);
+    }
+}
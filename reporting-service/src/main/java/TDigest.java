@@ -0,0 +1,198 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Merging t-digest for estimating quantiles (e.g. p50/p99 transaction amounts) in bounded memory. Values are
+ * buffered and periodically merged into at most about 2 * compression centroids, where centroids near the tails are
+ * kept small so the extreme quantiles stay accurate. Digests merge by adding the centroids of one to the other.
+ */
+public class TDigest {
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final double compression;
+    private double[] means = new double[0];
+    private double[] weights = new double[0];
+    private final double[] bufferMeans;
+    private final double[] bufferWeights;
+    private int buffered;
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Takes in one parameter compression, higher is more accurate and uses more centroids
+     * @param compression
+     */
+    public TDigest(double compression) {
+        this.compression = compression;
+        this.bufferMeans = new double[(int) (5 * compression)];
+        this.bufferWeights = new double[bufferMeans.length];
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    /**
+     * Takes in two parameters value and weight and adds the value that many times
+     * @param value
+     * @param weight
+     */
+    public void add(double value, double weight) {
+        if (buffered == bufferMeans.length) {
+            compress();
+        }
+        bufferMeans[buffered] = value;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Returns the estimated value at quantile q (0 to 1), NaN if the digest is empty
+     * @param q
+     * @return
+     */
+    public double quantile(double q) {
+        compress();
+        if (means.length == 0) {
+            return Double.NaN;
+        }
+        if (means.length == 1) {
+            return means[0];
+        }
+        double rank = q * totalWeight;
+        // Below the centre of the first centroid or above the centre of the last interpolate to the extremes
+        if (rank < weights[0] / 2) {
+            return min + (means[0] - min) * rank / (weights[0] / 2);
+        }
+        double cumulative = weights[0] / 2;
+        for (int i = 0; i < means.length - 1; i++) {
+            double step = (weights[i] + weights[i + 1]) / 2;
+            if (rank <= cumulative + step) {
+                return means[i] + (means[i + 1] - means[i]) * (rank - cumulative) / step;
+            }
+            cumulative += step;
+        }
+        int last = means.length - 1;
+        double tail = weights[last] / 2;
+        return means[last] + (max - means[last]) * Math.min(1, (rank - cumulative) / tail);
+    }
+
+    public double getCount() {
+        return totalWeight;
+    }
+
+    /**
+     * Takes in one parameter other and adds its centroids to this digest
+     * @param other
+     */
+    public void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.means.length; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public TDigest copy() {
+        TDigest copy = new TDigest(compression);
+        copy.merge(this);
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        compress();
+        out.writeDouble(compression);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeInt(means.length);
+        for (int i = 0; i < means.length; i++) {
+            out.writeDouble(means[i]);
+            out.writeDouble(weights[i]);
+        }
+    }
+
+    /**
+     * Takes in two parameters in and compression, the compression the digest must have, and reads a digest written
+     * by writeTo. Throws an IOException for a digest of another compression, before allocating its buffer.
+     * @param in
+     * @param compression
+     * @return
+     * @throws IOException
+     */
+    public static TDigest readFrom(DataInput in, double compression) throws IOException {
+        double written = in.readDouble();
+        if (written != compression) {
+            throw new IOException("expected a t-digest of compression " + compression + " but got " + written);
+        }
+        TDigest digest = new TDigest(compression);
+        double min = in.readDouble();
+        double max = in.readDouble();
+        int centroids = in.readInt();
+        if (centroids < 0) {
+            throw new IOException("negative number of centroids: " + centroids);
+        }
+        for (int i = 0; i < centroids; i++) {
+            digest.add(in.readDouble(), in.readDouble());
+        }
+        digest.min = min;
+        digest.max = max;
+        return digest;
+    }
+
+    /**
+     * Merges the buffered values into the centroids. The combined points are sorted by mean and neighbours are
+     * merged while the centroid stays under 4 * n * q * (1 - q) / compression, which is small near the tails.
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int count = means.length + buffered;
+        double[] allMeans = Arrays.copyOf(means, count);
+        double[] allWeights = Arrays.copyOf(weights, count);
+        System.arraycopy(bufferMeans, 0, allMeans, means.length, buffered);
+        System.arraycopy(bufferWeights, 0, allWeights, means.length, buffered);
+        buffered = 0;
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(allMeans[a], allMeans[b]));
+
+        double[] mergedMeans = new double[count];
+        double[] mergedWeights = new double[count];
+        int merged = 0;
+        double before = 0;
+        mergedMeans[0] = allMeans[order[0]];
+        mergedWeights[0] = allWeights[order[0]];
+        for (int i = 1; i < count; i++) {
+            double mean = allMeans[order[i]];
+            double weight = allWeights[order[i]];
+            double proposed = mergedWeights[merged] + weight;
+            double q = (before + proposed / 2) / totalWeight;
+            if (proposed <= Math.max(1, 4 * totalWeight * q * (1 - q) / compression)) {
+                mergedMeans[merged] += (mean - mergedMeans[merged]) * weight / proposed;
+                mergedWeights[merged] = proposed;
+            } else {
+                before += mergedWeights[merged];
+                merged++;
+                mergedMeans[merged] = mean;
+                mergedWeights[merged] = weight;
+            }
+        }
+        means = Arrays.copyOf(mergedMeans, merged + 1);
+        weights = Arrays.copyOf(mergedWeights, merged + 1);
+    }
+}
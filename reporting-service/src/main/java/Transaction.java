@@ -1,11 +1,23 @@
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serializer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
 public class Transaction {
+    // Thread-safe factory shared by the serializer and deserializer
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
     private String user;
     private double amount;
     private String transactionLocation;
+    // Id of the location in the CountryDictionary, compared instead of the name
+    private int locationId;
 
     public String getUser() {
         return user;
@@ -19,6 +31,10 @@ public class Transaction {
         return transactionLocation;
     }
 
+    public int getLocationId() {
+        return locationId;
+    }
+
     public void setUser(String user) {
         this.user = user;
     }
@@ -27,8 +43,27 @@ public class Transaction {
         this.amount = amount;
     }
 
+    /**
+     * Takes in one parameter transactionLocation and sets it together with its CountryDictionary id. Aliases of a
+     * country in the dictionary are replaced with its canonical name.
+     * @param transactionLocation
+     */
     public void setTransactionLocation(String transactionLocation) {
-        this.transactionLocation = transactionLocation;
+        CountryDictionary countries = CountryDictionary.shared();
+        this.locationId = countries.intern(transactionLocation);
+        this.transactionLocation = countries.isStandard(locationId)
+                ? countries.nameOf(locationId) : transactionLocation;
+    }
+
+    /**
+     * Takes in one parameter locationId, the id of a country in the CountryDictionary, and sets the location to it
+     * @param locationId
+     */
+    public void setLocationId(int locationId) {
+        String name = CountryDictionary.shared().nameOf(locationId);
+        this.locationId = locationId;
+        // Ids from a newer dictionary than this service's are kept, with a placeholder name
+        this.transactionLocation = name != null ? name : "location-" + locationId;
     }
 
     @Override
@@ -42,18 +77,77 @@ public class Transaction {
 
     /**
      * Kafka Deserializer implementation.
-     * Deserializes a Transaction from JSON to a {@link Transaction} object
+     * Deserializes a Transaction from JSON to a {@link Transaction} object. The JSON is read field by field with
+     * the Jackson streaming API, so no reflection or class introspection is needed at startup. The location is read
+     * from either the locationId or the transactionLocation field. A value that can't be read is returned as null
+     * with its bytes in the deserialization.failed header, so {@link RetryTopics} can dead-letter it as it was.
      */
     public static class TransactionDeserializer implements Deserializer<Transaction> {
 
+        @Override
+        public Transaction deserialize(String topic, Headers headers, byte[] data) {
+            Transaction transaction = deserialize(topic, data);
+            if (transaction == null && data != null) {
+                headers.add(RetryTopics.DESERIALIZATION_FAILED_HEADER, data);
+            }
+            return transaction;
+        }
+
         @Override
         public Transaction deserialize(String topic, byte[] data) {
-            ObjectMapper mapper = new ObjectMapper();
+            if (data == null) {
+                return null;
+            }
+            TransactionStageEvent event = new TransactionStageEvent();
+            event.begin();
             Transaction transaction = null;
-            try {
-                transaction = mapper.readValue(data, Transaction.class);
+            try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+                String user = null;
+                double amount = 0;
+                String transactionLocation = null;
+                int locationId = CountryDictionary.UNKNOWN;
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Transaction JSON must be an object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (field) {
+                        case "user":
+                            user = parser.getValueAsString();
+                            break;
+                        case "amount":
+                            amount = parser.getValueAsDouble();
+                            break;
+                        case "transactionLocation":
+                            transactionLocation = parser.getValueAsString();
+                            break;
+                        case "locationId":
+                            locationId = parser.getValueAsInt();
+                            break;
+                        default:
+                            // Ignore fields added by newer producers
+                            parser.skipChildren();
+                    }
+                }
+                transaction = new Transaction();
+                transaction.setUser(user);
+                transaction.setAmount(amount);
+                if (locationId != CountryDictionary.UNKNOWN) {
+                    transaction.setLocationId(locationId);
+                } else {
+                    transaction.setTransactionLocation(transactionLocation);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
+                System.out.println("ERROR-EXCEPTION - [Failed to deserialize a transaction from " + topic + "]");
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = "deserialize";
+                event.topic = topic;
+                event.userHash = transaction == null ? 0 : Objects.hashCode(transaction.getUser());
+                event.commit();
             }
             return transaction;
 
@@ -62,19 +156,32 @@ public class Transaction {
 
     /**
      * Kafka Serializer implementation.
-     * Serializes a Transaction to JSON so it can be sent to a Kafka Topic
+     * Serializes a Transaction to JSON so it can be sent to a Kafka Topic. The JSON is written field by field with
+     * the Jackson streaming API, so no reflection or class introspection is needed at startup. Locations in the
+     * CountryDictionary are written as their locationId, any other location as the transactionLocation string.
      */
     public static class TransactionSerializer implements Serializer<Transaction> {
         @Override
         public byte[] serialize(String topic, Transaction data) {
-            byte[] serializedData = null;
-            ObjectMapper objectMapper = new ObjectMapper();
-            try {
-                serializedData = objectMapper.writeValueAsString(data).getBytes();
+            if (data == null) {
+                return null;
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(96);
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+                generator.writeStartObject();
+                generator.writeStringField("user", data.getUser());
+                generator.writeNumberField("amount", data.getAmount());
+                if (CountryDictionary.shared().isStandard(data.getLocationId())) {
+                    generator.writeNumberField("locationId", data.getLocationId());
+                } else {
+                    generator.writeStringField("transactionLocation", data.getTransactionLocation());
+                }
+                generator.writeEndObject();
             } catch (Exception e) {
                 e.printStackTrace();
+                return null;
             }
-            return serializedData;
+            return outputStream.toByteArray();
         }
     }
 }
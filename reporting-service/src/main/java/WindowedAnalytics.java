@@ -0,0 +1,254 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Hourly aggregates of the reported transactions, kept in fixed size sketches so the memory doesn't depend on the
+ * number of users. Each one hour window holds:
+ * - a {@link HyperLogLog} per country counting the distinct users who made transactions there
+ * - a {@link CountMinTopK} of the amount spent per user, for the top spenders
+ * - a {@link CountMinTopK} of the suspicious transactions per country
+ * - a {@link TDigest} of the transaction amounts, for percentiles
+ * Only the last retainedWindows windows are kept. A window can be exported to bytes and merged into the same window
+ * of another reporting-service instance, so instances consuming different partitions can be combined.
+ */
+public class WindowedAnalytics {
+    public static final long WINDOW_MILLIS = 3_600_000;
+    // Countries are few, this only protects the memory bound against garbage locations
+    private static final int MAX_COUNTRIES = 512;
+    private static final String OTHER_COUNTRY = "(other)";
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int TRACKED_KEYS = 100;
+
+    private final int retainedWindows;
+    private final String suspiciousTopic;
+    private final Set<String> skippedTopics;
+    private final TreeMap<Long, AnalyticsWindow> windows = new TreeMap<>();
+
+    /**
+     * Takes in three parameters retainedWindows, the number of hours kept, suspiciousTopic, whose transactions are
+     * counted per country, and skippedTopics, topics only carrying copies of transactions on the other topics
+     * (e.g. high-value-transactions), which would otherwise be counted twice.
+     * @param retainedWindows
+     * @param suspiciousTopic
+     * @param skippedTopics
+     */
+    public WindowedAnalytics(int retainedWindows, String suspiciousTopic, Collection<String> skippedTopics) {
+        this.retainedWindows = retainedWindows;
+        this.suspiciousTopic = suspiciousTopic;
+        this.skippedTopics = new HashSet<>(skippedTopics);
+    }
+
+    /**
+     * Takes in three parameters topic, transaction and timestampMillis and adds the transaction to its hour's window
+     * @param topic
+     * @param transaction
+     * @param timestampMillis
+     */
+    public synchronized void add(String topic, Transaction transaction, long timestampMillis) {
+        if (transaction == null || skippedTopics.contains(topic)) {
+            return;
+        }
+        AnalyticsWindow window = window(windowStart(timestampMillis));
+        if (window == null) {
+            // Older than every retained window
+            return;
+        }
+        window.add(transaction, topic.equals(suspiciousTopic));
+    }
+
+    /**
+     * Returns copies of the windows starting at or after fromMillis, oldest first
+     * @param fromMillis
+     * @return
+     */
+    public synchronized List<AnalyticsWindow> windows(long fromMillis) {
+        List<AnalyticsWindow> copies = new ArrayList<>();
+        for (AnalyticsWindow window : windows.tailMap(windowStart(fromMillis), true).values()) {
+            copies.add(window.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * Returns the serialized window starting at windowStartMillis, or null if there is no such window
+     * @param windowStartMillis
+     * @return
+     */
+    public synchronized byte[] export(long windowStartMillis) {
+        AnalyticsWindow window = windows.get(windowStartMillis);
+        return window == null ? null : window.toBytes();
+    }
+
+    /**
+     * Takes in one parameter bytes, a window exported by another instance, and merges it into the same window here
+     * @param bytes
+     * @throws IOException
+     */
+    public synchronized void merge(byte[] bytes) throws IOException {
+        AnalyticsWindow other = AnalyticsWindow.fromBytes(bytes);
+        AnalyticsWindow window = window(other.start);
+        if (window != null) {
+            window.merge(other);
+        }
+    }
+
+    public synchronized int size() {
+        return windows.size();
+    }
+
+    private AnalyticsWindow window(long start) {
+        AnalyticsWindow window = windows.get(start);
+        if (window == null) {
+            if (windows.size() >= retainedWindows && start < windows.firstKey()) {
+                return null;
+            }
+            window = new AnalyticsWindow(start);
+            windows.put(start, window);
+            while (windows.size() > retainedWindows) {
+                windows.pollFirstEntry();
+            }
+        }
+        return window;
+    }
+
+    private static long windowStart(long timestampMillis) {
+        return timestampMillis - Math.floorMod(timestampMillis, WINDOW_MILLIS);
+    }
+
+    /**
+     * The sketches of one hour
+     */
+    public static class AnalyticsWindow {
+        private final long start;
+        private final Map<String, HyperLogLog> distinctUsers = new HashMap<>();
+        private final CountMinTopK spenders;
+        private final CountMinTopK suspiciousByCountry;
+        private final TDigest amounts;
+
+        private AnalyticsWindow(long start) {
+            this(start, new CountMinTopK(SKETCH_DEPTH, SKETCH_WIDTH, TRACKED_KEYS),
+                    new CountMinTopK(SKETCH_DEPTH, SKETCH_WIDTH, TRACKED_KEYS), new TDigest());
+        }
+
+        private AnalyticsWindow(long start, CountMinTopK spenders, CountMinTopK suspiciousByCountry,
+                                TDigest amounts) {
+            this.start = start;
+            this.spenders = spenders;
+            this.suspiciousByCountry = suspiciousByCountry;
+            this.amounts = amounts;
+        }
+
+        private void add(Transaction transaction, boolean suspicious) {
+            String country = transaction.getTransactionLocation();
+            distinctUsers(country).add(transaction.getUser());
+            spenders.add(transaction.getUser(), transaction.getAmount());
+            amounts.add(transaction.getAmount());
+            if (suspicious) {
+                suspiciousByCountry.add(country, 1);
+            }
+        }
+
+        private HyperLogLog distinctUsers(String country) {
+            HyperLogLog users = distinctUsers.get(country);
+            if (users == null) {
+                if (distinctUsers.size() >= MAX_COUNTRIES) {
+                    return distinctUsers.computeIfAbsent(OTHER_COUNTRY, other -> new HyperLogLog());
+                }
+                users = new HyperLogLog();
+                distinctUsers.put(country, users);
+            }
+            return users;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the estimated number of distinct users per country
+         * @return
+         */
+        public Map<String, Long> distinctUsersByCountry() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Map.Entry<String, HyperLogLog> entry : distinctUsers.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().estimate());
+            }
+            return counts;
+        }
+
+        public List<Map.Entry<String, Double>> topSpenders(int n) {
+            return spenders.top(n);
+        }
+
+        public List<Map.Entry<String, Double>> suspiciousByCountry(int n) {
+            return suspiciousByCountry.top(n);
+        }
+
+        public double amountQuantile(double q) {
+            return amounts.quantile(q);
+        }
+
+        public double getTransactionCount() {
+            return amounts.getCount();
+        }
+
+        private void merge(AnalyticsWindow other) {
+            for (Map.Entry<String, HyperLogLog> entry : other.distinctUsers.entrySet()) {
+                distinctUsers(entry.getKey()).merge(entry.getValue());
+            }
+            spenders.merge(other.spenders);
+            suspiciousByCountry.merge(other.suspiciousByCountry);
+            amounts.merge(other.amounts);
+        }
+
+        private AnalyticsWindow copy() {
+            AnalyticsWindow copy = new AnalyticsWindow(start, spenders.copy(), suspiciousByCountry.copy(),
+                    amounts.copy());
+            for (Map.Entry<String, HyperLogLog> entry : distinctUsers.entrySet()) {
+                copy.distinctUsers.put(entry.getKey(), entry.getValue().copy());
+            }
+            return copy;
+        }
+
+        private byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(start);
+                out.writeInt(distinctUsers.size());
+                for (Map.Entry<String, HyperLogLog> entry : distinctUsers.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().writeTo(out);
+                }
+                spenders.writeTo(out);
+                suspiciousByCountry.writeTo(out);
+                amounts.writeTo(out);
+            } catch (IOException e) {
+                // Can't happen writing to memory
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static AnalyticsWindow fromBytes(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long start = in.readLong();
+            int countries = in.readInt();
+            // The bytes are posted from outside, check every dimension before allocating for it
+            if (countries < 0 || countries > MAX_COUNTRIES + 1) {
+                throw new IOException("a window has at most " + MAX_COUNTRIES + " countries and " + OTHER_COUNTRY
+                        + ", got " + countries);
+            }
+            Map<String, HyperLogLog> distinctUsers = new HashMap<>();
+            for (int i = 0; i < countries; i++) {
+                distinctUsers.put(in.readUTF(), HyperLogLog.readFrom(in, HyperLogLog.DEFAULT_PRECISION));
+            }
+            AnalyticsWindow window = new AnalyticsWindow(start,
+                    CountMinTopK.readFrom(in, SKETCH_DEPTH, SKETCH_WIDTH, TRACKED_KEYS),
+                    CountMinTopK.readFrom(in, SKETCH_DEPTH, SKETCH_WIDTH, TRACKED_KEYS),
+                    TDigest.readFrom(in, TDigest.DEFAULT_COMPRESSION));
+            window.distinctUsers.putAll(distinctUsers);
+            return window;
+        }
+    }
+}
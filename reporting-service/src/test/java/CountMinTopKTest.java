@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountMinTopKTest {
+    private static final int HEAVY_HITTERS = 20;
+    private static final int LIGHT_KEYS = 20_000;
+
+    @Test
+    void testHeavyHittersAreRecalled() {
+        CountMinTopK sketch = new CountMinTopK(4, 2048, 100);
+        add(sketch, new Random(42), 0, 1);
+
+        Set<String> top = keys(sketch.top(HEAVY_HITTERS));
+        for (int i = 0; i < HEAVY_HITTERS; i++) {
+            assertTrue(top.contains("heavy" + i), "missing heavy" + i + " in " + top);
+        }
+        // Heaviest first
+        assertEquals("heavy" + (HEAVY_HITTERS - 1), sketch.top(1).get(0).getKey());
+    }
+
+    @Test
+    void testEstimatesNeverUnderCountAndStayWithinTheBound() {
+        CountMinTopK sketch = new CountMinTopK(4, 2048, 100);
+        Map<String, Double> exact = add(sketch, new Random(7), 0, 1);
+
+        double bound = 2.0 / 2048 * sketch.getTotal();
+        for (Map.Entry<String, Double> entry : exact.entrySet()) {
+            double estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue() - 1e-9, entry.getKey());
+            assertTrue(estimate - entry.getValue() <= bound, entry.getKey());
+        }
+    }
+
+    @Test
+    void testMergeEqualsOneSketchOfBothStreams() throws IOException {
+        CountMinTopK first = new CountMinTopK(4, 2048, 100);
+        CountMinTopK second = new CountMinTopK(4, 2048, 100);
+        CountMinTopK combined = new CountMinTopK(4, 2048, 100);
+        Map<String, Double> exact = add(first, new Random(1), 0, 2);
+        add(second, new Random(1), 1, 2);
+        add(combined, new Random(1), 0, 1);
+
+        // Merged after a round trip, as between two instances
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        second.writeTo(new DataOutputStream(bytes));
+        first.merge(CountMinTopK.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                4, 2048, 100));
+
+        assertEquals(combined.getTotal(), first.getTotal(), 1e-6);
+        for (String key : exact.keySet()) {
+            assertEquals(combined.estimate(key), first.estimate(key), 1e-6, key);
+        }
+        assertEquals(keys(combined.top(HEAVY_HITTERS)), keys(first.top(HEAVY_HITTERS)));
+    }
+
+    @Test
+    void testReadBackOnlyWithTheSameDimensions() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new CountMinTopK(4, 2048, 100).writeTo(new DataOutputStream(bytes));
+
+        assertThrows(IOException.class, () -> CountMinTopK.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 4, 1024, 100));
+    }
+
+    /**
+     * Adds every stride-th update of a stream of heavy hitters among many light keys, starting at update first,
+     * and returns the exact weights of the keys
+     */
+    private static Map<String, Double> add(CountMinTopK sketch, Random random, int first, int stride) {
+        List<Map.Entry<String, Double>> updates = new ArrayList<>();
+        for (int i = 0; i < HEAVY_HITTERS; i++) {
+            for (int j = 0; j < 50; j++) {
+                updates.add(new AbstractMap.SimpleEntry<>("heavy" + i, 20.0 + i));
+            }
+        }
+        for (int i = 0; i < LIGHT_KEYS; i++) {
+            updates.add(new AbstractMap.SimpleEntry<>("light" + i, random.nextDouble() * 10));
+        }
+        Collections.shuffle(updates, random);
+        Map<String, Double> exact = new HashMap<>();
+        for (int i = 0; i < updates.size(); i++) {
+            Map.Entry<String, Double> update = updates.get(i);
+            exact.merge(update.getKey(), update.getValue(), Double::sum);
+            if (i % stride == first) {
+                sketch.add(update.getKey(), update.getValue());
+            }
+        }
+        return exact;
+    }
+
+    private static Set<String> keys(List<Map.Entry<String, Double>> entries) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Double> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+}
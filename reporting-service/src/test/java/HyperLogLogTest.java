@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HyperLogLogTest {
+
+    @Test
+    void testEstimateIsWithinTheErrorBound() {
+        // Standard error at precision 12 is about 1.6%, allow three of them
+        for (int distinct : new int[]{100, 1_000, 10_000, 200_000}) {
+            HyperLogLog hyperLogLog = new HyperLogLog();
+            for (int i = 0; i < distinct; i++) {
+                hyperLogLog.add("user" + i);
+                // Duplicates don't count
+                hyperLogLog.add("user" + i);
+            }
+            assertEquals(distinct, hyperLogLog.estimate(), distinct * 0.05, "distinct values: " + distinct);
+        }
+    }
+
+    @Test
+    void testMergeEqualsOneCounterOfTheUnion() {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        HyperLogLog combined = new HyperLogLog();
+        for (int i = 0; i < 30_000; i++) {
+            (i % 3 == 0 ? first : second).add("user" + i);
+            combined.add("user" + i);
+        }
+        // Overlapping values are counted once
+        for (int i = 0; i < 5_000; i++) {
+            first.add("user" + i);
+        }
+
+        first.merge(second);
+        assertEquals(combined, first);
+        assertEquals(combined.estimate(), first.estimate());
+        assertThrows(IllegalArgumentException.class, () -> first.merge(new HyperLogLog(10)));
+    }
+
+    @Test
+    void testReadBackOnlyWithTheSamePrecision() throws IOException {
+        HyperLogLog hyperLogLog = new HyperLogLog();
+        for (int i = 0; i < 1_000; i++) {
+            hyperLogLog.add("user" + i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hyperLogLog.writeTo(new DataOutputStream(bytes));
+
+        assertEquals(hyperLogLog, HyperLogLog.readFrom(input(bytes), HyperLogLog.DEFAULT_PRECISION));
+        assertThrows(IOException.class, () -> HyperLogLog.readFrom(input(bytes), 16));
+    }
+
+    private static DataInput input(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
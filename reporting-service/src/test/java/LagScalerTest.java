@@ -0,0 +1,155 @@
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LagScalerTest {
+    private static final long INTERVAL_MILLIS = 1_000;
+    // The backlog should drain within 10 s
+    private static final long TARGET_DRAIN_MILLIS = 10_000;
+
+    private final ServiceMetrics metrics = new ServiceMetrics("lag-scaler-test");
+    private final ElasticWorkerPool workerPool = new ElasticWorkerPool(1, 16);
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final AtomicLong lag = new AtomicLong();
+    private final AtomicBoolean brokersDown = new AtomicBoolean();
+    private final LagScaler scaler = new LagScaler(this::measureLag, workerPool, 100, 1_000, 100, TARGET_DRAIN_MILLIS,
+            INTERVAL_MILLIS, metrics, clock::get);
+
+    @AfterEach
+    void close() {
+        workerPool.close();
+        metrics.close();
+    }
+
+    @Test
+    void testLagIsEndMinusCommittedOffsets() {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        assertEquals(0, LagScaler.consumerLag(consumer));
+
+        TopicPartition committed = new TopicPartition("valid-transactions", 0);
+        TopicPartition uncommitted = new TopicPartition("valid-transactions", 1);
+        consumer.assign(Arrays.asList(committed, uncommitted));
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        offsets.put(committed, 0L);
+        offsets.put(uncommitted, 0L);
+        consumer.updateBeginningOffsets(offsets);
+        offsets.put(committed, 100L);
+        offsets.put(uncommitted, 50L);
+        consumer.updateEndOffsets(offsets);
+        consumer.commitSync(Collections.singletonMap(committed, new OffsetAndMetadata(40)));
+        // Where nothing is committed yet the position counts
+        consumer.seek(uncommitted, 10);
+
+        assertEquals(60 + 40, LagScaler.consumerLag(consumer));
+    }
+
+    @Test
+    void testNothingChangesWithinTheInterval() {
+        lag.set(1_000_000);
+        clock.addAndGet(INTERVAL_MILLIS - 1);
+        scaler.maybeRescale();
+
+        assertEquals(1, workerPool.getWorkers());
+        assertEquals(0, scaler.getLag());
+    }
+
+    @Test
+    void testBacklogWithoutMeasuredRateAddsOneWorker() {
+        lag.set(1_000_000);
+        interval(0);
+
+        assertEquals(1_000_000, scaler.getLag());
+        assertEquals(2, workerPool.getWorkers());
+    }
+
+    @Test
+    void testWorkersAtMostDoublePerIntervalUpToTheMaximum() {
+        // 1,000 records/s per worker can't drain 10,000,000 records in 10 s with any pool
+        lag.set(10_000_000);
+        int[] expected = {2, 4, 8, 16, 16};
+        for (int workers : expected) {
+            interval(workerPool.getWorkers() * 1_000);
+            assertEquals(workers, workerPool.getWorkers());
+            assertEquals(workerPool.getWorkers(), workerPool.getThreadLimit());
+        }
+        // Prefetch depth follows the workers within its bounds
+        assertEquals(1_000, scaler.getPrefetchDepth());
+    }
+
+    @Test
+    void testRateIsSmoothedAcrossIntervals() {
+        lag.set(100_000);
+        // 1,000 records/s on one worker, needs 10 workers, doubles to 2
+        interval(1_000);
+        assertEquals(2, workerPool.getWorkers());
+
+        // 2,000 records/s per worker now, smoothed to 0.3 * 2,000 + 0.7 * 1,000 = 1,300. Draining 39,000 records
+        // in 10 s takes 3,900 records/s, so 3 workers (2 on the unsmoothed sample)
+        lag.set(39_000);
+        interval(4_000);
+        assertEquals(3, workerPool.getWorkers());
+        assertEquals(300, scaler.getPrefetchDepth());
+    }
+
+    @Test
+    void testWorkersAreRemovedOneAtATime() {
+        workerPool.resize(4);
+        lag.set(0);
+        int[] expected = {3, 2, 1, 1};
+        for (int workers : expected) {
+            interval(0);
+            assertEquals(workers, workerPool.getWorkers());
+            assertEquals(workerPool.getWorkers(), workerPool.getThreadLimit());
+        }
+        assertEquals(100, scaler.getPrefetchDepth());
+
+        // More workers than the backlog needs also shrinks by one
+        workerPool.resize(8);
+        interval(8_000);
+        lag.set(1_000);
+        interval(8_000);
+        assertEquals(6, workerPool.getWorkers());
+    }
+
+    @Test
+    void testFailedLagMeasurementKeepsTheLastLag() {
+        lag.set(500);
+        interval(0);
+        brokersDown.set(true);
+        lag.set(0);
+        interval(0);
+
+        assertEquals(500, scaler.getLag());
+        // Still behind as far as it knows, so it keeps adding workers instead of giving one back
+        assertEquals(3, workerPool.getWorkers());
+    }
+
+    private long measureLag() {
+        if (brokersDown.get()) {
+            throw new TimeoutException("no broker");
+        }
+        return lag.get();
+    }
+
+    /**
+     * Lets one evaluation interval pass in which the workers processed records
+     */
+    private void interval(int records) {
+        scaler.recordProcessed(records);
+        clock.addAndGet(INTERVAL_MILLIS);
+        scaler.maybeRescale();
+    }
+}
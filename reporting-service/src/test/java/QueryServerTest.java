@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryServerTest {
+    private static final List<String> TOPICS = Arrays.asList("valid-transactions", "suspicious-transactions",
+            "high-value-transactions");
+
+    private final RecentTransactionIndex index = new RecentTransactionIndex(16, 3_600_000, TOPICS);
+    private QueryServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        long now = System.currentTimeMillis();
+        index.add("valid-transactions", RecentTransactionIndexTest.transaction("joe1680", "Ireland", 10), now - 2);
+        index.add("valid-transactions", RecentTransactionIndexTest.transaction("joe1680", "Ireland", 20), now - 1);
+        server = new QueryServer(index, new WindowedAnalytics(1, "suspicious-transactions",
+                Collections.emptyList()), 0);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    @Test
+    void testLimitBelowOneIsRejected() throws IOException {
+        assertEquals(400, get("/transactions?country=Ireland&limit=-1").getResponseCode());
+        assertEquals(400, get("/transactions?user=joe1680&limit=0").getResponseCode());
+        assertEquals(400, get("/transactions?limit=many").getResponseCode());
+    }
+
+    @Test
+    void testTransactionsAreReturnedNewestFirstUpToTheLimit() throws IOException {
+        HttpURLConnection connection = get("/transactions?country=Ireland&limit=1");
+        assertEquals(200, connection.getResponseCode());
+        String body = read(connection);
+        assertTrue(body.startsWith("[{"), body);
+        assertTrue(body.contains("\"amount\":20.0"), body);
+        assertFalse(body.contains("\"amount\":10.0"), body);
+
+        connection = get("/transactions?user=joe1680");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(read(connection).contains("\"amount\":10.0"));
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream inputStream = connection.getInputStream()) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
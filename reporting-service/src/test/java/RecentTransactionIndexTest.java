@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecentTransactionIndexTest {
+    private static final List<String> TOPICS = Arrays.asList("valid-transactions", "suspicious-transactions",
+            "high-value-transactions");
+    private static final long HOUR = 3_600_000;
+    private static final long NOW = 100 * HOUR;
+
+    @Test
+    void testQueriesByUserCountryAndTopic() {
+        RecentTransactionIndex index = new RecentTransactionIndex(16, 24 * HOUR, TOPICS);
+        index.add("valid-transactions", transaction("joe1680", "Ireland", 10), NOW - 3 * HOUR);
+        index.add("suspicious-transactions", transaction("joe1680", "China", 20), NOW - 2 * HOUR);
+        index.add("valid-transactions", transaction("dkelly9283", "Eire", 30), NOW - HOUR);
+
+        assertEquals(Arrays.asList(20.0, 10.0), amounts(index.query("joe1680", null, null, 0, NOW, 10)));
+        // Aliases are indexed under the canonical country
+        assertEquals(Arrays.asList(30.0, 10.0), amounts(index.query(null, "IE", null, 0, NOW, 10)));
+        assertEquals("Ireland", index.query(null, "Ireland", null, 0, NOW, 1).get(0).getTransactionLocation());
+        assertEquals(Arrays.asList(30.0), amounts(index.query(null, "Ireland", "valid-transactions",
+                NOW - 2 * HOUR, NOW, 10)));
+        assertEquals(Arrays.asList(20.0), amounts(index.query("joe1680", null, "suspicious-transactions", 0, NOW,
+                10)));
+        assertTrue(index.query(null, "Atlantis", null, 0, NOW, 10).isEmpty());
+    }
+
+    @Test
+    void testLocationsMissingFromTheDictionaryShareOneBitmap() {
+        RecentTransactionIndex index = new RecentTransactionIndex(8, 24 * HOUR, TOPICS);
+        index.add("valid-transactions", transaction("joe1680", "Atlantis", 1), NOW - 2 * HOUR);
+        index.add("valid-transactions", transaction("joe1680", "Lemuria", 2), NOW - HOUR);
+        index.add("valid-transactions", transaction("fjoyce252", "Ireland", 3), NOW);
+
+        // Each keeps its own name and is only found by it
+        List<RecentTransactionIndex.IndexedTransaction> atlantis = index.query(null, "Atlantis", null, 0, NOW, 10);
+        assertEquals(Arrays.asList(1.0), amounts(atlantis));
+        assertEquals("Atlantis", atlantis.get(0).getTransactionLocation());
+        assertEquals(Arrays.asList(2.0), amounts(index.query("joe1680", "Lemuria", null, 0, NOW, 10)));
+
+        // Overwriting them clears the shared bitmap
+        for (int i = 0; i < 8; i++) {
+            index.add("valid-transactions", transaction("fjoyce252", "Ireland", 10 + i), NOW);
+        }
+        assertTrue(index.query(null, "Atlantis", null, 0, NOW, 10).isEmpty());
+        assertEquals(8, index.query(null, "Ireland", null, 0, NOW, 100).size());
+    }
+
+    @Test
+    void testActiveUserIsNotCutShortAtTheRingSize() {
+        RecentTransactionIndex index = new RecentTransactionIndex(1_000, 24 * HOUR, TOPICS);
+        for (int i = 0; i < 200; i++) {
+            index.add(i % 2 == 0 ? "suspicious-transactions" : "valid-transactions",
+                    transaction("joe1680", "Ireland", i), NOW - HOUR + i);
+            index.add("valid-transactions", transaction("dkelly9283", "Dubai", 1_000 + i), NOW - HOUR + i);
+        }
+
+        List<Double> suspicious = amounts(index.query("joe1680", null, "suspicious-transactions", 0, NOW, 1_000));
+        assertEquals(100, suspicious.size());
+        assertEquals(198.0, suspicious.get(0));
+        assertEquals(0.0, suspicious.get(99));
+        assertEquals(200, index.query("joe1680", null, null, 0, NOW, 1_000).size());
+        // The limit still applies past the ring
+        assertEquals(150, index.query("joe1680", null, null, 0, NOW, 150).size());
+        // Only the user's transactions newer than the given time
+        assertEquals(Arrays.asList(199.0, 198.0), amounts(index.query("joe1680", null, null, NOW - HOUR + 198,
+                NOW, 1_000)));
+    }
+
+    @Test
+    void testOldestTransactionsAreOverwrittenAndExpired() {
+        RecentTransactionIndex index = new RecentTransactionIndex(3, 24 * HOUR, TOPICS);
+        for (int i = 0; i < 5; i++) {
+            index.add("valid-transactions", transaction("joe1680", "Ireland", i), NOW - 50 * HOUR + i * 12 * HOUR);
+        }
+        assertEquals(3, index.size());
+        // Of the three left, the oldest is past the retention period and no longer returned
+        assertEquals(Arrays.asList(4.0, 3.0), amounts(index.query("joe1680", null, null, 0, NOW, 10)));
+        assertEquals(Arrays.asList(4.0), amounts(index.query(null, null, null, 0, NOW, 1)));
+
+        index.pruneUsers();
+        assertEquals(2, index.query("joe1680", null, null, 0, NOW, 10).size());
+        // Transactions of topics that aren't indexed are ignored
+        index.add("other-topic", transaction("joe1680", "Ireland", 99), NOW);
+        assertEquals(Arrays.asList(4.0, 3.0), amounts(index.query("joe1680", null, null, 0, NOW, 10)));
+    }
+
+    static Transaction transaction(String user, String location, double amount) {
+        Transaction transaction = new Transaction();
+        transaction.setUser(user);
+        transaction.setAmount(amount);
+        transaction.setTransactionLocation(location);
+        return transaction;
+    }
+
+    private static List<Double> amounts(List<RecentTransactionIndex.IndexedTransaction> transactions) {
+        List<Double> amounts = new ArrayList<>();
+        for (RecentTransactionIndex.IndexedTransaction transaction : transactions) {
+            amounts.add(transaction.getAmount());
+        }
+        return amounts;
+    }
+}
@@ -0,0 +1,148 @@
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportingBackfillTest {
+    private static final String TOPIC = "valid-transactions";
+    private static final TopicPartition PARTITION_0 = new TopicPartition(TOPIC, 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition(TOPIC, 1);
+
+    @Test
+    void testOffsetRangesComeFromTheStartAndEndTimestamps() {
+        Map<TopicPartition, long[]> timestamps = new HashMap<>();
+        timestamps.put(PARTITION_0, new long[]{100, 200, 300, 400, 500});
+        timestamps.put(PARTITION_1, new long[]{150, 250, 350, 450});
+
+        Map<TopicPartition, long[]> ranges = backfill(200, 400, () -> metadataConsumer(timestamps))
+                .resolveOffsetRanges();
+
+        assertEquals(2, ranges.size());
+        // From the first record at or after the start up to, excluding, the first record at or after the end
+        assertArrayEquals(new long[]{1, 3}, ranges.get(PARTITION_0));
+        assertArrayEquals(new long[]{1, 3}, ranges.get(PARTITION_1));
+    }
+
+    @Test
+    void testPartitionWithoutRecordsAfterTheEndIsReadToItsEndOffset() {
+        Map<TopicPartition, long[]> timestamps = new HashMap<>();
+        timestamps.put(PARTITION_0, new long[]{100, 200, 300});
+
+        Map<TopicPartition, long[]> ranges = backfill(200, 1000, () -> metadataConsumer(timestamps))
+                .resolveOffsetRanges();
+
+        assertArrayEquals(new long[]{1, 3}, ranges.get(PARTITION_0));
+    }
+
+    @Test
+    void testEmptyRangesAreLeftOut() {
+        Map<TopicPartition, long[]> timestamps = new HashMap<>();
+        // Every record is before the start
+        timestamps.put(PARTITION_0, new long[]{100, 150});
+        // No record between the start and the end
+        timestamps.put(PARTITION_1, new long[]{100, 500});
+
+        Map<TopicPartition, long[]> ranges = backfill(200, 400, () -> metadataConsumer(timestamps))
+                .resolveOffsetRanges();
+
+        assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    void testReadingStopsExactlyAtTheEndOffset() throws IOException {
+        // Offsets 0 to 4 arrive in the first poll and 5 to 9 in the second
+        ReportingBackfill backfill = backfill(0, 1, () -> partitionConsumer(PARTITION_0, 10, 5));
+        StringWriter output = new StringWriter();
+        AtomicLong recordCount = new AtomicLong();
+
+        try (BufferedWriter writer = new BufferedWriter(output)) {
+            backfill.readPartition(PARTITION_0, 1, 7, writer, recordCount);
+        }
+
+        assertEquals(6, recordCount.get());
+        List<String> amounts = new ArrayList<>();
+        for (String line : output.toString().split("\n")) {
+            amounts.add(line.substring(line.indexOf("Amount: ") + 8, line.indexOf(']', line.indexOf("Amount: "))));
+        }
+        assertEquals(Arrays.asList("1.00", "2.00", "3.00", "4.00", "5.00", "6.00"), amounts);
+    }
+
+    @Test
+    void testEndMustBeAfterStart() {
+        assertThrows(IllegalArgumentException.class, () -> backfill(400, 400, () -> null));
+        assertThrows(IllegalArgumentException.class, () -> backfill(400, 200, () -> null));
+    }
+
+    private static ReportingBackfill backfill(long startMillis, long endMillis,
+                                              Supplier<Consumer<String, Transaction>> consumers) {
+        return new ReportingBackfill(Collections.singletonList(TOPIC), startMillis, endMillis,
+                Paths.get("backfill.txt"), consumers);
+    }
+
+    /**
+     * Returns a consumer knowing the partitions of TOPIC and the timestamp of every offset, answering
+     * offsetsForTimes like the brokers do.
+     */
+    private static Consumer<String, Transaction> metadataConsumer(Map<TopicPartition, long[]> timestamps) {
+        MockConsumer<String, Transaction> consumer = new MockConsumer<String, Transaction>(
+                OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(
+                    Map<TopicPartition, Long> timestampsToSearch) {
+                Map<TopicPartition, OffsetAndTimestamp> offsets = new HashMap<>();
+                for (Map.Entry<TopicPartition, Long> query : timestampsToSearch.entrySet()) {
+                    long[] partitionTimestamps = timestamps.get(query.getKey());
+                    for (int offset = 0; offset < partitionTimestamps.length; offset++) {
+                        if (partitionTimestamps[offset] >= query.getValue()) {
+                            offsets.put(query.getKey(), new OffsetAndTimestamp(offset, partitionTimestamps[offset]));
+                            break;
+                        }
+                    }
+                }
+                return offsets;
+            }
+        };
+        List<PartitionInfo> partitions = new ArrayList<>();
+        Map<TopicPartition, Long> endOffsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, long[]> partition : timestamps.entrySet()) {
+            partitions.add(new PartitionInfo(TOPIC, partition.getKey().partition(), null, null, null));
+            endOffsets.put(partition.getKey(), (long) partition.getValue().length);
+        }
+        consumer.updatePartitions(TOPIC, partitions);
+        consumer.updateEndOffsets(endOffsets);
+        return consumer;
+    }
+
+    /**
+     * Returns a consumer holding records of amount equal to their offset, handed out perPoll at a time.
+     */
+    private static Consumer<String, Transaction> partitionConsumer(TopicPartition partition, int records,
+                                                                   int perPoll) {
+        MockConsumer<String, Transaction> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+        for (int first = 0; first < records; first += perPoll) {
+            int from = first;
+            consumer.schedulePollTask(() -> {
+                for (int offset = from; offset < Math.min(records, from + perPoll); offset++) {
+                    consumer.addRecord(new ConsumerRecord<>(partition.topic(), partition.partition(), offset,
+                            "joe1680", RecentTransactionIndexTest.transaction("joe1680", "Ireland", offset)));
+                }
+            });
+        }
+        return consumer;
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TDigestTest {
+    private static final int VALUES = 100_000;
+    private static final double[] QUANTILES = {0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999};
+
+    @Test
+    void testQuantilesAreWithinTheRankError() {
+        TDigest digest = new TDigest();
+        for (double value : shuffledValues()) {
+            digest.add(value);
+        }
+
+        assertEquals(VALUES, digest.getCount());
+        assertQuantiles(digest);
+        assertTrue(Double.isNaN(new TDigest().quantile(0.5)));
+    }
+
+    @Test
+    void testMergeMatchesOneDigestOfBothStreams() throws IOException {
+        TDigest first = new TDigest();
+        TDigest second = new TDigest();
+        TDigest combined = new TDigest();
+        List<Double> values = shuffledValues();
+        for (int i = 0; i < values.size(); i++) {
+            (i % 2 == 0 ? first : second).add(values.get(i));
+            combined.add(values.get(i));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        second.writeTo(new DataOutputStream(bytes));
+        first.merge(TDigest.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                TDigest.DEFAULT_COMPRESSION));
+
+        assertEquals(combined.getCount(), first.getCount());
+        assertQuantiles(first);
+        for (double q : QUANTILES) {
+            assertEquals(combined.quantile(q) / VALUES, first.quantile(q) / VALUES, 0.01, "quantile " + q);
+        }
+        assertEquals(0, first.quantile(0));
+        assertEquals(VALUES - 1, first.quantile(1));
+    }
+
+    @Test
+    void testReadBackOnlyWithTheSameCompression() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new TDigest().writeTo(new DataOutputStream(bytes));
+
+        assertThrows(IOException.class, () -> TDigest.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 1_000));
+    }
+
+    private static void assertQuantiles(TDigest digest) {
+        // The values are 0 to VALUES - 1, so the rank of a value is the value itself
+        for (double q : QUANTILES) {
+            double tolerance = q < 0.01 || q > 0.99 ? 0.001 : 0.01;
+            assertEquals(q, digest.quantile(q) / VALUES, tolerance, "quantile " + q);
+        }
+    }
+
+    private static List<Double> shuffledValues() {
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < VALUES; i++) {
+            values.add((double) i);
+        }
+        Collections.shuffle(values, new Random(42));
+        return values;
+    }
+}
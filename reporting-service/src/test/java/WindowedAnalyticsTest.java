@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WindowedAnalyticsTest {
+    private static final String VALID = "valid-transactions";
+    private static final String SUSPICIOUS = "suspicious-transactions";
+    private static final String HIGH_VALUE = "high-value-transactions";
+    private static final long HOUR = WindowedAnalytics.WINDOW_MILLIS;
+    private static final long START = 1_000 * HOUR;
+    private static final String[] COUNTRIES = {"Ireland", "China", "India", "Dubai"};
+
+    @Test
+    void testTransactionsAreAggregatedPerHour() {
+        WindowedAnalytics analytics = analytics(3);
+        analytics.add(VALID, transaction("joe1680", "Ireland", 10), START);
+        analytics.add(VALID, transaction("dkelly9283", "Ireland", 30), START + HOUR - 1);
+        analytics.add(SUSPICIOUS, transaction("joe1680", "China", 500), START + 1);
+        // Copies on the high-value topic aren't counted twice
+        analytics.add(HIGH_VALUE, transaction("joe1680", "China", 500), START + 1);
+        analytics.add(VALID, transaction("joe1680", "Ireland", 10), START + HOUR);
+
+        List<WindowedAnalytics.AnalyticsWindow> windows = analytics.windows(START);
+        assertEquals(2, windows.size());
+        WindowedAnalytics.AnalyticsWindow first = windows.get(0);
+        assertEquals(START, first.getStart());
+        assertEquals(3, first.getTransactionCount());
+        assertEquals(Long.valueOf(2), first.distinctUsersByCountry().get("Ireland"));
+        assertEquals("joe1680", first.topSpenders(1).get(0).getKey());
+        assertEquals(510, first.topSpenders(1).get(0).getValue(), 1e-9);
+        assertEquals("China", first.suspiciousByCountry(1).get(0).getKey());
+    }
+
+    @Test
+    void testOnlyTheRetainedWindowsAreKept() {
+        WindowedAnalytics analytics = analytics(2);
+        for (int hour = 0; hour < 4; hour++) {
+            analytics.add(VALID, transaction("joe1680", "Ireland", 10), START + hour * HOUR);
+        }
+        // Older than every retained window
+        analytics.add(VALID, transaction("joe1680", "Ireland", 10), START);
+
+        assertEquals(2, analytics.size());
+        assertEquals(START + 2 * HOUR, analytics.windows(0).get(0).getStart());
+    }
+
+    @Test
+    void testMergedInstancesEqualOneInstanceOfAllTransactions() throws IOException {
+        WindowedAnalytics first = analytics(3);
+        WindowedAnalytics second = analytics(3);
+        WindowedAnalytics combined = analytics(3);
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            String topic = random.nextInt(10) == 0 ? SUSPICIOUS : VALID;
+            Transaction transaction = transaction("user" + random.nextInt(2_000),
+                    COUNTRIES[random.nextInt(COUNTRIES.length)], random.nextInt(1_000));
+            // Each instance consumes half of the partitions
+            (i % 2 == 0 ? first : second).add(topic, transaction, START + i);
+            combined.add(topic, transaction, START + i);
+        }
+
+        first.merge(second.export(START));
+
+        WindowedAnalytics.AnalyticsWindow merged = first.windows(START).get(0);
+        WindowedAnalytics.AnalyticsWindow expected = combined.windows(START).get(0);
+        assertEquals(expected.getTransactionCount(), merged.getTransactionCount());
+        assertEquals(expected.distinctUsersByCountry(), merged.distinctUsersByCountry());
+        assertEquals(keys(expected.topSpenders(10)), keys(merged.topSpenders(10)));
+        assertEquals(expected.suspiciousByCountry(4), merged.suspiciousByCountry(4));
+        for (double q : new double[]{0.5, 0.9, 0.99}) {
+            assertEquals(expected.amountQuantile(q), merged.amountQuantile(q), 10, "quantile " + q);
+        }
+        assertNull(second.export(START + HOUR));
+    }
+
+    @Test
+    void testPostedWindowsAreCheckedBeforeAllocating() throws IOException {
+        WindowedAnalytics analytics = analytics(3);
+
+        ByteArrayOutputStream countries = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(countries)) {
+            out.writeLong(START);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        assertThrows(IOException.class, () -> analytics.merge(countries.toByteArray()));
+
+        ByteArrayOutputStream sketch = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(sketch)) {
+            out.writeLong(START);
+            out.writeInt(0);
+            // A Count-Min sketch of 4 x 2^31 - 1 counters
+            out.writeInt(4);
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeInt(100);
+        }
+        assertThrows(IOException.class, () -> analytics.merge(sketch.toByteArray()));
+
+        assertThrows(IOException.class, () -> analytics.merge(new byte[]{1, 2, 3}));
+        assertEquals(0, analytics.size());
+    }
+
+    private static WindowedAnalytics analytics(int retainedWindows) {
+        return new WindowedAnalytics(retainedWindows, SUSPICIOUS, Collections.singletonList(HIGH_VALUE));
+    }
+
+    private static Transaction transaction(String user, String location, double amount) {
+        return RecentTransactionIndexTest.transaction(user, location, amount);
+    }
+
+    private static Set<String> keys(List<Map.Entry<String, Double>> entries) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Double> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+}
@@ -1 +1,2 @@
-java -jar account-manager/target/account-manager-1.0-SNAPSHOT-jar-with-dependencies.jar
+ARCHIVE=account-manager/target/account-manager.jsa
+java $([ -f "$ARCHIVE" ] && echo "-XX:SharedArchiveFile=$ARCHIVE -Xlog:cds=error") -jar account-manager/target/account-manager-1.0-SNAPSHOT-jar-with-dependencies.jar
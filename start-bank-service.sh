@@ -1 +1,2 @@
-java -jar bank-api-service/target/bank-api-service-1.0-SNAPSHOT-jar-with-dependencies.jar
+ARCHIVE=bank-api-service/target/banking-api-service.jsa
+java $([ -f "$ARCHIVE" ] && echo "-XX:SharedArchiveFile=$ARCHIVE -Xlog:cds=error") -jar bank-api-service/target/bank-api-service-1.0-SNAPSHOT-jar-with-dependencies.jar
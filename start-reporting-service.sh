@@ -1 +1,2 @@
-java -jar reporting-service/target/reporting-service-1.0-SNAPSHOT-jar-with-dependencies.jar
+ARCHIVE=reporting-service/target/reporting-service.jsa
+java $([ -f "$ARCHIVE" ] && echo "-XX:SharedArchiveFile=$ARCHIVE -Xlog:cds=error") -jar reporting-service/target/reporting-service-1.0-SNAPSHOT-jar-with-dependencies.jar
@@ -1 +1,2 @@
-java -jar user-notification-service/target/user-notification-service-1.0-SNAPSHOT-jar-with-dependencies.jar
+ARCHIVE=user-notification-service/target/user-notification-service.jsa
+java $([ -f "$ARCHIVE" ] && echo "-XX:SharedArchiveFile=$ARCHIVE -Xlog:cds=error") -jar user-notification-service/target/user-notification-service-1.0-SNAPSHOT-jar-with-dependencies.jar
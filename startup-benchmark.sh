@@ -0,0 +1,18 @@
+# Compares the startup of each service with and without its AppCDS archive using the --cds-training run.
+# Build the archives first with: mvn clean package -Pfast-startup (in each service directory)
+# Usage: ./startup-benchmark.sh [training-records] [runs]
+RECORDS=${1:-20000}
+RUNS=${2:-3}
+for SERVICE in bank-api-service account-manager reporting-service high-value-service user-notification-service; do
+    JAR=$(ls $SERVICE/target/*-jar-with-dependencies.jar 2>/dev/null | head -1)
+    ARCHIVE=$(ls $SERVICE/target/*.jsa 2>/dev/null | head -1)
+    if [ -z "$JAR" ] || [ -z "$ARCHIVE" ]; then
+        echo "$SERVICE: not built with -Pfast-startup, skipping"
+        continue
+    fi
+    echo "== $SERVICE"
+    for RUN in $(seq $RUNS); do
+        echo "default CDS: $(java -Dtraining.records=$RECORDS -jar $JAR --cds-training | tail -1)"
+        echo "AppCDS:      $(java -XX:SharedArchiveFile=$ARCHIVE -Xlog:cds=error -Dtraining.records=$RECORDS -jar $JAR --cds-training | tail -1)"
+    done
+done
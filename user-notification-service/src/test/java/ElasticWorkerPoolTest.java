@@ -0,0 +1,79 @@
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElasticWorkerPoolTest {
+    private final ElasticWorkerPool workerPool = new ElasticWorkerPool(2, 8);
+
+    @AfterEach
+    void close() {
+        workerPool.close();
+    }
+
+    @Test
+    void testResizeStaysWithinTheBounds() {
+        assertEquals(2, workerPool.getWorkers());
+        assertEquals(6, workerPool.resize(6));
+        assertEquals(6, workerPool.getThreadLimit());
+        assertEquals(8, workerPool.resize(100));
+        assertEquals(8, workerPool.getThreadLimit());
+        assertEquals(3, workerPool.resize(3));
+        assertEquals(3, workerPool.getThreadLimit());
+        assertEquals(2, workerPool.resize(0));
+        assertEquals(2, workerPool.getWorkers());
+        assertEquals(2, workerPool.getThreadLimit());
+
+        assertThrows(IllegalArgumentException.class, () -> new ElasticWorkerPool(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new ElasticWorkerPool(4, 2));
+    }
+
+    @Test
+    void testRecordsOfAKeyStayInOrderAcrossResizes() throws InterruptedException {
+        Map<String, List<Long>> handled = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        long offset = 0;
+        for (int workers : new int[]{2, 8, 4}) {
+            workerPool.resize(workers);
+            List<ConsumerRecord<String, String>> batch = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                batch.add(new ConsumerRecord<>("valid-transactions", 0, offset++, "user" + (i % 20), "record"));
+            }
+            workerPool.process(batch, record -> {
+                threads.add(Thread.currentThread().getName());
+                handled.computeIfAbsent(record.key(), key -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(record.offset());
+            });
+        }
+
+        assertEquals(20, handled.size());
+        for (List<Long> offsets : handled.values()) {
+            assertEquals(60, offsets.size());
+            List<Long> sorted = new ArrayList<>(offsets);
+            Collections.sort(sorted);
+            assertEquals(sorted, offsets);
+        }
+        assertTrue(threads.size() > 1, "shards ran on " + threads);
+    }
+
+    @Test
+    void testFailedRecordDoesNotStopItsShard() throws InterruptedException {
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        List<ConsumerRecord<String, String>> batch = new ArrayList<>();
+        for (long offset = 0; offset < 5; offset++) {
+            batch.add(new ConsumerRecord<>("valid-transactions", 0, offset, "joe1680", "record"));
+        }
+        workerPool.process(batch, record -> {
+            if (record.offset() == 1) {
+                throw new IllegalStateException("handler failed");
+            }
+            handled.add(record.offset());
+        });
+
+        assertEquals(Arrays.asList(0L, 2L, 3L, 4L), handled);
+    }
+}